@@ -0,0 +1,408 @@
+package buscaminas.sm.herramientas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import buscaminas.sm.model.Dificultad;
+import buscaminas.sm.model.Fase;
+import buscaminas.sm.protocolo.DecodificadorTramas;
+import buscaminas.sm.protocolo.TableroEspejo;
+
+/**
+ * <p>
+ * Cliente de carga para {@link ServidorPartidas}: abre varias conexiones,
+ * crea en ellas muchas sesiones con partidas de dificultad
+ * {@link Dificultad#FACIL} y despues juega sobre sesiones elegidas al azar,
+ * destapando casillas o colocando banderas y empezando una partida nueva en
+ * las que han terminado. Cada conexion mantiene un numero fijo de peticiones
+ * en vuelo. Se muestran las sesiones creadas y las jugadas por segundo, y
+ * los percentiles del tiempo que tarda la respuesta de cada jugada.
+ * </p>
+ * <p>
+ * El primer argumento indica el puerto del servidor, el segundo el numero de
+ * sesiones (100000 por defecto), el tercero el de jugadas (1000000 por
+ * defecto), el cuarto el de conexiones (4 por defecto), el quinto las
+ * peticiones en vuelo de cada conexion (32 por defecto) y el sexto, si es
+ * <code>cambios</code>, hace que las sesiones envien los cambios del tablero,
+ * que se aplican a una copia de cada uno con {@link DecodificadorTramas}. En
+ * ese caso se comprueba que la fase y las banderas restantes de la copia
+ * coinciden con las de cada respuesta.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class GeneradorCarga {
+
+	/**
+	 * Microsegundos de latencia que distingue el histograma. Las respuestas
+	 * mas lentas solo cuentan para el maximo y el percentil del final.
+	 */
+	private static final int MICROSEGUNDOS = 100000;
+
+	/**
+	 * Peticiones que se recuerdan para emparejar sus respuestas, mucho mayor
+	 * que las que hay en vuelo porque los fragmentos del servidor pueden
+	 * responder en otro orden.
+	 */
+	private static final int HUECOS = 1 << 16;
+
+	/**
+	 * Peticiones que se escriben como maximo sin vaciar el flujo.
+	 */
+	private static final int LOTE = 32;
+
+	public static void main(String[] args) throws Exception {
+		int puerto = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+		int sesiones = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		long jugadas = args.length > 2 ? Long.parseLong(args[2]) : 1000000;
+		int conexiones = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int ventana = args.length > 4 ? Integer.parseInt(args[4]) : 32;
+		boolean cambios = args.length > 5 && args[5].equals("cambios");
+
+		CyclicBarrier fases = new CyclicBarrier(conexiones + 1);
+		Cliente[] clientes = new Cliente[conexiones];
+		for (int i = 0; i < conexiones; i++) {
+			int cantidad = sesiones / conexiones
+					+ (i < sesiones % conexiones ? 1 : 0);
+			long propias = jugadas / conexiones
+					+ (i < jugadas % conexiones ? 1 : 0);
+			clientes[i] = new Cliente(puerto, cantidad, propias, ventana,
+					cambios, fases, new Random(i));
+			clientes[i].iniciar();
+		}
+
+		long inicio = System.nanoTime();
+		fases.await();
+		double segundos = (System.nanoTime() - inicio) / 1e9;
+		System.out.println(String.format(
+				"%d sesiones creadas en %.2f s: %.1f sesiones/s", sesiones,
+				segundos, sesiones / segundos));
+
+		inicio = System.nanoTime();
+		fases.await();
+		fases.await();
+		segundos = (System.nanoTime() - inicio) / 1e9;
+
+		long[] histograma = new long[MICROSEGUNDOS + 1];
+		long maximo = 0;
+		long invalidas = 0;
+		long errores = 0;
+		long victorias = 0;
+		long derrotas = 0;
+		long bytesCambios = 0;
+		long discrepancias = 0;
+		for (Cliente c : clientes) {
+			for (int i = 0; i < histograma.length; i++)
+				histograma[i] += c.histograma[i];
+			maximo = Math.max(maximo, c.maximo);
+			invalidas += c.invalidas;
+			errores += c.errores;
+			victorias += c.victorias;
+			derrotas += c.derrotas;
+			bytesCambios += c.bytesCambios;
+			discrepancias += c.discrepancias;
+		}
+		System.out.println(String.format(
+				"%d jugadas en %.2f s: %.1f jugadas/s, %d victorias, "
+						+ "%d derrotas, %d invalidas, %d errores", jugadas,
+				segundos, jugadas / segundos, victorias, derrotas, invalidas,
+				errores));
+		System.out.println(String.format(
+				"Latencia: p50 %d us, p99 %d us, p99.9 %d us, maximo %d us",
+				percentil(histograma, 0.5), percentil(histograma, 0.99),
+				percentil(histograma, 0.999), maximo / 1000));
+		if (cambios)
+			System.out.println(String.format(
+					"Cambios: %.1f bytes por jugada, %d discrepancias",
+					(double) bytesCambios / jugadas, discrepancias));
+	}
+
+	/**
+	 * Microsegundos por debajo de los que estan las respuestas de una
+	 * fraccion del total.
+	 */
+	private static int percentil(long[] histograma, double fraccion) {
+		long total = 0;
+		for (long n : histograma)
+			total += n;
+		long objetivo = (long) Math.ceil(total * fraccion);
+		long acumuladas = 0;
+		for (int i = 0; i < histograma.length; i++) {
+			acumuladas += histograma[i];
+			if (acumuladas >= objetivo)
+				return i;
+		}
+		return histograma.length - 1;
+	}
+
+	/**
+	 * Conexion con el servidor. Un hilo envia las peticiones y otro lee las
+	 * respuestas; cada respuesta libera un hueco de la ventana de peticiones
+	 * en vuelo.
+	 */
+	private static final class Cliente {
+		private final Socket socket;
+		private final DataOutputStream salida;
+		private final DataInputStream entrada;
+
+		/**
+		 * Sesiones que crea la conexion y jugadas que hace sobre ellas.
+		 */
+		private final int cantidad;
+		private final long jugadas;
+
+		private final int ventana;
+		private final Semaphore enVuelo;
+		private final CyclicBarrier fases;
+		private final Random aleatorio;
+
+		/**
+		 * Identificadores de las sesiones creadas, y si su partida ha
+		 * terminado. Los escribe el hilo lector; el liberar y adquirir los
+		 * huecos de la ventana hace que el hilo que envia vea los cambios.
+		 */
+		private final long[] ids;
+		private final boolean[] terminadas;
+
+		/**
+		 * Instante de envio y sesion de cada peticion en vuelo, por su
+		 * numero de peticion modulo {@link #HUECOS}.
+		 */
+		private final AtomicLongArray envios = new AtomicLongArray(HUECOS);
+		private final int[] locales = new int[HUECOS];
+
+		/**
+		 * Copias de los tableros de las sesiones, si envian sus cambios, y
+		 * buffer donde se recibe cada trama.
+		 */
+		private final TableroEspejo[] espejos;
+		private ByteBuffer trama = ByteBuffer.allocate(1024);
+
+		/**
+		 * Numero de la siguiente peticion.
+		 */
+		private int siguiente;
+
+		/**
+		 * Resultados de las jugadas, que escribe el hilo lector.
+		 */
+		final long[] histograma = new long[MICROSEGUNDOS + 1];
+		long maximo;
+		long invalidas;
+		long errores;
+		long victorias;
+		long derrotas;
+		long bytesCambios;
+		long discrepancias;
+
+		Cliente(int puerto, int cantidad, long jugadas, int ventana,
+				boolean cambios, CyclicBarrier fases, Random aleatorio)
+				throws IOException {
+			this.socket = new Socket(InetAddress.getByName(null), puerto);
+			socket.setTcpNoDelay(true);
+			this.salida = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream(), 64 * 1024));
+			this.entrada = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream(), 64 * 1024));
+			this.cantidad = cantidad;
+			this.jugadas = jugadas;
+			this.ventana = ventana;
+			this.enVuelo = new Semaphore(ventana);
+			this.fases = fases;
+			this.aleatorio = aleatorio;
+			this.ids = new long[cantidad];
+			this.terminadas = new boolean[cantidad];
+			if (cambios) {
+				espejos = new TableroEspejo[cantidad];
+				for (int i = 0; i < cantidad; i++)
+					espejos[i] = new TableroEspejo();
+			} else {
+				espejos = null;
+			}
+		}
+
+		void iniciar() {
+			Thread lector = new Thread(new Runnable() {
+				public void run() {
+					try {
+						leer();
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}, "Lector-" + socket.getLocalPort());
+			lector.setDaemon(true);
+			lector.start();
+			Thread emisor = new Thread(new Runnable() {
+				public void run() {
+					try {
+						enviar();
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}, "Emisor-" + socket.getLocalPort());
+			emisor.setDaemon(true);
+			emisor.start();
+		}
+
+		/**
+		 * Crea las sesiones, espera a que esten todas creadas y juega sobre
+		 * ellas.
+		 */
+		private void enviar() throws IOException, InterruptedException,
+				BrokenBarrierException {
+			for (int i = 0; i < cantidad; i++)
+				enviar(ProtocoloSesiones.CREAR, i, Dificultad.FACIL.ordinal(),
+						espejos == null ? 0 : 1);
+			esperarRespuestas();
+			fases.await();
+
+			fases.await();
+			int filas = Dificultad.FACIL.getFilas();
+			int columnas = Dificultad.FACIL.getColumnas();
+			for (long j = 0; j < jugadas; j++) {
+				int local = aleatorio.nextInt(cantidad);
+				if (terminadas[local]) {
+					terminadas[local] = false;
+					enviar(ProtocoloSesiones.NUEVA_PARTIDA, local, 0, 0);
+				} else {
+					int orden = aleatorio.nextInt(5) == 0 ? ProtocoloSesiones.BANDERA
+							: ProtocoloSesiones.DESTAPAR;
+					enviar(orden, local, aleatorio.nextInt(filas),
+							aleatorio.nextInt(columnas));
+				}
+			}
+			esperarRespuestas();
+			socket.close();
+			fases.await();
+		}
+
+		/**
+		 * Escribe una peticion, esperando antes a que haya un hueco en la
+		 * ventana. El flujo se vacia cada {@link #LOTE} peticiones y siempre
+		 * que haya que esperar.
+		 */
+		private void enviar(int orden, int local, int fila, int columna)
+				throws IOException, InterruptedException {
+			if (!enVuelo.tryAcquire()) {
+				salida.flush();
+				enVuelo.acquire();
+			}
+			int peticion = siguiente++;
+			int hueco = peticion & (HUECOS - 1);
+			locales[hueco] = local;
+			envios.set(hueco, System.nanoTime());
+			salida.writeInt(peticion);
+			salida.writeByte(orden);
+			salida.writeLong(orden == ProtocoloSesiones.CREAR ? 0 : ids[local]);
+			salida.writeInt(fila);
+			salida.writeInt(columna);
+			if (peticion % LOTE == LOTE - 1)
+				salida.flush();
+		}
+
+		/**
+		 * Espera a que lleguen las respuestas de todas las peticiones
+		 * enviadas.
+		 */
+		private void esperarRespuestas() throws IOException,
+				InterruptedException {
+			salida.flush();
+			enVuelo.acquire(ventana);
+			enVuelo.release(ventana);
+		}
+
+		/**
+		 * Lee las respuestas de todas las peticiones de la conexion.
+		 */
+		private void leer() throws IOException {
+			long esperadas = cantidad + jugadas;
+			for (long i = 0; i < esperadas; i++) {
+				int peticion = entrada.readInt();
+				int resultado = entrada.readByte();
+				long sesion = entrada.readLong();
+				int fase = entrada.readByte();
+				int banderas = entrada.readInt();
+				entrada.readInt();
+				int hueco = peticion & (HUECOS - 1);
+				int local = locales[hueco];
+				long latencia = System.nanoTime() - envios.get(hueco);
+				if (leerTrama() && espejos != null) {
+					bytesCambios += trama.remaining();
+					TableroEspejo espejo = espejos[local];
+					DecodificadorTramas.aplicar(trama, espejo);
+					if (espejo.getFase().ordinal() != fase
+							|| espejo.getBanderasRestantes() != banderas)
+						discrepancias++;
+				}
+
+				if (peticion < cantidad) {
+					ids[local] = sesion;
+				} else {
+					histograma[(int) Math.min(MICROSEGUNDOS, latencia / 1000)]++;
+					maximo = Math.max(maximo, latencia);
+					if (resultado == ProtocoloSesiones.JUGADA_INVALIDA)
+						invalidas++;
+					else if (resultado != ProtocoloSesiones.OK)
+						errores++;
+					if (fase == Fase.VICTORIA.ordinal()
+							|| fase == Fase.DERROTA.ordinal()) {
+						// Solo la jugada que la termina tiene exito
+						if (resultado == ProtocoloSesiones.OK) {
+							if (fase == Fase.VICTORIA.ordinal())
+								victorias++;
+							else
+								derrotas++;
+						}
+						terminadas[local] = true;
+					}
+				}
+				enVuelo.release();
+			}
+		}
+
+		/**
+		 * Lee la trama de cambios que sigue a una respuesta, con su longitud.
+		 *
+		 * @return Si la trama tiene algun cambio
+		 */
+		private boolean leerTrama() throws IOException {
+			trama.clear();
+			int longitud = 0;
+			for (int desplazamiento = 0;; desplazamiento += 7) {
+				byte b = entrada.readByte();
+				trama.put(b);
+				longitud |= (b & 0x7F) << desplazamiento;
+				if (b >= 0)
+					break;
+			}
+			if (longitud == 0)
+				return false;
+			if (trama.remaining() < longitud) {
+				ByteBuffer mayor = ByteBuffer.allocate(trama.position()
+						+ longitud);
+				trama.flip();
+				mayor.put(trama);
+				trama = mayor;
+			}
+			entrada.readFully(trama.array(), trama.position(), longitud);
+			trama.position(trama.position() + longitud);
+			trama.flip();
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,641 @@
+package buscaminas.sm.herramientas;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import buscaminas.sm.controller.EstadoObserverLotes;
+import buscaminas.sm.controller.JuegoController;
+import buscaminas.sm.controller.ReservaPartidas;
+import buscaminas.sm.model.Dificultad;
+import buscaminas.sm.model.Fase;
+import buscaminas.sm.model.InstantaneaJuego;
+import buscaminas.sm.protocolo.CodificadorTramas;
+import buscaminas.sm.protocolo.ReservaBuffers;
+
+/**
+ * <p>
+ * Mantiene muchas partidas simultaneas, cada una en una sesion con su propio
+ * {@link JuegoController}. Las sesiones se reparten en fragmentos, y cada
+ * fragmento las atiende desde un unico hilo, de modo que las partidas no
+ * necesitan bloqueos y las ordenes de una misma sesion se ejecutan en el
+ * orden en que llegan. El fragmento de una sesion se deduce de su
+ * identificador.
+ * </p>
+ * <p>
+ * Solo se mantiene en memoria el controlador de las sesiones usadas
+ * recientemente. Cuando un fragmento supera su parte del maximo de sesiones
+ * activas, o cuando una sesion lleva demasiado tiempo sin usarse, su partida
+ * se guarda en una {@link InstantaneaJuego} y el controlador se descarta; la
+ * siguiente orden de la sesion restaura la partida desde la instantanea. Asi
+ * la memoria ocupada por las sesiones inactivas es la de sus instantaneas,
+ * unos cien bytes en un tablero de dificultad {@link Dificultad#FACIL}.
+ * </p>
+ * <p>
+ * Las sesiones que lo piden al crearse responden a cada orden con los
+ * cambios que ha causado en el tablero, codificados con
+ * {@link CodificadorTramas} en buffers directos de una reserva comun.
+ * </p>
+ * <p>
+ * Si se indica una {@link ReservaPartidas}, las partidas nuevas de todas las
+ * sesiones se toman de ella, de modo que crear una sesion o empezar otra
+ * partida no espera a que se generen las minas.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ * @see ProtocoloSesiones
+ */
+public class GestorSesiones implements Closeable {
+
+	/**
+	 * Recibe el resultado de una orden, desde el hilo del fragmento que la ha
+	 * ejecutado.
+	 */
+	public interface Respuesta {
+
+		/**
+		 * @param peticion
+		 *            Numero de la peticion que se responde
+		 * @param resultado
+		 *            Uno de los resultados de {@link ProtocoloSesiones}
+		 * @param sesion
+		 *            Sesion de la peticion, o la creada
+		 * @param fase
+		 *            Fase de la partida tras la orden, o null si la sesion no
+		 *            existe o se ha cerrado
+		 * @param banderasRestantes
+		 *            Banderas que aun se pueden colocar
+		 * @param destapadas
+		 *            Casillas que ha destapado la orden
+		 * @param cambios
+		 *            Trama con los cambios del tablero, que se debe devolver
+		 *            con {@link GestorSesiones#devolver(ByteBuffer)} cuando
+		 *            ya se haya enviado, o null si la sesion no envia cambios
+		 *            o no los ha habido
+		 */
+		public void responder(int peticion, int resultado, long sesion,
+				Fase fase, int banderasRestantes, int destapadas,
+				ByteBuffer cambios);
+	}
+
+	/**
+	 * Milisegundos entre las busquedas de sesiones inactivas.
+	 */
+	private static final long INTERVALO_DESALOJO = 1000;
+
+	/**
+	 * Bytes de los buffers de las tramas de cambios, donde caben las de
+	 * cualquier jugada en un tablero de dificultad {@link Dificultad#DIFICIL},
+	 * y buffers libres que se guardan como maximo.
+	 */
+	private static final int TAMAÑO_TRAMA = 1024;
+	private static final int TRAMAS_LIBRES = 4096;
+
+	private final Fragmento[] fragmentos;
+
+	/**
+	 * Sesiones activas que admite cada fragmento.
+	 */
+	private final int activasMaximas;
+
+	/**
+	 * Milisegundos sin usarse tras los que se desaloja una sesion.
+	 */
+	private final long inactividad;
+
+	/**
+	 * Fragmento en que se crea la siguiente sesion.
+	 */
+	private final AtomicInteger siguienteFragmento = new AtomicInteger();
+
+	private final ReservaBuffers reserva = new ReservaBuffers(TAMAÑO_TRAMA,
+			TRAMAS_LIBRES);
+
+	/**
+	 * Partidas preparadas para las sesiones, o null si se crean al momento.
+	 */
+	private final ReservaPartidas partidas;
+
+	/**
+	 * @param fragmentos
+	 *            Numero de fragmentos, y por tanto de hilos
+	 * @param activasMaximas
+	 *            Sesiones que se mantienen en memoria como maximo, entre
+	 *            todos los fragmentos
+	 * @param inactividad
+	 *            Milisegundos sin usarse tras los que una sesion se desaloja
+	 * @throws IllegalArgumentException
+	 *             Si alguno de los valores no es positivo
+	 */
+	public GestorSesiones(int fragmentos, int activasMaximas, long inactividad) {
+		this(fragmentos, activasMaximas, inactividad, null);
+	}
+
+	/**
+	 * @param fragmentos
+	 *            Numero de fragmentos, y por tanto de hilos
+	 * @param activasMaximas
+	 *            Sesiones que se mantienen en memoria como maximo, entre
+	 *            todos los fragmentos
+	 * @param inactividad
+	 *            Milisegundos sin usarse tras los que una sesion se desaloja
+	 * @param partidas
+	 *            Reserva de la que se toman las partidas nuevas, que no debe
+	 *            ser compartida, o null para crearlas al momento
+	 * @throws IllegalArgumentException
+	 *             Si alguno de los valores no es positivo o la reserva es
+	 *             compartida
+	 */
+	public GestorSesiones(int fragmentos, int activasMaximas,
+			long inactividad, ReservaPartidas partidas) {
+		if (fragmentos < 1 || activasMaximas < 1 || inactividad < 1)
+			throw new IllegalArgumentException(
+					"Los parametros del gestor deben ser positivos");
+		if (partidas != null && partidas.isCompartida())
+			throw new IllegalArgumentException(
+					"La reserva no prepara partidas de este tipo");
+		this.activasMaximas = Math.max(1, activasMaximas / fragmentos);
+		this.inactividad = inactividad;
+		this.partidas = partidas;
+		this.fragmentos = new Fragmento[fragmentos];
+		for (int i = 0; i < fragmentos; i++)
+			this.fragmentos[i] = new Fragmento(i);
+	}
+
+	/**
+	 * Encola una orden en el fragmento de su sesion, o en el siguiente por
+	 * turno si crea una sesion nueva. El resultado se entrega mas tarde desde
+	 * el hilo del fragmento.
+	 *
+	 * @param peticion
+	 *            Numero de la peticion, que se devuelve en la respuesta
+	 * @param orden
+	 *            Una de las ordenes de {@link ProtocoloSesiones}
+	 * @param sesion
+	 *            Sesion sobre la que se ejecuta la orden
+	 * @param fila
+	 *            Fila de la casilla, o el ordinal de la dificultad al crear
+	 *            una sesion
+	 * @param columna
+	 *            Columna de la casilla, o distinta de 0 al crear una sesion
+	 *            que envie los cambios del tablero
+	 * @param respuesta
+	 *            Receptor del resultado
+	 */
+	public void ejecutar(final int peticion, final int orden,
+			final long sesion, final int fila, final int columna,
+			final Respuesta respuesta) {
+		int indice;
+		if (orden == ProtocoloSesiones.CREAR)
+			indice = (siguienteFragmento.getAndIncrement() & Integer.MAX_VALUE)
+					% fragmentos.length;
+		else
+			indice = (int) ((sesion & Long.MAX_VALUE) % fragmentos.length);
+		final Fragmento fragmento = fragmentos[indice];
+		try {
+			fragmento.ejecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						fragmento.ejecutar(peticion, orden, sesion, fila,
+								columna, respuesta);
+					} catch (RuntimeException e) {
+						// El ejecutor descartaria el error sin avisar, y el
+						// cliente se quedaria esperando la respuesta
+						respuesta.responder(peticion, ProtocoloSesiones.ERROR,
+								sesion, null, 0, 0, null);
+					}
+					fragmento.desalojarSobrantes();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// El gestor se ha cerrado
+			respuesta.responder(peticion, ProtocoloSesiones.ERROR, sesion,
+					null, 0, 0, null);
+		}
+	}
+
+	/**
+	 * Devuelve a la reserva la trama de cambios de una respuesta, una vez
+	 * enviada.
+	 *
+	 * @param cambios
+	 *            Trama recibida en {@link Respuesta#responder}
+	 */
+	public void devolver(ByteBuffer cambios) {
+		reserva.devolver(cambios);
+	}
+
+	/**
+	 * @return Sesiones abiertas entre todos los fragmentos
+	 */
+	public int getSesiones() {
+		int total = 0;
+		for (Fragmento f : fragmentos)
+			total += f.numeroSesiones;
+		return total;
+	}
+
+	/**
+	 * @return Sesiones cuyo controlador esta en memoria
+	 */
+	public int getActivas() {
+		int total = 0;
+		for (Fragmento f : fragmentos)
+			total += f.numeroActivas;
+		return total;
+	}
+
+	/**
+	 * @return Veces que se ha guardado una sesion en su instantanea
+	 */
+	public long getDesalojos() {
+		long total = 0;
+		for (Fragmento f : fragmentos)
+			total += f.desalojos;
+		return total;
+	}
+
+	/**
+	 * @return Veces que se ha restaurado una sesion desde su instantanea
+	 */
+	public long getRestauraciones() {
+		long total = 0;
+		for (Fragmento f : fragmentos)
+			total += f.restauraciones;
+		return total;
+	}
+
+	/**
+	 * Detiene los hilos de los fragmentos tras ejecutar las ordenes ya
+	 * encoladas. Las ordenes posteriores se responden con
+	 * {@link ProtocoloSesiones#ERROR}.
+	 */
+	public void close() {
+		for (Fragmento f : fragmentos)
+			f.ejecutor.shutdown();
+	}
+
+	/**
+	 * Partida de una sesion, que cuenta las casillas destapadas en cada
+	 * orden.
+	 */
+	private static final class Sesion implements EstadoObserverLotes {
+		final long id;
+
+		/**
+		 * Controlador de la partida, o null si esta desalojada.
+		 */
+		JuegoController controlador;
+
+		/**
+		 * Instantanea de la partida desalojada, o null si esta activa.
+		 */
+		byte[] instantanea;
+
+		/**
+		 * Milisegundos en que se uso por ultima vez.
+		 */
+		long ultimoUso;
+
+		/**
+		 * Casillas destapadas desde que empezo la orden actual.
+		 */
+		int destapadas;
+
+		/**
+		 * Codificador de los cambios del tablero, o null si la sesion no los
+		 * envia. Se conserva mientras la sesion esta desalojada, ya que
+		 * recuerda lo que conoce el cliente.
+		 */
+		CodificadorTramas cambios;
+
+		Sesion(long id) {
+			this.id = id;
+		}
+
+		public void casillasDestapadas(int[] indices, byte[] valores,
+				int cantidad) {
+			destapadas += cantidad;
+		}
+
+		public void casillaDestapada(int x, int y, int valor) {
+			destapadas++;
+		}
+
+		public void banderaEstablecida(int x, int y, boolean establecida) {
+		}
+
+		public void banderasRestantes(int banderasRestantes) {
+		}
+
+		public void finPartida(Fase faseFinal) {
+		}
+	}
+
+	/**
+	 * Sesiones que atiende un mismo hilo. Sus campos solo se modifican desde
+	 * ese hilo, salvo los contadores, que se leen desde fuera sin bloqueos.
+	 */
+	private final class Fragmento {
+		final ScheduledExecutorService ejecutor;
+
+		/**
+		 * Todas las sesiones del fragmento.
+		 */
+		private final Map<Long, Sesion> sesiones = new HashMap<Long, Sesion>();
+
+		/**
+		 * Sesiones activas, de la usada hace mas tiempo a la mas reciente.
+		 */
+		private final LinkedHashMap<Long, Sesion> activas = new LinkedHashMap<Long, Sesion>(
+				16, 0.75f, true);
+
+		/**
+		 * Identificador de la siguiente sesion que se cree, que siempre
+		 * corresponde a este fragmento.
+		 */
+		private long siguienteId;
+
+		private final CanalBytes canal = new CanalBytes();
+
+		volatile int numeroSesiones;
+		volatile int numeroActivas;
+		volatile long desalojos;
+		volatile long restauraciones;
+
+		Fragmento(final int indice) {
+			siguienteId = indice;
+			ejecutor = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread hilo = new Thread(r, "Sesiones-" + indice);
+							hilo.setDaemon(true);
+							return hilo;
+						}
+					});
+			ejecutor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					desalojarInactivas();
+				}
+			}, INTERVALO_DESALOJO, INTERVALO_DESALOJO, TimeUnit.MILLISECONDS);
+		}
+
+		void ejecutar(int peticion, int orden, long id, int fila,
+				int columna, Respuesta respuesta) {
+			Sesion sesion;
+			if (orden == ProtocoloSesiones.CREAR) {
+				if (fila < 0 || fila >= Dificultad.values().length) {
+					respuesta.responder(peticion,
+							ProtocoloSesiones.JUGADA_INVALIDA, id, null, 0, 0,
+							null);
+					return;
+				}
+				sesion = crear(Dificultad.values()[fila], columna != 0);
+			} else {
+				sesion = sesiones.get(id);
+				if (sesion == null) {
+					respuesta.responder(peticion,
+							ProtocoloSesiones.SESION_DESCONOCIDA, id, null, 0, 0,
+							null);
+					return;
+				}
+				try {
+					activar(sesion);
+				} catch (IOException e) {
+					respuesta.responder(peticion, ProtocoloSesiones.ERROR, id,
+							null, 0, 0, null);
+					return;
+				}
+			}
+			sesion.ultimoUso = System.currentTimeMillis();
+			sesion.destapadas = 0;
+
+			int resultado = ProtocoloSesiones.OK;
+			JuegoController controlador = sesion.controlador;
+			try {
+				switch (orden) {
+				case ProtocoloSesiones.CREAR:
+					break;
+				case ProtocoloSesiones.DESTAPAR:
+					controlador.destaparCasilla(fila, columna);
+					break;
+				case ProtocoloSesiones.BANDERA:
+					controlador.establecerBandera(fila, columna);
+					break;
+				case ProtocoloSesiones.ADYACENTES:
+					controlador.destaparAdyacentes(fila, columna);
+					break;
+				case ProtocoloSesiones.NUEVA_PARTIDA:
+					if (sesion.cambios != null)
+						sesion.cambios.sincronizar();
+					controlador.generarPartida();
+					break;
+				case ProtocoloSesiones.CERRAR:
+					sesiones.remove(sesion.id);
+					activas.remove(sesion.id);
+					numeroSesiones = sesiones.size();
+					numeroActivas = activas.size();
+					respuesta.responder(peticion, resultado, id, null, 0, 0,
+							null);
+					return;
+				default:
+					resultado = ProtocoloSesiones.JUGADA_INVALIDA;
+				}
+			} catch (IllegalStateException e) {
+				// La partida ya habia terminado
+				resultado = ProtocoloSesiones.JUGADA_INVALIDA;
+			}
+			respuesta.responder(peticion, resultado, sesion.id,
+					controlador.getFase(), controlador.getBanderasRestantes(),
+					sesion.destapadas, sesion.cambios == null ? null
+							: sesion.cambios.terminarTrama(controlador));
+		}
+
+		/**
+		 * Abre una sesion nueva con una partida de la dificultad indicada.
+		 */
+		private Sesion crear(Dificultad dificultad, boolean conCambios) {
+			Sesion sesion = new Sesion(siguienteId);
+			siguienteId += fragmentos.length;
+			JuegoController controlador = JuegoController.sinPartida(false);
+			controlador.setReserva(partidas);
+			controlador.generarPartida(dificultad);
+			controlador.addEstadoObserver(sesion);
+			if (conCambios) {
+				sesion.cambios = new CodificadorTramas(reserva);
+				controlador.addEstadoObserver(sesion.cambios);
+			}
+			sesion.controlador = controlador;
+			sesiones.put(sesion.id, sesion);
+			activas.put(sesion.id, sesion);
+			numeroSesiones = sesiones.size();
+			numeroActivas = activas.size();
+			return sesion;
+		}
+
+		/**
+		 * Marca una sesion como la usada mas recientemente, restaurando su
+		 * partida si estaba desalojada.
+		 */
+		private void activar(Sesion sesion) throws IOException {
+			if (sesion.controlador != null) {
+				// Moverla al final del orden de uso
+				activas.get(sesion.id);
+				return;
+			}
+			JuegoController controlador = JuegoController.sinPartida(false);
+			controlador.setReserva(partidas);
+			controlador.restaurarPartida(canal.leer(sesion.instantanea));
+			// Despues de restaurarla, para que no reciban de nuevo las
+			// casillas ya destapadas
+			controlador.addEstadoObserver(sesion);
+			if (sesion.cambios != null)
+				controlador.addEstadoObserver(sesion.cambios);
+			sesion.controlador = controlador;
+			sesion.instantanea = null;
+			activas.put(sesion.id, sesion);
+			numeroActivas = activas.size();
+			restauraciones++;
+		}
+
+		/**
+		 * Guarda en su instantanea la partida de una sesion y descarta su
+		 * controlador.
+		 */
+		private void desalojar(Sesion sesion) throws IOException {
+			canal.reiniciar();
+			sesion.controlador.guardarPartida(canal);
+			sesion.instantanea = canal.copiar();
+			sesion.controlador = null;
+			desalojos++;
+		}
+
+		/**
+		 * Desaloja las sesiones usadas hace mas tiempo mientras haya mas
+		 * activas de las permitidas.
+		 */
+		void desalojarSobrantes() {
+			if (activas.size() <= activasMaximas)
+				return;
+			Iterator<Sesion> i = activas.values().iterator();
+			while (activas.size() > activasMaximas && i.hasNext())
+				desalojar(i, i.next());
+			numeroActivas = activas.size();
+		}
+
+		/**
+		 * Desaloja las sesiones que llevan demasiado tiempo sin usarse.
+		 */
+		private void desalojarInactivas() {
+			long limite = System.currentTimeMillis() - inactividad;
+			Iterator<Sesion> i = activas.values().iterator();
+			while (i.hasNext()) {
+				Sesion sesion = i.next();
+				// Las siguientes se han usado despues
+				if (sesion.ultimoUso > limite)
+					break;
+				desalojar(i, sesion);
+			}
+			numeroActivas = activas.size();
+		}
+
+		/**
+		 * Desaloja la sesion actual de un recorrido de las activas.
+		 */
+		private void desalojar(Iterator<Sesion> i, Sesion sesion) {
+			try {
+				desalojar(sesion);
+				i.remove();
+			} catch (IOException e) {
+				// No puede ocurrir escribiendo en memoria, pero si ocurriese
+				// la sesion se conserva activa
+			}
+		}
+	}
+
+	/**
+	 * Canal en memoria donde se guardan las instantaneas y desde el que se
+	 * restauran. Se reutiliza para todas las sesiones de un fragmento.
+	 */
+	private static final class CanalBytes implements ByteChannel {
+
+		/**
+		 * Lo escrito desde que se reinicio el canal, que crece segun haga
+		 * falta.
+		 */
+		private ByteBuffer escritura = ByteBuffer.allocate(256);
+
+		/**
+		 * Instantanea que se esta leyendo.
+		 */
+		private ByteBuffer lectura;
+
+		/**
+		 * Vacia el canal para escribir una instantanea.
+		 */
+		void reiniciar() {
+			escritura.clear();
+		}
+
+		/**
+		 * @return Una copia de lo escrito desde que se reinicio el canal
+		 */
+		byte[] copiar() {
+			return Arrays.copyOf(escritura.array(), escritura.position());
+		}
+
+		/**
+		 * Prepara el canal para leer una instantanea.
+		 */
+		CanalBytes leer(byte[] instantanea) {
+			lectura = ByteBuffer.wrap(instantanea);
+			return this;
+		}
+
+		public int write(ByteBuffer origen) {
+			int cantidad = origen.remaining();
+			if (escritura.remaining() < cantidad) {
+				ByteBuffer mayor = ByteBuffer.allocate(Math.max(
+						escritura.capacity() * 2, escritura.position()
+								+ cantidad));
+				escritura.flip();
+				mayor.put(escritura);
+				escritura = mayor;
+			}
+			escritura.put(origen);
+			return cantidad;
+		}
+
+		public int read(ByteBuffer destino) {
+			if (!lectura.hasRemaining())
+				return -1;
+			int cantidad = Math.min(destino.remaining(), lectura.remaining());
+			int limite = lectura.limit();
+			lectura.limit(lectura.position() + cantidad);
+			destino.put(lectura);
+			lectura.limit(limite);
+			return cantidad;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+}
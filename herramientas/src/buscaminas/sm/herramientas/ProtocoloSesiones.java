@@ -0,0 +1,65 @@
+package buscaminas.sm.herramientas;
+
+/**
+ * <p>
+ * Formato de las peticiones y respuestas que intercambian
+ * {@link ServidorPartidas} y sus clientes. Las peticiones y la primera parte
+ * de las respuestas tienen un tamaño fijo y sus campos se escriben en orden
+ * de red, de modo que un cliente puede enviar muchas peticiones seguidas sin
+ * esperar las respuestas y emparejarlas despues por su numero de peticion.
+ * </p>
+ * <p>
+ * Una peticion contiene el numero de peticion (<code>int</code>), la orden (
+ * <code>byte</code>), la sesion (<code>long</code>), la fila (
+ * <code>int</code>) y la columna (<code>int</code>). Al crear una sesion la
+ * fila indica el ordinal de la dificultad de la partida, y una columna
+ * distinta de 0 que la sesion debe enviar los cambios del tablero.
+ * </p>
+ * <p>
+ * Una respuesta contiene el numero de peticion (<code>int</code>), el
+ * resultado (<code>byte</code>), la sesion (<code>long</code>), el ordinal de
+ * la fase de la partida o -1 si la sesion no existe (<code>byte</code>), las
+ * banderas restantes (<code>int</code>) y las casillas que ha destapado la
+ * jugada (<code>int</code>). Despues va siempre una trama de
+ * {@link buscaminas.sm.protocolo.CodificadorTramas} con los cambios del
+ * tablero, que es un solo byte a 0 si la sesion no los envia o no los ha
+ * habido.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public final class ProtocoloSesiones {
+
+	/**
+	 * Bytes de cada peticion.
+	 */
+	public static final int TAMAÑO_PETICION = 21;
+
+	/**
+	 * Bytes de cada respuesta, sin la trama de cambios.
+	 */
+	public static final int TAMAÑO_RESPUESTA = 22;
+
+	/**
+	 * Ordenes de las peticiones.
+	 */
+	public static final int CREAR = 0;
+	public static final int DESTAPAR = 1;
+	public static final int BANDERA = 2;
+	public static final int ADYACENTES = 3;
+	public static final int NUEVA_PARTIDA = 4;
+	public static final int CERRAR = 5;
+
+	/**
+	 * Resultados de las respuestas.
+	 */
+	public static final int OK = 0;
+	public static final int SESION_DESCONOCIDA = 1;
+	public static final int JUGADA_INVALIDA = 2;
+	public static final int ERROR = 3;
+
+	private ProtocoloSesiones() {
+	}
+
+}
@@ -0,0 +1,511 @@
+package buscaminas.sm.herramientas;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import buscaminas.sm.controller.JuegoController;
+import buscaminas.sm.controller.ReservaPartidas;
+import buscaminas.sm.model.AlmacenTableroEmpaquetado;
+import buscaminas.sm.model.Casilla;
+import buscaminas.sm.model.Dificultad;
+import buscaminas.sm.model.EstadoJuego;
+import buscaminas.sm.model.InstantaneaJuego;
+import buscaminas.sm.resolutor.CalculadoraProbabilidades;
+import buscaminas.sm.resolutor.GeneradorSinAdivinar;
+import buscaminas.sm.resolutor.Resolutor;
+
+/**
+ * <p>
+ * Mide el rendimiento de las operaciones principales del modelo sin necesidad
+ * del SDK de Android: la primera pulsacion (que genera las minas), un destape
+ * sencillo, la cascada del peor caso, el destape del tablero completo al
+ * perder, la colocacion de banderas, la resolucion automatica de tableros
+ * con {@link Resolutor}, el calculo de probabilidades de mina con
+ * {@link CalculadoraProbabilidades} cuando ya no quedan casillas seguras y
+ * el guardado y la restauracion de la partida con {@link InstantaneaJuego},
+ * para los tableros de cada dificultad y para dos tableros grandes. Para
+ * cada dificultad se mide tambien lo que tarda el controlador en crear una
+ * partida y destapar su primera casilla, con y sin una
+ * {@link ReservaPartidas}.
+ * </p>
+ * <p>
+ * Cada prueba se ejecuta primero durante un tiempo de calentamiento, para que
+ * la maquina virtual compile el codigo, y despues se mide. Se muestran las
+ * operaciones por segundo y los bytes reservados por operacion, contando solo
+ * el tiempo y la memoria de la operacion y no los de su preparacion.
+ * </p>
+ * <p>
+ * Los argumentos, si se indican, filtran las pruebas cuyo nombre los contenga.
+ * Los tiempos se pueden cambiar con las propiedades
+ * <code>rendimiento.calentamiento</code> y <code>rendimiento.medicion</code>,
+ * en milisegundos.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class Rendimiento {
+
+	/**
+	 * Milisegundos de calentamiento de cada prueba.
+	 */
+	private static final long CALENTAMIENTO = Long.getLong(
+			"rendimiento.calentamiento", 1000);
+
+	/**
+	 * Milisegundos de medicion de cada prueba.
+	 */
+	private static final long MEDICION = Long.getLong("rendimiento.medicion",
+			3000);
+
+	/**
+	 * Veces que se conmuta la bandera en cada ejecucion de la prueba de
+	 * banderas, para que el coste de medir no oculte el de la operacion.
+	 */
+	private static final int CONMUTACIONES = 1000;
+
+	/**
+	 * Medidor de la memoria reservada por el hilo actual.
+	 */
+	private static final com.sun.management.ThreadMXBean HILOS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	/**
+	 * Tamaño de tablero sobre el que se ejecutan las pruebas.
+	 */
+	private static class Dimensiones {
+		final String nombre;
+		final int filas;
+		final int columnas;
+		final int minas;
+
+		Dimensiones(String nombre, int filas, int columnas, int minas) {
+			this.nombre = nombre;
+			this.filas = filas;
+			this.columnas = columnas;
+			this.minas = minas;
+		}
+
+		/**
+		 * Crea una partida nueva con estas dimensiones.
+		 */
+		EstadoJuego crearPartida(int minas) {
+			return new EstadoJuego(
+					new AlmacenTableroEmpaquetado(filas, columnas), minas,
+					semilla++);
+		}
+	}
+
+	/**
+	 * Operacion que se mide, con una preparacion previa que no se mide.
+	 */
+	private static abstract class Prueba {
+
+		final String nombre;
+
+		Prueba(String nombre) {
+			this.nombre = nombre;
+		}
+
+		/**
+		 * Prepara el estado necesario para una ejecucion.
+		 */
+		void preparar() {
+		}
+
+		/**
+		 * Ejecuta la operacion medida.
+		 *
+		 * @return El numero de operaciones realizadas
+		 */
+		abstract int ejecutar();
+
+		/**
+		 * Libera lo que necesite la prueba, despues de medirla.
+		 */
+		void terminar() {
+		}
+	}
+
+	/**
+	 * Canal en memoria donde se escriben y de donde se leen las instantaneas,
+	 * para no medir el sistema de ficheros.
+	 */
+	private static class CanalMemoria implements ByteChannel {
+		private final ByteBuffer datos;
+
+		CanalMemoria(long tamaño) {
+			datos = ByteBuffer.allocate((int) tamaño);
+		}
+
+		/**
+		 * Vuelve al principio del canal, sin borrar lo escrito.
+		 */
+		void reiniciar() {
+			datos.clear();
+		}
+
+		public int write(ByteBuffer origen) {
+			int cantidad = origen.remaining();
+			datos.put(origen);
+			return cantidad;
+		}
+
+		public int read(ByteBuffer destino) {
+			if (!datos.hasRemaining())
+				return -1;
+			int cantidad = Math.min(destino.remaining(), datos.remaining());
+			int limite = datos.limit();
+			datos.limit(datos.position() + cantidad);
+			destino.put(datos);
+			datos.limit(limite);
+			return cantidad;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * Tableros grandes sobre los que se ejecutan las pruebas, ademas de los de
+	 * cada dificultad.
+	 */
+	private static final Dimensiones[] GRANDES = {
+			new Dimensiones("1000x1000", 1000, 1000, 150000),
+			new Dimensiones("4000x4000", 4000, 4000, 1600000) };
+
+	/**
+	 * Semilla de la siguiente partida, para que todas las ejecuciones sean
+	 * reproducibles.
+	 */
+	private static long semilla;
+
+	public static void main(String[] args) {
+		List<Prueba> pruebas = new ArrayList<Prueba>();
+		for (Dificultad dificultad : Dificultad.values()) {
+			Dimensiones tamaño = new Dimensiones(dificultad.name(),
+					dificultad.getFilas(), dificultad.getColumnas(),
+					dificultad.getMinas());
+			añadirPruebas(pruebas, tamaño);
+			añadirPruebaSinAdivinar(pruebas, tamaño);
+			añadirPruebasReserva(pruebas, dificultad);
+		}
+		for (Dimensiones tamaño : GRANDES) {
+			añadirPruebas(pruebas, tamaño);
+		}
+		System.out.println(String.format("%-40s %14s %12s %14s", "prueba",
+				"ops/s", "ns/op", "bytes/op"));
+		for (Prueba prueba : pruebas) {
+			if (seleccionada(prueba, args))
+				medir(prueba);
+		}
+	}
+
+	/**
+	 * Añade las pruebas de un tamaño de tablero.
+	 */
+	private static void añadirPruebas(List<Prueba> pruebas, final Dimensiones t) {
+		pruebas.add(new Prueba(t.nombre + " primera pulsacion") {
+			EstadoJuego juego;
+
+			void preparar() {
+				juego = t.crearPartida(t.minas);
+			}
+
+			int ejecutar() {
+				juego.destaparCasilla(t.filas / 2, t.columnas / 2);
+				return 1;
+			}
+		});
+		pruebas.add(new Prueba(t.nombre + " destape simple") {
+			EstadoJuego juego;
+			Casilla casilla;
+
+			void preparar() {
+				if (casilla == null || juego.getCasilla(casilla.getX(),
+						casilla.getY()).isDestapada()) {
+					juego = partidaEmpezada(t);
+					casilla = buscarCasilla(juego, false);
+				}
+			}
+
+			int ejecutar() {
+				juego.destaparCasilla(casilla.getX(), casilla.getY());
+				return 1;
+			}
+		});
+		pruebas.add(new Prueba(t.nombre + " cascada completa") {
+			EstadoJuego juego;
+
+			void preparar() {
+				juego = t.crearPartida(0);
+			}
+
+			int ejecutar() {
+				juego.destaparCasilla(0, 0);
+				return 1;
+			}
+		});
+		pruebas.add(new Prueba(t.nombre + " derrota") {
+			EstadoJuego juego;
+			Casilla mina;
+
+			void preparar() {
+				juego = partidaEmpezada(t);
+				mina = buscarCasilla(juego, true);
+			}
+
+			int ejecutar() {
+				juego.destaparCasilla(mina.getX(), mina.getY());
+				return 1;
+			}
+		});
+		pruebas.add(new Prueba(t.nombre + " banderas") {
+			EstadoJuego juego;
+			Casilla casilla;
+
+			void preparar() {
+				if (juego == null) {
+					juego = partidaEmpezada(t);
+					casilla = buscarCasilla(juego, false);
+				}
+			}
+
+			int ejecutar() {
+				for (int i = 0; i < CONMUTACIONES; i++)
+					juego.establecerBandera(casilla.getX(), casilla.getY());
+				return CONMUTACIONES;
+			}
+		});
+		pruebas.add(new Prueba(t.nombre + " resolucion") {
+			EstadoJuego juego;
+
+			void preparar() {
+				juego = t.crearPartida(t.minas);
+				juego.setZonaSeguraAmplia(true);
+			}
+
+			int ejecutar() {
+				juego.destaparCasilla(t.filas / 2, t.columnas / 2);
+				new Resolutor(juego).destaparSeguras();
+				return 1;
+			}
+		});
+		pruebas.add(new Prueba(t.nombre + " probabilidades") {
+			CalculadoraProbabilidades calculadora;
+
+			void preparar() {
+				EstadoJuego juego = t.crearPartida(t.minas);
+				juego.setZonaSeguraAmplia(true);
+				juego.destaparCasilla(t.filas / 2, t.columnas / 2);
+				Resolutor resolutor = new Resolutor(juego);
+				resolutor.destaparSeguras();
+				calculadora = new CalculadoraProbabilidades(resolutor);
+			}
+
+			int ejecutar() {
+				calculadora.calcular();
+				return 1;
+			}
+		});
+		pruebas.add(new Prueba(t.nombre + " guardar instantanea") {
+			EstadoJuego juego;
+			CanalMemoria canal;
+
+			void preparar() {
+				juego = partidaEmpezada(t);
+				canal = new CanalMemoria(InstantaneaJuego.tamaño(t.filas,
+						t.columnas));
+			}
+
+			int ejecutar() {
+				canal.reiniciar();
+				try {
+					InstantaneaJuego.escribir(juego, canal);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				return 1;
+			}
+		});
+		pruebas.add(new Prueba(t.nombre + " restaurar instantanea") {
+			CanalMemoria canal;
+
+			void preparar() {
+				canal = new CanalMemoria(InstantaneaJuego.tamaño(t.filas,
+						t.columnas));
+				try {
+					InstantaneaJuego.escribir(partidaEmpezada(t), canal);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			int ejecutar() {
+				canal.reiniciar();
+				try {
+					InstantaneaJuego.leer(canal, false);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				return 1;
+			}
+		});
+	}
+
+	/**
+	 * Añade la generacion de tableros sin adivinar en un solo hilo, que solo
+	 * se mide con los tableros de cada dificultad porque en los grandes casi
+	 * nunca se encuentra ninguno.
+	 */
+	private static void añadirPruebaSinAdivinar(List<Prueba> pruebas,
+			final Dimensiones t) {
+		pruebas.add(new Prueba(t.nombre + " sin adivinar") {
+			final Random aleatorio = new Random(semilla);
+
+			int ejecutar() {
+				GeneradorSinAdivinar.buscar(t.filas, t.columnas, t.minas,
+						t.filas / 2, t.columnas / 2, aleatorio,
+						System.nanoTime() + 60000000000L);
+				return 1;
+			}
+		});
+	}
+
+	/**
+	 * Añade la creacion de una partida desde el controlador, incluida la
+	 * primera pulsacion, sin reserva y tomandola de una
+	 * {@link ReservaPartidas}. Antes de cada medida con reserva se espera a
+	 * que haya alguna partida preparada, ya que se mide lo que tarda el
+	 * jugador en empezar cuando la reserva cumple su funcion.
+	 */
+	private static void añadirPruebasReserva(List<Prueba> pruebas,
+			final Dificultad dificultad) {
+		pruebas.add(new Prueba(dificultad.name() + " nueva partida") {
+			JuegoController controlador;
+
+			void preparar() {
+				if (controlador == null)
+					controlador = new JuegoController();
+			}
+
+			int ejecutar() {
+				controlador.generarPartida(dificultad);
+				controlador.destaparCasilla(dificultad.getFilas() / 2,
+						dificultad.getColumnas() / 2);
+				return 1;
+			}
+		});
+		pruebas.add(new Prueba(dificultad.name() + " nueva partida con reserva") {
+			JuegoController controlador;
+			ReservaPartidas reserva;
+
+			void preparar() {
+				if (controlador == null) {
+					controlador = new JuegoController();
+					reserva = new ReservaPartidas(16, 8, 1, false, false);
+					controlador.setReserva(reserva);
+				}
+				while (reserva.getDisponibles(dificultad) == 0) {
+					if (reserva.getError() != null)
+						throw reserva.getError();
+					Thread.yield();
+				}
+			}
+
+			int ejecutar() {
+				controlador.generarPartida(dificultad);
+				controlador.destaparCasilla(dificultad.getFilas() / 2,
+						dificultad.getColumnas() / 2);
+				return 1;
+			}
+
+			void terminar() {
+				reserva.cerrar();
+			}
+		});
+	}
+
+	/**
+	 * Crea una partida y destapa la casilla central.
+	 */
+	private static EstadoJuego partidaEmpezada(Dimensiones t) {
+		EstadoJuego juego = t.crearPartida(t.minas);
+		juego.destaparCasilla(t.filas / 2, t.columnas / 2);
+		return juego;
+	}
+
+	/**
+	 * Busca una casilla tapada que sea o no una mina.
+	 */
+	private static Casilla buscarCasilla(EstadoJuego juego, boolean mina) {
+		for (int i = 0; i < juego.getFilas(); i++) {
+			for (int j = 0; j < juego.getColumnas(); j++) {
+				Casilla casilla = juego.getCasilla(i, j);
+				if (!casilla.isDestapada() && casilla.isMina() == mina)
+					return casilla;
+			}
+		}
+		throw new IllegalStateException("No queda ninguna casilla tapada");
+	}
+
+	/**
+	 * Comprueba si una prueba contiene alguno de los filtros indicados.
+	 */
+	private static boolean seleccionada(Prueba prueba, String[] filtros) {
+		if (filtros.length == 0)
+			return true;
+		for (String filtro : filtros) {
+			if (prueba.nombre.contains(filtro))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Calienta y mide una prueba, mostrando el resultado.
+	 */
+	private static void medir(Prueba prueba) {
+		ejecutarDurante(prueba, CALENTAMIENTO);
+		long[] resultado = ejecutarDurante(prueba, MEDICION);
+		prueba.terminar();
+		long operaciones = resultado[0];
+		long nanos = Math.max(resultado[1], 1);
+		System.out.println(String.format("%-40s %14.1f %12.1f %14.1f",
+				prueba.nombre, operaciones * 1e9 / nanos, (double) nanos
+						/ operaciones, (double) resultado[2] / operaciones));
+	}
+
+	/**
+	 * Ejecuta una prueba repetidamente durante el tiempo indicado.
+	 *
+	 * @return Las operaciones realizadas, los nanosegundos y los bytes
+	 *         reservados por ellas
+	 */
+	private static long[] ejecutarDurante(Prueba prueba, long milisegundos) {
+		long hilo = Thread.currentThread().getId();
+		long limite = System.nanoTime() + milisegundos * 1000000;
+		long operaciones = 0;
+		long nanos = 0;
+		long bytes = 0;
+		while (System.nanoTime() < limite || operaciones == 0) {
+			prueba.preparar();
+			long reservados = HILOS.getThreadAllocatedBytes(hilo);
+			long inicio = System.nanoTime();
+			operaciones += prueba.ejecutar();
+			nanos += System.nanoTime() - inicio;
+			bytes += HILOS.getThreadAllocatedBytes(hilo) - reservados;
+		}
+		return new long[] { operaciones, nanos, bytes };
+	}
+
+}
@@ -0,0 +1,168 @@
+package buscaminas.sm.herramientas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import buscaminas.sm.controller.DiarioMovimientos;
+import buscaminas.sm.controller.LectorDiario;
+import buscaminas.sm.model.EstadoJuego;
+import buscaminas.sm.model.Fase;
+
+/**
+ * <p>
+ * Vuelve a jugar todas las partidas registradas en un
+ * {@link DiarioMovimientos}, repartidas entre varios hilos, y muestra cuantas
+ * terminaron en victoria o derrota, cuantas quedaron sin terminar y cuantas
+ * contienen jugadas imposibles (por ejemplo, jugadas tras el final de la
+ * partida o sobre casillas que no existen), que indican un diario manipulado.
+ * Como cada partida se regenera a partir de la huella de su tablero, el
+ * resultado es el que obtuvo el jugador con esas mismas jugadas.
+ * </p>
+ * <p>
+ * El primer argumento es el fichero del diario y el segundo, opcional, el
+ * numero de hilos (tantos como procesadores por defecto). Se puede generar
+ * un diario con {@link Simulacion}.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class ReproductorDiario {
+
+	/**
+	 * Partidas con jugadas imposibles que se muestran como maximo.
+	 */
+	private static final int INVALIDAS_MOSTRADAS = 10;
+
+	/**
+	 * Posiciones de cada resultado en los contadores.
+	 */
+	private static final int VICTORIAS = 0;
+	private static final int DERROTAS = 1;
+	private static final int SIN_TERMINAR = 2;
+	private static final int INVALIDAS = 3;
+	private static final int JUGADAS = 4;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Uso: ReproductorDiario <diario> [hilos]");
+			System.exit(1);
+		}
+		File archivo = new File(args[0]);
+		int hilos = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+				.getRuntime().availableProcessors();
+
+		long inicio = System.nanoTime();
+		final ByteBuffer datos = proyectar(archivo);
+		final int[] partidas = buscarPartidas(new LectorDiario(datos));
+		final AtomicInteger siguiente = new AtomicInteger();
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+		List<Future<long[]>> tareas = new ArrayList<Future<long[]>>(hilos);
+		for (int h = 0; h < hilos; h++) {
+			tareas.add(ejecutor.submit(new Callable<long[]>() {
+				public long[] call() throws IOException {
+					return reproducir(new LectorDiario(datos), partidas,
+							siguiente);
+				}
+			}));
+		}
+		long[] total = new long[JUGADAS + 1];
+		for (Future<long[]> tarea : tareas) {
+			long[] resultado = tarea.get();
+			for (int i = 0; i < total.length; i++)
+				total[i] += resultado[i];
+		}
+		ejecutor.shutdown();
+
+		double segundos = (System.nanoTime() - inicio) / 1e9;
+		System.out.println(String.format(
+				"%d partidas y %d jugadas en %.2f s con %d hilos: "
+						+ "%.1f partidas/s, %.1f jugadas/s", partidas.length,
+				total[JUGADAS], segundos, hilos, partidas.length / segundos,
+				total[JUGADAS] / segundos));
+		System.out.println(String.format(
+				"%d victorias, %d derrotas, %d sin terminar, %d invalidas",
+				total[VICTORIAS], total[DERROTAS], total[SIN_TERMINAR],
+				total[INVALIDAS]));
+	}
+
+	/**
+	 * Proyecta el diario completo en memoria.
+	 */
+	private static ByteBuffer proyectar(File archivo) throws IOException {
+		RandomAccessFile fichero = new RandomAccessFile(archivo, "r");
+		try {
+			FileChannel canal = fichero.getChannel();
+			if (canal.size() > Integer.MAX_VALUE)
+				throw new IOException("El diario es demasiado grande");
+			return canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+		} finally {
+			fichero.close();
+		}
+	}
+
+	/**
+	 * Recorre el diario buscando el registro con que empieza cada partida.
+	 *
+	 * @return Las posiciones de los comienzos de partida
+	 */
+	private static int[] buscarPartidas(LectorDiario lector)
+			throws IOException {
+		int[] partidas = new int[1024];
+		int cantidad = 0;
+		int posicion = lector.getPosicion();
+		for (int tipo = lector.siguiente(); tipo != LectorDiario.FIN; tipo = lector
+				.siguiente()) {
+			if (tipo == DiarioMovimientos.PARTIDA
+					|| tipo == DiarioMovimientos.INSTANTANEA) {
+				if (cantidad == partidas.length)
+					partidas = Arrays.copyOf(partidas, cantidad * 2);
+				partidas[cantidad++] = posicion;
+			}
+			posicion = lector.getPosicion();
+		}
+		return Arrays.copyOf(partidas, cantidad);
+	}
+
+	/**
+	 * Vuelve a jugar partidas hasta que no quede ninguna por repartir.
+	 *
+	 * @return Los contadores de cada resultado y de jugadas
+	 */
+	private static long[] reproducir(LectorDiario lector, int[] partidas,
+			AtomicInteger siguiente) {
+		long[] contadores = new long[JUGADAS + 1];
+		for (int partida = siguiente.getAndIncrement(); partida < partidas.length; partida = siguiente
+				.getAndIncrement()) {
+			lector.setPosicion(partidas[partida]);
+			try {
+				EstadoJuego juego = lector.reproducirPartida(false);
+				Fase fase = juego.getFase();
+				if (fase == Fase.VICTORIA)
+					contadores[VICTORIAS]++;
+				else if (fase == Fase.DERROTA)
+					contadores[DERROTAS]++;
+				else
+					contadores[SIN_TERMINAR]++;
+			} catch (IOException e) {
+				if (contadores[INVALIDAS]++ < INVALIDAS_MOSTRADAS)
+					System.out.println("Partida invalida en la posicion "
+							+ partidas[partida] + ": " + e.getMessage());
+			}
+			contadores[JUGADAS] += lector.getJugadas();
+		}
+		return contadores;
+	}
+
+}
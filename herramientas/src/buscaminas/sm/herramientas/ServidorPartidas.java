@@ -0,0 +1,304 @@
+package buscaminas.sm.herramientas;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import buscaminas.sm.controller.ReservaPartidas;
+import buscaminas.sm.model.Fase;
+
+/**
+ * <p>
+ * Servidor local de partidas: atiende en un puerto de la interfaz de bucle
+ * local las peticiones de {@link ProtocoloSesiones} y las ejecuta sobre un
+ * {@link GestorSesiones}. Cada conexion puede enviar muchas peticiones
+ * seguidas sin esperar las respuestas, que se devuelven segun terminan y
+ * agrupadas en la menor cantidad de escrituras posible. Las tramas de
+ * cambios se escriben en el canal directamente desde los buffers en que las
+ * deja el gestor, sin copiarlas.
+ * </p>
+ * <p>
+ * El primer argumento indica el puerto, el segundo el numero de fragmentos
+ * del gestor (tantos como procesadores por defecto), el tercero las sesiones
+ * que se mantienen en memoria (10000 por defecto), el cuarto los segundos
+ * sin usarse tras los que una sesion se desaloja (30 por defecto) y el quinto
+ * las partidas de cada dificultad que se preparan en una
+ * {@link ReservaPartidas} (64 por defecto, 0 para crearlas al momento). Cada
+ * diez segundos se muestran las sesiones abiertas y activas y la memoria
+ * ocupada.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ * @see GeneradorCarga
+ */
+public class ServidorPartidas {
+
+	/**
+	 * Milisegundos entre los informes del estado del servidor.
+	 */
+	private static final long INTERVALO_INFORME = 10000;
+
+	public static void main(String[] args) throws IOException {
+		int puerto = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+		int fragmentos = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+				.getRuntime().availableProcessors();
+		int activas = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		long inactividad = 1000L * (args.length > 3 ? Integer
+				.parseInt(args[3]) : 30);
+		int preparadas = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+		final ReservaPartidas partidas = preparadas > 0 ? new ReservaPartidas(
+				preparadas, preparadas / 2, 1, false, false) : null;
+		final GestorSesiones gestor = new GestorSesiones(fragmentos, activas,
+				inactividad, partidas);
+		ServerSocketChannel servidor = ServerSocketChannel.open();
+		servidor.socket().bind(
+				new InetSocketAddress(InetAddress.getByName(null), puerto));
+		System.out.println(String.format(
+				"Escuchando en %s con %d fragmentos", servidor.socket()
+						.getLocalSocketAddress(), fragmentos));
+
+		Thread informe = new Thread(new Runnable() {
+			public void run() {
+				Runtime runtime = Runtime.getRuntime();
+				RuntimeException error = null;
+				try {
+					while (true) {
+						Thread.sleep(INTERVALO_INFORME);
+						System.out.println(String.format(
+								"%d sesiones, %d activas, %d desalojos, "
+										+ "%d restauraciones, %.1f MB ocupados",
+								gestor.getSesiones(), gestor.getActivas(),
+								gestor.getDesalojos(),
+								gestor.getRestauraciones(),
+								(runtime.totalMemory() - runtime.freeMemory())
+										/ 1e6));
+						if (partidas != null && partidas.getError() != error) {
+							error = partidas.getError();
+							System.out.println("Error al preparar partidas: "
+									+ error);
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "Informe");
+		informe.setDaemon(true);
+		informe.start();
+
+		try {
+			while (true)
+				new Conexion(servidor.accept(), gestor).iniciar();
+		} finally {
+			servidor.close();
+			gestor.close();
+			if (partidas != null)
+				partidas.cerrar();
+		}
+	}
+
+	/**
+	 * Conexion de un cliente, con un hilo que lee sus peticiones y otro que
+	 * escribe las respuestas que van dejando los fragmentos del gestor.
+	 */
+	private static final class Conexion implements GestorSesiones.Respuesta {
+		private final SocketChannel canal;
+		private final GestorSesiones gestor;
+
+		/**
+		 * Partes fijas de las respuestas que aun no se han escrito, seguidas
+		 * de una trama vacia si no tienen cambios.
+		 */
+		private ByteBuffer cabeceras = ByteBuffer.allocate(64 * 1024);
+
+		/**
+		 * Posicion de {@link #cabeceras} donde empiezan las que aun no se han
+		 * añadido a {@link #pendientes}.
+		 */
+		private int inicioCabeceras;
+
+		/**
+		 * Tramos de cabeceras y tramas de cambios en el orden en que se deben
+		 * escribir, y las tramas que hay entre ellos para devolverlas al
+		 * gestor. Como las cabeceras, estan protegidos por la propia conexion.
+		 */
+		private List<ByteBuffer> pendientes = new ArrayList<ByteBuffer>();
+		private List<ByteBuffer> tramas = new ArrayList<ByteBuffer>();
+
+		/**
+		 * Buffers que usa el hilo escritor mientras escribe, y que intercambia
+		 * con los pendientes en cada escritura.
+		 */
+		private ByteBuffer otrasCabeceras = ByteBuffer.allocate(64 * 1024);
+		private List<ByteBuffer> escribiendo = new ArrayList<ByteBuffer>();
+		private List<ByteBuffer> tramasEscritas = new ArrayList<ByteBuffer>();
+
+		private boolean cerrada;
+
+		Conexion(SocketChannel canal, GestorSesiones gestor) {
+			this.canal = canal;
+			this.gestor = gestor;
+		}
+
+		void iniciar() throws IOException {
+			canal.socket().setTcpNoDelay(true);
+			String nombre = "Conexion-" + canal.socket().getPort();
+			new Thread(new Runnable() {
+				public void run() {
+					leer();
+				}
+			}, nombre + "-lectura").start();
+			new Thread(new Runnable() {
+				public void run() {
+					escribir();
+				}
+			}, nombre + "-escritura").start();
+		}
+
+		/**
+		 * Lee peticiones hasta que el cliente cierra la conexion.
+		 */
+		private void leer() {
+			ByteBuffer entrada = ByteBuffer.allocate(64 * 1024);
+			try {
+				while (canal.read(entrada) >= 0) {
+					entrada.flip();
+					while (entrada.remaining() >= ProtocoloSesiones.TAMAÑO_PETICION) {
+						int peticion = entrada.getInt();
+						int orden = entrada.get();
+						long sesion = entrada.getLong();
+						int fila = entrada.getInt();
+						int columna = entrada.getInt();
+						gestor.ejecutar(peticion, orden, sesion, fila, columna,
+								this);
+					}
+					entrada.compact();
+				}
+			} catch (IOException e) {
+				// La conexion se ha cortado
+			}
+			cerrar();
+		}
+
+		/**
+		 * Escribe de una vez todas las respuestas acumuladas mientras se
+		 * escribian las anteriores.
+		 */
+		private void escribir() {
+			try {
+				while (true) {
+					synchronized (this) {
+						while (!cerrada && !hayPendientes())
+							wait();
+						if (cerrada)
+							break;
+						cortarCabeceras();
+						ByteBuffer llenas = cabeceras;
+						cabeceras = otrasCabeceras;
+						otrasCabeceras = llenas;
+						cabeceras.clear();
+						inicioCabeceras = 0;
+						List<ByteBuffer> lista = pendientes;
+						pendientes = escribiendo;
+						escribiendo = lista;
+						lista = tramas;
+						tramas = tramasEscritas;
+						tramasEscritas = lista;
+					}
+					ByteBuffer[] buffers = escribiendo
+							.toArray(new ByteBuffer[escribiendo.size()]);
+					ByteBuffer ultimo = buffers[buffers.length - 1];
+					while (ultimo.hasRemaining())
+						canal.write(buffers);
+					escribiendo.clear();
+					for (ByteBuffer trama : tramasEscritas)
+						gestor.devolver(trama);
+					tramasEscritas.clear();
+				}
+			} catch (IOException e) {
+				// La conexion se ha cortado
+			} catch (InterruptedException e) {
+				// Se detiene el servidor
+			}
+			cerrar();
+		}
+
+		/**
+		 * Indica si hay algo que escribir. Se llama con la conexion
+		 * bloqueada.
+		 */
+		private boolean hayPendientes() {
+			return cabeceras.position() != inicioCabeceras
+					|| !pendientes.isEmpty();
+		}
+
+		/**
+		 * Añade a los pendientes las cabeceras escritas desde el ultimo corte.
+		 * Se llama con la conexion bloqueada.
+		 */
+		private void cortarCabeceras() {
+			if (cabeceras.position() == inicioCabeceras)
+				return;
+			ByteBuffer tramo = cabeceras.duplicate();
+			tramo.limit(cabeceras.position());
+			tramo.position(inicioCabeceras);
+			pendientes.add(tramo);
+			inicioCabeceras = cabeceras.position();
+		}
+
+		private void cerrar() {
+			synchronized (this) {
+				cerrada = true;
+				notifyAll();
+				for (ByteBuffer trama : tramas)
+					gestor.devolver(trama);
+				tramas.clear();
+				pendientes.clear();
+			}
+			try {
+				canal.close();
+			} catch (IOException e) {
+				// Ya estaba cerrada
+			}
+		}
+
+		public synchronized void responder(int peticion, int resultado,
+				long sesion, Fase fase, int banderasRestantes, int destapadas,
+				ByteBuffer cambios) {
+			if (cerrada) {
+				if (cambios != null)
+					gestor.devolver(cambios);
+				return;
+			}
+			if (cabeceras.remaining() < ProtocoloSesiones.TAMAÑO_RESPUESTA + 1) {
+				// Las cabeceras anteriores quedan en los pendientes, que
+				// conservan el buffer lleno
+				cortarCabeceras();
+				cabeceras = ByteBuffer.allocate(cabeceras.capacity());
+				inicioCabeceras = 0;
+			}
+			if (!hayPendientes())
+				notifyAll();
+			cabeceras.putInt(peticion);
+			cabeceras.put((byte) resultado);
+			cabeceras.putLong(sesion);
+			cabeceras.put((byte) (fase == null ? -1 : fase.ordinal()));
+			cabeceras.putInt(banderasRestantes);
+			cabeceras.putInt(destapadas);
+			if (cambios == null) {
+				cabeceras.put((byte) 0);
+			} else {
+				cortarCabeceras();
+				pendientes.add(cambios);
+				tramas.add(cambios);
+			}
+		}
+	}
+
+}
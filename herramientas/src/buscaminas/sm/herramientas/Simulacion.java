@@ -0,0 +1,139 @@
+package buscaminas.sm.herramientas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import buscaminas.sm.controller.DiarioMovimientos;
+import buscaminas.sm.controller.EstadoObserver;
+import buscaminas.sm.controller.JuegoController;
+import buscaminas.sm.model.Dificultad;
+import buscaminas.sm.model.Fase;
+
+/**
+ * Juega partidas completas a traves de {@link JuegoController} sin interfaz
+ * grafica, destapando casillas tapadas al azar hasta ganar o perder, y muestra
+ * cuantas partidas se juegan por segundo y cuantas se ganan. Sirve para
+ * recorrer el mismo camino que la aplicacion sin el SDK de Android.
+ * <p>
+ * El primer argumento indica el numero de partidas (10000 por defecto), el
+ * segundo la dificultad ({@link Dificultad#FACIL} por defecto), el tercero
+ * la semilla del jugador y el cuarto, si se indica, el fichero de un
+ * {@link DiarioMovimientos} donde se registran las partidas, que se puede
+ * repetir despues con {@link ReproductorDiario}.
+ * </p>
+ * <p>
+ * Todas las partidas comprueban tras cada destape que el contador de
+ * casillas destapadas coincide con un recorrido del tablero, y la simulacion
+ * se detiene con un error si no es asi.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class Simulacion implements EstadoObserver {
+
+	/**
+	 * Columnas del tablero simulado.
+	 */
+	private final int columnas;
+
+	/**
+	 * Casillas que aun no se han destapado en la partida actual.
+	 */
+	private final boolean[] tapadas;
+
+	/**
+	 * Fase en que ha terminado la partida actual, o null si no ha terminado.
+	 */
+	private Fase faseFinal;
+
+	/**
+	 * Milisegundos entre escrituras forzadas del diario.
+	 */
+	private static final long INTERVALO_DIARIO = 100;
+
+	public static void main(String[] args) throws IOException {
+		int partidas = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		Dificultad dificultad = args.length > 1 ? Dificultad.valueOf(args[1])
+				: Dificultad.FACIL;
+		Random jugador = args.length > 2 ? new Random(Long.parseLong(args[2]))
+				: new Random();
+		JuegoController controller = new JuegoController();
+		controller.setAutocomprobacion(true);
+		controller.generarPartida(dificultad);
+		Simulacion simulacion = new Simulacion(controller.getFilas(),
+				controller.getColumnas());
+		controller.addEstadoObserver(simulacion);
+		DiarioMovimientos diario = null;
+		if (args.length > 3) {
+			diario = new DiarioMovimientos(new File(args[3]), INTERVALO_DIARIO);
+			controller.setDiario(diario);
+		}
+
+		int victorias = 0;
+		long jugadas = 0;
+		long inicio = System.nanoTime();
+		for (int i = 0; i < partidas; i++) {
+			if (i > 0)
+				controller.generarPartida();
+			simulacion.empezar();
+			while (simulacion.faseFinal == null) {
+				int casilla = simulacion.elegirTapada(jugador);
+				controller.destaparCasilla(casilla / simulacion.columnas,
+						casilla % simulacion.columnas);
+				jugadas++;
+			}
+			if (simulacion.faseFinal == Fase.VICTORIA)
+				victorias++;
+		}
+		if (diario != null)
+			diario.close();
+		double segundos = (System.nanoTime() - inicio) / 1e9;
+		System.out.println(String.format(
+				"%d partidas en %.2f s: %.1f partidas/s, %.1f jugadas/s, "
+						+ "%d victorias (%.2f%%)", partidas, segundos,
+				partidas / segundos, jugadas / segundos, victorias,
+				100.0 * victorias / partidas));
+	}
+
+	private Simulacion(int filas, int columnas) {
+		this.columnas = columnas;
+		this.tapadas = new boolean[filas * columnas];
+	}
+
+	/**
+	 * Prepara la simulacion para una partida nueva.
+	 */
+	private void empezar() {
+		Arrays.fill(tapadas, true);
+		faseFinal = null;
+	}
+
+	/**
+	 * Elige al azar una casilla que siga tapada.
+	 */
+	private int elegirTapada(Random jugador) {
+		int casilla;
+		do {
+			casilla = jugador.nextInt(tapadas.length);
+		} while (!tapadas[casilla]);
+		return casilla;
+	}
+
+	public void finPartida(Fase faseFinal) {
+		this.faseFinal = faseFinal;
+	}
+
+	public void casillaDestapada(int x, int y, int valor) {
+		tapadas[x * columnas + y] = false;
+	}
+
+	public void banderaEstablecida(int x, int y, boolean establecida) {
+	}
+
+	public void banderasRestantes(int banderasRestantes) {
+	}
+
+}
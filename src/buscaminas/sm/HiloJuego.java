@@ -0,0 +1,373 @@
+package buscaminas.sm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import buscaminas.sm.controller.EstadoObserverDeshacer;
+import buscaminas.sm.controller.EstadoObserverLotes;
+import buscaminas.sm.controller.JuegoController;
+import buscaminas.sm.model.AlmacenTablero;
+import buscaminas.sm.model.Dificultad;
+import buscaminas.sm.model.Fase;
+
+/**
+ * <p>
+ * Hilo que juega las partidas fuera del hilo de la interfaz. Las pulsaciones
+ * se encolan como ordenes que un unico hilo ejecuta sobre el
+ * {@link JuegoController} en el mismo orden en que se hicieron, de modo que
+ * la interfaz sigue respondiendo aunque una jugada destape un tablero
+ * entero o haya que generar uno nuevo.
+ * </p>
+ * <p>
+ * Los cambios que notifica la partida se acumulan mientras la interfaz no
+ * los recoge: las casillas cambiadas en un unico rectangulo, y de las
+ * banderas restantes y el final de la partida solo el ultimo valor. Se
+ * entregan de una sola vez al {@link Oyente} en el hilo de la interfaz, que
+ * recibe asi una unica notificacion por fotograma por muchas jugadas que
+ * se hayan hecho entre tanto.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class HiloJuego implements EstadoObserverLotes, EstadoObserverDeshacer {
+
+	/**
+	 * Recibe en el hilo de la interfaz los cambios acumulados de la partida.
+	 */
+	public interface Oyente {
+
+		/**
+		 * Notifica que se ha empezado una partida nueva, quiza con otras
+		 * dimensiones. Se notifica antes que los demas cambios de la nueva
+		 * partida.
+		 */
+		public void partidaNueva();
+
+		/**
+		 * Notifica que han cambiado casillas dentro de un rectangulo.
+		 *
+		 * @param primeraFila
+		 *            Primera fila del rectangulo
+		 * @param ultimaFila
+		 *            Ultima fila del rectangulo, incluida
+		 * @param primeraColumna
+		 *            Primera columna del rectangulo
+		 * @param ultimaColumna
+		 *            Ultima columna del rectangulo, incluida
+		 */
+		public void casillasCambiadas(int primeraFila, int ultimaFila,
+				int primeraColumna, int ultimaColumna);
+
+		/**
+		 * Indica cuantas banderas se pueden poner.
+		 *
+		 * @param banderasRestantes
+		 *            Banderas que aun se pueden establecer
+		 */
+		public void banderasRestantes(int banderasRestantes);
+
+		/**
+		 * Notifica el final de una partida.
+		 *
+		 * @param faseFinal
+		 *            Fase en que ha terminado la partida
+		 */
+		public void finPartida(Fase faseFinal);
+	}
+
+	private final JuegoController controlador;
+
+	private final Oyente oyente;
+
+	private final HandlerThread hilo;
+
+	/**
+	 * Cola de ordenes del hilo de juego.
+	 */
+	private final Handler ordenes;
+
+	/**
+	 * Cola del hilo de la interfaz, donde se entregan los cambios.
+	 */
+	private final Handler interfaz;
+
+	/**
+	 * Estado de la casilla pulsada. Solo se usa desde el hilo de juego.
+	 */
+	private final byte[] pulsada = new byte[1];
+
+	/**
+	 * Cambios acumulados que aun no se han entregado, protegidos por el
+	 * propio objeto.
+	 */
+	private boolean partidaNueva;
+	private boolean cambios;
+	private int primeraFila;
+	private int ultimaFila;
+	private int primeraColumna;
+	private int ultimaColumna;
+	private int banderasRestantes = -1;
+	private Fase faseFinal;
+
+	/**
+	 * Si ya hay una entrega pendiente en la cola de la interfaz.
+	 */
+	private boolean entregaPendiente;
+
+	private final Runnable entrega = new Runnable() {
+		public void run() {
+			entregar();
+		}
+	};
+
+	/**
+	 * Crea el hilo de juego y empieza a observar la partida del controlador.
+	 * Desde este momento la partida solo se debe modificar a traves de este
+	 * hilo. Se debe crear desde el hilo de la interfaz.
+	 *
+	 * @param controlador
+	 *            Controlador de las partidas
+	 * @param oyente
+	 *            Receptor de los cambios en el hilo de la interfaz
+	 */
+	public HiloJuego(JuegoController controlador, Oyente oyente) {
+		this.controlador = controlador;
+		this.oyente = oyente;
+		this.interfaz = new Handler(Looper.getMainLooper());
+		this.hilo = new HandlerThread("HiloJuego");
+		hilo.start();
+		this.ordenes = new Handler(hilo.getLooper());
+		controlador.addEstadoObserver(this);
+	}
+
+	/**
+	 * Detiene el hilo de juego, descartando las ordenes que aun no ha
+	 * empezado a ejecutar.
+	 */
+	public void detener() {
+		ordenes.removeCallbacksAndMessages(null);
+		ordenes.post(new Runnable() {
+			public void run() {
+				// Desde el hilo de juego, que es el que notifica a los
+				// observadores
+				controlador.removeEstadoObserver(HiloJuego.this);
+				hilo.quit();
+			}
+		});
+		interfaz.removeCallbacks(entrega);
+	}
+
+	/**
+	 * Encola una partida nueva con las mismas dimensiones y minas que la
+	 * actual.
+	 */
+	public void generarPartida() {
+		ordenes.post(new Runnable() {
+			public void run() {
+				controlador.generarPartida();
+				publicarPartidaNueva();
+			}
+		});
+	}
+
+	/**
+	 * Encola una partida nueva con las dimensiones y minas de una
+	 * dificultad.
+	 *
+	 * @param dificultad
+	 *            Dificultad de la partida
+	 */
+	public void generarPartida(final Dificultad dificultad) {
+		ordenes.post(new Runnable() {
+			public void run() {
+				controlador.generarPartida(dificultad);
+				publicarPartidaNueva();
+			}
+		});
+	}
+
+	/**
+	 * Avisa a la interfaz de que hay una partida nueva, desde el hilo de
+	 * juego.
+	 */
+	private synchronized void publicarPartidaNueva() {
+		// Los cambios de la partida anterior ya no interesan
+		partidaNueva = true;
+		cambios = false;
+		faseFinal = null;
+		publicar();
+	}
+
+	/**
+	 * Encola la pulsacion de una casilla: si esta tapada se destapa, y si es
+	 * un numero ya destapado se destapan sus adyacentes. Se ignora si la
+	 * partida ya ha terminado cuando le llega el turno.
+	 *
+	 * @param fila
+	 *            Fila de la casilla
+	 * @param columna
+	 *            Columna de la casilla
+	 */
+	public void pulsar(final int fila, final int columna) {
+		ordenes.post(new Runnable() {
+			public void run() {
+				if (controlador.juegoTerminado()
+						|| fila >= controlador.getFilas()
+						|| columna >= controlador.getColumnas())
+					return;
+				controlador.leerCasillas(fila * controlador.getColumnas()
+						+ columna, pulsada, 0, 1);
+				if ((pulsada[0] & AlmacenTablero.DESTAPADA) != 0)
+					controlador.destaparAdyacentes(fila, columna);
+				else
+					controlador.destaparCasilla(fila, columna);
+			}
+		});
+	}
+
+	/**
+	 * Encola la colocacion o retirada de una bandera. Se ignora si la
+	 * partida ya ha terminado cuando le llega el turno.
+	 *
+	 * @param fila
+	 *            Fila de la casilla
+	 * @param columna
+	 *            Columna de la casilla
+	 */
+	public void establecerBandera(final int fila, final int columna) {
+		ordenes.post(new Runnable() {
+			public void run() {
+				if (!controlador.juegoTerminado())
+					controlador.establecerBandera(fila, columna);
+			}
+		});
+	}
+
+	/**
+	 * Encola la entrega de los cambios si no hay ya una pendiente. Se llama
+	 * con el objeto bloqueado.
+	 */
+	private void publicar() {
+		if (entregaPendiente)
+			return;
+		entregaPendiente = true;
+		interfaz.post(entrega);
+	}
+
+	/**
+	 * Entrega al oyente, en el hilo de la interfaz, todos los cambios
+	 * acumulados desde la entrega anterior.
+	 */
+	private void entregar() {
+		boolean nueva;
+		boolean hayCambios;
+		int pf, uf, pc, uc;
+		int banderas;
+		Fase fin;
+		synchronized (this) {
+			nueva = partidaNueva;
+			hayCambios = cambios;
+			pf = primeraFila;
+			uf = ultimaFila;
+			pc = primeraColumna;
+			uc = ultimaColumna;
+			banderas = banderasRestantes;
+			fin = faseFinal;
+			partidaNueva = false;
+			cambios = false;
+			banderasRestantes = -1;
+			faseFinal = null;
+			entregaPendiente = false;
+		}
+		if (nueva)
+			oyente.partidaNueva();
+		if (hayCambios)
+			oyente.casillasCambiadas(pf, uf, pc, uc);
+		if (banderas >= 0)
+			oyente.banderasRestantes(banderas);
+		if (fin != null)
+			oyente.finPartida(fin);
+	}
+
+	/**
+	 * Añade un rectangulo de casillas a los cambios acumulados.
+	 */
+	private synchronized void cambiar(int pf, int uf, int pc, int uc) {
+		if (cambios) {
+			primeraFila = Math.min(primeraFila, pf);
+			ultimaFila = Math.max(ultimaFila, uf);
+			primeraColumna = Math.min(primeraColumna, pc);
+			ultimaColumna = Math.max(ultimaColumna, uc);
+		} else {
+			primeraFila = pf;
+			ultimaFila = uf;
+			primeraColumna = pc;
+			ultimaColumna = uc;
+			cambios = true;
+		}
+		publicar();
+	}
+
+	/**
+	 * Añade a los cambios acumulados el rectangulo que contiene varias
+	 * casillas.
+	 */
+	private void cambiar(int[] indices, int cantidad) {
+		if (cantidad == 0)
+			return;
+		int columnas = controlador.getColumnas();
+		int pf = Integer.MAX_VALUE;
+		int uf = -1;
+		int pc = Integer.MAX_VALUE;
+		int uc = -1;
+		for (int i = 0; i < cantidad; i++) {
+			int f = indices[i] / columnas;
+			int c = indices[i] - f * columnas;
+			if (f < pf)
+				pf = f;
+			if (f > uf)
+				uf = f;
+			if (c < pc)
+				pc = c;
+			if (c > uc)
+				uc = c;
+		}
+		cambiar(pf, uf, pc, uc);
+	}
+
+	// ////////////////////////////////////////////////////////////////////////
+	// ///// Metodos de los observadores, llamados desde el hilo de juego /////
+	// ////////////////////////////////////////////////////////////////////////
+
+	public void casillaDestapada(int x, int y, int valor) {
+		cambiar(x, x, y, y);
+	}
+
+	public void casillasDestapadas(int[] indices, byte[] valores, int cantidad) {
+		cambiar(indices, cantidad);
+	}
+
+	public void casillasTapadas(int[] indices, int cantidad) {
+		cambiar(indices, cantidad);
+	}
+
+	public void banderaEstablecida(int x, int y, boolean establecida) {
+		cambiar(x, x, y, y);
+	}
+
+	public synchronized void banderasRestantes(int banderasRestantes) {
+		this.banderasRestantes = banderasRestantes;
+		publicar();
+	}
+
+	public synchronized void finPartida(Fase faseFinal) {
+		this.faseFinal = faseFinal;
+		publicar();
+	}
+
+	public synchronized void partidaReanudada() {
+		faseFinal = null;
+	}
+
+}
@@ -9,16 +9,14 @@ import android.os.Bundle;
 import android.view.Gravity;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
-import android.widget.TableLayout;
-import android.widget.TableRow;
-import android.widget.TableRow.LayoutParams;
 import android.widget.TextView;
 import android.widget.Toast;
-import buscaminas.sm.controller.EstadoObserver;
 import buscaminas.sm.controller.JuegoController;
+import buscaminas.sm.model.Dificultad;
 import buscaminas.sm.model.Fase;
 
 /**
@@ -27,24 +25,22 @@ import buscaminas.sm.model.Fase;
  * @author Amanda Calatrava Arroyo
  * @author Cristina Yenyxe Gonzalez Garcia
  */
-public class Tablero extends Activity implements EstadoObserver {
+public class Tablero extends Activity implements HiloJuego.Oyente {
 
 	// Atributos de la clase
 	private ImageButton botonInicio;
 	private ImageButton botonSalida;
 	private TextView contadorBanderas;
 
-	private TableLayout campoMinas;
-
-	private BotonCasilla botones[][];
-	private int tamañoBoton = 24;
-	private int espaciado = 2;
-
-	private int filas = JuegoController.JUEGO_FILAS;
-	private int columnas = JuegoController.JUEGO_COLUMNAS;
+	private VistaCampoMinas campoMinas;
 
 	private JuegoController controlador = new JuegoController();
 
+	/**
+	 * Hilo donde se hacen las jugadas, para no bloquear la interfaz.
+	 */
+	private HiloJuego hilo;
+
 	/**
 	 * Metodo principal encargado de poner en marcha la aplicacion
 	 */
@@ -65,8 +61,14 @@ public class Tablero extends Activity implements EstadoObserver {
 			public void onClick(View view) {
 				// Inicializar el tablero tras recibir un click sobre el boton
 				// smile
-				dibujarCampoMinas();
-				controlador.generarPartida();
+				hilo.generarPartida();
+			}
+		});
+		botonInicio.setOnLongClickListener(new OnLongClickListener() {
+			public boolean onLongClick(View view) {
+				// Elegir la dificultad de la siguiente partida
+				alertaDificultad();
+				return true;
 			}
 		});
 
@@ -78,50 +80,19 @@ public class Tablero extends Activity implements EstadoObserver {
 			}
 		});
 
-		controlador.addEstadoObserver(this);
-		avisoGrafico("Haz clic sobre el smiley para empezar a jugar", 2000,
-				true, false);
-	}
+		hilo = new HiloJuego(controlador, this);
+		campoMinas = (VistaCampoMinas) findViewById(R.id.CampoMinas);
+		campoMinas.setJuego(controlador, hilo);
 
-	/**
-	 * <p>
-	 * Muestra en la interfaz gráfica la matriz de casillas que componen el
-	 * juego.
-	 * </p>
-	 * <p>
-	 * La colocación se realiza en la zona reservada en el xml para ello.
-	 * </p>
-	 */
+		avisoGrafico("Haz clic sobre el smiley para empezar a jugar, o "
+				+ "mantenlo pulsado para elegir la dificultad", 2000, true,
+				false);
+	}
 
-	private void dibujarCampoMinas() {
-		if (campoMinas != null)
-			campoMinas.removeAllViews();
-		campoMinas = (TableLayout) findViewById(R.id.CampoMinas);
-		// Inicializar matriz de botonCasilla
-		botones = new BotonCasilla[filas][columnas];
-		for (int f = 0; f < filas; f++) {
-			for (int c = 0; c < columnas; c++) {
-				botones[f][c] = new BotonCasilla(this, controlador, f, c);
-			}
-		}
-		// Inicializar la parte grafica
-		for (int f = 0; f < filas; f++) {
-			TableRow tableRow = new TableRow(this);
-			tableRow.setLayoutParams(new LayoutParams(
-					(tamañoBoton + 2 * espaciado) * columnas, tamañoBoton + 2
-							* espaciado));
-
-			for (int c = 0; c < columnas; c++) {
-				botones[f][c].setLayoutParams(new LayoutParams(tamañoBoton + 2
-						* espaciado, tamañoBoton + 2 * espaciado));
-				botones[f][c].setPadding(espaciado, espaciado, espaciado,
-						espaciado);
-				tableRow.addView(botones[f][c]);
-			}
-			campoMinas.addView(tableRow, new TableLayout.LayoutParams(
-					(tamañoBoton + 2 * espaciado) * columnas, tamañoBoton + 2
-							* espaciado));
-		}
+	@Override
+	protected void onDestroy() {
+		hilo.detener();
+		super.onDestroy();
 	}
 
 	/**
@@ -189,8 +160,28 @@ public class Tablero extends Activity implements EstadoObserver {
 		alert.show();
 	}
 
+	/**
+	 * Muestra los niveles de dificultad para que el usuario elija el de la
+	 * siguiente partida, que empieza al elegirlo
+	 */
+
+	private void alertaDificultad() {
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Dificultad").setItems(
+				new CharSequence[] { "Fácil (11x9, 14 minas)",
+						"Normal (16x16, 40 minas)",
+						"Difícil (30x16, 99 minas)" },
+				new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int id) {
+						hilo.generarPartida(Dificultad.values()[id]);
+					}
+				});
+		AlertDialog alert = builder.create();
+		alert.show();
+	}
+
 	// ////////////////////////////////////////////////////////////////////////
-	// /// Metodos necesarios que implementan la interfaz JuegoController /////
+	// ////// Metodos de HiloJuego.Oyente, llamados en el hilo de la UI ///////
 	// ////////////////////////////////////////////////////////////////////////
 
 	public void finPartida(Fase faseFinal) {
@@ -201,12 +192,14 @@ public class Tablero extends Activity implements EstadoObserver {
 		}
 	}
 
-	public void casillaDestapada(int x, int y, int valor) {
-		botones[x][y].destapar(valor);
+	public void partidaNueva() {
+		campoMinas.partidaNueva();
 	}
 
-	public void banderaEstablecida(int x, int y, boolean establecida) {
-		botones[x][y].setIconoBandera(establecida);
+	public void casillasCambiadas(int primeraFila, int ultimaFila,
+			int primeraColumna, int ultimaColumna) {
+		campoMinas.casillasCambiadas(primeraFila, ultimaFila, primeraColumna,
+				ultimaColumna);
 	}
 
 	public void banderasRestantes(int banderasRestantes) {
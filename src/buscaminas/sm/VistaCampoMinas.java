@@ -0,0 +1,566 @@
+package buscaminas.sm;
+
+import Buscaminas.sm.R;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.HapticFeedbackConstants;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import android.widget.Scroller;
+import buscaminas.sm.controller.JuegoController;
+import buscaminas.sm.model.AlmacenTablero;
+
+/**
+ * <p>
+ * Vista que dibuja el campo de minas completo sobre un unico lienzo, en lugar
+ * de usar un boton por casilla. Las casillas se dibujan directamente a partir
+ * del estado empaquetado de la partida, con imagenes ya escaladas al tamaño
+ * de casilla, y la casilla pulsada se calcula a partir de las coordenadas del
+ * toque.
+ * </p>
+ * <p>
+ * La vista es una ventana sobre el tablero que se puede desplazar
+ * arrastrando o lanzando con el dedo y acercar o alejar pellizcando, y solo
+ * se dibujan las casillas que se ven, de modo que el coste de dibujar y la
+ * memoria no dependen del tamaño del tablero. Cuando las casillas son tan
+ * pequeñas que no se distinguirian, se muestra en su lugar una
+ * {@link VistaGeneral} que resume el tablero por bloques.
+ * </p>
+ * <p>
+ * Las jugadas se hacen en un {@link HiloJuego}, que entrega a la vista el
+ * rectangulo de casillas que cambian, y la vista solo invalida su zona, de
+ * modo que al dibujar solo se recorren las casillas de esa zona y el coste
+ * de cada fotograma depende de los cambios y no del tamaño del tablero.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class VistaCampoMinas extends View {
+
+	/**
+	 * Tamaño en pixeles de cada casilla cuando el tablero cabe en la vista.
+	 */
+	private static final int TAMAÑO_PREFERIDO = 28;
+
+	/**
+	 * Tamaño minimo en pixeles de las casillas que se dibujan una a una. Por
+	 * debajo se muestra la vista general.
+	 */
+	private static final int TAMAÑO_DETALLE = 8;
+
+	/**
+	 * Tamaño maximo en pixeles de las casillas al acercarse.
+	 */
+	private static final int TAMAÑO_MAXIMO = 64;
+
+	/**
+	 * Posiciones de las imagenes que no son numeros. Los numeros (y la
+	 * casilla vacia, con valor cero) ocupan las posiciones de su valor.
+	 */
+	private static final int SPRITE_MINA = 9;
+	private static final int SPRITE_BANDERA = 10;
+	private static final int SPRITE_TAPADA = 11;
+	private static final int SPRITES = 12;
+
+	/**
+	 * Color del texto de cada valor numerico, indexado por el valor.
+	 */
+	private static final int[] COLORES = { 0, Color.BLUE, Color.rgb(0, 100, 0),
+			Color.RED, Color.rgb(85, 26, 139), Color.rgb(139, 28, 98),
+			Color.rgb(238, 173, 14), Color.rgb(47, 79, 79),
+			Color.rgb(71, 71, 71) };
+
+	private JuegoController controlador;
+
+	/**
+	 * Hilo donde se hacen las jugadas.
+	 */
+	private HiloJuego hilo;
+
+	private int filas;
+	private int columnas;
+
+	/**
+	 * Pixeles que ocupa el lado de cada casilla, y el menor al que se puede
+	 * alejar la vista, con el que se ve el tablero completo.
+	 */
+	private float escala;
+	private float escalaMinima;
+
+	/**
+	 * Tamaño en pixeles de las imagenes de las casillas, que es la parte
+	 * entera de la escala mientras se dibujan una a una.
+	 */
+	private int tamaño;
+
+	/**
+	 * Posicion de la ventana sobre el tablero: pixeles del tablero que quedan
+	 * a la izquierda y por encima de la zona visible. Son negativos si el
+	 * tablero es menor que la vista y se muestra centrado.
+	 */
+	private int desplazamientoX;
+	private int desplazamientoY;
+
+	/**
+	 * Imagenes de cada tipo de casilla, escaladas a {@link #tamaño}.
+	 */
+	private Bitmap[] sprites;
+
+	/**
+	 * Estados de las casillas de la fila que se esta dibujando.
+	 */
+	private byte[] fila = new byte[0];
+
+	/**
+	 * Zona del lienzo que se debe volver a dibujar.
+	 */
+	private final Rect recorte = new Rect();
+
+	private VistaGeneral general;
+
+	private final GestureDetector gestos;
+	private final ScaleGestureDetector zoom;
+	private final Scroller desplazador;
+
+	/**
+	 * Si el gesto en curso incluye un pellizco, para no tomar sus toques
+	 * como jugadas.
+	 */
+	private boolean escalando;
+
+	public VistaCampoMinas(Context context) {
+		this(context, null);
+	}
+
+	public VistaCampoMinas(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		gestos = new GestureDetector(context, new Gestos());
+		zoom = new ScaleGestureDetector(context, new Zoom());
+		desplazador = new Scroller(context);
+	}
+
+	/**
+	 * Indica el controlador de cuya partida se dibuja el campo y el hilo
+	 * donde se hacen las jugadas. Los cambios de la partida se deben
+	 * comunicar a la vista con {@link #casillasCambiadas(int, int, int, int)}
+	 * y {@link #partidaNueva()}.
+	 *
+	 * @param controlador
+	 *            Controlador del juego, del que se lee el estado de las
+	 *            casillas
+	 * @param hilo
+	 *            Hilo al que se envian las jugadas
+	 */
+	public void setJuego(JuegoController controlador, HiloJuego hilo) {
+		if (general != null)
+			general.detener();
+		this.controlador = controlador;
+		this.hilo = hilo;
+		general = new VistaGeneral(this, controlador);
+		partidaNueva();
+	}
+
+	/**
+	 * Vuelve a dibujar el campo completo tras empezar una partida nueva,
+	 * mostrando el tablero completo.
+	 */
+	public void partidaNueva() {
+		int nuevasFilas = controlador.getFilas();
+		int nuevasColumnas = controlador.getColumnas();
+		if (nuevasFilas != filas || nuevasColumnas != columnas) {
+			filas = nuevasFilas;
+			columnas = nuevasColumnas;
+			requestLayout();
+		}
+		general.partidaNueva(filas, columnas);
+		reiniciarVista();
+		invalidate();
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		int ancho = getPaddingLeft() + getPaddingRight() + columnas
+				* TAMAÑO_PREFERIDO;
+		int alto = getPaddingTop() + getPaddingBottom() + filas
+				* TAMAÑO_PREFERIDO;
+		setMeasuredDimension(resolveSize(ancho, widthMeasureSpec),
+				resolveSize(alto, heightMeasureSpec));
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		reiniciarVista();
+	}
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		if (general != null && escala > 0 && !isDetalle())
+			general.setActiva(true);
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if (general != null)
+			general.detener();
+	}
+
+	private int getAnchoVisible() {
+		return getWidth() - getPaddingLeft() - getPaddingRight();
+	}
+
+	private int getAltoVisible() {
+		return getHeight() - getPaddingTop() - getPaddingBottom();
+	}
+
+	/**
+	 * Aleja la vista hasta que el tablero completo quepa en ella, sin pasar
+	 * del tamaño preferido, y la centra.
+	 */
+	private void reiniciarVista() {
+		int ancho = getAnchoVisible();
+		int alto = getAltoVisible();
+		if (filas == 0 || ancho <= 0 || alto <= 0)
+			return;
+		desplazador.forceFinished(true);
+		escalaMinima = Math.min(TAMAÑO_PREFERIDO, Math.min((float) ancho
+				/ columnas, (float) alto / filas));
+		escala = 0;
+		setEscala(escalaMinima, 0, 0);
+	}
+
+	/**
+	 * @return Si las casillas se dibujan una a una y no la vista general
+	 */
+	private boolean isDetalle() {
+		return escala >= TAMAÑO_DETALLE;
+	}
+
+	/**
+	 * @return Pixeles que ocupa el lado de cada casilla en pantalla
+	 */
+	private float getLado() {
+		return isDetalle() ? tamaño : escala;
+	}
+
+	/**
+	 * Cambia el tamaño de las casillas dejando en su sitio la casilla que
+	 * hay bajo un punto de la vista.
+	 */
+	private void setEscala(float nueva, float focoX, float focoY) {
+		nueva = Math.max(escalaMinima, Math.min(TAMAÑO_MAXIMO, nueva));
+		float x = focoX - getPaddingLeft();
+		float y = focoY - getPaddingTop();
+		// Posicion del foco en casillas, antes de cambiar el tamaño
+		float casillaX = escala > 0 ? (x + desplazamientoX) / getLado() : 0;
+		float casillaY = escala > 0 ? (y + desplazamientoY) / getLado() : 0;
+
+		escala = nueva;
+		if (isDetalle() && ((int) escala != tamaño || sprites == null)) {
+			tamaño = (int) escala;
+			prepararSprites();
+		}
+		general.setActiva(!isDetalle());
+
+		desplazamientoX = Math.round(casillaX * getLado() - x);
+		desplazamientoY = Math.round(casillaY * getLado() - y);
+		limitarDesplazamiento();
+		invalidate();
+	}
+
+	/**
+	 * Mantiene el tablero dentro de la vista, o centrado si es menor que
+	 * ella.
+	 */
+	private void limitarDesplazamiento() {
+		desplazamientoX = limitar(desplazamientoX, columnas, getAnchoVisible());
+		desplazamientoY = limitar(desplazamientoY, filas, getAltoVisible());
+	}
+
+	private int limitar(int desplazamiento, int casillas, int visible) {
+		int contenido = (int) Math.ceil(casillas * getLado());
+		if (contenido <= visible)
+			return -(visible - contenido) / 2;
+		return Math.max(0, Math.min(contenido - visible, desplazamiento));
+	}
+
+	/**
+	 * @return Coordenadas en la vista de la esquina superior izquierda del
+	 *         tablero
+	 */
+	private int getOrigenX() {
+		return getPaddingLeft() - desplazamientoX;
+	}
+
+	private int getOrigenY() {
+		return getPaddingTop() - desplazamientoY;
+	}
+
+	/**
+	 * Escala las imagenes de las casillas al tamaño actual y dibuja sobre la
+	 * casilla vacia cada uno de los numeros, para no dibujar texto en cada
+	 * fotograma.
+	 */
+	private void prepararSprites() {
+		if (sprites != null)
+			for (Bitmap sprite : sprites)
+				sprite.recycle();
+		Resources recursos = getResources();
+		sprites = new Bitmap[SPRITES];
+		sprites[0] = escalar(recursos, R.drawable.square_grey);
+		sprites[SPRITE_MINA] = escalar(recursos, R.drawable.square_bomb);
+		sprites[SPRITE_BANDERA] = escalar(recursos, R.drawable.square_flag);
+		sprites[SPRITE_TAPADA] = escalar(recursos, R.drawable.square_orange);
+
+		Paint pincel = new Paint(Paint.ANTI_ALIAS_FLAG);
+		pincel.setTypeface(Typeface.DEFAULT_BOLD);
+		pincel.setTextAlign(Paint.Align.CENTER);
+		pincel.setTextSize(tamaño * 0.6f);
+		float base = (tamaño - pincel.ascent() - pincel.descent()) / 2;
+		for (int valor = 1; valor <= 8; valor++) {
+			Bitmap numero = sprites[0].copy(Bitmap.Config.ARGB_8888, true);
+			pincel.setColor(COLORES[valor]);
+			new Canvas(numero).drawText(Integer.toString(valor), tamaño / 2f,
+					base, pincel);
+			sprites[valor] = numero;
+		}
+	}
+
+	private Bitmap escalar(Resources recursos, int id) {
+		Bitmap original = BitmapFactory.decodeResource(recursos, id);
+		Bitmap escalada = Bitmap.createScaledBitmap(original, tamaño, tamaño,
+				true);
+		if (escalada != original)
+			original.recycle();
+		return escalada;
+	}
+
+	/**
+	 * Dibuja la vista general o, si las casillas se distinguen, solo las
+	 * casillas visibles que cortan la zona invalidada, leyendo su estado fila
+	 * a fila.
+	 */
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (controlador == null || escala == 0)
+			return;
+		canvas.clipRect(getPaddingLeft(), getPaddingTop(), getWidth()
+				- getPaddingRight(), getHeight() - getPaddingBottom());
+		int origenX = getOrigenX();
+		int origenY = getOrigenY();
+		if (!isDetalle()) {
+			general.dibujar(canvas, origenX, origenY, escala);
+			return;
+		}
+		if (!canvas.getClipBounds(recorte) || recorte.bottom <= origenY
+				|| recorte.right <= origenX)
+			return;
+		int primeraFila = Math.max(0, (recorte.top - origenY) / tamaño);
+		int ultimaFila = Math.min(filas - 1, (recorte.bottom - 1 - origenY)
+				/ tamaño);
+		int primeraColumna = Math.max(0, (recorte.left - origenX) / tamaño);
+		int ultimaColumna = Math.min(columnas - 1,
+				(recorte.right - 1 - origenX) / tamaño);
+		if (ultimaFila < primeraFila || ultimaColumna < primeraColumna)
+			return;
+
+		int ancho = ultimaColumna - primeraColumna + 1;
+		if (fila.length < ancho)
+			fila = new byte[ancho];
+		try {
+			for (int f = primeraFila; f <= ultimaFila; f++) {
+				// El hilo de juego puede estar cambiando las casillas: como
+				// mucho se dibuja un estado un poco anterior, y los cambios
+				// llegan despues para volver a dibujarlas
+				controlador.leerCasillas(f * columnas + primeraColumna, fila,
+						0, ancho);
+				float y = origenY + f * tamaño;
+				float x = origenX + primeraColumna * tamaño;
+				for (int c = 0; c < ancho; c++, x += tamaño)
+					canvas.drawBitmap(sprites[sprite(fila[c])], x, y, null);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			// El hilo de juego ha empezado una partida con otras dimensiones,
+			// que se dibujara entera al recibir el aviso de partida nueva
+		}
+	}
+
+	/**
+	 * Elige la imagen que corresponde al estado de una casilla.
+	 */
+	private static int sprite(byte estado) {
+		if ((estado & AlmacenTablero.DESTAPADA) == 0)
+			return (estado & AlmacenTablero.BANDERA) != 0 ? SPRITE_BANDERA
+					: SPRITE_TAPADA;
+		int valor = estado & AlmacenTablero.VALOR;
+		return valor == AlmacenTablero.MINA ? SPRITE_MINA : valor;
+	}
+
+	/**
+	 * Avanza el desplazamiento tras lanzar el tablero.
+	 */
+	@Override
+	public void computeScroll() {
+		if (desplazador.computeScrollOffset()) {
+			desplazamientoX = desplazador.getCurrX();
+			desplazamientoY = desplazador.getCurrY();
+			limitarDesplazamiento();
+			invalidate();
+		}
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		if (event.getAction() == MotionEvent.ACTION_DOWN)
+			escalando = false;
+		zoom.onTouchEvent(event);
+		gestos.onTouchEvent(event);
+		return true;
+	}
+
+	/**
+	 * Calcula la casilla que hay bajo un punto de la vista.
+	 *
+	 * @return El indice de la casilla, o -1 si el punto esta fuera del
+	 *         tablero o las casillas no se dibujan una a una
+	 */
+	private int casillaEn(float x, float y) {
+		int origenX = getOrigenX();
+		int origenY = getOrigenY();
+		if (!isDetalle() || x < origenX || y < origenY)
+			return -1;
+		int columna = (int) (x - origenX) / tamaño;
+		int f = (int) (y - origenY) / tamaño;
+		if (columna >= columnas || f >= filas)
+			return -1;
+		return f * columnas + columna;
+	}
+
+	/**
+	 * Pulsacion corta para destapar, o para destapar las adyacentes de un
+	 * numero ya destapado, y pulsacion larga para poner o quitar una bandera.
+	 * En la vista general, una pulsacion corta acerca la vista al punto
+	 * pulsado. Arrastrar y lanzar desplazan el tablero.
+	 */
+	private class Gestos extends GestureDetector.SimpleOnGestureListener {
+
+		@Override
+		public boolean onDown(MotionEvent e) {
+			desplazador.forceFinished(true);
+			return controlador != null;
+		}
+
+		@Override
+		public boolean onScroll(MotionEvent e1, MotionEvent e2,
+				float distanceX, float distanceY) {
+			if (escala == 0)
+				return false;
+			desplazamientoX += (int) distanceX;
+			desplazamientoY += (int) distanceY;
+			limitarDesplazamiento();
+			invalidate();
+			return true;
+		}
+
+		@Override
+		public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX,
+				float velocityY) {
+			if (escala == 0 || escalando)
+				return false;
+			float lado = getLado();
+			desplazador.fling(desplazamientoX, desplazamientoY,
+					(int) -velocityX, (int) -velocityY, Math.min(0,
+							desplazamientoX), Math.max(desplazamientoX,
+							(int) (columnas * lado) - getAnchoVisible()),
+					Math.min(0, desplazamientoY), Math.max(desplazamientoY,
+							(int) (filas * lado) - getAltoVisible()));
+			invalidate();
+			return true;
+		}
+
+		@Override
+		public boolean onSingleTapUp(MotionEvent e) {
+			if (escalando || escala == 0)
+				return true;
+			if (!isDetalle()) {
+				setEscala(TAMAÑO_PREFERIDO, e.getX(), e.getY());
+				return true;
+			}
+			int casilla = casillaEn(e.getX(), e.getY());
+			if (casilla >= 0)
+				hilo.pulsar(casilla / columnas, casilla % columnas);
+			return true;
+		}
+
+		@Override
+		public void onLongPress(MotionEvent e) {
+			if (escalando)
+				return;
+			int casilla = casillaEn(e.getX(), e.getY());
+			if (casilla < 0)
+				return;
+			hilo.establecerBandera(casilla / columnas, casilla % columnas);
+			performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+		}
+	}
+
+	/**
+	 * Pellizco para acercar o alejar la vista alrededor de los dedos.
+	 */
+	private class Zoom extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+
+		@Override
+		public boolean onScaleBegin(ScaleGestureDetector detector) {
+			escalando = true;
+			desplazador.forceFinished(true);
+			return escala > 0;
+		}
+
+		@Override
+		public boolean onScale(ScaleGestureDetector detector) {
+			setEscala(escala * detector.getScaleFactor(),
+					detector.getFocusX(), detector.getFocusY());
+			return true;
+		}
+	}
+
+	/**
+	 * Vuelve a dibujar un rectangulo de casillas que han cambiado, y sus
+	 * bloques de la vista general. Se llama desde el hilo de la interfaz.
+	 *
+	 * @param primeraFila
+	 *            Primera fila del rectangulo
+	 * @param ultimaFila
+	 *            Ultima fila del rectangulo, incluida
+	 * @param primeraColumna
+	 *            Primera columna del rectangulo
+	 * @param ultimaColumna
+	 *            Ultima columna del rectangulo, incluida
+	 */
+	public void casillasCambiadas(int primeraFila, int ultimaFila,
+			int primeraColumna, int ultimaColumna) {
+		general.casillasCambiadas(primeraFila, ultimaFila, primeraColumna,
+				ultimaColumna);
+		// La vista general se vuelve a dibujar al recalcular los bloques
+		if (!isDetalle())
+			return;
+		int origenX = getOrigenX();
+		int origenY = getOrigenY();
+		invalidate(origenX + primeraColumna * tamaño, origenY + primeraFila
+				* tamaño, origenX + (ultimaColumna + 1) * tamaño, origenY
+				+ (ultimaFila + 1) * tamaño);
+	}
+
+}
@@ -0,0 +1,362 @@
+package buscaminas.sm;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.RectF;
+import android.view.View;
+import buscaminas.sm.controller.JuegoController;
+import buscaminas.sm.model.AlmacenTablero;
+
+/**
+ * <p>
+ * Vista general del tablero para los niveles de zoom en que las casillas son
+ * demasiado pequeñas para dibujarlas una a una. Cada pixel de la imagen
+ * resume un bloque cuadrado de casillas con un color que mezcla el de las
+ * tapadas y el de las destapadas segun cuantas hay de cada una, y marca los
+ * bloques con banderas o con minas destapadas. La imagen nunca pasa de
+ * {@link #LADO_MAXIMO} pixeles de lado, de modo que ocupa lo mismo sea cual
+ * sea el tamaño del tablero.
+ * </p>
+ * <p>
+ * La imagen se calcula en un hilo aparte, y solo mientras se esta mostrando:
+ * las casillas que cambian se acumulan en un rectangulo de bloques pendientes
+ * que el hilo vuelve a calcular y entrega al hilo de la interfaz para
+ * copiarlos en la imagen.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+final class VistaGeneral implements Runnable {
+
+	/**
+	 * Pixeles de lado que tiene como maximo la imagen.
+	 */
+	static final int LADO_MAXIMO = 512;
+
+	/**
+	 * Colores de los bloques.
+	 */
+	private static final int COLOR_TAPADA = Color.rgb(242, 140, 40);
+	private static final int COLOR_DESTAPADA = Color.rgb(190, 190, 190);
+	private static final int COLOR_BANDERA = Color.rgb(200, 30, 30);
+	private static final int COLOR_MINA = Color.BLACK;
+
+	/**
+	 * Vista que muestra la imagen, a la que se entregan los bloques
+	 * calculados.
+	 */
+	private final View vista;
+
+	private final JuegoController controlador;
+
+	/**
+	 * Dimensiones del tablero, casillas de lado de cada bloque y dimensiones
+	 * de la imagen en bloques.
+	 */
+	private int filas;
+	private int columnas;
+	private int bloque;
+	private int ancho;
+	private int alto;
+
+	/**
+	 * Imagen con un pixel por bloque. Solo se usa desde el hilo de la
+	 * interfaz.
+	 */
+	private Bitmap imagen;
+
+	/**
+	 * Colores de los ultimos bloques calculados, hasta que se copian en la
+	 * imagen.
+	 */
+	private int[] pixeles;
+
+	/**
+	 * Rectangulo de bloques que se deben volver a calcular, si
+	 * {@link #pendiente}.
+	 */
+	private int primeraFila;
+	private int ultimaFila;
+	private int primeraColumna;
+	private int ultimaColumna;
+	private boolean pendiente;
+
+	/**
+	 * Partida de la que se calculan los bloques. Se incrementa con cada
+	 * partida nueva para descartar los bloques calculados de la anterior.
+	 */
+	private int generacion;
+
+	/**
+	 * Si la imagen se esta mostrando y por tanto se debe mantener al dia.
+	 */
+	private boolean activa;
+
+	/**
+	 * Si hay bloques calculados que el hilo de la interfaz aun no ha copiado
+	 * en la imagen.
+	 */
+	private boolean entregando;
+
+	private Thread hilo;
+
+	/**
+	 * Estados de las casillas de la fila que se esta resumiendo, y cuantas
+	 * hay de cada tipo en cada bloque de la fila de bloques. Solo se usan
+	 * desde el hilo que calcula los bloques.
+	 */
+	private byte[] fila = new byte[0];
+	private int[] destapadas = new int[0];
+	private int[] banderas = new int[0];
+	private int[] minas = new int[0];
+	private int[] total = new int[0];
+
+	private final RectF destino = new RectF();
+
+	VistaGeneral(View vista, JuegoController controlador) {
+		this.vista = vista;
+		this.controlador = controlador;
+	}
+
+	/**
+	 * Prepara la imagen de una partida nueva, con todas las casillas
+	 * tapadas, y calcula de nuevo todos sus bloques. Se llama desde el hilo
+	 * de la interfaz.
+	 */
+	void partidaNueva(int filas, int columnas) {
+		int nuevoBloque = Math.max(1, (Math.max(filas, columnas)
+				+ LADO_MAXIMO - 1)
+				/ LADO_MAXIMO);
+		int nuevoAncho = (columnas + nuevoBloque - 1) / nuevoBloque;
+		int nuevoAlto = (filas + nuevoBloque - 1) / nuevoBloque;
+		synchronized (this) {
+			this.filas = filas;
+			this.columnas = columnas;
+			if (imagen == null || nuevoAncho != ancho || nuevoAlto != alto) {
+				if (imagen != null)
+					imagen.recycle();
+				imagen = Bitmap.createBitmap(nuevoAncho, nuevoAlto,
+						Bitmap.Config.ARGB_8888);
+				pixeles = new int[nuevoAncho * nuevoAlto];
+			}
+			bloque = nuevoBloque;
+			ancho = nuevoAncho;
+			alto = nuevoAlto;
+			imagen.eraseColor(COLOR_TAPADA);
+			generacion++;
+			pendiente = false;
+			cambiarBloques(0, alto - 1, 0, ancho - 1);
+		}
+	}
+
+	/**
+	 * Marca como pendiente el rectangulo de bloques que contiene un
+	 * rectangulo de casillas cambiadas.
+	 */
+	synchronized void casillasCambiadas(int primeraFila, int ultimaFila,
+			int primeraColumna, int ultimaColumna) {
+		cambiarBloques(primeraFila / bloque, ultimaFila / bloque,
+				primeraColumna / bloque, ultimaColumna / bloque);
+	}
+
+	private void cambiarBloques(int primeraFila, int ultimaFila,
+			int primeraColumna, int ultimaColumna) {
+		if (pendiente) {
+			this.primeraFila = Math.min(this.primeraFila, primeraFila);
+			this.ultimaFila = Math.max(this.ultimaFila, ultimaFila);
+			this.primeraColumna = Math.min(this.primeraColumna, primeraColumna);
+			this.ultimaColumna = Math.max(this.ultimaColumna, ultimaColumna);
+		} else {
+			this.primeraFila = primeraFila;
+			this.ultimaFila = ultimaFila;
+			this.primeraColumna = primeraColumna;
+			this.ultimaColumna = ultimaColumna;
+			pendiente = true;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Indica si la imagen se esta mostrando. Mientras no se muestra, los
+	 * cambios se acumulan sin calcularlos.
+	 */
+	synchronized void setActiva(boolean activa) {
+		this.activa = activa;
+		if (activa && hilo == null) {
+			hilo = new Thread(this, "VistaGeneral");
+			hilo.setDaemon(true);
+			hilo.setPriority(Thread.MIN_PRIORITY);
+			hilo.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Detiene el hilo que calcula los bloques. Se vuelve a crear si la imagen
+	 * se activa de nuevo.
+	 */
+	synchronized void detener() {
+		if (hilo != null) {
+			hilo.interrupt();
+			hilo = null;
+		}
+	}
+
+	/**
+	 * Dibuja la imagen escalada de modo que cada casilla ocupe un lado de
+	 * pixeles, con la primera casilla en las coordenadas indicadas.
+	 */
+	void dibujar(Canvas canvas, float x, float y, float lado) {
+		float tamañoBloque = bloque * lado;
+		destino.set(x, y, x + ancho * tamañoBloque, y + alto * tamañoBloque);
+		// Sin filtrar, para que cada bloque se vea con su color
+		canvas.drawBitmap(imagen, null, destino, null);
+	}
+
+	/**
+	 * Bucle del hilo que calcula los bloques pendientes.
+	 */
+	public void run() {
+		Thread actual = Thread.currentThread();
+		while (true) {
+			final int partida;
+			final int pf, uf, pc, uc;
+			synchronized (this) {
+				try {
+					while (hilo == actual && (!pendiente || !activa || entregando))
+						wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (hilo != actual)
+					return;
+				partida = generacion;
+				pf = primeraFila;
+				uf = ultimaFila;
+				pc = primeraColumna;
+				uc = ultimaColumna;
+				pendiente = false;
+			}
+			try {
+				calcularBloques(pf, uf, pc, uc);
+			} catch (IndexOutOfBoundsException e) {
+				// La partida ha cambiado durante el calculo: los bloques se
+				// descartan y se calculan los de la nueva
+				continue;
+			}
+			synchronized (this) {
+				if (partida != generacion || hilo != actual)
+					continue;
+				entregando = true;
+			}
+			vista.post(new Runnable() {
+				public void run() {
+					entregar(partida, pf, uf, pc, uc);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Copia en la imagen los bloques calculados, desde el hilo de la
+	 * interfaz, y vuelve a dibujar la vista.
+	 */
+	private synchronized void entregar(int partida, int pf, int uf, int pc,
+			int uc) {
+		entregando = false;
+		notifyAll();
+		if (partida != generacion)
+			return;
+		int anchoRectangulo = uc - pc + 1;
+		imagen.setPixels(pixeles, 0, anchoRectangulo, pc, pf, anchoRectangulo,
+				uf - pf + 1);
+		vista.invalidate();
+	}
+
+	/**
+	 * Calcula el color de un rectangulo de bloques, recorriendo sus casillas
+	 * fila a fila.
+	 */
+	private void calcularBloques(int pf, int uf, int pc, int uc) {
+		int filas;
+		int columnas;
+		int bloque;
+		int[] pixeles;
+		synchronized (this) {
+			filas = this.filas;
+			columnas = this.columnas;
+			bloque = this.bloque;
+			pixeles = this.pixeles;
+		}
+		int anchoRectangulo = uc - pc + 1;
+		int primera = pc * bloque;
+		int ultima = Math.min(columnas, (uc + 1) * bloque);
+		if (fila.length < ultima - primera)
+			fila = new byte[ultima - primera];
+		if (total.length < anchoRectangulo) {
+			destapadas = new int[anchoRectangulo];
+			banderas = new int[anchoRectangulo];
+			minas = new int[anchoRectangulo];
+			total = new int[anchoRectangulo];
+		}
+
+		for (int b = pf; b <= uf; b++) {
+			Arrays.fill(destapadas, 0, anchoRectangulo, 0);
+			Arrays.fill(banderas, 0, anchoRectangulo, 0);
+			Arrays.fill(minas, 0, anchoRectangulo, 0);
+			Arrays.fill(total, 0, anchoRectangulo, 0);
+			int hasta = Math.min(filas, (b + 1) * bloque);
+			for (int f = b * bloque; f < hasta; f++) {
+				controlador.leerCasillas(f * columnas + primera, fila, 0,
+						ultima - primera);
+				for (int c = 0; c < ultima - primera; c++) {
+					int i = c / bloque;
+					byte estado = fila[c];
+					total[i]++;
+					if ((estado & AlmacenTablero.DESTAPADA) != 0) {
+						destapadas[i]++;
+						if ((estado & AlmacenTablero.VALOR) == AlmacenTablero.MINA)
+							minas[i]++;
+					} else if ((estado & AlmacenTablero.BANDERA) != 0) {
+						banderas[i]++;
+					}
+				}
+			}
+			int base = (b - pf) * anchoRectangulo;
+			for (int i = 0; i < anchoRectangulo; i++)
+				pixeles[base + i] = color(destapadas[i], banderas[i], minas[i],
+						total[i]);
+		}
+	}
+
+	/**
+	 * Color de un bloque segun lo que contienen sus casillas.
+	 */
+	private static int color(int destapadas, int banderas, int minas,
+			int total) {
+		if (minas > 0)
+			return COLOR_MINA;
+		int tapadas = total - destapadas;
+		if (banderas > 0 && 2 * banderas >= tapadas)
+			return COLOR_BANDERA;
+		if (destapadas == 0)
+			return COLOR_TAPADA;
+		if (tapadas == 0)
+			return COLOR_DESTAPADA;
+		return Color.rgb(mezclar(Color.red(COLOR_TAPADA),
+				Color.red(COLOR_DESTAPADA), destapadas, total), mezclar(
+				Color.green(COLOR_TAPADA), Color.green(COLOR_DESTAPADA),
+				destapadas, total), mezclar(Color.blue(COLOR_TAPADA),
+				Color.blue(COLOR_DESTAPADA), destapadas, total));
+	}
+
+	private static int mezclar(int tapada, int destapada, int destapadas,
+			int total) {
+		return tapada + (destapada - tapada) * destapadas / total;
+	}
+
+}
@@ -0,0 +1,453 @@
+package buscaminas.sm.controller;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import buscaminas.sm.model.EstadoJuego;
+import buscaminas.sm.model.HuellaTablero;
+import buscaminas.sm.model.InstantaneaJuego;
+
+/**
+ * <p>
+ * Diario de solo añadido con todas las jugadas de las partidas de un
+ * {@link JuegoController}, con el que se puede recuperar la partida en curso
+ * tras un cierre inesperado y volver a jugar despues todas las partidas para
+ * analizarlas o comprobar que son legitimas.
+ * </p>
+ * <p>
+ * El fichero empieza con una firma y una version, seguidas de registros. Cada
+ * registro empieza con un entero de longitud variable cuyos tres bits bajos
+ * indican su tipo: las jugadas llevan el indice de la casilla en el resto de
+ * bits, de modo que la mayoria ocupan dos o tres bytes; el comienzo de una
+ * partida lleva la {@link HuellaTablero} de su tablero, y un punto de control
+ * lleva una {@link InstantaneaJuego} de la partida. Para recuperar la partida
+ * basta con cargar el ultimo comienzo o punto de control y repetir las
+ * jugadas que le siguen.
+ * </p>
+ * <p>
+ * Los registros se acumulan en memoria y se escriben en grupo: un hilo los
+ * lleva al fichero y fuerza su escritura en disco cada cierto intervalo, de
+ * modo que un cierre inesperado solo pierde las jugadas del ultimo intervalo.
+ * Con un intervalo de cero cada registro se fuerza al escribirlo. Si el
+ * cierre deja un registro a medias, se descarta al volver a abrir el diario.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ * @see LectorDiario
+ */
+public class DiarioMovimientos implements Closeable {
+
+	/**
+	 * Firma que identifica los diarios ("BMDM").
+	 */
+	static final int FIRMA = 0x424D444D;
+
+	/**
+	 * Version del formato del diario.
+	 */
+	static final int VERSION = 2;
+
+	/**
+	 * Version anterior del formato, con el tipo en dos bits y sin registros
+	 * de adyacentes. Se sigue leyendo, y al abrir un diario de esta version
+	 * para añadirle registros se reescribe con el formato actual.
+	 */
+	static final int VERSION_SIN_ADYACENTES = 1;
+
+	/**
+	 * Tamaño en bytes de la cabecera: firma y version.
+	 */
+	static final int TAMAÑO_CABECERA = 8;
+
+	/**
+	 * Tipo de registro de una casilla destapada.
+	 */
+	public static final int DESTAPE = 0;
+
+	/**
+	 * Tipo de registro de una bandera colocada o quitada.
+	 */
+	public static final int BANDERA = 1;
+
+	/**
+	 * Tipo de registro del comienzo de una partida.
+	 */
+	public static final int PARTIDA = 2;
+
+	/**
+	 * Tipo de registro de un punto de control.
+	 */
+	public static final int INSTANTANEA = 3;
+
+	/**
+	 * Tipo de registro de las adyacentes de una casilla destapadas a la vez.
+	 */
+	public static final int ADYACENTES = 4;
+
+	/**
+	 * Bits del tipo en el primer entero de cada registro.
+	 */
+	static final int BITS_TIPO = 3;
+
+	/**
+	 * Bits del tipo en los diarios de la version
+	 * {@link #VERSION_SIN_ADYACENTES}.
+	 */
+	static final int BITS_TIPO_SIN_ADYACENTES = 2;
+
+	/**
+	 * Tamaño del buffer donde se acumulan los registros.
+	 */
+	private static final int TAMAÑO_BUFFER = 64 * 1024;
+
+	/**
+	 * Bytes que ocupa como maximo un entero de longitud variable.
+	 */
+	static final int MAXIMO_VARIABLE = 10;
+
+	private final RandomAccessFile fichero;
+	private final FileChannel canal;
+
+	/**
+	 * Milisegundos entre escrituras forzadas, o cero para forzar cada
+	 * registro.
+	 */
+	private final long intervalo;
+
+	/**
+	 * Registros que aun no se han escrito en el fichero.
+	 */
+	private final ByteBuffer pendientes = ByteBuffer.allocate(TAMAÑO_BUFFER);
+
+	/**
+	 * Hilo que escribe los registros cada intervalo, o null si cada registro
+	 * se escribe al momento.
+	 */
+	private final Thread sincronizador;
+
+	/**
+	 * Si se han escrito registros en el fichero sin forzar su escritura.
+	 */
+	private boolean sinForzar;
+
+	/**
+	 * Error con que fallo la ultima escritura en segundo plano.
+	 */
+	private IOException error;
+
+	private boolean cerrado;
+
+	/**
+	 * Abre un diario para añadir registros, creandolo si no existe. Si el
+	 * diario ya existia y termina con un registro a medias, se descarta, y si
+	 * es de la version anterior se reescribe antes con el formato actual.
+	 *
+	 * @param archivo
+	 *            Fichero del diario
+	 * @param intervalo
+	 *            Milisegundos entre escrituras forzadas en disco, o cero para
+	 *            forzar cada registro
+	 * @throws IOException
+	 *             Si no se puede abrir el fichero o no es un diario
+	 */
+	public DiarioMovimientos(File archivo, long intervalo) throws IOException {
+		if (intervalo < 0)
+			throw new IllegalArgumentException(
+					"El intervalo no puede ser negativo");
+		this.intervalo = intervalo;
+		actualizarVersion(archivo);
+		this.fichero = new RandomAccessFile(archivo, "rw");
+		this.canal = fichero.getChannel();
+		try {
+			long fin = canal.size();
+			if (fin < TAMAÑO_CABECERA) {
+				// Nuevo, o cerrado antes de completar la cabecera
+				ByteBuffer cabecera = ByteBuffer.allocate(TAMAÑO_CABECERA);
+				cabecera.putInt(FIRMA).putInt(VERSION).flip();
+				canal.truncate(0);
+				canal.write(cabecera, 0);
+				canal.force(true);
+				fin = TAMAÑO_CABECERA;
+			} else {
+				fin = LectorDiario.finRegistros(canal);
+				if (fin < canal.size())
+					canal.truncate(fin);
+			}
+			canal.position(fin);
+		} catch (IOException e) {
+			fichero.close();
+			throw e;
+		} catch (RuntimeException e) {
+			fichero.close();
+			throw e;
+		}
+
+		if (intervalo > 0) {
+			sincronizador = new Thread(new Runnable() {
+				public void run() {
+					sincronizarPeriodicamente();
+				}
+			}, "DiarioMovimientos");
+			sincronizador.setDaemon(true);
+			sincronizador.start();
+		} else {
+			sincronizador = null;
+		}
+	}
+
+	/**
+	 * Reescribe con el formato actual un diario de la version anterior,
+	 * para poder añadirle registros. El diario nuevo se escribe en un fichero
+	 * aparte que sustituye al original solo cuando esta completo.
+	 */
+	private static void actualizarVersion(File archivo) throws IOException {
+		if (archivo.length() < TAMAÑO_CABECERA)
+			return;
+		LectorDiario lector = LectorDiario.abrir(archivo);
+		if (lector.getVersion() == VERSION)
+			return;
+		File temporal = new File(archivo.getPath() + ".tmp");
+		RandomAccessFile destino = new RandomAccessFile(temporal, "rw");
+		try {
+			destino.setLength(0);
+			lector.copiarActualizado(destino.getChannel());
+			destino.getChannel().force(true);
+		} finally {
+			destino.close();
+		}
+		if (!temporal.renameTo(archivo)
+				&& !(archivo.delete() && temporal.renameTo(archivo)))
+			throw new IOException("No se puede actualizar el diario");
+	}
+
+	/**
+	 * Registra el comienzo de una partida.
+	 *
+	 * @param huella
+	 *            Huella del tablero de la partida, antes de la primera jugada
+	 * @throws IllegalStateException
+	 *             Si el diario esta cerrado o no se puede escribir
+	 */
+	public synchronized void registrarPartida(HuellaTablero huella) {
+		byte[] bytes = huella.codificar();
+		comprobarEscritura();
+		try {
+			reservar(2 * MAXIMO_VARIABLE + bytes.length);
+			escribirVariable(pendientes, PARTIDA);
+			escribirVariable(pendientes, bytes.length);
+			pendientes.put(bytes);
+			registroCompleto();
+		} catch (IOException e) {
+			throw new IllegalStateException("No se puede escribir el diario", e);
+		}
+	}
+
+	/**
+	 * Registra un punto de control con el estado completo de una partida, a
+	 * partir del cual se puede recuperar sin repetir sus jugadas anteriores.
+	 * La partida no debe cambiar mientras se registra.
+	 *
+	 * @param juego
+	 *            Partida a guardar
+	 * @throws IOException
+	 *             Si no se puede escribir el diario
+	 * @throws IllegalStateException
+	 *             Si el diario esta cerrado
+	 */
+	public synchronized void registrarInstantanea(EstadoJuego juego)
+			throws IOException {
+		comprobarEscritura();
+		reservar(2 * MAXIMO_VARIABLE);
+		escribirVariable(pendientes, INSTANTANEA);
+		escribirVariable(pendientes, InstantaneaJuego.tamaño(juego.getFilas(),
+				juego.getColumnas()));
+		escribirPendientes();
+		// Si la instantanea falla a medias, el registro incompleto se
+		// descarta al volver a abrir el diario
+		InstantaneaJuego.escribir(juego, canal);
+		registroCompleto();
+	}
+
+	/**
+	 * Registra una casilla destapada.
+	 *
+	 * @param casilla
+	 *            Indice de la casilla (fila por columnas mas columna)
+	 * @throws IllegalStateException
+	 *             Si el diario esta cerrado o no se puede escribir
+	 */
+	public synchronized void registrarDestape(int casilla) {
+		registrarJugada((long) casilla << BITS_TIPO | DESTAPE);
+	}
+
+	/**
+	 * Registra una bandera colocada o quitada.
+	 *
+	 * @param casilla
+	 *            Indice de la casilla (fila por columnas mas columna)
+	 * @throws IllegalStateException
+	 *             Si el diario esta cerrado o no se puede escribir
+	 */
+	public synchronized void registrarBandera(int casilla) {
+		registrarJugada((long) casilla << BITS_TIPO | BANDERA);
+	}
+
+	/**
+	 * Registra las adyacentes de una casilla destapadas a la vez.
+	 *
+	 * @param casilla
+	 *            Indice de la casilla (fila por columnas mas columna)
+	 * @throws IllegalStateException
+	 *             Si el diario esta cerrado o no se puede escribir
+	 */
+	public synchronized void registrarAdyacentes(int casilla) {
+		registrarJugada((long) casilla << BITS_TIPO | ADYACENTES);
+	}
+
+	/**
+	 * Escribe los registros pendientes y fuerza su escritura en disco, sin
+	 * esperar al siguiente intervalo.
+	 *
+	 * @throws IOException
+	 *             Si no se puede escribir el diario
+	 */
+	public void sincronizar() throws IOException {
+		synchronized (this) {
+			if (error != null)
+				throw error;
+			if (cerrado)
+				return;
+			escribirPendientes();
+			if (!sinForzar)
+				return;
+			sinForzar = false;
+		}
+		// Las jugadas siguientes se pueden seguir acumulando mientras tanto
+		canal.force(false);
+	}
+
+	/**
+	 * Escribe los registros pendientes y cierra el diario.
+	 *
+	 * @throws IOException
+	 *             Si no se puede escribir el diario
+	 */
+	public void close() throws IOException {
+		try {
+			sincronizar();
+		} finally {
+			synchronized (this) {
+				cerrado = true;
+				notifyAll();
+			}
+			fichero.close();
+		}
+	}
+
+	/**
+	 * Bucle del hilo que escribe los registros cada intervalo.
+	 */
+	private void sincronizarPeriodicamente() {
+		while (true) {
+			synchronized (this) {
+				if (!cerrado) {
+					try {
+						wait(intervalo);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (cerrado)
+					return;
+			}
+			try {
+				sincronizar();
+			} catch (IOException e) {
+				synchronized (this) {
+					error = e;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Añade una jugada a los registros pendientes.
+	 */
+	private void registrarJugada(long valor) {
+		comprobarEscritura();
+		try {
+			reservar(MAXIMO_VARIABLE);
+			escribirVariable(pendientes, valor);
+			registroCompleto();
+		} catch (IOException e) {
+			throw new IllegalStateException("No se puede escribir el diario", e);
+		}
+	}
+
+	/**
+	 * Comprueba que se pueden añadir registros.
+	 */
+	private void comprobarEscritura() {
+		if (cerrado)
+			throw new IllegalStateException("El diario esta cerrado");
+		if (error != null)
+			throw new IllegalStateException("No se puede escribir el diario",
+					error);
+	}
+
+	/**
+	 * Deja en el buffer sitio para un registro, escribiendo los pendientes si
+	 * hace falta.
+	 */
+	private void reservar(int bytes) throws IOException {
+		if (pendientes.remaining() < bytes)
+			escribirPendientes();
+		if (pendientes.remaining() < bytes)
+			throw new IOException("El registro no cabe en el diario");
+	}
+
+	/**
+	 * Si no hay intervalo, escribe y fuerza el registro recien añadido.
+	 */
+	private void registroCompleto() throws IOException {
+		if (intervalo > 0)
+			return;
+		escribirPendientes();
+		sinForzar = false;
+		canal.force(false);
+	}
+
+	/**
+	 * Escribe en el fichero los registros pendientes.
+	 */
+	private void escribirPendientes() throws IOException {
+		pendientes.flip();
+		try {
+			if (pendientes.hasRemaining())
+				sinForzar = true;
+			while (pendientes.hasRemaining())
+				canal.write(pendientes);
+		} finally {
+			pendientes.compact();
+		}
+	}
+
+	/**
+	 * Escribe un entero no negativo en grupos de 7 bits, del menos al mas
+	 * significativo, marcando con el bit alto los que no son el ultimo.
+	 */
+	static void escribirVariable(ByteBuffer buffer, long valor) {
+		while ((valor & ~0x7FL) != 0) {
+			buffer.put((byte) ((valor & 0x7F) | 0x80));
+			valor >>>= 7;
+		}
+		buffer.put((byte) valor);
+	}
+
+}
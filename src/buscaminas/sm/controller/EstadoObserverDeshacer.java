@@ -0,0 +1,30 @@
+package buscaminas.sm.controller;
+
+/**
+ * Observador del estado del juego que admite deshacer jugadas: ademas de los
+ * cambios normales, recibe las casillas que se vuelven a tapar al deshacer un
+ * destape y el aviso de que una partida terminada vuelve a estar en juego. Las
+ * banderas que se deshacen se notifican como cualquier otra bandera, y las
+ * jugadas rehechas como jugadas normales.
+ *
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public interface EstadoObserverDeshacer extends EstadoObserver {
+
+    /**
+     * Notifica que se han vuelto a tapar varias casillas. El vector pertenece
+     * al estado del juego y se reutiliza en las siguientes notificaciones, por
+     * lo que no debe guardarse.
+     *
+     * @param indices Casillas tapadas, como fila * columnas + columna
+     * @param cantidad Numero de casillas tapadas
+     */
+    public void casillasTapadas(int[] indices, int cantidad);
+
+    /**
+     * Notifica que se ha deshecho la jugada con que termino la partida, que
+     * vuelve a estar en juego.
+     */
+    public void partidaReanudada();
+
+}
@@ -0,0 +1,24 @@
+package buscaminas.sm.controller;
+
+/**
+ * Observador del estado del juego que recibe de una sola vez todas las
+ * casillas destapadas en una jugada, en lugar de una notificacion por casilla.
+ * A los observadores que solo implementan {@link EstadoObserver} se les sigue
+ * notificando casilla a casilla.
+ *
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public interface EstadoObserverLotes extends EstadoObserver {
+
+    /**
+     * Notifica que se han destapado varias casillas. Los vectores pertenecen
+     * al estado del juego y se reutilizan en las siguientes notificaciones,
+     * por lo que no deben guardarse.
+     *
+     * @param indices Casillas destapadas, como fila * columnas + columna
+     * @param valores Valor numerico de cada casilla destapada
+     * @param cantidad Numero de casillas destapadas
+     */
+    public void casillasDestapadas(int[] indices, byte[] valores, int cantidad);
+
+}
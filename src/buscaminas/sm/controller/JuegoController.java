@@ -1,15 +1,34 @@
 package buscaminas.sm.controller;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
+import java.util.Random;
 
+import buscaminas.sm.model.AlmacenTableroAtomico;
+import buscaminas.sm.model.AlmacenTableroEmpaquetado;
+import buscaminas.sm.model.AlmacenTableroMapeado;
+import buscaminas.sm.model.Dificultad;
 import buscaminas.sm.model.EstadoJuego;
+import buscaminas.sm.model.EstadoJuegoConcurrente;
 import buscaminas.sm.model.Fase;
+import buscaminas.sm.model.HuellaTablero;
+import buscaminas.sm.model.InstantaneaJuego;
 
 /**
  * Gestiona la funcionalidad principal del juego:
  * <ul>
  * <li>Gestionar los observadores del estado del juego.</li>
- * <li>Destapar las casillas.</li>
+ * <li>Crear partidas de cada dificultad o con las dimensiones que se
+ * indiquen, eligiendo donde se guarda el tablero segun su tamaño, o tomarlas
+ * de una {@link ReservaPartidas} ya preparadas.</li>
+ * <li>Guardar la partida en curso y restaurarla.</li>
+ * <li>Registrar las jugadas en un {@link DiarioMovimientos} y recuperar la
+ * partida a partir de el.</li>
+ * <li>Destapar las casillas, una a una o todas las adyacentes a un numero
+ * ya resuelto.</li>
  * </ul>
  * 
  * @author Amanda Calatrava Arroyo
@@ -18,46 +37,525 @@ import buscaminas.sm.model.Fase;
 public class JuegoController {
 
 	/**
-	 * Filas del tablero de juego.
+	 * Parte de la memoria libre que puede ocupar un tablero en memoria. Los
+	 * tableros mayores se guardan en un fichero proyectado.
 	 */
-	public static final int JUEGO_FILAS = 11;
+	private static final int FRACCION_MEMORIA = 4;
 
 	/**
-	 * Columnas del tablero de juego.
+	 * Estado completo del juego, que representa el tablero y el estado de todas
+	 * sus casillas.
 	 */
-	public static final int JUEGO_COLUMNAS = 9;
+	private EstadoJuego juego;
 
 	/**
-	 * Porcentaje de minas sobre el total de casillas del tablero de juego.
+	 * Si varios jugadores comparten las partidas desde distintos hilos.
 	 */
-	private static final int JUEGO_PORCENTAJE = 15;
+	private final boolean compartido;
 
 	/**
-	 * Estado completo del juego, que representa el tablero y el estado de todas
-	 * sus casillas.
+	 * Generador de las semillas de las partidas que no indican una.
 	 */
-	private EstadoJuego juego;
+	private final Random aleatorio = new Random();
+
+	/**
+	 * Directorio donde se crean los ficheros de los tableros que no caben en
+	 * memoria, o null para usar el directorio temporal.
+	 */
+	private File directorioTableros;
+
+	/**
+	 * Almacen en fichero de la partida actual, si no cabia en memoria.
+	 */
+	private AlmacenTableroMapeado almacenMapeado;
+
+	/**
+	 * Fichero del almacen de la partida actual, si no cabia en memoria.
+	 */
+	private File ficheroTablero;
+
+	/**
+	 * Reserva de partidas preparadas de cada dificultad, o null si las
+	 * partidas se crean al pedirlas.
+	 */
+	private ReservaPartidas reserva;
+
+	/**
+	 * Diario donde se registran las partidas y sus jugadas, o null si no se
+	 * registran.
+	 */
+	private DiarioMovimientos diario;
 
 	/**
-	 * Genera una partida con dimensiones fijas 11x9 y un 15% de minas.
+	 * Si las partidas comprueban tras cada destape el contador de casillas
+	 * destapadas.
+	 */
+	private boolean autocomprobacion;
+
+	/**
+	 * Genera una partida de dificultad {@link Dificultad#FACIL} para un solo
+	 * jugador.
 	 */
 	public JuegoController() {
-		generarPartida();
+		this(false);
 	}
 
 	/**
-	 * Crea una partida nueva. En caso de que ya se hubiese trabajado con una,
-	 * se hace que sus observadores pasen a serlo de la partida nueva.
+	 * Genera una partida de dificultad {@link Dificultad#FACIL}.
+	 * 
+	 * @param compartido
+	 *            Si varios jugadores comparten las partidas desde distintos
+	 *            hilos, en cuyo caso se usa {@link EstadoJuegoConcurrente}
+	 */
+	public JuegoController(boolean compartido) {
+		this(compartido, true);
+	}
+
+	private JuegoController(boolean compartido, boolean generar) {
+		this.compartido = compartido;
+		if (generar)
+			generarPartida(Dificultad.FACIL);
+	}
+
+	/**
+	 * Crea un controlador sin ninguna partida, para cuando la primera se va a
+	 * restaurar o a generar con otras dimensiones y no merece la pena generar
+	 * antes una que se descartaria. Hasta que se cree la partida con
+	 * {@link #generarPartida(Dificultad)},
+	 * {@link #generarPartida(int, int, int, long)},
+	 * {@link #generarPartida(HuellaTablero)},
+	 * {@link #restaurarPartida(ReadableByteChannel)} o
+	 * {@link #recuperarPartida(File)}, solo se pueden usar los metodos de
+	 * configuracion.
+	 * 
+	 * @param compartido
+	 *            Si varios jugadores comparten las partidas desde distintos
+	 *            hilos, en cuyo caso se usa {@link EstadoJuegoConcurrente}
+	 * @return El controlador
+	 */
+	public static JuegoController sinPartida(boolean compartido) {
+		return new JuegoController(compartido, false);
+	}
+
+	/**
+	 * Crea una partida nueva con las mismas dimensiones y minas que la actual.
+	 * En caso de que ya se hubiese trabajado con una, se hace que sus
+	 * observadores pasen a serlo de la partida nueva.
 	 */
 	public final void generarPartida() {
+		for (Dificultad dificultad : Dificultad.values()) {
+			if (dificultad.getFilas() == juego.getFilas()
+					&& dificultad.getColumnas() == juego.getColumnas()
+					&& dificultad.getMinas() == juego.getMinasTotales()) {
+				generarPartida(dificultad);
+				return;
+			}
+		}
+		generarPartida(juego.getFilas(), juego.getColumnas(),
+				juego.getMinasTotales(), aleatorio.nextLong());
+	}
+
+	/**
+	 * Crea una partida nueva con las dimensiones y minas de una dificultad.
+	 * Si hay una reserva con partidas preparadas de esa dificultad, se toma
+	 * una de ella; si sus tableros son sin adivinar, se destapa la casilla
+	 * central, desde la que se resuelven. Si no queda ninguna preparada, se
+	 * crea al momento una partida normal.
+	 * 
+	 * @param dificultad
+	 *            Dificultad de la partida
+	 */
+	public final void generarPartida(Dificultad dificultad) {
+		EstadoJuego preparada = reserva == null ? null : reserva
+				.obtener(dificultad);
+		if (preparada == null) {
+			generarPartida(dificultad.getFilas(), dificultad.getColumnas(),
+					dificultad.getMinas(), aleatorio.nextLong());
+			return;
+		}
+		sustituirPartida(preparada);
+		registrarPartida();
+		if (reserva.isSinAdivinar())
+			destaparCasilla(dificultad.getFilas() / 2,
+					dificultad.getColumnas() / 2);
+	}
+
+	/**
+	 * <p>
+	 * Crea una partida nueva con las dimensiones y minas indicadas, cuyas
+	 * minas se colocan a partir de una semilla.
+	 * </p>
+	 * <p>
+	 * Si el tablero y la colocacion de sus minas caben holgadamente en la
+	 * memoria libre, el tablero se guarda en memoria, en un almacen atomico si
+	 * el controlador es compartido. Si no, se guarda en un fichero proyectado,
+	 * que solo admite un jugador. Los
+	 * observadores de la partida anterior pasan a serlo de la nueva, y el
+	 * fichero de la anterior, si lo tenia, se borra.
+	 * </p>
+	 * 
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 * @param minas
+	 *            Numero de minas del tablero
+	 * @param semilla
+	 *            Semilla del generador con que se colocan las minas
+	 * @throws IllegalArgumentException
+	 *             Si las dimensiones o el numero de minas no son validos, si no
+	 *             hay memoria para colocar las minas o si el tablero de un
+	 *             controlador compartido no cabe en memoria
+	 * @throws IllegalStateException
+	 *             Si no se puede crear el fichero de un tablero que no cabe en
+	 *             memoria
+	 */
+	public final void generarPartida(int filas, int columnas, int minas,
+			long semilla) {
+		nuevaPartida(filas, columnas, minas, semilla);
+		registrarPartida();
+	}
+
+	/**
+	 * Crea una partida nueva sin registrarla en el diario.
+	 * 
+	 * @see #generarPartida(int, int, int, long)
+	 */
+	private void nuevaPartida(int filas, int columnas, int minas, long semilla) {
+		if (filas < 1 || columnas < 1)
+			throw new IllegalArgumentException(
+					"Las dimensiones del tablero deben ser positivas");
+		long casillas = (long) filas * columnas;
+		if (casillas > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+					"El tablero tiene demasiadas casillas");
+		if (minas < 0 || minas >= casillas)
+			throw new IllegalArgumentException(
+					"Debe quedar al menos una casilla sin mina");
+
+		List<EstadoObserver> observers = null;
+		if (juego != null)
+			observers = juego.getEstadoObservers();
+		AlmacenTableroMapeado mapeadoAnterior = almacenMapeado;
+		File ficheroAnterior = ficheroTablero;
+		juego = crearPartida(filas, columnas, minas, semilla);
+		juego.setAutocomprobacion(autocomprobacion);
+		cerrarAlmacen(mapeadoAnterior, ficheroAnterior);
+		if (observers != null)
+			transferirObservers(observers);
+	}
+
+	/**
+	 * Sustituye la partida actual por otra ya creada en memoria, cuyos
+	 * observadores pasan a ser los de la actual y reciben su estado. Las
+	 * partidas de la reserva ya tienen las minas colocadas, asi que su primera
+	 * pulsacion no notificaria las banderas restantes.
+	 */
+	private void sustituirPartida(EstadoJuego nueva) {
 		List<EstadoObserver> observers = null;
 		if (juego != null)
 			observers = juego.getEstadoObservers();
-		juego = new EstadoJuego(JUEGO_FILAS, JUEGO_COLUMNAS, JUEGO_PORCENTAJE);
-		if (observers != null) {
-			for (EstadoObserver o : observers)
-				addEstadoObserver(o);
+		cerrarAlmacen(almacenMapeado, ficheroTablero);
+		almacenMapeado = null;
+		ficheroTablero = null;
+		juego = nueva;
+		juego.setAutocomprobacion(autocomprobacion);
+		if (observers != null)
+			transferirObservers(observers);
+		juego.notificarEstado();
+	}
+
+	/**
+	 * Hace que los observadores de la partida anterior lo sean de la actual.
+	 */
+	private void transferirObservers(List<EstadoObserver> observers) {
+		for (EstadoObserver o : observers)
+			addEstadoObserver(o);
+	}
+
+	/**
+	 * Crea una partida nueva con el mismo tablero que indica una huella. Si la
+	 * huella incluye la primera casilla pulsada, las minas quedan colocadas
+	 * igual que en la partida original, pero sin destapar ninguna casilla.
+	 * 
+	 * @param huella
+	 *            Huella del tablero
+	 * @see #generarPartida(int, int, int, long)
+	 */
+	public void generarPartida(HuellaTablero huella) {
+		nuevaPartida(huella.getFilas(), huella.getColumnas(),
+				huella.getMinas(), huella.getSemilla());
+		juego.aplicarHuella(huella);
+		// Si la huella coloca las minas, la primera pulsacion ya no
+		// notificara las banderas restantes
+		for (EstadoObserver o : juego.getEstadoObservers())
+			o.banderasRestantes(juego.getBanderasRestantes());
+		registrarPartida();
+	}
+
+	/**
+	 * Registra en el diario, si lo hay, el comienzo de la partida actual.
+	 */
+	private void registrarPartida() {
+		if (diario != null)
+			diario.registrarPartida(juego.getHuella());
+	}
+
+	/**
+	 * Guarda la partida actual en una instantanea, de la que se puede
+	 * restaurar con {@link #restaurarPartida(ReadableByteChannel)}.
+	 * 
+	 * @param canal
+	 *            Canal donde se escribe la instantanea
+	 * @throws IOException
+	 *             Si no se puede escribir en el canal
+	 * @see InstantaneaJuego
+	 */
+	public void guardarPartida(WritableByteChannel canal) throws IOException {
+		InstantaneaJuego.escribir(juego, canal);
+	}
+
+	/**
+	 * Sustituye la partida actual por la guardada en una instantanea, en
+	 * memoria. Los observadores de la partida actual pasan a serlo de la
+	 * restaurada y reciben su estado, con las casillas destapadas en un solo
+	 * lote. Si hay un diario, la partida restaurada se registra en el como
+	 * punto de control.
+	 * 
+	 * @param canal
+	 *            Canal del que se lee la instantanea
+	 * @throws IOException
+	 *             Si no se puede leer del canal o no contiene una instantanea
+	 *             valida, en cuyo caso se conserva la partida actual, o si no
+	 *             se puede escribir el diario
+	 */
+	public void restaurarPartida(ReadableByteChannel canal) throws IOException {
+		sustituirPartida(InstantaneaJuego.leer(canal, compartido));
+		if (diario != null)
+			diario.registrarInstantanea(juego);
+	}
+
+	/**
+	 * Registra la partida actual en el diario como punto de control, para que
+	 * al recuperarla no haya que repetir las jugadas anteriores.
+	 * 
+	 * @throws IOException
+	 *             Si no se puede escribir el diario
+	 * @throws IllegalStateException
+	 *             Si no hay diario
+	 */
+	public void guardarPuntoControl() throws IOException {
+		if (diario == null)
+			throw new IllegalStateException("No hay diario de jugadas");
+		synchronized (diario) {
+			diario.registrarInstantanea(juego);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Sustituye la partida actual por la ultima registrada en un diario, tras
+	 * un cierre inesperado: se carga su comienzo o su ultimo punto de control
+	 * y se repiten las jugadas que le siguen. La partida se recupera en
+	 * memoria, y los observadores de la actual pasan a serlo de ella y
+	 * reciben su estado como al restaurar una instantanea.
+	 * </p>
+	 * <p>
+	 * No se registra nada en el diario del controlador, por lo que puede
+	 * recuperarse del mismo fichero que se vaya a seguir usando como diario,
+	 * abriendolo despues.
+	 * </p>
+	 * 
+	 * @param archivo
+	 *            Fichero del diario
+	 * @throws IOException
+	 *             Si no se puede leer el diario, no es valido o no contiene
+	 *             ninguna partida, en cuyo caso se conserva la partida actual
+	 */
+	public void recuperarPartida(File archivo) throws IOException {
+		LectorDiario lector = LectorDiario.abrir(archivo);
+		// Buscar el ultimo registro desde el que se puede recuperar
+		int inicio = -1;
+		int posicion = lector.getPosicion();
+		for (int tipo = lector.siguiente(); tipo != LectorDiario.FIN; tipo = lector
+				.siguiente()) {
+			if (tipo == DiarioMovimientos.PARTIDA
+					|| tipo == DiarioMovimientos.INSTANTANEA)
+				inicio = posicion;
+			posicion = lector.getPosicion();
+		}
+		if (inicio < 0)
+			throw new IOException("El diario no contiene ninguna partida");
+		lector.setPosicion(inicio);
+		sustituirPartida(lector.reproducirPartida(compartido));
+	}
+
+	/**
+	 * Obtiene la huella del tablero de la partida actual, con la que se puede
+	 * volver a generar mediante {@link #generarPartida(HuellaTablero)}.
+	 * 
+	 * @return La huella del tablero
+	 */
+	public HuellaTablero getHuella() {
+		return juego.getHuella();
+	}
+
+	/**
+	 * Crea el estado de una partida sobre el almacen adecuado a su tamaño.
+	 */
+	private EstadoJuego crearPartida(int filas, int columnas, int minas,
+			long semilla) {
+		long presupuesto = memoriaDisponible() / FRACCION_MEMORIA;
+		long generacion = EstadoJuego.memoriaGeneracion(minas);
+		if (generacion > presupuesto)
+			throw new IllegalArgumentException(
+					"No hay memoria suficiente para colocar tantas minas");
+		if ((long) filas * columnas + generacion <= presupuesto) {
+			EstadoJuego partida;
+			if (compartido)
+				partida = new EstadoJuegoConcurrente(new AlmacenTableroAtomico(
+						filas, columnas), minas, semilla);
+			else
+				partida = new EstadoJuego(new AlmacenTableroEmpaquetado(filas,
+						columnas), minas, semilla);
+			almacenMapeado = null;
+			ficheroTablero = null;
+			return partida;
 		}
+		if (compartido)
+			throw new IllegalArgumentException(
+					"El tablero de una partida compartida no cabe en memoria");
+		File fichero = null;
+		try {
+			fichero = File.createTempFile("tablero", ".bmtb",
+					directorioTableros);
+			fichero.deleteOnExit();
+			AlmacenTableroMapeado almacen = AlmacenTableroMapeado.crear(
+					fichero, filas, columnas, minas);
+			EstadoJuego partida = new EstadoJuego(almacen, minas, semilla);
+			almacenMapeado = almacen;
+			ficheroTablero = fichero;
+			return partida;
+		} catch (IOException e) {
+			if (fichero != null)
+				fichero.delete();
+			throw new IllegalStateException(
+					"No se puede crear el fichero del tablero", e);
+		}
+	}
+
+	/**
+	 * Calcula la memoria que aun puede reservar la maquina virtual.
+	 */
+	private static long memoriaDisponible() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory()
+				- (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/**
+	 * Cierra y borra el fichero del tablero de una partida descartada.
+	 */
+	private static void cerrarAlmacen(AlmacenTableroMapeado almacen,
+			File fichero) {
+		if (almacen == null)
+			return;
+		try {
+			almacen.close();
+		} catch (IOException e) {
+			// La partida ya se ha descartado; solo queda borrar el fichero
+		}
+		fichero.delete();
+	}
+
+	/**
+	 * Indica el directorio donde crear los ficheros de los tableros que no
+	 * caben en memoria.
+	 * 
+	 * @param directorioTableros
+	 *            Directorio de los ficheros, o null para usar el directorio
+	 *            temporal
+	 */
+	public void setDirectorioTableros(File directorioTableros) {
+		this.directorioTableros = directorioTableros;
+	}
+
+	/**
+	 * Indica la reserva de la que tomar las partidas de cada dificultad.
+	 * 
+	 * @param reserva
+	 *            Reserva de partidas preparadas, o null para crearlas al
+	 *            pedirlas
+	 * @throws IllegalArgumentException
+	 *             Si la reserva no prepara partidas del mismo tipo
+	 *             (compartidas o no) que el controlador
+	 */
+	public void setReserva(ReservaPartidas reserva) {
+		if (reserva != null && reserva.isCompartida() != compartido)
+			throw new IllegalArgumentException(
+					"La reserva no prepara partidas de este tipo");
+		this.reserva = reserva;
+	}
+
+	/**
+	 * Indica el diario donde registrar las partidas y sus jugadas. La partida
+	 * actual se registra en el como punto de control.
+	 * 
+	 * @param diario
+	 *            Diario de jugadas, o null para no registrarlas
+	 * @throws IOException
+	 *             Si no se puede escribir el diario
+	 */
+	public void setDiario(DiarioMovimientos diario) throws IOException {
+		if (diario != null)
+			diario.registrarInstantanea(juego);
+		this.diario = diario;
+	}
+
+	/**
+	 * Activa o desactiva en la partida actual y en las siguientes la
+	 * comprobacion, tras cada destape, de que el contador de casillas
+	 * destapadas coincide con un recorrido de todo el tablero. Solo debe
+	 * usarse al depurar y con un solo jugador.
+	 * 
+	 * @param autocomprobacion
+	 *            Si se debe realizar la comprobacion
+	 * @see EstadoJuego#setAutocomprobacion(boolean)
+	 */
+	public void setAutocomprobacion(boolean autocomprobacion) {
+		this.autocomprobacion = autocomprobacion;
+		juego.setAutocomprobacion(autocomprobacion);
+	}
+
+	public int getFilas() {
+		return juego.getFilas();
+	}
+
+	public int getColumnas() {
+		return juego.getColumnas();
+	}
+
+	public int getMinas() {
+		return juego.getMinasTotales();
+	}
+
+	public Fase getFase() {
+		return juego.getFase();
+	}
+
+	public int getBanderasRestantes() {
+		return juego.getBanderasRestantes();
+	}
+
+	/**
+	 * Copia el estado empaquetado de varias casillas consecutivas de la
+	 * partida actual.
+	 *
+	 * @see EstadoJuego#leerCasillas(int, byte[], int, int)
+	 */
+	public void leerCasillas(int desde, byte[] destino, int desplazamiento,
+			int cantidad) {
+		juego.leerCasillas(desde, destino, desplazamiento, cantidad);
 	}
 
 	public boolean addEstadoObserver(EstadoObserver o) {
@@ -77,7 +575,17 @@ public class JuegoController {
 	 *            Columna de la casilla
 	 */
 	public void destaparCasilla(int x, int y) {
-		juego.destaparCasilla(x, y);
+		if (diario == null) {
+			juego.destaparCasilla(x, y);
+			return;
+		}
+		// Registrar las jugadas en el mismo orden en que se hacen, para que
+		// al repetirlas el resultado sea el mismo
+		synchronized (diario) {
+			juego.destaparCasilla(x, y);
+			if (existeCasilla(x, y))
+				diario.registrarDestape(x * juego.getColumnas() + y);
+		}
 	}
 
 	/**
@@ -89,7 +597,45 @@ public class JuegoController {
 	 *            Columna de la casilla
 	 */
 	public void establecerBandera(int x, int y) {
-		juego.establecerBandera(x, y);
+		if (diario == null) {
+			juego.establecerBandera(x, y);
+			return;
+		}
+		synchronized (diario) {
+			juego.establecerBandera(x, y);
+			if (existeCasilla(x, y))
+				diario.registrarBandera(x * juego.getColumnas() + y);
+		}
+	}
+
+	/**
+	 * Destapa a la vez todas las adyacentes sin bandera de una casilla
+	 * destapada, si a su alrededor hay tantas banderas como indica su valor.
+	 * 
+	 * @param x
+	 *            Fila de la casilla
+	 * @param y
+	 *            Columna de la casilla
+	 * @see EstadoJuego#destaparAdyacentes(int, int)
+	 */
+	public void destaparAdyacentes(int x, int y) {
+		if (diario == null) {
+			juego.destaparAdyacentes(x, y);
+			return;
+		}
+		synchronized (diario) {
+			juego.destaparAdyacentes(x, y);
+			if (existeCasilla(x, y))
+				diario.registrarAdyacentes(x * juego.getColumnas() + y);
+		}
+	}
+
+	/**
+	 * Comprueba si una casilla esta dentro del tablero de la partida actual.
+	 */
+	private boolean existeCasilla(int x, int y) {
+		return x >= 0 && x < juego.getFilas() && y >= 0
+				&& y < juego.getColumnas();
 	}
 
 	/**
@@ -0,0 +1,453 @@
+package buscaminas.sm.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import buscaminas.sm.model.AlmacenTableroAtomico;
+import buscaminas.sm.model.AlmacenTableroEmpaquetado;
+import buscaminas.sm.model.EstadoJuego;
+import buscaminas.sm.model.EstadoJuegoConcurrente;
+import buscaminas.sm.model.HuellaTablero;
+import buscaminas.sm.model.InstantaneaJuego;
+
+/**
+ * <p>
+ * Lee los registros de un {@link DiarioMovimientos} y vuelve a jugar sus
+ * partidas. Los registros se leen directamente del fichero proyectado en
+ * memoria, sin crear objetos por jugada, y varios lectores pueden recorrer a
+ * la vez distintas partidas del mismo diario.
+ * </p>
+ * <p>
+ * Un registro a medias al final del diario, como el que deja un cierre
+ * inesperado, se trata como el final del diario.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class LectorDiario {
+
+	/**
+	 * Valor devuelto por {@link #siguiente()} al llegar al final del diario.
+	 */
+	public static final int FIN = -1;
+
+	/**
+	 * Tamaño del buffer con que se reescriben las jugadas al actualizar un
+	 * diario.
+	 */
+	private static final int TAMAÑO_COPIA = 64 * 1024;
+
+	/**
+	 * Registros del diario, con la posicion del siguiente.
+	 */
+	private final ByteBuffer datos;
+
+	/**
+	 * Version del formato del diario.
+	 */
+	private final int version;
+
+	/**
+	 * Bits del tipo en el primer entero de cada registro, que dependen de la
+	 * version.
+	 */
+	private final int bitsTipo;
+
+	/**
+	 * Casilla del ultimo registro de jugada leido.
+	 */
+	private int casilla;
+
+	/**
+	 * Huella del ultimo registro de comienzo de partida leido.
+	 */
+	private HuellaTablero huella;
+
+	/**
+	 * Posicion y tamaño de la instantanea del ultimo punto de control leido.
+	 */
+	private int inicioInstantanea;
+	private int tamañoInstantanea;
+
+	/**
+	 * Jugadas repetidas en la ultima partida reproducida.
+	 */
+	private int jugadas;
+
+	/**
+	 * Crea un lector de los registros de un diario completo.
+	 *
+	 * @param datos
+	 *            Contenido del diario, desde su cabecera hasta su limite. No
+	 *            se modifican su posicion ni su limite.
+	 * @throws IOException
+	 *             Si los datos no empiezan con la cabecera de un diario
+	 */
+	public LectorDiario(ByteBuffer datos) throws IOException {
+		this.datos = datos.duplicate();
+		if (this.datos.remaining() < DiarioMovimientos.TAMAÑO_CABECERA
+				|| this.datos.getInt() != DiarioMovimientos.FIRMA)
+			throw new IOException("El fichero no es un diario de jugadas");
+		version = this.datos.getInt();
+		if (version == DiarioMovimientos.VERSION)
+			bitsTipo = DiarioMovimientos.BITS_TIPO;
+		else if (version == DiarioMovimientos.VERSION_SIN_ADYACENTES)
+			bitsTipo = DiarioMovimientos.BITS_TIPO_SIN_ADYACENTES;
+		else
+			throw new IOException("Version del diario no soportada");
+	}
+
+	/**
+	 * Abre un diario proyectando su fichero en memoria.
+	 *
+	 * @param archivo
+	 *            Fichero del diario
+	 * @return El lector del diario
+	 * @throws IOException
+	 *             Si no se puede leer el fichero o no es un diario
+	 */
+	public static LectorDiario abrir(File archivo) throws IOException {
+		RandomAccessFile fichero = new RandomAccessFile(archivo, "r");
+		try {
+			return new LectorDiario(proyectar(fichero.getChannel()));
+		} finally {
+			// La proyeccion sigue siendo valida tras cerrar el fichero
+			fichero.close();
+		}
+	}
+
+	/**
+	 * Busca el final del ultimo registro completo de un diario.
+	 *
+	 * @param canal
+	 *            Canal del fichero del diario
+	 * @return La posicion del final del ultimo registro completo
+	 * @throws IOException
+	 *             Si no se puede leer el fichero o no es un diario
+	 */
+	static long finRegistros(FileChannel canal) throws IOException {
+		LectorDiario lector = new LectorDiario(proyectar(canal));
+		while (lector.siguiente() != FIN) {
+			// Solo interesa donde termina cada registro
+		}
+		return lector.getPosicion();
+	}
+
+	/**
+	 * Proyecta en memoria, de solo lectura, el fichero completo.
+	 */
+	private static ByteBuffer proyectar(FileChannel canal) throws IOException {
+		long tamaño = canal.size();
+		if (tamaño > Integer.MAX_VALUE)
+			throw new IOException("El diario es demasiado grande");
+		return canal.map(FileChannel.MapMode.READ_ONLY, 0, tamaño);
+	}
+
+	/**
+	 * Lee el siguiente registro.
+	 *
+	 * @return El tipo del registro ({@link DiarioMovimientos#DESTAPE},
+	 *         {@link DiarioMovimientos#BANDERA},
+	 *         {@link DiarioMovimientos#ADYACENTES},
+	 *         {@link DiarioMovimientos#PARTIDA} o
+	 *         {@link DiarioMovimientos#INSTANTANEA}), o {@link #FIN} si no
+	 *         quedan registros completos
+	 * @throws IOException
+	 *             Si el registro no es valido
+	 */
+	public int siguiente() throws IOException {
+		int inicio = datos.position();
+		long valor = leerVariable();
+		if (valor < 0)
+			return fin(inicio);
+		int tipo = (int) (valor & ((1 << bitsTipo) - 1));
+		switch (tipo) {
+		case DiarioMovimientos.DESTAPE:
+		case DiarioMovimientos.BANDERA:
+		case DiarioMovimientos.ADYACENTES:
+			if (valor >>> bitsTipo > Integer.MAX_VALUE)
+				throw new IOException("El diario no es valido");
+			casilla = (int) (valor >>> bitsTipo);
+			return tipo;
+		case DiarioMovimientos.PARTIDA: {
+			long longitud = leerVariable();
+			if (longitud < 0 || longitud > datos.remaining())
+				return fin(inicio);
+			byte[] bytes = new byte[(int) longitud];
+			datos.get(bytes);
+			try {
+				huella = HuellaTablero.decodificar(bytes);
+			} catch (IllegalArgumentException e) {
+				// IOException no admite la causa en el constructor hasta
+				// Java 6
+				IOException error = new IOException("El diario no es valido");
+				error.initCause(e);
+				throw error;
+			}
+			return tipo;
+		}
+		case DiarioMovimientos.INSTANTANEA: {
+			long longitud = leerVariable();
+			if (longitud < 0 || longitud > datos.remaining())
+				return fin(inicio);
+			inicioInstantanea = datos.position();
+			tamañoInstantanea = (int) longitud;
+			datos.position(inicioInstantanea + tamañoInstantanea);
+			return tipo;
+		}
+		default:
+			throw new IOException("El diario no es valido");
+		}
+	}
+
+	/**
+	 * Vuelve a jugar la partida que empieza en el registro actual: crea su
+	 * tablero en memoria a partir de la huella o de la instantanea y repite
+	 * todas las jugadas hasta el comienzo de otra partida o el final del
+	 * diario, donde queda el lector.
+	 *
+	 * @param compartida
+	 *            Si la partida se juega desde varios hilos, en cuyo caso se
+	 *            crea como {@link EstadoJuegoConcurrente}
+	 * @return La partida tras la ultima jugada, o null si no quedan partidas
+	 * @throws IOException
+	 *             Si el diario no es valido o contiene jugadas imposibles,
+	 *             como las hechas tras terminar la partida
+	 */
+	public EstadoJuego reproducirPartida(boolean compartida)
+			throws IOException {
+		jugadas = 0;
+		int tipo = siguiente();
+		if (tipo == FIN)
+			return null;
+		EstadoJuego juego;
+		if (tipo == DiarioMovimientos.PARTIDA)
+			juego = crearPartida(compartida);
+		else if (tipo == DiarioMovimientos.INSTANTANEA)
+			juego = leerInstantanea(compartida);
+		else
+			throw new IOException("La partida no tiene comienzo");
+
+		int columnas = juego.getColumnas();
+		int casillas = juego.getFilas() * columnas;
+		while (true) {
+			int anterior = datos.position();
+			tipo = siguiente();
+			if (tipo == FIN)
+				return juego;
+			if (tipo == DiarioMovimientos.PARTIDA
+					|| tipo == DiarioMovimientos.INSTANTANEA) {
+				datos.position(anterior);
+				return juego;
+			}
+			if (casilla >= casillas)
+				throw new IOException("El diario no es valido");
+			try {
+				if (tipo == DiarioMovimientos.DESTAPE)
+					juego.destaparCasilla(casilla / columnas, casilla
+							% columnas);
+				else if (tipo == DiarioMovimientos.BANDERA)
+					juego.establecerBandera(casilla / columnas, casilla
+							% columnas);
+				else
+					juego.destaparAdyacentes(casilla / columnas, casilla
+							% columnas);
+			} catch (IllegalStateException e) {
+				IOException error = new IOException(
+						"El diario contiene una jugada imposible");
+				error.initCause(e);
+				throw error;
+			}
+			jugadas++;
+		}
+	}
+
+	/**
+	 * Crea en memoria la partida del ultimo comienzo de partida leido.
+	 */
+	private EstadoJuego crearPartida(boolean compartida) {
+		int filas = huella.getFilas();
+		int columnas = huella.getColumnas();
+		EstadoJuego juego = compartida ? new EstadoJuegoConcurrente(
+				new AlmacenTableroAtomico(filas, columnas), huella.getMinas(),
+				huella.getSemilla()) : new EstadoJuego(
+				new AlmacenTableroEmpaquetado(filas, columnas),
+				huella.getMinas(), huella.getSemilla());
+		juego.aplicarHuella(huella);
+		return juego;
+	}
+
+	/**
+	 * Restaura la partida del ultimo punto de control leido.
+	 *
+	 * @param compartida
+	 *            Si la partida se juega desde varios hilos
+	 * @return La partida
+	 * @throws IOException
+	 *             Si la instantanea no es valida
+	 */
+	public EstadoJuego leerInstantanea(boolean compartida) throws IOException {
+		ByteBuffer instantanea = datos.duplicate();
+		instantanea.limit(inicioInstantanea + tamañoInstantanea);
+		instantanea.position(inicioInstantanea);
+		return InstantaneaJuego.leer(new CanalBuffer(instantanea), compartida);
+	}
+
+	/**
+	 * @return La version del formato del diario
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return La casilla del ultimo registro de jugada leido
+	 */
+	public int getCasilla() {
+		return casilla;
+	}
+
+	/**
+	 * @return La huella del ultimo registro de comienzo de partida leido
+	 */
+	public HuellaTablero getHuella() {
+		return huella;
+	}
+
+	/**
+	 * @return Las jugadas repetidas en la ultima partida reproducida
+	 */
+	public int getJugadas() {
+		return jugadas;
+	}
+
+	/**
+	 * @return La posicion del siguiente registro en el diario
+	 */
+	public int getPosicion() {
+		return datos.position();
+	}
+
+	/**
+	 * Coloca el lector al principio de un registro.
+	 *
+	 * @param posicion
+	 *            Posicion devuelta antes por {@link #getPosicion()}
+	 */
+	public void setPosicion(int posicion) {
+		if (posicion < DiarioMovimientos.TAMAÑO_CABECERA
+				|| posicion > datos.limit())
+			throw new IllegalArgumentException(
+					"La posicion no esta dentro del diario");
+		datos.position(posicion);
+	}
+
+	/**
+	 * Escribe en un canal el diario completo con el formato actual, desde la
+	 * cabecera hasta el ultimo registro completo. Las jugadas se vuelven a
+	 * codificar y el resto de registros se copian tal cual, porque sus tipos
+	 * no cambian entre versiones. El lector queda al final del diario.
+	 *
+	 * @param destino
+	 *            Canal donde se escribe el diario, vacio
+	 * @throws IOException
+	 *             Si el diario no es valido o no se puede escribir
+	 */
+	void copiarActualizado(FileChannel destino) throws IOException {
+		ByteBuffer salida = ByteBuffer.allocate(TAMAÑO_COPIA);
+		salida.putInt(DiarioMovimientos.FIRMA).putInt(DiarioMovimientos.VERSION);
+		datos.position(DiarioMovimientos.TAMAÑO_CABECERA);
+		int inicio = getPosicion();
+		for (int tipo = siguiente(); tipo != FIN; tipo = siguiente()) {
+			int fin = getPosicion();
+			if (tipo == DiarioMovimientos.DESTAPE
+					|| tipo == DiarioMovimientos.BANDERA
+					|| tipo == DiarioMovimientos.ADYACENTES) {
+				if (salida.remaining() < DiarioMovimientos.MAXIMO_VARIABLE)
+					vaciar(salida, destino);
+				DiarioMovimientos.escribirVariable(salida, (long) casilla
+						<< DiarioMovimientos.BITS_TIPO | tipo);
+			} else {
+				vaciar(salida, destino);
+				ByteBuffer registro = datos.duplicate();
+				registro.limit(fin).position(inicio);
+				while (registro.hasRemaining())
+					destino.write(registro);
+			}
+			inicio = fin;
+		}
+		vaciar(salida, destino);
+	}
+
+	/**
+	 * Escribe en un canal el contenido de un buffer y lo deja vacio.
+	 */
+	private static void vaciar(ByteBuffer buffer, FileChannel destino)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			destino.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Deja el lector al principio del registro incompleto.
+	 */
+	private int fin(int inicio) {
+		datos.position(inicio);
+		return FIN;
+	}
+
+	/**
+	 * Lee un entero escrito en grupos de 7 bits.
+	 *
+	 * @return El entero, o -1 si el diario termina antes
+	 */
+	private long leerVariable() throws IOException {
+		long valor = 0;
+		for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+			if (!datos.hasRemaining())
+				return -1;
+			int b = datos.get();
+			valor |= (long) (b & 0x7F) << desplazamiento;
+			if ((b & 0x80) == 0)
+				return valor;
+		}
+		throw new IOException("El diario no es valido");
+	}
+
+	/**
+	 * Canal de lectura sobre un buffer, para leer las instantaneas.
+	 */
+	private static class CanalBuffer implements ReadableByteChannel {
+		private final ByteBuffer origen;
+
+		CanalBuffer(ByteBuffer origen) {
+			this.origen = origen;
+		}
+
+		public int read(ByteBuffer destino) {
+			if (!origen.hasRemaining())
+				return -1;
+			int cantidad = Math.min(destino.remaining(), origen.remaining());
+			ByteBuffer tramo = origen.duplicate();
+			tramo.limit(origen.position() + cantidad);
+			destino.put(tramo);
+			origen.position(origen.position() + cantidad);
+			return cantidad;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,307 @@
+package buscaminas.sm.controller;
+
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import buscaminas.sm.model.AlmacenTableroAtomico;
+import buscaminas.sm.model.AlmacenTableroEmpaquetado;
+import buscaminas.sm.model.Dificultad;
+import buscaminas.sm.model.EstadoJuego;
+import buscaminas.sm.model.EstadoJuegoConcurrente;
+import buscaminas.sm.model.HuellaTablero;
+import buscaminas.sm.resolutor.GeneradorSinAdivinar;
+
+/**
+ * <p>
+ * Reserva de partidas preparadas de cada {@link Dificultad}, con las minas ya
+ * colocadas, para que crear una partida y destapar la primera casilla no
+ * tengan que esperar a la generacion del tablero.
+ * </p>
+ * <p>
+ * Unos hilos productores en segundo plano rellenan la reserva de cada
+ * dificultad hasta su capacidad y se detienen; cuando las partidas que quedan
+ * bajan de la marca inferior vuelven a rellenarla. Las minas se colocan
+ * alrededor de la casilla central, y si el jugador pulsa primero otra casilla
+ * que tenga mina, la partida la aparta antes de destaparla.
+ * </p>
+ * <p>
+ * Si se piden tableros sin adivinar, cada partida se genera con
+ * {@link GeneradorSinAdivinar} y solo se garantiza que se resuelve sin
+ * adivinar empezando por la casilla central, por lo que el controlador la
+ * destapa al empezar la partida.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class ReservaPartidas {
+
+	/**
+	 * Tiempo maximo, en milisegundos, que un productor busca un tablero sin
+	 * adivinar antes de volver a comprobar si la reserva se ha cerrado.
+	 */
+	private static final long PRESUPUESTO_SIN_ADIVINAR = 1000;
+
+	/**
+	 * Milisegundos que espera un productor despues de un error al generar
+	 * una partida, antes de volver a intentarlo.
+	 */
+	private static final long PAUSA_ERROR = 1000;
+
+	/**
+	 * Partidas preparadas de cada dificultad, por ordinal.
+	 */
+	private final ArrayBlockingQueue<EstadoJuego>[] reservas;
+
+	/**
+	 * Partidas de cada dificultad que se estan generando.
+	 */
+	private final int[] enCurso;
+
+	/**
+	 * Si la reserva de cada dificultad se esta rellenando hasta su capacidad.
+	 */
+	private final boolean[] rellenando;
+
+	private final int capacidad;
+	private final int marcaInferior;
+	private final boolean compartida;
+	private final boolean sinAdivinar;
+
+	private final Thread[] productores;
+
+	private boolean cerrada;
+
+	/**
+	 * Ultimo error de un productor al generar una partida, o null si no ha
+	 * habido ninguno.
+	 */
+	private volatile RuntimeException error;
+
+	/**
+	 * Crea una reserva y arranca sus productores, que empiezan a llenarla.
+	 *
+	 * @param capacidad
+	 *            Partidas preparadas como maximo de cada dificultad
+	 * @param marcaInferior
+	 *            Partidas que deben quedar como minimo antes de volver a
+	 *            rellenar la reserva de una dificultad
+	 * @param hilos
+	 *            Numero de hilos productores
+	 * @param compartida
+	 *            Si las partidas son para un controlador compartido, en cuyo
+	 *            caso son {@link EstadoJuegoConcurrente}
+	 * @param sinAdivinar
+	 *            Si las partidas se deben poder resolver sin adivinar
+	 * @throws IllegalArgumentException
+	 *             Si la capacidad, la marca inferior o los hilos no son
+	 *             validos
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public ReservaPartidas(int capacidad, int marcaInferior, int hilos,
+			boolean compartida, boolean sinAdivinar) {
+		if (capacidad < 1 || marcaInferior < 0 || marcaInferior >= capacidad)
+			throw new IllegalArgumentException(
+					"La marca inferior debe ser menor que la capacidad");
+		if (hilos < 1)
+			throw new IllegalArgumentException(
+					"Debe haber al menos un hilo");
+		this.capacidad = capacidad;
+		this.marcaInferior = marcaInferior;
+		this.compartida = compartida;
+		this.sinAdivinar = sinAdivinar;
+		int dificultades = Dificultad.values().length;
+		this.reservas = new ArrayBlockingQueue[dificultades];
+		this.enCurso = new int[dificultades];
+		this.rellenando = new boolean[dificultades];
+		for (int d = 0; d < dificultades; d++) {
+			reservas[d] = new ArrayBlockingQueue<EstadoJuego>(capacidad);
+			rellenando[d] = true;
+		}
+		this.productores = new Thread[hilos];
+		for (int h = 0; h < hilos; h++) {
+			productores[h] = new Thread(new Runnable() {
+				public void run() {
+					producir();
+				}
+			}, "ReservaPartidas-" + (h + 1));
+			productores[h].setDaemon(true);
+			productores[h].setPriority(Thread.MIN_PRIORITY);
+			productores[h].start();
+		}
+	}
+
+	/**
+	 * Saca una partida preparada de una dificultad.
+	 *
+	 * @param dificultad
+	 *            Dificultad de la partida
+	 * @return La partida, o null si no queda ninguna preparada
+	 */
+	public EstadoJuego obtener(Dificultad dificultad) {
+		int d = dificultad.ordinal();
+		EstadoJuego juego = reservas[d].poll();
+		if (reservas[d].size() <= marcaInferior) {
+			synchronized (this) {
+				if (!rellenando[d]) {
+					rellenando[d] = true;
+					notifyAll();
+				}
+			}
+		}
+		return juego;
+	}
+
+	/**
+	 * @return Las partidas preparadas de una dificultad
+	 */
+	public int getDisponibles(Dificultad dificultad) {
+		return reservas[dificultad.ordinal()].size();
+	}
+
+	public boolean isCompartida() {
+		return compartida;
+	}
+
+	public boolean isSinAdivinar() {
+		return sinAdivinar;
+	}
+
+	/**
+	 * Los productores no se detienen si falla la generacion de una partida:
+	 * guardan el error y lo vuelven a intentar tras una pausa, mientras la
+	 * dificultad afectada se sigue creando al momento.
+	 *
+	 * @return El ultimo error de los productores, o null si no ha habido
+	 *         ninguno
+	 */
+	public RuntimeException getError() {
+		return error;
+	}
+
+	/**
+	 * Detiene los productores y descarta las partidas preparadas.
+	 */
+	public void cerrar() {
+		synchronized (this) {
+			cerrada = true;
+			notifyAll();
+		}
+		for (Thread productor : productores)
+			productor.interrupt();
+		for (ArrayBlockingQueue<EstadoJuego> reserva : reservas)
+			reserva.clear();
+	}
+
+	/**
+	 * Bucle de cada productor: espera a que alguna reserva necesite partidas
+	 * y las genera de una en una.
+	 */
+	private void producir() {
+		Random aleatorio = new Random();
+		Dificultad[] dificultades = Dificultad.values();
+		while (true) {
+			int d = -1;
+			synchronized (this) {
+				while (!cerrada && (d = siguienteReserva()) < 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Se comprueba de nuevo si la reserva se ha cerrado
+					}
+				}
+				if (cerrada)
+					return;
+				enCurso[d]++;
+			}
+			EstadoJuego juego = null;
+			boolean fallo = false;
+			try {
+				juego = generar(dificultades[d], aleatorio);
+			} catch (RuntimeException e) {
+				error = e;
+				fallo = true;
+			} finally {
+				synchronized (this) {
+					enCurso[d]--;
+					if (juego != null && !cerrada)
+						reservas[d].offer(juego);
+					if (reservas[d].size() + enCurso[d] >= capacidad)
+						rellenando[d] = false;
+				}
+			}
+			if (fallo && !esperarTrasError())
+				return;
+		}
+	}
+
+	/**
+	 * Espera antes de reintentar tras un error, para no repetirlo sin pausa
+	 * si se vuelve a producir.
+	 *
+	 * @return Si el productor debe seguir, o false si la reserva se ha
+	 *         cerrado
+	 */
+	private synchronized boolean esperarTrasError() {
+		long limite = System.currentTimeMillis() + PAUSA_ERROR;
+		long restante;
+		while (!cerrada
+				&& (restante = limite - System.currentTimeMillis()) > 0) {
+			try {
+				wait(restante);
+			} catch (InterruptedException e) {
+				// Se comprueba de nuevo si la reserva se ha cerrado
+			}
+		}
+		return !cerrada;
+	}
+
+	/**
+	 * Busca una dificultad cuya reserva se este rellenando y aun no tenga
+	 * suficientes partidas preparadas o en curso.
+	 *
+	 * @return El ordinal de la dificultad, o -1 si ninguna necesita partidas
+	 */
+	private int siguienteReserva() {
+		for (int d = 0; d < reservas.length; d++) {
+			if (rellenando[d] && reservas[d].size() + enCurso[d] < capacidad)
+				return d;
+		}
+		return -1;
+	}
+
+	/**
+	 * Genera una partida con las minas colocadas alrededor de la casilla
+	 * central.
+	 *
+	 * @return La partida, o null si no se ha encontrado un tablero sin
+	 *         adivinar a tiempo
+	 */
+	private EstadoJuego generar(Dificultad dificultad, Random aleatorio) {
+		int filas = dificultad.getFilas();
+		int columnas = dificultad.getColumnas();
+		int minas = dificultad.getMinas();
+		HuellaTablero huella;
+		if (sinAdivinar) {
+			huella = GeneradorSinAdivinar.buscar(filas, columnas, minas,
+					filas / 2, columnas / 2, aleatorio, System.nanoTime()
+							+ PRESUPUESTO_SIN_ADIVINAR * 1000000);
+			if (huella == null)
+				return null;
+		} else {
+			huella = new HuellaTablero(filas, columnas, minas,
+					aleatorio.nextLong(), filas / 2 * columnas + columnas / 2,
+					false);
+		}
+		EstadoJuego juego;
+		if (compartida)
+			juego = new EstadoJuegoConcurrente(new AlmacenTableroAtomico(filas,
+					columnas), minas, huella.getSemilla());
+		else
+			juego = new EstadoJuego(new AlmacenTableroEmpaquetado(filas,
+					columnas), minas, huella.getSemilla());
+		juego.aplicarHuella(huella);
+		return juego;
+	}
+
+}
@@ -0,0 +1,187 @@
+package buscaminas.sm.model;
+
+/**
+ * Almacenamiento del estado de las casillas de un tablero y de los contadores
+ * de la partida. Cada casilla ocupa un byte y se identifica por su indice en
+ * orden de filas (fila * columnas + columna):
+ * <ul>
+ * <li>Los 4 bits bajos guardan el numero de minas adyacentes (0 a 8), o
+ * {@link #MINA} si la casilla contiene una mina.</li>
+ * <li>El bit {@link #DESTAPADA} indica si la casilla se ha destapado.</li>
+ * <li>El bit {@link #BANDERA} indica si se ha colocado una bandera.</li>
+ * </ul>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public interface AlmacenTablero {
+
+    /**
+     * Mascara de los bits que guardan el valor de la casilla.
+     */
+    public static final int VALOR = 0x0F;
+
+    /**
+     * Valor que indica que la casilla contiene una mina.
+     */
+    public static final int MINA = 0x0F;
+
+    /**
+     * Bit que indica que la casilla se ha destapado.
+     */
+    public static final int DESTAPADA = 0x10;
+
+    /**
+     * Bit que indica que hay una bandera en la casilla.
+     */
+    public static final int BANDERA = 0x20;
+
+    /**
+     * Contador con el numero de minas del tablero.
+     */
+    public static final int CONTADOR_MINAS = 0;
+
+    /**
+     * Contador con el numero de banderas establecidas.
+     */
+    public static final int CONTADOR_BANDERAS = 1;
+
+    /**
+     * Contador con el numero de casillas sin mina destapadas.
+     */
+    public static final int CONTADOR_DESTAPADAS = 2;
+
+    /**
+     * Contador con el ordinal de la {@link Fase} de la partida.
+     */
+    public static final int CONTADOR_FASE = 3;
+
+    /**
+     * Contador con el indice de la primera casilla pulsada, o -1 si aun no se
+     * han colocado las minas.
+     */
+    public static final int CONTADOR_PRIMERA_CASILLA = 4;
+
+    /**
+     * Contador con los 32 bits altos de la semilla con que se colocan las
+     * minas.
+     */
+    public static final int CONTADOR_SEMILLA_ALTA = 5;
+
+    /**
+     * Contador con los 32 bits bajos de la semilla con que se colocan las
+     * minas.
+     */
+    public static final int CONTADOR_SEMILLA_BAJA = 6;
+
+    /**
+     * Contador que vale 1 si las minas se colocan excluyendo tambien las
+     * casillas adyacentes a la primera pulsada, y 0 si no.
+     */
+    public static final int CONTADOR_ZONA_SEGURA = 7;
+
+    /**
+     * Contador con el indice de la primera casilla destapada, que solo difiere
+     * de la primera pulsada si las minas se colocaron antes de jugar, o -1 si
+     * aun no se ha destapado ninguna.
+     */
+    public static final int CONTADOR_PRIMERA_DESTAPADA = 8;
+
+    /**
+     * Numero de contadores que guarda el almacen.
+     */
+    public static final int CONTADORES = 9;
+
+    /**
+     * @return Filas del tablero
+     */
+    public int getFilas();
+
+    /**
+     * @return Columnas del tablero
+     */
+    public int getColumnas();
+
+    /**
+     * Lee el estado de una casilla.
+     *
+     * @param indice Indice de la casilla (fila * columnas + columna)
+     * @return El byte de estado de la casilla
+     */
+    public byte leer(int indice);
+
+    /**
+     * Sustituye el estado de una casilla.
+     *
+     * @param indice Indice de la casilla (fila * columnas + columna)
+     * @param estado El nuevo byte de estado de la casilla
+     */
+    public void escribir(int indice, byte estado);
+
+    /**
+     * Lee el estado de varias casillas consecutivas. En los almacenes que
+     * admiten varios hilos cada casilla se lee por separado, por lo que el
+     * resultado no es una copia atomica del tramo.
+     *
+     * @param desde Indice de la primera casilla
+     * @param destino Vector donde se copian los estados
+     * @param desplazamiento Posicion del vector donde se copia el primero
+     * @param cantidad Numero de casillas a leer
+     */
+    public void leer(int desde, byte[] destino, int desplazamiento,
+            int cantidad);
+
+    /**
+     * Sustituye el estado de varias casillas consecutivas. Solo debe usarse
+     * mientras ningun otro hilo modifique esas casillas, por ejemplo al
+     * restaurar una partida.
+     *
+     * @param desde Indice de la primera casilla
+     * @param origen Vector con los nuevos estados
+     * @param desplazamiento Posicion del vector del primer estado
+     * @param cantidad Numero de casillas a escribir
+     */
+    public void escribir(int desde, byte[] origen, int desplazamiento,
+            int cantidad);
+
+    /**
+     * Sustituye el estado de una casilla solo si sigue siendo el esperado.
+     * Los almacenes que admiten varios hilos lo hacen de forma atomica.
+     *
+     * @param indice Indice de la casilla (fila * columnas + columna)
+     * @param esperado El byte de estado que debe tener la casilla
+     * @param estado El nuevo byte de estado de la casilla
+     * @return Si se ha sustituido el estado
+     */
+    public boolean compararYEscribir(int indice, byte esperado, byte estado);
+
+    /**
+     * Lee uno de los contadores de la partida.
+     *
+     * @param contador Contador a leer, por ejemplo {@link #CONTADOR_MINAS}
+     * @return El valor del contador
+     */
+    public int leerContador(int contador);
+
+    /**
+     * Sustituye el valor de uno de los contadores de la partida.
+     *
+     * @param contador Contador a modificar, por ejemplo {@link #CONTADOR_MINAS}
+     * @param valor El nuevo valor del contador
+     */
+    public void escribirContador(int contador, int valor);
+
+    /**
+     * Sustituye el valor de uno de los contadores solo si sigue siendo el
+     * esperado. Los almacenes que admiten varios hilos lo hacen de forma
+     * atomica.
+     *
+     * @param contador Contador a modificar, por ejemplo {@link #CONTADOR_MINAS}
+     * @param esperado El valor que debe tener el contador
+     * @param valor El nuevo valor del contador
+     * @return Si se ha sustituido el valor
+     */
+    public boolean compararYEscribirContador(int contador, int esperado,
+            int valor);
+
+}
@@ -0,0 +1,148 @@
+package buscaminas.sm.model;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Almacenamiento del tablero en memoria que admite varios hilos a la vez. Las
+ * casillas se empaquetan de cuatro en cuatro en los enteros de un
+ * {@link AtomicIntegerArray}, con el mismo formato de un byte por casilla que
+ * {@link AlmacenTableroEmpaquetado}, y cada cambio se hace comparando y
+ * sustituyendo el entero que contiene la casilla, sin bloqueos.
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class AlmacenTableroAtomico implements AlmacenTablero {
+
+	/**
+	 * Filas del tablero.
+	 */
+	private final int filas;
+
+	/**
+	 * Columnas del tablero.
+	 */
+	private final int columnas;
+
+	/**
+	 * Estado de todas las casillas, en orden de filas y cuatro por entero.
+	 */
+	private final AtomicIntegerArray casillas;
+
+	/**
+	 * Contadores de la partida.
+	 */
+	private final AtomicIntegerArray contadores = new AtomicIntegerArray(
+			CONTADORES);
+
+	/**
+	 * Crea un tablero con todas las casillas tapadas, sin minas ni banderas.
+	 *
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 */
+	public AlmacenTableroAtomico(int filas, int columnas) {
+		if (filas < 0 || columnas < 0)
+			throw new IllegalArgumentException(
+					"Las dimensiones de una matriz deben ser positivas");
+		if ((long) filas * columnas > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+					"El tablero tiene demasiadas casillas para guardarse en memoria");
+		this.filas = filas;
+		this.columnas = columnas;
+		this.casillas = new AtomicIntegerArray((int) (((long) filas
+				* columnas + 3) >>> 2));
+	}
+
+	public int getFilas() {
+		return filas;
+	}
+
+	public int getColumnas() {
+		return columnas;
+	}
+
+	public byte leer(int indice) {
+		return (byte) (casillas.get(indice >>> 2) >>> desplazamiento(indice));
+	}
+
+	public void escribir(int indice, byte estado) {
+		byte anterior;
+		do {
+			anterior = leer(indice);
+		} while (!compararYEscribir(indice, anterior, estado));
+	}
+
+	public void leer(int desde, byte[] destino, int desplazamiento,
+			int cantidad) {
+		int fin = desde + cantidad;
+		int indice = desde;
+		// Leer de entero en entero mientras queden cuatro casillas alineadas
+		while (indice < fin && (indice & 3) != 0)
+			destino[desplazamiento++] = leer(indice++);
+		for (; indice + 4 <= fin; indice += 4) {
+			int cuatro = casillas.get(indice >>> 2);
+			destino[desplazamiento++] = (byte) cuatro;
+			destino[desplazamiento++] = (byte) (cuatro >>> 8);
+			destino[desplazamiento++] = (byte) (cuatro >>> 16);
+			destino[desplazamiento++] = (byte) (cuatro >>> 24);
+		}
+		while (indice < fin)
+			destino[desplazamiento++] = leer(indice++);
+	}
+
+	public void escribir(int desde, byte[] origen, int desplazamiento,
+			int cantidad) {
+		int fin = desde + cantidad;
+		int indice = desde;
+		while (indice < fin && (indice & 3) != 0)
+			escribir(indice++, origen[desplazamiento++]);
+		for (; indice + 4 <= fin; indice += 4, desplazamiento += 4) {
+			casillas.set(indice >>> 2, (origen[desplazamiento] & 0xFF)
+					| (origen[desplazamiento + 1] & 0xFF) << 8
+					| (origen[desplazamiento + 2] & 0xFF) << 16
+					| (origen[desplazamiento + 3] & 0xFF) << 24);
+		}
+		while (indice < fin)
+			escribir(indice++, origen[desplazamiento++]);
+	}
+
+	public boolean compararYEscribir(int indice, byte esperado, byte estado) {
+		int posicion = indice >>> 2;
+		int desplazamiento = desplazamiento(indice);
+		int mascara = 0xFF << desplazamiento;
+		while (true) {
+			int actual = casillas.get(posicion);
+			if ((byte) (actual >>> desplazamiento) != esperado)
+				return false;
+			int nuevo = (actual & ~mascara)
+					| ((estado & 0xFF) << desplazamiento);
+			// Si falla es porque ha cambiado otra casilla del mismo entero
+			if (casillas.compareAndSet(posicion, actual, nuevo))
+				return true;
+		}
+	}
+
+	public int leerContador(int contador) {
+		return contadores.get(contador);
+	}
+
+	public void escribirContador(int contador, int valor) {
+		contadores.set(contador, valor);
+	}
+
+	public boolean compararYEscribirContador(int contador, int esperado,
+			int valor) {
+		return contadores.compareAndSet(contador, esperado, valor);
+	}
+
+	/**
+	 * Obtiene la posicion del byte de una casilla dentro de su entero.
+	 */
+	private static int desplazamiento(int indice) {
+		return (indice & 3) << 3;
+	}
+
+}
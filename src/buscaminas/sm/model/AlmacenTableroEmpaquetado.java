@@ -0,0 +1,103 @@
+package buscaminas.sm.model;
+
+/**
+ * Almacenamiento del tablero en memoria, con un byte por casilla en un unico
+ * vector ordenado por filas. Las casillas adyacentes de una misma fila quedan
+ * contiguas en memoria, y las de las filas vecinas a una distancia fija. Solo
+ * admite un hilo.
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class AlmacenTableroEmpaquetado implements AlmacenTablero {
+
+	/**
+	 * Filas del tablero.
+	 */
+	private final int filas;
+
+	/**
+	 * Columnas del tablero.
+	 */
+	private final int columnas;
+
+	/**
+	 * Estado de todas las casillas, en orden de filas.
+	 */
+	private final byte[] casillas;
+
+	/**
+	 * Contadores de la partida.
+	 */
+	private final int[] contadores = new int[CONTADORES];
+
+	/**
+	 * Crea un tablero con todas las casillas tapadas, sin minas ni banderas.
+	 *
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 */
+	public AlmacenTableroEmpaquetado(int filas, int columnas) {
+		if (filas < 0 || columnas < 0)
+			throw new IllegalArgumentException(
+					"Las dimensiones de una matriz deben ser positivas");
+		if ((long) filas * columnas > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+					"El tablero tiene demasiadas casillas para guardarse en memoria");
+		this.filas = filas;
+		this.columnas = columnas;
+		this.casillas = new byte[filas * columnas];
+	}
+
+	public int getFilas() {
+		return filas;
+	}
+
+	public int getColumnas() {
+		return columnas;
+	}
+
+	public byte leer(int indice) {
+		return casillas[indice];
+	}
+
+	public void escribir(int indice, byte estado) {
+		casillas[indice] = estado;
+	}
+
+	public void leer(int desde, byte[] destino, int desplazamiento,
+			int cantidad) {
+		System.arraycopy(casillas, desde, destino, desplazamiento, cantidad);
+	}
+
+	public void escribir(int desde, byte[] origen, int desplazamiento,
+			int cantidad) {
+		System.arraycopy(origen, desplazamiento, casillas, desde, cantidad);
+	}
+
+	public boolean compararYEscribir(int indice, byte esperado, byte estado) {
+		if (casillas[indice] != esperado)
+			return false;
+		casillas[indice] = estado;
+		return true;
+	}
+
+	public int leerContador(int contador) {
+		return contadores[contador];
+	}
+
+	public void escribirContador(int contador, int valor) {
+		contadores[contador] = valor;
+	}
+
+	public boolean compararYEscribirContador(int contador, int esperado,
+			int valor) {
+		if (contadores[contador] != esperado)
+			return false;
+		contadores[contador] = valor;
+		return true;
+	}
+
+}
@@ -0,0 +1,293 @@
+package buscaminas.sm.model;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Almacenamiento del tablero en un fichero proyectado en memoria, para
+ * tableros mayores que la memoria disponible. El sistema operativo carga y
+ * descarga las paginas de casillas segun se van usando, por lo que destapar,
+ * colocar banderas o generar las minas funciona aunque el tablero no quepa en
+ * memoria.
+ * </p>
+ * <p>
+ * El fichero empieza con una cabecera con la firma, la version, las
+ * dimensiones y los contadores de la partida (incluidas la semilla y las
+ * primeras casillas pulsada y destapada), seguida de un byte por casilla
+ * con el mismo formato que {@link AlmacenTableroEmpaquetado}. Como todo el
+ * estado esta en el fichero, reabrirlo recupera la partida sin ningun paso de
+ * lectura.
+ * </p>
+ * <p>
+ * Las casillas se proyectan en tramos de 1 GB, ya que una proyeccion no puede
+ * superar los 2 GB. Solo admite un hilo que modifique la partida, aunque
+ * otros pueden leer las casillas a la vez, por ejemplo para dibujarlas.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class AlmacenTableroMapeado implements AlmacenTablero, Closeable {
+
+	/**
+	 * Firma que identifica los ficheros de tablero ("BMTB").
+	 */
+	private static final int FIRMA = 0x424D5442;
+
+	/**
+	 * Version del formato del fichero.
+	 */
+	private static final int VERSION = 3;
+
+	/**
+	 * Tamaño en bytes de la cabecera: firma, version, filas, columnas y
+	 * contadores, redondeado para alinear las casillas.
+	 */
+	private static final int TAMAÑO_CABECERA = 64;
+
+	/**
+	 * Posicion en la cabecera del primer contador.
+	 */
+	private static final int POSICION_CONTADORES = 16;
+
+	/**
+	 * Bits del indice de una casilla dentro de su tramo.
+	 */
+	private static final int BITS_TRAMO = 30;
+
+	/**
+	 * Mascara para obtener la posicion de una casilla dentro de su tramo.
+	 */
+	private static final int MASCARA_TRAMO = (1 << BITS_TRAMO) - 1;
+
+	/**
+	 * Filas del tablero.
+	 */
+	private final int filas;
+
+	/**
+	 * Columnas del tablero.
+	 */
+	private final int columnas;
+
+	/**
+	 * Fichero abierto del tablero.
+	 */
+	private final RandomAccessFile fichero;
+
+	/**
+	 * Proyeccion de la cabecera del fichero.
+	 */
+	private final MappedByteBuffer cabecera;
+
+	/**
+	 * Proyecciones de las casillas, en tramos consecutivos.
+	 */
+	private final MappedByteBuffer[] tramos;
+
+	/**
+	 * Crea un fichero nuevo para un tablero con todas las casillas tapadas,
+	 * sin minas ni banderas, sustituyendo el que hubiese. El numero de minas
+	 * se guarda en los contadores para crear despues la partida con
+	 * {@link EstadoJuego#EstadoJuego(AlmacenTablero)}.
+	 *
+	 * @param archivo
+	 *            Fichero donde se guarda el tablero
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 * @param minas
+	 *            Numero de minas del tablero
+	 * @return El almacen del tablero creado
+	 * @throws IOException
+	 *             Si no se puede crear el fichero
+	 */
+	public static AlmacenTableroMapeado crear(File archivo, int filas,
+			int columnas, int minas) throws IOException {
+		if (filas < 0 || columnas < 0)
+			throw new IllegalArgumentException(
+					"Las dimensiones de una matriz deben ser positivas");
+		if ((long) filas * columnas > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+					"El tablero tiene demasiadas casillas");
+		RandomAccessFile fichero = new RandomAccessFile(archivo, "rw");
+		try {
+			// Al ampliar el fichero las casillas quedan a cero (tapadas)
+			fichero.setLength(0);
+			fichero.setLength(TAMAÑO_CABECERA + (long) filas * columnas);
+			AlmacenTableroMapeado almacen = new AlmacenTableroMapeado(fichero,
+					filas, columnas);
+			almacen.cabecera.putInt(0, FIRMA);
+			almacen.cabecera.putInt(4, VERSION);
+			almacen.cabecera.putInt(8, filas);
+			almacen.cabecera.putInt(12, columnas);
+			almacen.escribirContador(CONTADOR_MINAS, minas);
+			almacen.escribirContador(CONTADOR_FASE, Fase.INICIO.ordinal());
+			// Ni las minas estan colocadas ni se ha destapado ninguna casilla
+			almacen.escribirContador(CONTADOR_PRIMERA_CASILLA, -1);
+			almacen.escribirContador(CONTADOR_PRIMERA_DESTAPADA, -1);
+			return almacen;
+		} catch (IOException e) {
+			fichero.close();
+			throw e;
+		} catch (RuntimeException e) {
+			fichero.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Abre el fichero de un tablero creado previamente, con las casillas y
+	 * contadores que tuviese.
+	 *
+	 * @param archivo
+	 *            Fichero donde se guarda el tablero
+	 * @return El almacen del tablero
+	 * @throws IOException
+	 *             Si no se puede abrir el fichero o no es un tablero valido
+	 */
+	public static AlmacenTableroMapeado abrir(File archivo) throws IOException {
+		RandomAccessFile fichero = new RandomAccessFile(archivo, "rw");
+		try {
+			if (fichero.length() < TAMAÑO_CABECERA)
+				throw new IOException("El fichero no contiene un tablero");
+			fichero.seek(0);
+			if (fichero.readInt() != FIRMA)
+				throw new IOException("El fichero no contiene un tablero");
+			if (fichero.readInt() != VERSION)
+				throw new IOException("Version del tablero no soportada");
+			int filas = fichero.readInt();
+			int columnas = fichero.readInt();
+			if (filas < 0 || columnas < 0
+					|| (long) filas * columnas > Integer.MAX_VALUE
+					|| fichero.length() < TAMAÑO_CABECERA + (long) filas
+							* columnas)
+				throw new IOException("Las dimensiones del tablero no son validas");
+			return new AlmacenTableroMapeado(fichero, filas, columnas);
+		} catch (IOException e) {
+			fichero.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Proyecta en memoria la cabecera y las casillas de un fichero abierto.
+	 */
+	private AlmacenTableroMapeado(RandomAccessFile fichero, int filas,
+			int columnas) throws IOException {
+		this.fichero = fichero;
+		this.filas = filas;
+		this.columnas = columnas;
+		FileChannel canal = fichero.getChannel();
+		this.cabecera = canal.map(FileChannel.MapMode.READ_WRITE, 0,
+				TAMAÑO_CABECERA);
+		long casillas = (long) filas * columnas;
+		int numeroTramos = (int) ((casillas + MASCARA_TRAMO) >>> BITS_TRAMO);
+		this.tramos = new MappedByteBuffer[numeroTramos];
+		for (int i = 0; i < numeroTramos; i++) {
+			long inicio = (long) i << BITS_TRAMO;
+			long tamaño = Math.min(casillas - inicio, 1L << BITS_TRAMO);
+			tramos[i] = canal.map(FileChannel.MapMode.READ_WRITE,
+					TAMAÑO_CABECERA + inicio, tamaño);
+		}
+	}
+
+	public int getFilas() {
+		return filas;
+	}
+
+	public int getColumnas() {
+		return columnas;
+	}
+
+	public byte leer(int indice) {
+		return tramos[indice >>> BITS_TRAMO].get(indice & MASCARA_TRAMO);
+	}
+
+	public void escribir(int indice, byte estado) {
+		tramos[indice >>> BITS_TRAMO].put(indice & MASCARA_TRAMO, estado);
+	}
+
+	public void leer(int desde, byte[] destino, int desplazamiento,
+			int cantidad) {
+		while (cantidad > 0) {
+			// Cada copia usa su propia vista del tramo, para que no se
+			// mezclen las posiciones de varios hilos leyendo a la vez
+			ByteBuffer tramo = tramos[desde >>> BITS_TRAMO].duplicate();
+			int posicion = desde & MASCARA_TRAMO;
+			int copiar = Math.min(cantidad, tramo.capacity() - posicion);
+			tramo.position(posicion);
+			tramo.get(destino, desplazamiento, copiar);
+			desde += copiar;
+			desplazamiento += copiar;
+			cantidad -= copiar;
+		}
+	}
+
+	public void escribir(int desde, byte[] origen, int desplazamiento,
+			int cantidad) {
+		while (cantidad > 0) {
+			// Cada copia usa su propia vista del tramo, para que no se
+			// mezclen las posiciones de varios hilos leyendo a la vez
+			ByteBuffer tramo = tramos[desde >>> BITS_TRAMO].duplicate();
+			int posicion = desde & MASCARA_TRAMO;
+			int copiar = Math.min(cantidad, tramo.capacity() - posicion);
+			tramo.position(posicion);
+			tramo.put(origen, desplazamiento, copiar);
+			desde += copiar;
+			desplazamiento += copiar;
+			cantidad -= copiar;
+		}
+	}
+
+	public boolean compararYEscribir(int indice, byte esperado, byte estado) {
+		MappedByteBuffer tramo = tramos[indice >>> BITS_TRAMO];
+		if (tramo.get(indice & MASCARA_TRAMO) != esperado)
+			return false;
+		tramo.put(indice & MASCARA_TRAMO, estado);
+		return true;
+	}
+
+	public int leerContador(int contador) {
+		return cabecera.getInt(POSICION_CONTADORES + 4 * contador);
+	}
+
+	public void escribirContador(int contador, int valor) {
+		cabecera.putInt(POSICION_CONTADORES + 4 * contador, valor);
+	}
+
+	public boolean compararYEscribirContador(int contador, int esperado,
+			int valor) {
+		if (leerContador(contador) != esperado)
+			return false;
+		escribirContador(contador, valor);
+		return true;
+	}
+
+	/**
+	 * Fuerza la escritura en disco de las paginas modificadas.
+	 */
+	public void sincronizar() {
+		cabecera.force();
+		for (MappedByteBuffer tramo : tramos)
+			tramo.force();
+	}
+
+	/**
+	 * Escribe en disco los cambios pendientes y cierra el fichero. Las
+	 * proyecciones se liberan cuando el recolector de basura descarta el
+	 * almacen, por lo que no debe usarse despues de cerrarlo.
+	 */
+	public void close() throws IOException {
+		sincronizar();
+		fichero.close();
+	}
+
+}
@@ -0,0 +1,43 @@
+package buscaminas.sm.model;
+
+/**
+ * Cola de trabajo del destape en cascada, reutilizada entre jugadas para no
+ * reservar memoria en cada una. Cada casilla se guarda como un unico entero
+ * (fila * columnas + columna), y junto a la cola se guardan los valores que se
+ * notifican en lote.
+ * 
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+class BufferDestape {
+
+	/**
+	 * Casillas pendientes de procesar o ya destapadas en la jugada.
+	 */
+	int[] cola = new int[16];
+
+	/**
+	 * Valores de las casillas de la cola que se notifican en lote.
+	 */
+	private byte[] valores = new byte[16];
+
+	/**
+	 * Duplica la capacidad de la cola conservando su contenido.
+	 */
+	void ampliar() {
+		int[] nueva = new int[cola.length * 2];
+		System.arraycopy(cola, 0, nueva, 0, cola.length);
+		cola = nueva;
+	}
+
+	/**
+	 * Obtiene el vector de valores, con al menos la capacidad de la cola.
+	 * 
+	 * @return El vector de valores
+	 */
+	byte[] getValores() {
+		if (valores.length < cola.length)
+			valores = new byte[cola.length];
+		return valores;
+	}
+}
@@ -0,0 +1,181 @@
+package buscaminas.sm.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Calcula de una vez el valor de todas las casillas de un tablero en el que
+ * solo se han marcado las minas. Cada fila se guarda como un mapa de bits de
+ * enteros largos, con un bit por casilla que indica si es mina, y las minas
+ * adyacentes se suman a la vez para 64 casillas con sumadores de bits sobre
+ * las tres filas desplazadas una columna a cada lado.
+ * </p>
+ * <p>
+ * Solo se guardan los mapas de tres filas, asi que la memoria necesaria
+ * depende del ancho del tablero y no de su tamaño. Las casillas cuyo valor
+ * no es 0 se escriben comparando y sustituyendo, conservando las banderas
+ * que se hayan podido colocar antes de empezar la partida.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+class CalculoAdyacencias {
+
+	private final AlmacenTablero almacen;
+	private final int filas;
+	private final int columnas;
+
+	/**
+	 * Enteros largos de cada fila.
+	 */
+	private final int palabras;
+
+	/**
+	 * Bits de la ultima palabra de cada fila que corresponden a casillas.
+	 */
+	private final long mascaraFinal;
+
+	/**
+	 * Minas de la fila anterior, la actual y la siguiente.
+	 */
+	private long[] arriba;
+	private long[] centro;
+	private long[] abajo;
+
+	/**
+	 * Fila leida del almacen para marcar sus minas, completada con ceros
+	 * hasta un multiplo de 64 casillas.
+	 */
+	private final byte[] fila;
+
+	/**
+	 * La fila vista como enteros largos de ocho casillas, con la primera en
+	 * el byte menos significativo.
+	 */
+	private final ByteBuffer ocho;
+
+	/**
+	 * @param almacen
+	 *            Tablero en que solo se han marcado las minas
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 */
+	CalculoAdyacencias(AlmacenTablero almacen, int filas, int columnas) {
+		this.almacen = almacen;
+		this.filas = filas;
+		this.columnas = columnas;
+		this.palabras = (columnas + 63) >>> 6;
+		this.mascaraFinal = -1L >>> (-columnas & 63);
+		arriba = new long[palabras];
+		centro = new long[palabras];
+		abajo = new long[palabras];
+		fila = new byte[palabras << 6];
+		ocho = ByteBuffer.wrap(fila).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Escribe en cada casilla que no es mina el numero de minas adyacentes.
+	 */
+	void calcular() {
+		if (filas == 0 || columnas == 0)
+			return;
+		leerMinas(0, centro);
+		for (int i = 0; i < filas; i++) {
+			if (i + 1 < filas)
+				leerMinas(i + 1, abajo);
+			else
+				Arrays.fill(abajo, 0);
+			sumarFila(i);
+			long[] libre = arriba;
+			arriba = centro;
+			centro = abajo;
+			abajo = libre;
+		}
+	}
+
+	/**
+	 * Marca en un mapa de bits las minas de una fila del almacen. Los bits
+	 * que sobran tras la ultima columna quedan a 0.
+	 */
+	private void leerMinas(int i, long[] mapa) {
+		almacen.leer(i * columnas, fila, 0, columnas);
+		for (int w = 0; w < palabras; w++) {
+			long bits = 0;
+			for (int g = 0; g < 8; g++) {
+				// Dejar en el bit bajo de cada byte si sus cuatro bits de
+				// valor estan a 1, y juntar los ocho bits en uno de sus bytes
+				long x = ocho.getLong((w << 6) + (g << 3));
+				x &= (x >>> 1) & (x >>> 2) & (x >>> 3) & 0x0101010101010101L;
+				bits |= ((x * 0x0102040810204080L) >>> 56) << (g << 3);
+			}
+			mapa[w] = bits;
+		}
+	}
+
+	/**
+	 * Suma las ocho vecinas de cada casilla de una fila como un numero de
+	 * cuatro bits repartido en cuatro mapas, y escribe las que no son 0.
+	 */
+	private void sumarFila(int i) {
+		for (int w = 0; w < palabras; w++) {
+			// Vecina izquierda: la columna anterior pasa a la posicion de la
+			// casilla; vecina derecha: la siguiente
+			long ai = izquierda(arriba, w), ac = arriba[w], ad = derecha(
+					arriba, w);
+			long ci = izquierda(centro, w), cd = derecha(centro, w);
+			long bi = izquierda(abajo, w), bc = abajo[w], bd = derecha(abajo,
+					w);
+
+			// Tres sumadores completos y uno medio dejan las unidades y
+			// cuatro acarreos de peso 2
+			long s1 = ai ^ ac ^ ad;
+			long a1 = (ai & ac) | (ad & (ai ^ ac));
+			long s2 = ci ^ cd ^ bi;
+			long a2 = (ci & cd) | (bi & (ci ^ cd));
+			long s3 = bc ^ bd;
+			long a3 = bc & bd;
+			long bit0 = s1 ^ s2 ^ s3;
+			long a4 = (s1 & s2) | (s3 & (s1 ^ s2));
+			// Los acarreos de peso 2 dan el segundo bit y dos de peso 4
+			long s5 = a1 ^ a2 ^ a3;
+			long a5 = (a1 & a2) | (a3 & (a1 ^ a2));
+			long bit1 = s5 ^ a4;
+			long a6 = s5 & a4;
+			long bit2 = a5 ^ a6;
+			long bit3 = a5 & a6;
+
+			long pendientes = (bit0 | bit1 | bit2 | bit3) & ~centro[w];
+			if (w == palabras - 1)
+				pendientes &= mascaraFinal;
+			int base = i * columnas + (w << 6);
+			while (pendientes != 0) {
+				int k = Long.numberOfTrailingZeros(pendientes);
+				pendientes &= pendientes - 1;
+				int valor = (int) ((bit0 >>> k) & 1 | ((bit1 >>> k) & 1) << 1
+						| ((bit2 >>> k) & 1) << 2 | ((bit3 >>> k) & 1) << 3);
+				escribirValor(base + k, valor);
+			}
+		}
+	}
+
+	private long izquierda(long[] mapa, int w) {
+		return mapa[w] << 1 | (w > 0 ? mapa[w - 1] >>> 63 : 0);
+	}
+
+	private long derecha(long[] mapa, int w) {
+		return mapa[w] >>> 1 | (w + 1 < palabras ? mapa[w + 1] << 63 : 0);
+	}
+
+	private void escribirValor(int indice, int valor) {
+		byte estado;
+		do {
+			estado = almacen.leer(indice);
+		} while (!almacen.compararYEscribir(indice, estado,
+				(byte) ((estado & ~AlmacenTablero.VALOR) | valor)));
+	}
+}
@@ -1,99 +1,84 @@
 package buscaminas.sm.model;
 
 /**
+ * <p>
  * Una casilla de la cuadricula del buscaminas. Una casilla puede contener una
  * mina o no, y en este ultimo caso tiene un cierto numero de minas adyacentes
  * que pueda variar de 0 a 8. Las casillas empiezan todas tapadas y cuando el
  * usuario las selecciona pasan a estar destapadas. Si el usuario sospecha que
  * en una casilla hay una bomba puede colocar una bandera sobre ella.
- * 
+ * </p>
+ * <p>
+ * El estado de las casillas se guarda empaquetado en un {@link AlmacenTablero},
+ * por lo que esta clase es solo una vista de consulta del estado que tenia la
+ * casilla al obtenerla.
+ * </p>
+ *
  * @author Amanda Calatrava Arroyo
  * @author Cristina Yenyxe Gonzalez Garcia
  */
 public class Casilla {
 
 	/**
-	 * Si la casilla se ha destapado ya o no.
+	 * Estado empaquetado de la casilla, con el formato de
+	 * {@link AlmacenTablero}.
 	 */
-	private boolean destapada;
-
-	/**
-	 * Si se ha establecido una bandera en la casilla o no.
-	 */
-	private boolean bandera;
-
-	/**
-	 * Contenido de la casilla. Si el valor es -1 significa que contiene una
-	 * mina, y si es mayor indica el numero de minas adyacentes a la casilla.
-	 */
-	private int valor;
+	private final byte estado;
 
 	/**
 	 * Coordenada X de la casilla.
 	 */
-	private int x;
+	private final int x;
 
 	/**
 	 * Coordenada Y de la casilla.
 	 */
-	private int y;
+	private final int y;
 
 	/**
-	 * Crea una casilla ubicada en las coordenadas indicadas.
-	 * 
+	 * Crea la vista de una casilla ubicada en las coordenadas indicadas.
+	 *
 	 * @param x
 	 *            Coordenada X de la casilla
 	 * @param y
 	 *            Coordenada Y de la casilla
+	 * @param estado
+	 *            Estado empaquetado de la casilla
 	 */
-	public Casilla(int x, int y) {
+	Casilla(int x, int y, byte estado) {
 		this.x = x;
 		this.y = y;
+		this.estado = estado;
 	}
 
-	public boolean isDestapada() {
-		return destapada;
-	}
-
-	/**
-	 * Marca como destapada la casilla.
-	 */
-	public void destapar() {
-		this.destapada = true;
+	public int getX() {
+		return x;
 	}
 
-	public boolean isBandera() {
-		return bandera;
+	public int getY() {
+		return y;
 	}
 
-	/**
-	 * Coloca una bandera si no hay ninguna, y la quita ya se hubiese
-	 * establecido.
-	 */
-	public void conmutarBandera() {
-		this.bandera = !this.bandera;
+	public boolean isDestapada() {
+		return (estado & AlmacenTablero.DESTAPADA) != 0;
 	}
 
-	public int getValor() {
-		return valor;
+	public boolean isBandera() {
+		return (estado & AlmacenTablero.BANDERA) != 0;
 	}
 
 	/**
-	 * Aumenta en uno la cantidad de minas adyacentes a la casilla.
+	 * Contenido de la casilla. Si el valor es -1 significa que contiene una
+	 * mina, y si es mayor indica el numero de minas adyacentes a la casilla.
+	 *
+	 * @return El valor de la casilla
 	 */
-	public void incrementarValor() {
-		this.valor++;
+	public int getValor() {
+		return isMina() ? -1 : estado & AlmacenTablero.VALOR;
 	}
 
 	public boolean isMina() {
-		return valor == -1;
-	}
-
-	/**
-	 * Coloca una mina en la casilla, estableciendo su valor a -1.
-	 */
-	public void colocarMina() {
-		valor = -1;
+		return (estado & AlmacenTablero.VALOR) == AlmacenTablero.MINA;
 	}
 
 	/**
@@ -3,7 +3,7 @@ package buscaminas.sm.model;
 /**
  * Niveles de dificultad del juego, para cada uno de los cuales se modifican las
  * dimensiones y el porcentaje de minas del tablero.
- * 
+ *
  * @author Amanda Calatrava Arroyo
  * @author Cristina Yenyxe Gonzalez Garcia
  */
@@ -11,14 +11,47 @@ public enum Dificultad {
 	/**
 	 * Emplea el tablero de menores dimensiones y con menos minas.
 	 */
-	FACIL,
+	FACIL(11, 9, 14),
 	/**
 	 * Emplea un tablero de dimensiones y cantidad de minas intermedias.
 	 */
-	NORMAL,
+	NORMAL(16, 16, 40),
 	/**
 	 * Emplea el tablero de mayores dimensiones y con mayor porcentaje de minas.
 	 */
-	DIFICIL
+	DIFICIL(30, 16, 99);
+
+	/**
+	 * Filas del tablero.
+	 */
+	private final int filas;
+
+	/**
+	 * Columnas del tablero.
+	 */
+	private final int columnas;
+
+	/**
+	 * Numero de minas del tablero.
+	 */
+	private final int minas;
+
+	private Dificultad(int filas, int columnas, int minas) {
+		this.filas = filas;
+		this.columnas = columnas;
+		this.minas = minas;
+	}
+
+	public int getFilas() {
+		return filas;
+	}
+
+	public int getColumnas() {
+		return columnas;
+	}
+
+	public int getMinas() {
+		return minas;
+	}
 
 }
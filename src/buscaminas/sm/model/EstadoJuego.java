@@ -1,12 +1,25 @@
 package buscaminas.sm.model;
 
 import buscaminas.sm.controller.EstadoObserver;
-import java.util.LinkedList;
+import buscaminas.sm.controller.EstadoObserverDeshacer;
+import buscaminas.sm.controller.EstadoObserverLotes;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * <p>
  * Estado general del tablero de juego del buscaminas, que agrupa todas las
  * casillas.
+ * </p>
+ * <p>
+ * Tanto las casillas como los contadores y la fase de la partida se guardan
+ * en un {@link AlmacenTablero}, y todos los cambios se hacen comparando y
+ * sustituyendo su valor anterior. Sobre un almacen de memoria normal basta con
+ * un solo hilo; {@link EstadoJuegoConcurrente} usa el mismo algoritmo sobre un
+ * almacen atomico para que varios jugadores compartan el tablero.
+ * </p>
  * 
  * @author Amanda Calatrava Arroyo
  * @author Cristina Yenyxe Gonzalez Garcia
@@ -14,36 +27,89 @@ import java.util.List;
 public class EstadoJuego {
 
 	/**
-	 * Porcentaje de casillas del total que tienen una mina.
+	 * Fases de la partida, indexadas por el ordinal guardado en el almacen.
 	 */
-	private float porcentajeMinas;
+	private static final Fase[] FASES = Fase.values();
 
 	/**
-	 * Numero de minas establecidas.
+	 * Numero de minas establecidas. El numero de banderas establecidas y el de
+	 * casillas sin mina destapadas se guardan en los contadores del almacen.
 	 */
 	private int minasTotales;
 
 	/**
-	 * Numero de banderas establecidas hasta el momento (puede variar durante la
-	 * partida).
+	 * Si tras cada destape se debe comprobar que el contador de casillas
+	 * destapadas coincide con un recorrido completo del tablero.
 	 */
-	private int banderasEstablecidas;
+	private boolean autocomprobacion;
 
 	/**
-	 * Fase en la que se encuentra el juego (jugando, terminado...).
+	 * Si al colocar las minas se deben excluir tambien las casillas adyacentes
+	 * a la primera pulsada.
 	 */
-	private Fase fase;
+	private boolean zonaSeguraAmplia;
 
 	/**
-	 * Casillas del tablero de juego.
+	 * Semilla del generador con que se colocan las minas. La misma semilla y
+	 * la misma primera casilla producen siempre el mismo tablero.
 	 */
-	private Casilla[][] casillas;
+	private long semilla;
+
+	/**
+	 * Generador de las semillas de las partidas que no indican una.
+	 */
+	private static final Random SEMILLAS = new Random();
+
+	/**
+	 * Estado empaquetado de las casillas del tablero de juego, y contadores y
+	 * fase de la partida.
+	 */
+	private AlmacenTablero almacen;
+
+	/**
+	 * Filas del tablero, copiadas del almacen para los recorridos.
+	 */
+	private int filas;
+
+	/**
+	 * Columnas del tablero, copiadas del almacen para los recorridos.
+	 */
+	private int columnas;
 
 	/**
 	 * Observadores del estado del juego.
 	 */
 	private List<EstadoObserver> observadores;
 
+	/**
+	 * Cola de trabajo del destape en cascada, reutilizada entre jugadas.
+	 */
+	private final BufferDestape buffer = new BufferDestape();
+
+	/**
+	 * Historial de las jugadas para deshacerlas, o null si no se guarda.
+	 */
+	private HistorialJugadas historial;
+
+	/**
+	 * Tamaño a partir del cual la cola de trabajo no se amplia mas si puede
+	 * descartar las casillas ya procesadas, para que los destapes enormes no
+	 * agoten la memoria.
+	 */
+	private static final int TAMAÑO_MAXIMO_COLA = 1 << 20;
+
+	/**
+	 * Casillas que debe haber expandido el destape en cascada para seguir
+	 * repartiendolo entre varios hilos, cuando la region ya se sabe grande.
+	 */
+	private static final int UMBRAL_PARALELO = 1 << 16;
+
+	/**
+	 * Numero maximo de minas que se colocan con la tabla de intercambios, que
+	 * ocupa hasta 32 bytes por mina.
+	 */
+	private static final int MAXIMO_SORTEOS_TABLA = 1 << 20;
+
 	/**
 	 * Crea una representacion del estado del juego, generando el tablero de
 	 * casillas y los argumentos básicos para colocar las minas.
@@ -56,24 +122,278 @@ public class EstadoJuego {
 	 *            Porcentaje de minas sobre el total de casillas
 	 */
 	public EstadoJuego(int x, int y, float porcentajeMinas) {
-		if (x < 0 || y < 0)
+		this(x, y, porcentajeMinas, nuevaSemilla());
+	}
+
+	/**
+	 * Crea una representacion del estado del juego cuyas minas se colocan a
+	 * partir de una semilla, de modo que la misma semilla y la misma primera
+	 * pulsacion producen siempre el mismo tablero, en cualquier maquina
+	 * virtual, ya que el algoritmo de {@link Random} esta especificado.
+	 * 
+	 * @param x
+	 *            Filas del tablero
+	 * @param y
+	 *            Columnas del tablero
+	 * @param porcentajeMinas
+	 *            Porcentaje de minas sobre el total de casillas
+	 * @param semilla
+	 *            Semilla del generador con que se colocan las minas
+	 */
+	public EstadoJuego(int x, int y, float porcentajeMinas, long semilla) {
+		this(new AlmacenTableroEmpaquetado(x, y), calcularMinas(x, y,
+				porcentajeMinas), semilla);
+	}
+
+	/**
+	 * Crea una partida nueva con un numero exacto de minas sobre un almacen
+	 * con todas las casillas tapadas, sin minas ni banderas. Permite elegir el
+	 * almacen mas adecuado al tamaño del tablero.
+	 *
+	 * @param almacen
+	 *            Almacen vacio de las casillas
+	 * @param minasTotales
+	 *            Numero de minas del tablero
+	 * @param semilla
+	 *            Semilla del generador con que se colocan las minas
+	 * @throws IllegalArgumentException
+	 *             Si el numero de minas no deja ninguna casilla libre
+	 */
+	public EstadoJuego(AlmacenTablero almacen, int minasTotales, long semilla) {
+		this.almacen = almacen;
+		this.filas = almacen.getFilas();
+		this.columnas = almacen.getColumnas();
+		this.minasTotales = minasTotales;
+		this.semilla = semilla;
+		this.observadores = new CopyOnWriteArrayList<EstadoObserver>();
+		comprobarMinas();
+		almacen.escribirContador(AlmacenTablero.CONTADOR_MINAS, minasTotales);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_BANDERAS, 0);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_DESTAPADAS, 0);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_FASE,
+				Fase.INICIO.ordinal());
+		almacen.escribirContador(AlmacenTablero.CONTADOR_PRIMERA_CASILLA, -1);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_SEMILLA_ALTA,
+				(int) (semilla >>> 32));
+		almacen.escribirContador(AlmacenTablero.CONTADOR_SEMILLA_BAJA,
+				(int) semilla);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_ZONA_SEGURA, 0);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_PRIMERA_DESTAPADA, -1);
+	}
+
+	/**
+	 * Crea una representacion del estado del juego sobre un almacen ya
+	 * existente, que contiene tanto las casillas como el numero de minas, de
+	 * banderas y de casillas destapadas, la fase de la partida y la semilla y
+	 * primera casilla con que se colocaron las minas. Las casillas
+	 * no se recorren, por lo que reabrir una partida guardada en un fichero es
+	 * inmediato aunque el tablero sea enorme.
+	 * 
+	 * @param almacen
+	 *            Almacen con el estado de las casillas y los contadores
+	 */
+	public EstadoJuego(AlmacenTablero almacen) {
+		this.almacen = almacen;
+		this.filas = almacen.getFilas();
+		this.columnas = almacen.getColumnas();
+		this.minasTotales = almacen.leerContador(AlmacenTablero.CONTADOR_MINAS);
+		this.semilla = ((long) almacen
+				.leerContador(AlmacenTablero.CONTADOR_SEMILLA_ALTA) << 32)
+				| (almacen.leerContador(AlmacenTablero.CONTADOR_SEMILLA_BAJA) & 0xFFFFFFFFL);
+		this.zonaSeguraAmplia = almacen
+				.leerContador(AlmacenTablero.CONTADOR_ZONA_SEGURA) != 0;
+		this.observadores = new CopyOnWriteArrayList<EstadoObserver>();
+		comprobarMinas();
+	}
+
+	/**
+	 * Genera la semilla de una partida que no indica una.
+	 */
+	static long nuevaSemilla() {
+		return SEMILLAS.nextLong();
+	}
+
+	/**
+	 * Calcula el numero de minas de un tablero a partir de su porcentaje.
+	 */
+	private static int calcularMinas(int x, int y, float porcentajeMinas) {
+		return (int) (x * y * porcentajeMinas / 100);
+	}
+
+	/**
+	 * Comprueba que el numero de minas deja al menos una casilla libre.
+	 */
+	private void comprobarMinas() {
+		if (minasTotales < 0
+				|| (filas * columnas > 0 && minasTotales >= filas * columnas))
 			throw new IllegalArgumentException(
-					"Las dimensiones de una matriz deben ser positivas");
-		this.casillas = new Casilla[x][y];
-		for (int i = 0; i < x; i++) {
-			for (int j = 0; j < y; j++) {
-				casillas[i][j] = new Casilla(i, j);
-			}
-		}
-		this.porcentajeMinas = porcentajeMinas;
-		this.minasTotales = (int) (x * y * porcentajeMinas / 100);
-		this.banderasEstablecidas = 0;
-		this.fase = Fase.INICIO;
-		this.observadores = new LinkedList<EstadoObserver>();
+					"Debe quedar al menos una casilla sin mina");
 	}
 
 	public Fase getFase() {
-		return fase;
+		return FASES[almacen.leerContador(AlmacenTablero.CONTADOR_FASE)];
+	}
+
+	public int getMinasTotales() {
+		return minasTotales;
+	}
+
+	public int getFilas() {
+		return filas;
+	}
+
+	public int getColumnas() {
+		return columnas;
+	}
+
+	public long getSemilla() {
+		return semilla;
+	}
+
+	/**
+	 * Obtiene la primera casilla pulsada, a partir de la cual se colocaron las
+	 * minas.
+	 * 
+	 * @return El indice de la casilla (fila * columnas + columna), o -1 si aun
+	 *         no se han colocado las minas
+	 */
+	public int getPrimeraCasilla() {
+		return almacen.leerContador(AlmacenTablero.CONTADOR_PRIMERA_CASILLA);
+	}
+
+	/**
+	 * Obtiene la primera casilla destapada. Solo difiere de la primera
+	 * pulsada si las minas se colocaron antes de jugar con
+	 * {@link #colocarMinas(int, int)}.
+	 * 
+	 * @return El indice de la casilla (fila * columnas + columna), o -1 si aun
+	 *         no se ha destapado ninguna
+	 */
+	public int getPrimeraDestapada() {
+		return almacen.leerContador(AlmacenTablero.CONTADOR_PRIMERA_DESTAPADA);
+	}
+
+	/**
+	 * Obtiene la huella del tablero, que basta para volver a generarlo.
+	 * 
+	 * @return La huella del tablero
+	 */
+	public HuellaTablero getHuella() {
+		int primera = getPrimeraCasilla();
+		int destapada = getPrimeraDestapada();
+		return new HuellaTablero(filas, columnas, minasTotales, semilla,
+				primera, destapada == primera ? -1 : destapada,
+				zonaSeguraAmplia);
+	}
+
+	/**
+	 * Coloca las minas como indica la huella de este mismo tablero, incluidas
+	 * las que se apartaron de la primera casilla destapada, sin destapar
+	 * ninguna. Se debe llamar antes de que juegue nadie.
+	 * 
+	 * @param huella
+	 *            Huella del tablero
+	 * @throws IllegalArgumentException
+	 *             Si la huella es de un tablero con otras dimensiones, minas
+	 *             o semilla
+	 */
+	public void aplicarHuella(HuellaTablero huella) {
+		if (huella.getFilas() != filas || huella.getColumnas() != columnas
+				|| huella.getMinas() != minasTotales
+				|| huella.getSemilla() != semilla)
+			throw new IllegalArgumentException("La huella es de otro tablero");
+		setZonaSeguraAmplia(huella.isZonaSeguraAmplia());
+		int primera = huella.getPrimeraCasilla();
+		if (primera < 0)
+			return;
+		colocarMinas(primera / columnas, primera % columnas);
+		int destapada = huella.getPrimeraDestapada();
+		if (destapada >= 0 && getPrimeraDestapada() < 0) {
+			apartarMinas(destapada / columnas, destapada % columnas);
+			almacen.escribirContador(
+					AlmacenTablero.CONTADOR_PRIMERA_DESTAPADA, destapada);
+		}
+	}
+
+	/**
+	 * Obtiene una vista de solo lectura del estado actual de una casilla.
+	 * 
+	 * @param x
+	 *            Fila de la casilla
+	 * @param y
+	 *            Columna de la casilla
+	 * @return La casilla, o null si no existe
+	 */
+	public Casilla getCasilla(int x, int y) {
+		if (!existeCasilla(x, y))
+			return null;
+		return new Casilla(x, y, almacen.leer(x * columnas + y));
+	}
+
+	/**
+	 * Copia el estado empaquetado de varias casillas consecutivas, con el
+	 * formato de {@link AlmacenTablero}, sin crear una {@link Casilla} por
+	 * cada una. Sirve para dibujar un tramo del tablero de una sola vez.
+	 *
+	 * @param desde
+	 *            Indice de la primera casilla (fila * columnas + columna)
+	 * @param destino
+	 *            Vector donde se copian los estados
+	 * @param desplazamiento
+	 *            Posicion del vector donde se copia el primero
+	 * @param cantidad
+	 *            Numero de casillas a leer
+	 * @throws IndexOutOfBoundsException
+	 *             Si el tramo no esta dentro del tablero o del vector
+	 */
+	public void leerCasillas(int desde, byte[] destino, int desplazamiento,
+			int cantidad) {
+		if (desde < 0 || cantidad < 0
+				|| desde > filas * columnas - cantidad
+				|| desplazamiento < 0
+				|| desplazamiento > destino.length - cantidad)
+			throw new IndexOutOfBoundsException(
+					"El tramo no esta dentro del tablero");
+		almacen.leer(desde, destino, desplazamiento, cantidad);
+	}
+
+	public boolean isZonaSeguraAmplia() {
+		return zonaSeguraAmplia;
+	}
+
+	/**
+	 * Indica si al colocar las minas, en la primera pulsacion, se deben
+	 * excluir tambien las casillas adyacentes a la pulsada para que esta se
+	 * abra siempre en cascada. Si el tablero no tiene sitio suficiente solo se
+	 * excluye la casilla pulsada.
+	 * 
+	 * @param zonaSeguraAmplia
+	 *            Si se deben excluir las casillas adyacentes
+	 */
+	public void setZonaSeguraAmplia(boolean zonaSeguraAmplia) {
+		this.zonaSeguraAmplia = zonaSeguraAmplia;
+		// Guardarla en el almacen si aun no se han colocado las minas, para
+		// que se conserve al restaurar la partida
+		if (getPrimeraCasilla() < 0)
+			almacen.escribirContador(AlmacenTablero.CONTADOR_ZONA_SEGURA,
+					zonaSeguraAmplia ? 1 : 0);
+	}
+
+	public boolean isAutocomprobacion() {
+		return autocomprobacion;
+	}
+
+	/**
+	 * Activa o desactiva la comprobacion, tras cada destape, de que el
+	 * contador de casillas destapadas es coherente con el tablero. Recorre
+	 * todas las casillas en cada jugada, por lo que solo debe usarse al
+	 * depurar y con un solo jugador.
+	 * 
+	 * @param autocomprobacion
+	 *            Si se debe realizar la comprobacion
+	 */
+	public void setAutocomprobacion(boolean autocomprobacion) {
+		this.autocomprobacion = autocomprobacion;
 	}
 
 	public List<EstadoObserver> getEstadoObservers() {
@@ -98,18 +418,20 @@ public class EstadoJuego {
 	 * Si en la fase del juego que se encuentra aun no se habia destapado
 	 * ninguna casilla, se generan las minas y se calculan los valores de minas
 	 * adyacentes a cada casilla, y se notifica el numero de banderas que se
-	 * pueden colocar (coincide con el de las minas).
+	 * pueden colocar (coincide con el de las minas). Si las minas ya se habian
+	 * colocado antes de jugar, se apartan de la casilla pulsada, de modo que
+	 * la primera casilla destapada nunca es una mina.
 	 * </p>
 	 * <p>
 	 * A continuacion se destapa la casilla y se notifica a los observadores su
 	 * valor. Si es una mina se ha perdido la partida, se destapa todo el
 	 * tablero y se notifica al jugador. Si no es una mina, en caso de no tener
-	 * ninguna adyacente se van destapando de manera recursiva hasta que se
-	 * llega a alguna que tenga minas cercanas.
+	 * ninguna adyacente se van destapando en cascada hasta que se llega a
+	 * alguna que tenga minas cercanas.
 	 * </p>
 	 * <p>
-	 * Tras el destape, se comprueba si se ha ganado la partida y en tal caso se
-	 * notifica al jugador.
+	 * Tras el destape, se comprueba una unica vez si se ha ganado la partida y
+	 * en tal caso se notifica al jugador.
 	 * </p>
 	 * 
 	 * @param x
@@ -122,6 +444,7 @@ public class EstadoJuego {
 	 *             partida
 	 */
 	public void destaparCasilla(int x, int y) {
+		Fase fase = getFase();
 		if (fase != Fase.INICIO && fase != Fase.JUGANDO)
 			throw new IllegalStateException(
 					"No puede jugar una partida finalizada");
@@ -130,63 +453,478 @@ public class EstadoJuego {
 			return;
 		}
 
-		Casilla casilla = casillas[x][y];
-		if (casilla.isDestapada())
+		int indice = x * columnas + y;
+		if (isDestapada(almacen.leer(indice)))
 			return;
-		if (fase == Fase.INICIO) {
-			// Colocar las bombas y establecer el valor de las adyacencias
-			initCuadricula(x, y);
-			// Notificar cuantas banderas se pueden poner aun
-			for (EstadoObserver o : observadores) {
-				o.banderasRestantes(getBanderasRestantes());
+		boolean primera = almacen
+				.leerContador(AlmacenTablero.CONTADOR_PRIMERA_DESTAPADA) < 0;
+		if (primera) {
+			// Colocar las bombas y establecer el valor de las adyacencias, o
+			// apartarlas de la casilla si ya estaban colocadas
+			primeraPulsacion(x, y);
+		}
+
+		if (historial == null) {
+			jugarDestape(indice);
+			return;
+		}
+		// Como fase anterior se guarda la de antes de colocar las minas
+		int tipo = HistorialJugadas.DESTAPE;
+		if (primera)
+			tipo = HistorialJugadas.PRIMER_DESTAPE
+					| (zonaSeguraAmplia ? HistorialJugadas.ZONA_AMPLIA : 0);
+		historial.empezar(tipo, fase,
+				almacen.leerContador(AlmacenTablero.CONTADOR_DESTAPADAS));
+		try {
+			jugarDestape(indice);
+		} finally {
+			historial.terminar(getFase(), almacen
+					.leerContador(AlmacenTablero.CONTADOR_DESTAPADAS));
+		}
+	}
+
+	/**
+	 * Destapa una casilla, con las minas ya colocadas, y la cascada que
+	 * provoque, terminando la partida si corresponde.
+	 * 
+	 * @param indice
+	 *            Indice de la casilla
+	 */
+	private void jugarDestape(int indice) {
+		// Si otra jugada simultanea la ha destapado ya, no hacer nada
+		if (!destapar(indice))
+			return;
+
+		// Destapar, si no tiene minas alrededor, todas las adyacentes de
+		// manera iterativa, notificando sus valores
+		BufferDestape buffer = getBuffer();
+		buffer.cola[0] = indice;
+		int destapadas = destaparEnCascada(buffer, 1);
+		terminarJugada(buffer, destapadas, isMina(almacen.leer(indice)));
+	}
+
+	/**
+	 * <p>
+	 * Destapa a la vez todas las casillas adyacentes a una casilla destapada
+	 * que no tengan bandera, siempre que a su alrededor haya tantas banderas
+	 * como indica su valor. Es la jugada habitual de los jugadores expertos
+	 * para despejar los alrededores de un numero ya resuelto.
+	 * </p>
+	 * <p>
+	 * Las cascadas de todas las adyacentes se recorren juntas, partiendo de
+	 * todas ellas en la misma cola de trabajo, de modo que las regiones que se
+	 * solapan se recorren una sola vez, las casillas destapadas se notifican
+	 * en un solo lote y la victoria o la derrota se comprueban una sola vez.
+	 * Si alguna bandera estaba mal puesta y una de las adyacentes es una mina,
+	 * se pierde la partida como al destapar la mina.
+	 * </p>
+	 * 
+	 * @param x
+	 *            Fila de la casilla
+	 * @param y
+	 *            Columna de la casilla
+	 * @throws IllegalStateException
+	 *             Si se intenta jugar cuando se ha terminado la partida
+	 */
+	public void destaparAdyacentes(int x, int y) {
+		Fase fase = getFase();
+		if (fase != Fase.INICIO && fase != Fase.JUGANDO)
+			throw new IllegalStateException(
+					"No puede jugar una partida finalizada");
+
+		if (!existeCasilla(x, y))
+			return;
+		byte estado = almacen.leer(x * columnas + y);
+		int valor = getValor(estado);
+		if (!isDestapada(estado) || isMina(estado) || valor == 0)
+			return;
+
+		int primeraFila = Math.max(x - 1, 0);
+		int ultimaFila = Math.min(x + 1, filas - 1);
+		int primeraColumna = Math.max(y - 1, 0);
+		int ultimaColumna = Math.min(y + 1, columnas - 1);
+		int banderas = 0;
+		int tapadas = 0;
+		for (int fila = primeraFila; fila <= ultimaFila; fila++) {
+			int adyacente = fila * columnas + primeraColumna;
+			for (int columna = primeraColumna; columna <= ultimaColumna; columna++, adyacente++) {
+				byte vecina = almacen.leer(adyacente);
+				if ((vecina & AlmacenTablero.BANDERA) != 0)
+					banderas++;
+				else if (!isDestapada(vecina))
+					tapadas++;
 			}
-			fase = Fase.JUGANDO;
 		}
+		if (banderas != valor || tapadas == 0)
+			return;
 
-		casilla.destapar();
+		if (historial == null) {
+			jugarAdyacentes(primeraFila, ultimaFila, primeraColumna,
+					ultimaColumna);
+			return;
+		}
+		historial.empezar(HistorialJugadas.DESTAPE, getFase(),
+				almacen.leerContador(AlmacenTablero.CONTADOR_DESTAPADAS));
+		try {
+			jugarAdyacentes(primeraFila, ultimaFila, primeraColumna,
+					ultimaColumna);
+		} finally {
+			historial.terminar(getFase(), almacen
+					.leerContador(AlmacenTablero.CONTADOR_DESTAPADAS));
+		}
+	}
 
-		// Notificar a los observadores del valor de la casilla destapado
-		for (EstadoObserver o : observadores) {
-			o.casillaDestapada(x, y, casilla.getValor());
+	/**
+	 * Destapa las casillas sin bandera de un rectangulo y la cascada que
+	 * provoquen, terminando la partida si corresponde.
+	 */
+	private void jugarAdyacentes(int primeraFila, int ultimaFila,
+			int primeraColumna, int ultimaColumna) {
+		BufferDestape buffer = getBuffer();
+		int semillas = 0;
+		boolean mina = false;
+		for (int fila = primeraFila; fila <= ultimaFila; fila++) {
+			int adyacente = fila * columnas + primeraColumna;
+			for (int columna = primeraColumna; columna <= ultimaColumna; columna++, adyacente++) {
+				byte vecina = almacen.leer(adyacente);
+				// Otra jugada simultanea puede haberla destapado ya
+				if ((vecina & AlmacenTablero.BANDERA) != 0
+						|| !destapar(adyacente))
+					continue;
+				mina |= isMina(vecina);
+				buffer.cola[semillas++] = adyacente;
+			}
 		}
+		if (semillas == 0)
+			return;
+		int destapadas = destaparEnCascada(buffer, semillas);
+		terminarJugada(buffer, destapadas, mina);
+	}
 
-		if (casilla.isMina()) {
-			fase = Fase.DERROTA;
+	/**
+	 * Termina una jugada tras destapar casillas: si alguna era una mina se
+	 * pierde la partida y se destapa todo el tablero, y si no se suman las
+	 * casillas destapadas y se comprueba una sola vez si se ha ganado.
+	 * 
+	 * @param buffer
+	 *            Cola de trabajo de la jugada
+	 * @param destapadas
+	 *            Casillas destapadas en la jugada, incluidas las minas
+	 * @param mina
+	 *            Si se ha destapado alguna mina
+	 */
+	private void terminarJugada(BufferDestape buffer, int destapadas,
+			boolean mina) {
+		if (mina) {
+			// Solo la primera jugada que pisa una mina termina la partida
+			if (!cambiarFase(Fase.JUGANDO, Fase.DERROTA))
+				return;
 			// Destapar todas las casillas
-			destaparTableroCompleto();
+			destaparTableroCompleto(buffer);
 			// Notificar a los observadores de que se ha perdido la partida
 			for (EstadoObserver o : observadores) {
-				o.finPartida(fase);
+				o.finPartida(Fase.DERROTA);
 			}
 			return;
 		}
 
-		// Si la casilla no tiene ninguna mina alrededor,
-		// destapar todas las adyacentes
-		if (casilla.getValor() == 0) {
-			for (int fila = x - 1; fila <= x + 1; fila++) {
-				for (int columna = y - 1; columna <= y + 1; columna++) {
-					// Si la casilla adyacente no existe, continuar con otra
-					if ((x == fila && y == columna)
-							|| !existeCasilla(fila, columna))
-						continue;
-					// Si la casilla adyacente no es mina y
-					// no se ha destapado ya, destaparla
-					Casilla adyacente = casillas[fila][columna];
-					if (!adyacente.isMina() && !adyacente.isDestapada())
-						destaparCasilla(fila, columna);
-				}
+		int casillasDestapadas = sumarContador(
+				AlmacenTablero.CONTADOR_DESTAPADAS, destapadas);
+		if (autocomprobacion && casillasDestapadas != contarDestapadas())
+			throw new IllegalStateException(
+					"El contador de casillas destapadas no es coherente");
+
+		if (casillasDestapadas == filas * columnas - minasTotales
+				&& cambiarFase(Fase.JUGANDO, Fase.VICTORIA)) {
+			// Notificar a los observadores de que se ha ganado la partida
+			for (EstadoObserver o : observadores) {
+				o.finPartida(Fase.VICTORIA);
 			}
 		}
 
-		if (comprobarVictoria()) {
-			fase = Fase.VICTORIA;
-			// Notificar a los observadores de que se ha ganado la partida
+	}
+
+	/**
+	 * Coloca las minas como si se pulsase por primera vez la casilla indicada,
+	 * pero sin destaparla, de modo que el tablero se puede generar antes de
+	 * que juegue nadie. Si las minas ya estaban colocadas no hace nada.
+	 * 
+	 * @param x
+	 *            Fila de la casilla que queda libre de minas
+	 * @param y
+	 *            Columna de la casilla que queda libre de minas
+	 * @throws IllegalArgumentException
+	 *             Si la casilla no existe
+	 */
+	public void colocarMinas(int x, int y) {
+		if (!existeCasilla(x, y))
+			throw new IllegalArgumentException("La casilla no existe");
+		prepararTablero(x, y);
+	}
+
+	/**
+	 * Prepara el tablero para destapar la primera casilla: coloca las minas si
+	 * aun no se habian colocado o, si se colocaron antes de jugar, aparta las
+	 * que haya en la casilla pulsada.
+	 * 
+	 * @param x
+	 *            Fila de la primera casilla pulsada
+	 * @param y
+	 *            Columna de la primera casilla pulsada
+	 */
+	void primeraPulsacion(int x, int y) {
+		if (getPrimeraDestapada() >= 0)
+			return;
+		if (getFase() == Fase.INICIO)
+			prepararTablero(x, y);
+		else
+			apartarMinas(x, y);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_PRIMERA_DESTAPADA, x
+				* columnas + y);
+	}
+
+	/**
+	 * Coloca las minas y calcula el valor de las adyacencias en la primera
+	 * pulsacion, notifica cuantas banderas se pueden poner y pasa a la fase de
+	 * juego.
+	 * 
+	 * @param x
+	 *            Fila de la primera casilla pulsada
+	 * @param y
+	 *            Columna de la primera casilla pulsada
+	 */
+	void prepararTablero(int x, int y) {
+		if (getFase() != Fase.INICIO)
+			return;
+		almacen.escribirContador(AlmacenTablero.CONTADOR_PRIMERA_CASILLA, x
+				* columnas + y);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_ZONA_SEGURA,
+				zonaSeguraAmplia ? 1 : 0);
+		initCuadricula(x, y);
+		// Notificar cuantas banderas se pueden poner aun
+		for (EstadoObserver o : observadores) {
+			o.banderasRestantes(getBanderasRestantes());
+		}
+		cambiarFase(Fase.INICIO, Fase.JUGANDO);
+	}
+
+	/**
+	 * @return El almacen con las casillas y los contadores de la partida
+	 */
+	AlmacenTablero getAlmacen() {
+		return almacen;
+	}
+
+	/**
+	 * Obtiene la cola de trabajo para el destape en cascada de la jugada en
+	 * curso.
+	 * 
+	 * @return La cola de trabajo
+	 */
+	BufferDestape getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return Si se guarda el historial de jugadas para deshacerlas
+	 */
+	public boolean isHistorialActivo() {
+		return historial != null;
+	}
+
+	/**
+	 * Activa o desactiva el historial de jugadas. Solo se pueden deshacer las
+	 * jugadas hechas con el historial activo, y al desactivarlo se descarta.
+	 * 
+	 * @param activo
+	 *            Si se guarda el historial de jugadas
+	 */
+	public void setHistorialActivo(boolean activo) {
+		if (!activo)
+			historial = null;
+		else if (historial == null)
+			historial = new HistorialJugadas();
+	}
+
+	/**
+	 * @return Si hay alguna jugada que deshacer
+	 */
+	public boolean puedeDeshacer() {
+		return historial != null && historial.puedeDeshacer();
+	}
+
+	/**
+	 * @return Si hay alguna jugada deshecha que rehacer
+	 */
+	public boolean puedeRehacer() {
+		return historial != null && historial.puedeRehacer();
+	}
+
+	/**
+	 * <p>
+	 * Deshace la ultima jugada del historial, en un tiempo proporcional a las
+	 * casillas que cambio: vuelve a tapar las casillas que destapo (o conmuta
+	 * de nuevo su bandera) y recupera el numero de casillas destapadas y la
+	 * fase anteriores.
+	 * </p>
+	 * <p>
+	 * Al deshacer el primer destape el tablero vuelve a quedar como antes de
+	 * la primera pulsacion, recorriendolo entero: si las minas se colocaron
+	 * al pulsar se quitan y la partida vuelve a {@link Fase#INICIO}, y si ya
+	 * estaban colocadas vuelven a su sitio. Asi la siguiente primera
+	 * pulsacion vuelve a ser segura, sea en la casilla que sea.
+	 * </p>
+	 * <p>
+	 * Las casillas tapadas y la reanudacion de una partida terminada solo se
+	 * notifican a los observadores que implementan
+	 * {@link EstadoObserverDeshacer}.
+	 * </p>
+	 * 
+	 * @return Si se ha deshecho alguna jugada
+	 */
+	public boolean deshacer() {
+		if (!puedeDeshacer())
+			return false;
+		int jugada = historial.deshacer();
+		int[] casillas = historial.getCasillas();
+		int inicio = historial.getInicio(jugada);
+		if (historial.getTipo(jugada) == HistorialJugadas.BANDERA) {
+			conmutarBandera(casillas[inicio]);
+			return true;
+		}
+		int fin = inicio + historial.getCantidad(jugada);
+		for (int i = inicio; i < fin; i++) {
+			byte estado = almacen.leer(casillas[i]);
+			almacen.escribir(casillas[i],
+					(byte) (estado & ~AlmacenTablero.DESTAPADA));
+		}
+		almacen.escribirContador(AlmacenTablero.CONTADOR_DESTAPADAS,
+				historial.getDestapadasAntes(jugada));
+		Fase fase = historial.getFaseAntes(jugada);
+		boolean reanudada = getFase() == Fase.VICTORIA
+				|| getFase() == Fase.DERROTA;
+		almacen.escribirContador(AlmacenTablero.CONTADOR_FASE, fase.ordinal());
+		if (historial.getTipo(jugada) == HistorialJugadas.PRIMER_DESTAPE)
+			deshacerPrimeraPulsacion(fase);
+
+		// Notificar las casillas tapadas en lotes del tamaño de la cola
+		BufferDestape buffer = getBuffer();
+		while (buffer.cola.length < Math.min(fin - inicio, TAMAÑO_MAXIMO_COLA))
+			buffer.ampliar();
+		for (int desde = inicio; desde < fin; desde += buffer.cola.length) {
+			int cantidad = Math.min(fin - desde, buffer.cola.length);
+			System.arraycopy(casillas, desde, buffer.cola, 0, cantidad);
+			for (EstadoObserver o : observadores) {
+				if (o instanceof EstadoObserverDeshacer)
+					((EstadoObserverDeshacer) o).casillasTapadas(buffer.cola,
+							cantidad);
+			}
+		}
+		if (reanudada) {
+			for (EstadoObserver o : observadores) {
+				if (o instanceof EstadoObserverDeshacer)
+					((EstadoObserverDeshacer) o).partidaReanudada();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rehace la ultima jugada deshecha, volviendo a destapar las mismas
+	 * casillas o a conmutar la misma bandera, y la notifica como una jugada
+	 * normal.
+	 * 
+	 * @return Si se ha rehecho alguna jugada
+	 */
+	public boolean rehacer() {
+		if (!puedeRehacer())
+			return false;
+		int jugada = historial.rehacer();
+		int[] casillas = historial.getCasillas();
+		int inicio = historial.getInicio(jugada);
+		if (historial.getTipo(jugada) == HistorialJugadas.BANDERA) {
+			conmutarBandera(casillas[inicio]);
+			return true;
+		}
+		if (historial.getTipo(jugada) == HistorialJugadas.PRIMER_DESTAPE) {
+			// La primera casilla de la jugada es la pulsada, y la semilla
+			// vuelve a colocar las minas igual con la misma zona segura
+			boolean amplia = zonaSeguraAmplia;
+			zonaSeguraAmplia = historial.isZonaAmplia(jugada);
+			primeraPulsacion(casillas[inicio] / columnas, casillas[inicio]
+					% columnas);
+			zonaSeguraAmplia = amplia;
+		}
+		BufferDestape buffer = getBuffer();
+		int pendientes = 0;
+		int fin = inicio + historial.getCantidad(jugada);
+		for (int i = inicio; i < fin; i++) {
+			byte estado = almacen.leer(casillas[i]);
+			almacen.escribir(casillas[i],
+					(byte) (estado | AlmacenTablero.DESTAPADA));
+			pendientes = encolarNotificacion(buffer, pendientes, casillas[i]);
+		}
+		almacen.escribirContador(AlmacenTablero.CONTADOR_DESTAPADAS,
+				historial.getDestapadasDespues(jugada));
+		Fase fase = historial.getFaseDespues(jugada);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_FASE, fase.ordinal());
+		notificarDestapadas(buffer, pendientes);
+		if (fase == Fase.VICTORIA || fase == Fase.DERROTA) {
 			for (EstadoObserver o : observadores) {
 				o.finPartida(fase);
 			}
 		}
+		return true;
+	}
 
+	/**
+	 * Deja el tablero como estaba antes de la primera pulsacion, una vez
+	 * tapadas las casillas que destapo: quita las minas y los numeros,
+	 * conservando las banderas, y si las minas se habian colocado antes de
+	 * jugar las vuelve a colocar a partir de la misma casilla, que con la
+	 * misma semilla las deja donde estaban.
+	 * 
+	 * @param fase
+	 *            Fase de la partida antes de la primera pulsacion
+	 */
+	private void deshacerPrimeraPulsacion(Fase fase) {
+		byte[] fila = new byte[columnas];
+		for (int i = 0; i < filas; i++) {
+			almacen.leer(i * columnas, fila, 0, columnas);
+			for (int j = 0; j < columnas; j++)
+				fila[j] &= ~AlmacenTablero.VALOR;
+			almacen.escribir(i * columnas, fila, 0, columnas);
+		}
+		int primera = getPrimeraCasilla();
+		almacen.escribirContador(AlmacenTablero.CONTADOR_PRIMERA_DESTAPADA, -1);
+		almacen.escribirContador(AlmacenTablero.CONTADOR_PRIMERA_CASILLA, -1);
+		if (fase != Fase.INICIO) {
+			boolean amplia = zonaSeguraAmplia;
+			zonaSeguraAmplia = almacen
+					.leerContador(AlmacenTablero.CONTADOR_ZONA_SEGURA) != 0;
+			almacen.escribirContador(AlmacenTablero.CONTADOR_FASE,
+					Fase.INICIO.ordinal());
+			prepararTablero(primera / columnas, primera % columnas);
+			zonaSeguraAmplia = amplia;
+		}
+	}
+
+	/**
+	 * Conmuta la bandera de una casilla al deshacer o rehacer, ajustando el
+	 * numero de banderas y notificandolo.
+	 * 
+	 * @param indice
+	 *            Indice de la casilla
+	 */
+	private void conmutarBandera(int indice) {
+		byte estado = almacen.leer(indice);
+		boolean bandera = (estado & AlmacenTablero.BANDERA) == 0;
+		almacen.escribir(indice, (byte) (estado ^ AlmacenTablero.BANDERA));
+		sumarContador(AlmacenTablero.CONTADOR_BANDERAS, bandera ? 1 : -1);
+		for (EstadoObserver o : observadores) {
+			o.banderaEstablecida(indice / columnas, indice % columnas, bandera);
+			o.banderasRestantes(getBanderasRestantes());
+		}
 	}
 
 	/**
@@ -196,7 +934,8 @@ public class EstadoJuego {
 	 * @return Las banderas que se pueden colocar
 	 */
 	public int getBanderasRestantes() {
-		return minasTotales - banderasEstablecidas;
+		return minasTotales
+				- almacen.leerContador(AlmacenTablero.CONTADOR_BANDERAS);
 	}
 
 	/**
@@ -223,6 +962,7 @@ public class EstadoJuego {
 	 *            La columna de la bandera
 	 */
 	public void establecerBandera(int x, int y) {
+		Fase fase = getFase();
 		if (fase != Fase.INICIO && fase != Fase.JUGANDO)
 			throw new IllegalStateException(
 					"No puede colocar una bandera en una partida finalizada");
@@ -231,59 +971,354 @@ public class EstadoJuego {
 			return;
 		}
 
-		Casilla casilla = casillas[x][y];
-		if (casilla.isDestapada())
+		int indice = x * columnas + y;
+		byte estado = almacen.leer(indice);
+		if (isDestapada(estado))
 			return;
 
-		// Comprobar la validez de colocar o quitar una bandera mas
-		if (banderasEstablecidas == minasTotales && !casilla.isBandera())
-			return;
-		if (banderasEstablecidas == 0 && casilla.isBandera())
+		// Comprobar la validez de colocar o quitar una bandera mas,
+		// reservando el cambio en el contador antes de tocar la casilla
+		boolean bandera = (estado & AlmacenTablero.BANDERA) != 0;
+		if (!ajustarBanderas(bandera ? -1 : 1))
 			return;
 
-		casilla.conmutarBandera();
-		if (casilla.isBandera())
-			banderasEstablecidas++;
-		else
-			banderasEstablecidas--;
+		if (!almacen.compararYEscribir(indice, estado,
+				(byte) (estado ^ AlmacenTablero.BANDERA))) {
+			// Otra jugada simultanea ha cambiado la casilla: deshacer la
+			// reserva
+			sumarContador(AlmacenTablero.CONTADOR_BANDERAS, bandera ? 1 : -1);
+			return;
+		}
+		bandera = !bandera;
+		if (historial != null) {
+			int destapadas = almacen
+					.leerContador(AlmacenTablero.CONTADOR_DESTAPADAS);
+			historial.empezar(HistorialJugadas.BANDERA, fase, destapadas);
+			historial.añadir(indice);
+			historial.terminar(fase, destapadas);
+		}
 
 		// Notificar que se ha establecido/eliminado la bandera,
 		// y cuantas se pueden poner aun
 		for (EstadoObserver o : observadores) {
-			o.banderaEstablecida(x, y, casilla.isBandera());
+			o.banderaEstablecida(x, y, bandera);
 			o.banderasRestantes(getBanderasRestantes());
 		}
 
 	}
 
 	/**
-	 * Destapa todas las casillas del tablero (que no lo estuviesen ya) y
+	 * Destapa todas las casillas del tablero que no lo estuviesen ya y
 	 * notifica a los observadores del estado del juego de todos los valores de
-	 * estas.
-	 */
-	private void destaparTableroCompleto() {
-		for (int i = 0; i < casillas.length; i++) {
-			for (int j = 0; j < casillas[0].length; j++) {
-				Casilla casilla = casillas[i][j];
-				if (!casilla.isDestapada())
-					casilla.destapar();
+	 * estas, en lotes del tamaño de la cola de trabajo.
+	 */
+	private void destaparTableroCompleto(BufferDestape buffer) {
+		int pendientes = 0;
+		for (int indice = 0; indice < filas * columnas; indice++) {
+			if (destapar(indice))
+				pendientes = encolarNotificacion(buffer, pendientes, indice);
+		}
+		notificarDestapadas(buffer, pendientes);
+	}
+
+	/**
+	 * <p>
+	 * Notifica a los observadores el estado completo de la partida, para que
+	 * reconstruyan el suyo tras restaurarla: las casillas destapadas en un
+	 * solo lote (salvo que superen el tamaño maximo de la cola de trabajo),
+	 * las banderas, las banderas restantes y, si la partida ha terminado, su
+	 * final.
+	 * </p>
+	 * <p>
+	 * A los observadores que no admiten lotes se les notifica casilla a
+	 * casilla, como en cualquier destape.
+	 * </p>
+	 */
+	public void notificarEstado() {
+		if (observadores.isEmpty())
+			return;
+		BufferDestape buffer = getBuffer();
+		int pendientes = 0;
+		for (int indice = 0; indice < filas * columnas; indice++) {
+			byte estado = almacen.leer(indice);
+			if (isDestapada(estado)) {
+				pendientes = encolarNotificacion(buffer, pendientes, indice);
+			} else if ((estado & AlmacenTablero.BANDERA) != 0) {
 				for (EstadoObserver o : observadores) {
-					o.casillaDestapada(i, j, casilla.getValor());
+					o.banderaEstablecida(indice / columnas, indice % columnas,
+							true);
+				}
+			}
+		}
+		notificarDestapadas(buffer, pendientes);
+		Fase fase = getFase();
+		for (EstadoObserver o : observadores) {
+			o.banderasRestantes(getBanderasRestantes());
+			if (fase == Fase.VICTORIA || fase == Fase.DERROTA)
+				o.finPartida(fase);
+		}
+	}
+
+	/**
+	 * Añade una casilla a las que se notifican en lote, ampliando la cola de
+	 * trabajo o notificando las que ya tiene si ha alcanzado su tamaño
+	 * maximo.
+	 * 
+	 * @param buffer
+	 *            Cola de trabajo
+	 * @param pendientes
+	 *            Casillas de la cola pendientes de notificar
+	 * @param indice
+	 *            Casilla a añadir
+	 * @return Las casillas pendientes de notificar tras añadirla
+	 */
+	private int encolarNotificacion(BufferDestape buffer, int pendientes,
+			int indice) {
+		if (pendientes == buffer.cola.length) {
+			if (buffer.cola.length < TAMAÑO_MAXIMO_COLA) {
+				buffer.ampliar();
+			} else {
+				notificarDestapadas(buffer, pendientes);
+				pendientes = 0;
+			}
+		}
+		buffer.cola[pendientes++] = indice;
+		return pendientes;
+	}
+
+	/**
+	 * <p>
+	 * Partiendo de una o varias casillas ya destapadas, las que no tienen
+	 * ninguna mina alrededor destapan todas sus adyacentes que no sean minas,
+	 * repitiendo el proceso con las que tampoco tengan minas cercanas. Las casillas que otra
+	 * jugada simultanea haya destapado antes se dejan para esa jugada.
+	 * </p>
+	 * <p>
+	 * El recorrido es en anchura sobre la cola de trabajo, por lo que su coste
+	 * es proporcional a la region destapada y no depende de la pila. Al
+	 * terminar, las casillas destapadas se notifican a los observadores de una
+	 * vez, empezando por las de partida.
+	 * </p>
+	 * <p>
+	 * Si la region es tan grande que la cola alcanza su tamaño maximo, las
+	 * casillas ya procesadas se notifican y se descartan de la cola, de modo
+	 * que la memoria necesaria depende solo del contorno de la region.
+	 * </p>
+	 * <p>
+	 * Si tras expandir {@link #UMBRAL_PARALELO} casillas aun quedan pendientes
+	 * y hay varios procesadores, el resto de la region se destapa con un
+	 * {@link RellenoParalelo}. El resultado es el mismo, pero las casillas se
+	 * notifican en otro orden.
+	 * </p>
+	 *
+	 * @param buffer
+	 *            Cola de trabajo de la jugada, que empieza con las casillas
+	 *            ya destapadas desde las que parte la cascada
+	 * @param semillas
+	 *            Numero de casillas de partida
+	 * @return El numero de casillas destapadas, incluidas las de partida
+	 */
+	private int destaparEnCascada(BufferDestape buffer, int semillas) {
+		int[] cola = buffer.cola;
+		int fin = semillas;
+		int notificadas = 0;
+		for (int cabeza = 0; cabeza < fin; cabeza++) {
+			if (cabeza == UMBRAL_PARALELO
+					&& RellenoParalelo.isConveniente(filas, columnas)) {
+				notificarDestapadas(buffer, fin);
+				return notificadas + fin
+						+ destaparEnParalelo(buffer, cabeza, fin);
+			}
+			int actual = cola[cabeza];
+			if ((almacen.leer(actual) & AlmacenTablero.VALOR) != 0)
+				continue;
+			int i = actual / columnas;
+			int j = actual % columnas;
+			int primeraFila = Math.max(i - 1, 0);
+			int ultimaFila = Math.min(i + 1, filas - 1);
+			int primeraColumna = Math.max(j - 1, 0);
+			int ultimaColumna = Math.min(j + 1, columnas - 1);
+			for (int fila = primeraFila; fila <= ultimaFila; fila++) {
+				int adyacente = fila * columnas + primeraColumna;
+				for (int columna = primeraColumna; columna <= ultimaColumna; columna++, adyacente++) {
+					// Si la casilla adyacente no es mina y
+					// no se ha destapado ya, destaparla y encolarla
+					byte estado = almacen.leer(adyacente);
+					if (isMina(estado) || isDestapada(estado)
+							|| !destapar(adyacente))
+						continue;
+					if (fin == cola.length) {
+						if (cola.length < TAMAÑO_MAXIMO_COLA
+								|| cabeza < cola.length / 2) {
+							buffer.ampliar();
+							cola = buffer.cola;
+						} else {
+							// Notificar las casillas procesadas y llevar al
+							// principio las pendientes, incluida la actual
+							notificarDestapadas(buffer, cabeza);
+							notificadas += cabeza;
+							fin -= cabeza;
+							System.arraycopy(cola, cabeza, cola, 0, fin);
+							cabeza = 0;
+						}
+					}
+					cola[fin++] = adyacente;
+				}
+			}
+		}
+		notificarDestapadas(buffer, fin);
+		return notificadas + fin;
+	}
+
+	/**
+	 * Continua en varios hilos un destape en cascada, guardando en el
+	 * historial y notificando las casillas que destapa.
+	 *
+	 * @param buffer
+	 *            Cola de trabajo de la jugada
+	 * @param cabeza
+	 *            Posicion de la primera casilla de la cola sin expandir
+	 * @param fin
+	 *            Posicion siguiente a la ultima casilla de la cola
+	 * @return El numero de casillas destapadas, sin contar las de la cola
+	 */
+	private int destaparEnParalelo(BufferDestape buffer, int cabeza, int fin) {
+		RellenoParalelo relleno = new RellenoParalelo(almacen, filas, columnas);
+		int destapadas = relleno.rellenar(buffer.cola, cabeza, fin);
+		int pendientes = 0;
+		for (int indice = relleno.siguiente(); indice >= 0; indice = relleno
+				.siguiente()) {
+			if (historial != null)
+				historial.añadir(indice);
+			pendientes = encolarNotificacion(buffer, pendientes, indice);
+		}
+		notificarDestapadas(buffer, pendientes);
+		return destapadas;
+	}
+
+	/**
+	 * Notifica a los observadores el valor de las primeras casillas de la cola
+	 * de trabajo. Los que admiten lotes reciben todas las casillas en una sola
+	 * llamada, y al resto se les notifica casilla a casilla.
+	 * 
+	 * @param buffer
+	 *            Cola de trabajo de la jugada
+	 * @param cantidad
+	 *            Numero de casillas a notificar
+	 */
+	private void notificarDestapadas(BufferDestape buffer, int cantidad) {
+		if (cantidad == 0 || observadores.isEmpty())
+			return;
+		int[] cola = buffer.cola;
+		byte[] valores = buffer.getValores();
+		for (int i = 0; i < cantidad; i++) {
+			valores[i] = (byte) getValor(almacen.leer(cola[i]));
+		}
+		for (EstadoObserver o : observadores) {
+			if (o instanceof EstadoObserverLotes) {
+				((EstadoObserverLotes) o).casillasDestapadas(cola, valores,
+						cantidad);
+			} else {
+				for (int i = 0; i < cantidad; i++) {
+					o.casillaDestapada(cola[i] / columnas, cola[i] % columnas,
+							valores[i]);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Marca como destapada una casilla si no lo estaba ya.
+	 * 
+	 * @param indice
+	 *            Indice de la casilla
+	 * @return Si la casilla se ha destapado ahora, o false si ya lo estaba
+	 */
+	private boolean destapar(int indice) {
+		byte estado;
+		do {
+			estado = almacen.leer(indice);
+			if (isDestapada(estado))
+				return false;
+		} while (!almacen.compararYEscribir(indice, estado,
+				(byte) (estado | AlmacenTablero.DESTAPADA)));
+		if (historial != null)
+			historial.añadir(indice);
+		return true;
+	}
+
+	/**
+	 * Cambia la fase de la partida si sigue siendo la esperada, de modo que
+	 * cada transicion se produce una sola vez.
+	 * 
+	 * @param esperada
+	 *            Fase en que debe estar la partida
+	 * @param nueva
+	 *            Fase a la que pasa la partida
+	 * @return Si se ha cambiado la fase
+	 */
+	private boolean cambiarFase(Fase esperada, Fase nueva) {
+		return almacen.compararYEscribirContador(AlmacenTablero.CONTADOR_FASE,
+				esperada.ordinal(), nueva.ordinal());
+	}
+
+	/**
+	 * Suma una cantidad a uno de los contadores del almacen.
+	 * 
+	 * @param contador
+	 *            Contador a modificar
+	 * @param cantidad
+	 *            Cantidad a sumar
+	 * @return El nuevo valor del contador
+	 */
+	private int sumarContador(int contador, int cantidad) {
+		int actual;
+		do {
+			actual = almacen.leerContador(contador);
+		} while (!almacen.compararYEscribirContador(contador, actual, actual
+				+ cantidad));
+		return actual + cantidad;
+	}
+
+	/**
+	 * Suma una cantidad al numero de banderas establecidas, siempre que el
+	 * resultado no sea negativo ni supere el numero de minas.
+	 * 
+	 * @param cantidad
+	 *            Banderas que se colocan (positivo) o se quitan (negativo)
+	 * @return Si se ha podido modificar el numero de banderas
+	 */
+	private boolean ajustarBanderas(int cantidad) {
+		int actual;
+		int nuevo;
+		do {
+			actual = almacen.leerContador(AlmacenTablero.CONTADOR_BANDERAS);
+			nuevo = actual + cantidad;
+			if (nuevo < 0 || nuevo > minasTotales)
+				return false;
+		} while (!almacen.compararYEscribirContador(
+				AlmacenTablero.CONTADOR_BANDERAS, actual, nuevo));
+		return true;
+	}
+
 	/**
 	 * <p>
-	 * Coloca las minas en la cuadricula hasta llegar al total solicitado,
-	 * excluyendo la casilla donde se haya realizado la primera pulsacion. La
-	 * posibilidad de establecer una mina en una casilla se calcula de manera
-	 * aleatoria.
+	 * Coloca exactamente el total de minas solicitado, excluyendo la casilla
+	 * donde se haya realizado la primera pulsacion (y, si se ha pedido una zona
+	 * segura amplia, tambien sus adyacentes).
 	 * </p>
 	 * <p>
-	 * Una vez colocada una mina, todas las casillas a su alrededor incrementan
-	 * en uno el valor de minas adyacentes.
+	 * Las minas se eligen con un muestreo parcial de Fisher-Yates sobre las
+	 * casillas disponibles: solo se recuerdan las posiciones intercambiadas, de
+	 * modo que el coste es proporcional al numero de minas y no al tamaño del
+	 * tablero. Si hay mas de {@link #MAXIMO_SORTEOS_TABLA} minas, la tabla de
+	 * intercambios no cabria en memoria y se recorre el tablero eligiendo cada
+	 * casilla con la probabilidad que le corresponde, sin memoria adicional.
+	 * </p>
+	 * <p>
+	 * Las minas solo se marcan al colocarlas, y al final el valor de todas las
+	 * demas casillas se calcula de una vez con {@link CalculoAdyacencias}, en
+	 * lugar de incrementar las adyacentes de cada mina.
 	 * </p>
 	 * 
 	 * @param x
@@ -292,39 +1327,226 @@ public class EstadoJuego {
 	 *            La columna de la primera casilla pulsada
 	 */
 	private void initCuadricula(int x, int y) {
-		int minasEstablecidas = 0;
-		while (minasEstablecidas < minasTotales) {
-			for (int i = 0; i < casillas.length; i++) {
-				for (int j = 0; j < casillas[0].length; j++) {
-					if (i != x && y != j) {
-						double establecerMina = Math.random() * 100;
-						if (!casillas[i][j].isMina()
-								&& establecerMina <= porcentajeMinas) {
-							casillas[i][j].colocarMina();
-							// Aumentar el valor de las casillas adyacentes
-							for (int fila = i - 1; fila <= i + 1; fila++) {
-								for (int columna = j - 1; columna <= j + 1; columna++) {
-									// Si la casilla adyacente no existe,
-									// continuar con otra
-									if ((i == fila && j == columna)
-											|| !existeCasilla(fila, columna))
-										continue;
-									// Si la casilla adyacente no es mina,
-									// incrementar su valor
-									Casilla adyacente = casillas[fila][columna];
-									if (!adyacente.isMina())
-										adyacente.incrementarValor();
-								}
-							}
-							minasEstablecidas++;
-						}
-					}
-					// Si ya se han establecido todas las minas, terminar
-					if (minasEstablecidas == minasTotales)
-						return;
-				}
+		int[] excluidas = casillasExcluidas(x, y);
+		Random aleatorio = new Random(semilla);
+		if (minasTotales > MAXIMO_SORTEOS_TABLA)
+			initCuadriculaSecuencial(aleatorio, excluidas);
+		else
+			initCuadriculaIntercambios(aleatorio, excluidas);
+		new CalculoAdyacencias(almacen, filas, columnas).calcular();
+	}
+
+	/**
+	 * Marca las minas con un muestreo parcial de Fisher-Yates que solo
+	 * recuerda las posiciones intercambiadas.
+	 * 
+	 * @param aleatorio
+	 *            Generador con que se eligen las minas
+	 * @param excluidas
+	 *            Casillas donde no se pueden colocar minas, ordenadas
+	 */
+	private void initCuadriculaIntercambios(Random aleatorio, int[] excluidas) {
+		int disponibles = filas * columnas - excluidas.length;
+		TablaIntercambios intercambios = new TablaIntercambios(minasTotales);
+		for (int k = 0; k < minasTotales; k++) {
+			// Elegir una posicion entre las que aun no se han sorteado y
+			// llevar a su lugar la que ocupaba la posicion k
+			int sorteada = k + aleatorio.nextInt(disponibles - k);
+			int posicion = intercambios.obtener(sorteada);
+			intercambios.poner(sorteada, intercambios.obtener(k));
+			// Traducir la posicion a una casilla saltando las excluidas
+			for (int excluida : excluidas) {
+				if (posicion >= excluida)
+					posicion++;
+			}
+			marcarMina(posicion);
+		}
+	}
+
+	/**
+	 * Marca las minas recorriendo el tablero en orden y eligiendo cada
+	 * casilla disponible con probabilidad igual a las minas que faltan entre
+	 * las casillas que quedan, lo que da la misma distribucion que el
+	 * muestreo de Fisher-Yates.
+	 * 
+	 * @param aleatorio
+	 *            Generador con que se eligen las minas
+	 * @param excluidas
+	 *            Casillas donde no se pueden colocar minas, ordenadas
+	 */
+	private void initCuadriculaSecuencial(Random aleatorio, int[] excluidas) {
+		int restantes = filas * columnas - excluidas.length;
+		int pendientes = minasTotales;
+		int siguienteExcluida = 0;
+		for (int indice = 0; pendientes > 0; indice++) {
+			if (siguienteExcluida < excluidas.length
+					&& excluidas[siguienteExcluida] == indice) {
+				siguienteExcluida++;
+				continue;
+			}
+			if (aleatorio.nextInt(restantes) < pendientes) {
+				marcarMina(indice);
+				pendientes--;
+			}
+			restantes--;
+		}
+	}
+
+	/**
+	 * Estima la memoria que se reserva al colocar las minas de un tablero,
+	 * ademas de la de su almacen, para decidir si una partida cabe en la
+	 * memoria disponible.
+	 * 
+	 * @param minas
+	 *            Numero de minas del tablero
+	 * @return Los bytes que se reservan como maximo
+	 */
+	public static long memoriaGeneracion(int minas) {
+		if (minas > MAXIMO_SORTEOS_TABLA)
+			return 0;
+		// Dos vectores de enteros con hasta cuatro huecos por mina
+		return 2L * 4 * 4 * minas;
+	}
+
+	/**
+	 * Aparta las minas de una casilla (y de sus adyacentes, si se pidio una
+	 * zona segura amplia) cuando se colocaron antes de pulsarla. Cada mina se
+	 * lleva a una casilla libre fuera de la zona elegida con un generador
+	 * derivado de la semilla, por lo que la huella del tablero sigue bastando
+	 * para regenerarlo.
+	 * 
+	 * @param x
+	 *            Fila de la casilla pulsada
+	 * @param y
+	 *            Columna de la casilla pulsada
+	 */
+	private void apartarMinas(int x, int y) {
+		int[] excluidas = casillasExcluidas(x, y);
+		Random aleatorio = null;
+		for (int casilla : excluidas) {
+			if (!isMina(almacen.leer(casilla)))
+				continue;
+			if (aleatorio == null)
+				aleatorio = new Random(~semilla);
+			int destino;
+			do {
+				destino = aleatorio.nextInt(filas * columnas);
+			} while (isMina(almacen.leer(destino))
+					|| Arrays.binarySearch(excluidas, destino) >= 0);
+			colocarMina(destino);
+			quitarMina(casilla);
+		}
+	}
+
+	/**
+	 * Marca una casilla como mina sin cambiar el valor de las de su
+	 * alrededor.
+	 * 
+	 * @param indice
+	 *            Indice de la casilla donde se coloca la mina
+	 */
+	private void marcarMina(int indice) {
+		byte estado;
+		do {
+			estado = almacen.leer(indice);
+		} while (!almacen.compararYEscribir(indice, estado,
+				(byte) (estado | AlmacenTablero.MINA)));
+	}
+
+	/**
+	 * Coloca una mina en una casilla y aumenta en uno el valor de las casillas
+	 * a su alrededor que no sean minas.
+	 * 
+	 * @param indice
+	 *            Indice de la casilla donde se coloca la mina
+	 */
+	private void colocarMina(int indice) {
+		marcarMina(indice);
+		int i = indice / columnas;
+		int j = indice % columnas;
+		int primeraFila = Math.max(i - 1, 0);
+		int ultimaFila = Math.min(i + 1, filas - 1);
+		int primeraColumna = Math.max(j - 1, 0);
+		int ultimaColumna = Math.min(j + 1, columnas - 1);
+		for (int fila = primeraFila; fila <= ultimaFila; fila++) {
+			int adyacente = fila * columnas + primeraColumna;
+			for (int columna = primeraColumna; columna <= ultimaColumna; columna++, adyacente++) {
+				// Si la casilla adyacente no es mina, incrementar su valor
+				byte vecina;
+				do {
+					vecina = almacen.leer(adyacente);
+				} while (!isMina(vecina)
+						&& !almacen.compararYEscribir(adyacente, vecina,
+								(byte) (vecina + 1)));
+			}
+		}
+	}
+
+	/**
+	 * Obtiene, en orden creciente, las casillas donde no se puede colocar una
+	 * mina. Si la zona segura amplia no deja sitio para todas las minas, se
+	 * excluye unicamente la casilla pulsada.
+	 * 
+	 * @param x
+	 *            La fila de la primera casilla pulsada
+	 * @param y
+	 *            La columna de la primera casilla pulsada
+	 * @return Las casillas excluidas, como fila * columnas + columna
+	 */
+	private int[] casillasExcluidas(int x, int y) {
+		if (!zonaSeguraAmplia)
+			return new int[] { x * columnas + y };
+		int[] excluidas = new int[9];
+		int total = 0;
+		for (int fila = x - 1; fila <= x + 1; fila++) {
+			for (int columna = y - 1; columna <= y + 1; columna++) {
+				if (existeCasilla(fila, columna))
+					excluidas[total++] = fila * columnas + columna;
+			}
+		}
+		if (filas * columnas - total < minasTotales)
+			return new int[] { x * columnas + y };
+		int[] resultado = new int[total];
+		System.arraycopy(excluidas, 0, resultado, 0, total);
+		return resultado;
+	}
+
+	/**
+	 * Quita la mina de una casilla, que pasa a valer el numero de minas a su
+	 * alrededor, y disminuye en uno el valor de las casillas adyacentes que no
+	 * sean minas.
+	 * 
+	 * @param indice
+	 *            Indice de la casilla de la que se quita la mina
+	 */
+	private void quitarMina(int indice) {
+		int i = indice / columnas;
+		int j = indice % columnas;
+		int primeraFila = Math.max(i - 1, 0);
+		int ultimaFila = Math.min(i + 1, filas - 1);
+		int primeraColumna = Math.max(j - 1, 0);
+		int ultimaColumna = Math.min(j + 1, columnas - 1);
+		int minas = 0;
+		for (int fila = primeraFila; fila <= ultimaFila; fila++) {
+			int adyacente = fila * columnas + primeraColumna;
+			for (int columna = primeraColumna; columna <= ultimaColumna; columna++, adyacente++) {
+				if (adyacente == indice)
+					continue;
+				byte vecina;
+				do {
+					vecina = almacen.leer(adyacente);
+					if (isMina(vecina))
+						minas++;
+				} while (!isMina(vecina)
+						&& !almacen.compararYEscribir(adyacente, vecina,
+								(byte) (vecina - 1)));
 			}
 		}
+		byte estado;
+		do {
+			estado = almacen.leer(indice);
+		} while (!almacen.compararYEscribir(indice, estado,
+				(byte) ((estado & ~AlmacenTablero.VALOR) | minas)));
 	}
 
 	/**
@@ -339,26 +1561,51 @@ public class EstadoJuego {
 	 * @return Si la casilla se encuentra en un rango valido
 	 */
 	private boolean existeCasilla(int x, int y) {
-		return x >= 0 && x < casillas.length && y >= 0
-				&& y < casillas[0].length;
+		return x >= 0 && x < filas && y >= 0 && y < columnas;
 	}
 
 	/**
-	 * Comprueba si se ha ganado la partida destapando todas las casillas que no
-	 * son bombas.
+	 * @param estado
+	 *            Estado empaquetado de una casilla
+	 * @return Si la casilla contiene una mina
+	 */
+	private static boolean isMina(byte estado) {
+		return (estado & AlmacenTablero.VALOR) == AlmacenTablero.MINA;
+	}
+
+	/**
+	 * @param estado
+	 *            Estado empaquetado de una casilla
+	 * @return Si la casilla se ha destapado
+	 */
+	private static boolean isDestapada(byte estado) {
+		return (estado & AlmacenTablero.DESTAPADA) != 0;
+	}
+
+	/**
+	 * @param estado
+	 *            Estado empaquetado de una casilla
+	 * @return El valor de la casilla: -1 si es una mina o el numero de minas
+	 *         adyacentes en otro caso
+	 */
+	private static int getValor(byte estado) {
+		return isMina(estado) ? -1 : estado & AlmacenTablero.VALOR;
+	}
+
+	/**
+	 * Cuenta recorriendo todo el tablero las casillas sin mina que se han
+	 * destapado.
 	 * 
-	 * @return Si se ha ganado o no
+	 * @return El numero de casillas sin mina destapadas
 	 */
-	private boolean comprobarVictoria() {
-		for (int i = 0; i < casillas.length; i++) {
-			for (int j = 0; j < casillas[0].length; j++) {
-				Casilla c = casillas[i][j];
-				if (!c.isMina() && !c.isDestapada()) {
-					return false;
-				}
-			}
+	private int contarDestapadas() {
+		int total = 0;
+		for (int indice = 0; indice < filas * columnas; indice++) {
+			byte estado = almacen.leer(indice);
+			if (!isMina(estado) && isDestapada(estado))
+				total++;
 		}
-		return true;
+		return total;
 	}
 
 	/**
@@ -367,9 +1614,10 @@ public class EstadoJuego {
 	@Override
 	public String toString() {
 		StringBuffer buffer = new StringBuffer();
-		for (int i = 0; i < casillas.length; i++) {
-			for (int j = 0; j < casillas[0].length; j++) {
-				buffer.append(String.format("%d ", casillas[i][j].getValor()));
+		for (int i = 0; i < filas; i++) {
+			for (int j = 0; j < columnas; j++) {
+				buffer.append(String.format("%d ",
+						getValor(almacen.leer(i * columnas + j))));
 			}
 			buffer.append("\n");
 		}
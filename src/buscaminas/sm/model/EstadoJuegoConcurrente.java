@@ -0,0 +1,131 @@
+package buscaminas.sm.model;
+
+/**
+ * <p>
+ * Estado del juego para partidas en las que varios jugadores destapan casillas
+ * y colocan banderas a la vez sobre el mismo tablero.
+ * </p>
+ * <p>
+ * Las casillas, los contadores y la fase se guardan en un
+ * {@link AlmacenTableroAtomico}, por lo que cada casilla la destapa una sola
+ * jugada aunque varias cascadas se solapen, el numero de banderas nunca supera
+ * al de minas y la victoria o la derrota se producen una sola vez. Cada hilo
+ * usa su propia cola de trabajo, de modo que las jugadas sobre regiones
+ * distintas no se esperan entre si. Solo la colocacion de las minas (o su
+ * reubicacion) en la primera pulsacion se hace en exclusion mutua.
+ * </p>
+ * 
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class EstadoJuegoConcurrente extends EstadoJuego {
+
+	/**
+	 * Cola de trabajo del destape en cascada de cada hilo.
+	 */
+	private final ThreadLocal<BufferDestape> buffers = new ThreadLocal<BufferDestape>() {
+		@Override
+		protected BufferDestape initialValue() {
+			return new BufferDestape();
+		}
+	};
+
+	/**
+	 * Crea una partida compartida con las dimensiones y el porcentaje de minas
+	 * indicados.
+	 * 
+	 * @param x
+	 *            Filas del tablero
+	 * @param y
+	 *            Columnas del tablero
+	 * @param porcentajeMinas
+	 *            Porcentaje de minas sobre el total de casillas
+	 */
+	public EstadoJuegoConcurrente(int x, int y, float porcentajeMinas) {
+		this(x, y, porcentajeMinas, nuevaSemilla());
+	}
+
+	/**
+	 * Crea una partida compartida cuyas minas se colocan a partir de una
+	 * semilla.
+	 * 
+	 * @param x
+	 *            Filas del tablero
+	 * @param y
+	 *            Columnas del tablero
+	 * @param porcentajeMinas
+	 *            Porcentaje de minas sobre el total de casillas
+	 * @param semilla
+	 *            Semilla del generador con que se colocan las minas
+	 */
+	public EstadoJuegoConcurrente(int x, int y, float porcentajeMinas,
+			long semilla) {
+		super(new AlmacenTableroAtomico(x, y),
+				(int) (x * y * porcentajeMinas / 100), semilla);
+	}
+
+	/**
+	 * Crea una partida compartida con un numero exacto de minas sobre un
+	 * almacen atomico con todas las casillas tapadas.
+	 *
+	 * @param almacen
+	 *            Almacen vacio de las casillas
+	 * @param minasTotales
+	 *            Numero de minas del tablero
+	 * @param semilla
+	 *            Semilla del generador con que se colocan las minas
+	 */
+	public EstadoJuegoConcurrente(AlmacenTableroAtomico almacen,
+			int minasTotales, long semilla) {
+		super(almacen, minasTotales, semilla);
+	}
+
+	/**
+	 * Crea una partida compartida sobre un almacen atomico que ya contiene
+	 * las casillas y los contadores de una partida.
+	 *
+	 * @param almacen
+	 *            Almacen con el estado de las casillas y los contadores
+	 */
+	public EstadoJuegoConcurrente(AlmacenTableroAtomico almacen) {
+		super(almacen);
+	}
+
+	/**
+	 * Coloca las minas una sola vez aunque varios jugadores pulsen a la vez la
+	 * primera casilla. El resto de jugadas esperan a que termine.
+	 */
+	@Override
+	synchronized void prepararTablero(int x, int y) {
+		super.prepararTablero(x, y);
+	}
+
+	/**
+	 * Coloca o aparta las minas una sola vez aunque varios jugadores pulsen a
+	 * la vez la primera casilla.
+	 */
+	@Override
+	synchronized void primeraPulsacion(int x, int y) {
+		super.primeraPulsacion(x, y);
+	}
+
+	/**
+	 * El historial de jugadas no admite jugadas simultaneas, por lo que las
+	 * partidas compartidas no se pueden deshacer.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             Si se intenta activar el historial
+	 */
+	@Override
+	public void setHistorialActivo(boolean activo) {
+		if (activo)
+			throw new UnsupportedOperationException(
+					"Las partidas compartidas no se pueden deshacer");
+	}
+
+	@Override
+	BufferDestape getBuffer() {
+		return buffers.get();
+	}
+
+}
@@ -0,0 +1,236 @@
+package buscaminas.sm.model;
+
+/**
+ * <p>
+ * Historial de las jugadas de una partida para deshacerlas y rehacerlas. No
+ * se copia el tablero en cada jugada, sino solo lo que cambia: un destape
+ * guarda las casillas que ha destapado y el numero de casillas destapadas y
+ * la fase de antes y despues, y una bandera guarda solo su casilla. Un
+ * destape en cascada de un millon de casillas ocupa por tanto unos 4 MB, y
+ * una jugada cualquiera se deshace en un tiempo proporcional a sus cambios.
+ * </p>
+ * <p>
+ * Las casillas de todas las jugadas se guardan seguidas en un unico vector, y
+ * las jugadas deshechas no se borran sino que se conservan para rehacerlas
+ * hasta que se haga una jugada nueva.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+final class HistorialJugadas {
+
+	/**
+	 * Fases de la partida, indexadas por su ordinal.
+	 */
+	private static final Fase[] FASES = Fase.values();
+
+	/**
+	 * Tipos de jugada. El primer destape de la partida se distingue porque
+	 * tambien coloca las minas, o las aparta si ya estaban colocadas.
+	 */
+	static final int DESTAPE = 0;
+	static final int BANDERA = 1;
+	static final int PRIMER_DESTAPE = 2;
+
+	/**
+	 * Marca que se añade al tipo del primer destape si las minas se
+	 * colocaron o apartaron con una zona segura amplia.
+	 */
+	static final int ZONA_AMPLIA = 4;
+
+	/**
+	 * Posiciones de los datos de cada jugada en {@link #jugadas}.
+	 */
+	private static final int INICIO = 0;
+	private static final int CANTIDAD = 1;
+	private static final int TIPO_Y_FASES = 2;
+	private static final int DESTAPADAS_ANTES = 3;
+	private static final int DESTAPADAS_DESPUES = 4;
+	private static final int DATOS_JUGADA = 5;
+
+	/**
+	 * Casillas cambiadas por todas las jugadas, una tras otra.
+	 */
+	private int[] casillas = new int[64];
+
+	/**
+	 * Datos de cada jugada, {@link #DATOS_JUGADA} enteros por jugada.
+	 */
+	private int[] jugadas = new int[16 * DATOS_JUGADA];
+
+	/**
+	 * Jugadas hechas, que se pueden deshacer.
+	 */
+	private int hechas;
+
+	/**
+	 * Jugadas guardadas, incluidas las deshechas que se pueden rehacer.
+	 */
+	private int guardadas;
+
+	/**
+	 * Casillas usadas por la jugada en curso y las anteriores.
+	 */
+	private int usadas;
+
+	/**
+	 * Empieza a guardar una jugada nueva, tras todas las guardadas para no
+	 * perder las deshechas si la jugada no cambia nada.
+	 *
+	 * @param tipo
+	 *            {@link #DESTAPE}, {@link #BANDERA} o {@link #PRIMER_DESTAPE},
+	 *            este con {@link #ZONA_AMPLIA} si corresponde
+	 * @param fase
+	 *            Fase de la partida antes de la jugada
+	 * @param destapadas
+	 *            Casillas sin mina destapadas antes de la jugada
+	 */
+	void empezar(int tipo, Fase fase, int destapadas) {
+		usadas = guardadas == 0 ? 0 : fin(guardadas - 1);
+		if (jugadas.length < (guardadas + 1) * DATOS_JUGADA) {
+			int[] nuevas = new int[jugadas.length * 2];
+			System.arraycopy(jugadas, 0, nuevas, 0, jugadas.length);
+			jugadas = nuevas;
+		}
+		int base = guardadas * DATOS_JUGADA;
+		jugadas[base + INICIO] = usadas;
+		jugadas[base + CANTIDAD] = 0;
+		jugadas[base + TIPO_Y_FASES] = tipo | fase.ordinal() << 3;
+		jugadas[base + DESTAPADAS_ANTES] = destapadas;
+	}
+
+	/**
+	 * Añade una casilla cambiada por la jugada en curso.
+	 *
+	 * @param indice
+	 *            Indice de la casilla
+	 */
+	void añadir(int indice) {
+		if (usadas == casillas.length) {
+			int[] nuevas = new int[casillas.length * 2];
+			System.arraycopy(casillas, 0, nuevas, 0, usadas);
+			casillas = nuevas;
+		}
+		casillas[usadas++] = indice;
+	}
+
+	/**
+	 * Termina la jugada en curso. Si no ha cambiado ninguna casilla, se
+	 * descarta y se conservan las jugadas deshechas; si no, las deshechas se
+	 * descartan y la jugada pasa a ocupar el lugar de la primera.
+	 *
+	 * @param fase
+	 *            Fase de la partida tras la jugada
+	 * @param destapadas
+	 *            Casillas sin mina destapadas tras la jugada
+	 */
+	void terminar(Fase fase, int destapadas) {
+		int base = guardadas * DATOS_JUGADA;
+		int inicio = jugadas[base + INICIO];
+		int cantidad = usadas - inicio;
+		if (cantidad == 0)
+			return;
+		if (guardadas > hechas) {
+			int destino = hechas == 0 ? 0 : fin(hechas - 1);
+			System.arraycopy(casillas, inicio, casillas, destino, cantidad);
+			System.arraycopy(jugadas, base, jugadas, hechas * DATOS_JUGADA,
+					DATOS_JUGADA);
+			base = hechas * DATOS_JUGADA;
+			jugadas[base + INICIO] = destino;
+			usadas = destino + cantidad;
+		}
+		jugadas[base + CANTIDAD] = cantidad;
+		jugadas[base + TIPO_Y_FASES] |= fase.ordinal() << 5;
+		jugadas[base + DESTAPADAS_DESPUES] = destapadas;
+		hechas++;
+		guardadas = hechas;
+	}
+
+	/**
+	 * @return Si hay alguna jugada que deshacer
+	 */
+	boolean puedeDeshacer() {
+		return hechas > 0;
+	}
+
+	/**
+	 * @return Si hay alguna jugada deshecha que rehacer
+	 */
+	boolean puedeRehacer() {
+		return hechas < guardadas;
+	}
+
+	/**
+	 * Pasa a la jugada anterior.
+	 *
+	 * @return La posicion de la jugada deshecha
+	 */
+	int deshacer() {
+		return --hechas;
+	}
+
+	/**
+	 * Pasa a la jugada siguiente.
+	 *
+	 * @return La posicion de la jugada rehecha
+	 */
+	int rehacer() {
+		return hechas++;
+	}
+
+	int getTipo(int jugada) {
+		return jugadas[jugada * DATOS_JUGADA + TIPO_Y_FASES] & 3;
+	}
+
+	boolean isZonaAmplia(int jugada) {
+		return (jugadas[jugada * DATOS_JUGADA + TIPO_Y_FASES] & ZONA_AMPLIA) != 0;
+	}
+
+	Fase getFaseAntes(int jugada) {
+		return FASES[jugadas[jugada * DATOS_JUGADA + TIPO_Y_FASES] >>> 3 & 3];
+	}
+
+	Fase getFaseDespues(int jugada) {
+		return FASES[jugadas[jugada * DATOS_JUGADA + TIPO_Y_FASES] >>> 5 & 3];
+	}
+
+	int getDestapadasAntes(int jugada) {
+		return jugadas[jugada * DATOS_JUGADA + DESTAPADAS_ANTES];
+	}
+
+	int getDestapadasDespues(int jugada) {
+		return jugadas[jugada * DATOS_JUGADA + DESTAPADAS_DESPUES];
+	}
+
+	/**
+	 * @return La posicion en {@link #getCasillas()} de la primera casilla de
+	 *         una jugada
+	 */
+	int getInicio(int jugada) {
+		return jugadas[jugada * DATOS_JUGADA + INICIO];
+	}
+
+	/**
+	 * @return El numero de casillas que cambio una jugada
+	 */
+	int getCantidad(int jugada) {
+		return jugadas[jugada * DATOS_JUGADA + CANTIDAD];
+	}
+
+	/**
+	 * @return Las casillas de todas las jugadas. El vector se sustituye al
+	 *         ampliarlo, por lo que no debe guardarse.
+	 */
+	int[] getCasillas() {
+		return casillas;
+	}
+
+	/**
+	 * Posicion siguiente a la ultima casilla de una jugada.
+	 */
+	private int fin(int jugada) {
+		return getInicio(jugada) + getCantidad(jugada);
+	}
+
+}
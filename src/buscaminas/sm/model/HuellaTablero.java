@@ -0,0 +1,345 @@
+package buscaminas.sm.model;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * <p>
+ * Huella de un tablero: los datos minimos a partir de los cuales se vuelve a
+ * generar exactamente la misma colocacion de minas (dimensiones, numero de
+ * minas, semilla, primera casilla pulsada y si se excluyeron sus adyacentes,
+ * y la primera casilla destapada si las minas se colocaron antes de jugar y
+ * hubo que apartarlas de ella).
+ * Ocupa unos 20 bytes en lugar de uno por casilla, por lo que los tableros
+ * se pueden guardar, compartir o comparar mediante su huella y regenerarse
+ * cuando se necesiten.
+ * </p>
+ * <p>
+ * Se codifica en binario con la version del formato, las dimensiones, las
+ * minas y la primera casilla como enteros de longitud variable, la semilla en
+ * 8 bytes, un byte de opciones y, desde la version 2, la primera casilla
+ * destapada como entero de longitud variable. La forma textual es esa codificacion en
+ * Base64 apta para URL y sin relleno.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public final class HuellaTablero {
+
+	/**
+	 * Version del formato de la huella.
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * Version del formato anterior a la primera casilla destapada, que aun se
+	 * puede leer.
+	 */
+	private static final int VERSION_SIN_DESTAPADA = 1;
+
+	/**
+	 * Bit de opciones que indica que se excluyeron las casillas adyacentes a
+	 * la primera pulsada.
+	 */
+	private static final int OPCION_ZONA_SEGURA = 1;
+
+	/**
+	 * Alfabeto de la codificacion textual (Base64 apto para URL).
+	 */
+	private static final String ALFABETO = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+	private final int filas;
+	private final int columnas;
+	private final int minas;
+	private final long semilla;
+	private final int primeraCasilla;
+	private final int primeraDestapada;
+	private final boolean zonaSeguraAmplia;
+
+	/**
+	 * Crea la huella de un tablero cuya primera casilla destapada es la misma
+	 * que la primera pulsada.
+	 *
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 * @param minas
+	 *            Numero de minas del tablero
+	 * @param semilla
+	 *            Semilla con que se colocan las minas
+	 * @param primeraCasilla
+	 *            Indice de la primera casilla pulsada, o -1 si aun no se han
+	 *            colocado las minas
+	 * @param zonaSeguraAmplia
+	 *            Si se excluyen tambien las casillas adyacentes a la primera
+	 * @throws IllegalArgumentException
+	 *             Si los datos no corresponden a un tablero valido
+	 */
+	public HuellaTablero(int filas, int columnas, int minas, long semilla,
+			int primeraCasilla, boolean zonaSeguraAmplia) {
+		this(filas, columnas, minas, semilla, primeraCasilla, -1,
+				zonaSeguraAmplia);
+	}
+
+	/**
+	 * Crea la huella de un tablero.
+	 *
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 * @param minas
+	 *            Numero de minas del tablero
+	 * @param semilla
+	 *            Semilla con que se colocan las minas
+	 * @param primeraCasilla
+	 *            Indice de la primera casilla pulsada, o -1 si aun no se han
+	 *            colocado las minas
+	 * @param primeraDestapada
+	 *            Indice de la primera casilla destapada si las minas se
+	 *            colocaron antes de jugar y no es la primera pulsada, o -1
+	 * @param zonaSeguraAmplia
+	 *            Si se excluyen tambien las casillas adyacentes a la primera
+	 * @throws IllegalArgumentException
+	 *             Si los datos no corresponden a un tablero valido
+	 */
+	public HuellaTablero(int filas, int columnas, int minas, long semilla,
+			int primeraCasilla, int primeraDestapada, boolean zonaSeguraAmplia) {
+		long casillas = (long) filas * columnas;
+		if (filas < 1 || columnas < 1 || casillas > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+					"Las dimensiones del tablero no son validas");
+		if (minas < 0 || minas >= casillas)
+			throw new IllegalArgumentException(
+					"Debe quedar al menos una casilla sin mina");
+		if (primeraCasilla < -1 || primeraCasilla >= casillas)
+			throw new IllegalArgumentException(
+					"La primera casilla no pertenece al tablero");
+		if (primeraDestapada < -1 || primeraDestapada >= casillas
+				|| (primeraDestapada >= 0 && primeraCasilla < 0))
+			throw new IllegalArgumentException(
+					"La primera casilla destapada no es valida");
+		this.filas = filas;
+		this.columnas = columnas;
+		this.minas = minas;
+		this.semilla = semilla;
+		this.primeraCasilla = primeraCasilla;
+		this.primeraDestapada = primeraDestapada;
+		this.zonaSeguraAmplia = zonaSeguraAmplia;
+	}
+
+	public int getFilas() {
+		return filas;
+	}
+
+	public int getColumnas() {
+		return columnas;
+	}
+
+	public int getMinas() {
+		return minas;
+	}
+
+	public long getSemilla() {
+		return semilla;
+	}
+
+	/**
+	 * @return El indice de la primera casilla pulsada (fila * columnas +
+	 *         columna), o -1 si aun no se habian colocado las minas
+	 */
+	public int getPrimeraCasilla() {
+		return primeraCasilla;
+	}
+
+	/**
+	 * @return El indice de la primera casilla destapada si las minas se
+	 *         colocaron antes de jugar y se apartaron de ella, o -1
+	 */
+	public int getPrimeraDestapada() {
+		return primeraDestapada;
+	}
+
+	public boolean isZonaSeguraAmplia() {
+		return zonaSeguraAmplia;
+	}
+
+	/**
+	 * Vuelve a generar el tablero en memoria, con las minas colocadas si la
+	 * huella incluye la primera casilla pulsada, pero sin destapar ninguna.
+	 *
+	 * @return Una partida nueva con el mismo tablero
+	 */
+	public EstadoJuego regenerar() {
+		EstadoJuego juego = new EstadoJuego(new AlmacenTableroEmpaquetado(
+				filas, columnas), minas, semilla);
+		juego.aplicarHuella(this);
+		return juego;
+	}
+
+	/**
+	 * Codifica la huella en binario.
+	 *
+	 * @return Los bytes de la huella
+	 */
+	public byte[] codificar() {
+		ByteArrayOutputStream salida = new ByteArrayOutputStream(24);
+		salida.write(VERSION);
+		escribirVariable(salida, filas);
+		escribirVariable(salida, columnas);
+		escribirVariable(salida, minas);
+		for (int desplazamiento = 56; desplazamiento >= 0; desplazamiento -= 8)
+			salida.write((int) (semilla >>> desplazamiento));
+		escribirVariable(salida, primeraCasilla + 1);
+		salida.write(zonaSeguraAmplia ? OPCION_ZONA_SEGURA : 0);
+		escribirVariable(salida, primeraDestapada + 1);
+		return salida.toByteArray();
+	}
+
+	/**
+	 * Obtiene una huella a partir de su codificacion binaria.
+	 *
+	 * @param bytes
+	 *            Los bytes de la huella
+	 * @return La huella
+	 * @throws IllegalArgumentException
+	 *             Si los bytes no contienen una huella valida
+	 */
+	public static HuellaTablero decodificar(byte[] bytes) {
+		int[] posicion = new int[1];
+		int version = leerByte(bytes, posicion);
+		if (version != VERSION && version != VERSION_SIN_DESTAPADA)
+			throw new IllegalArgumentException(
+					"Version de la huella no soportada");
+		int filas = leerVariable(bytes, posicion);
+		int columnas = leerVariable(bytes, posicion);
+		int minas = leerVariable(bytes, posicion);
+		long semilla = 0;
+		for (int i = 0; i < 8; i++)
+			semilla = (semilla << 8) | leerByte(bytes, posicion);
+		int primeraCasilla = leerVariable(bytes, posicion) - 1;
+		int opciones = leerByte(bytes, posicion);
+		int primeraDestapada = -1;
+		if (version == VERSION)
+			primeraDestapada = leerVariable(bytes, posicion) - 1;
+		if (posicion[0] != bytes.length
+				|| (opciones & ~OPCION_ZONA_SEGURA) != 0)
+			throw new IllegalArgumentException("La huella no es valida");
+		return new HuellaTablero(filas, columnas, minas, semilla,
+				primeraCasilla, primeraDestapada,
+				(opciones & OPCION_ZONA_SEGURA) != 0);
+	}
+
+	/**
+	 * Obtiene una huella a partir de su forma textual.
+	 *
+	 * @param texto
+	 *            El texto devuelto por {@link #toString()}
+	 * @return La huella
+	 * @throws IllegalArgumentException
+	 *             Si el texto no contiene una huella valida
+	 */
+	public static HuellaTablero analizar(String texto) {
+		if (texto.length() % 4 == 1)
+			throw new IllegalArgumentException("La huella no es valida");
+		byte[] bytes = new byte[texto.length() * 3 / 4];
+		int acumulado = 0;
+		int bits = 0;
+		int escritos = 0;
+		for (int i = 0; i < texto.length(); i++) {
+			int valor = ALFABETO.indexOf(texto.charAt(i));
+			if (valor < 0)
+				throw new IllegalArgumentException("La huella no es valida");
+			acumulado = (acumulado << 6) | valor;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				bytes[escritos++] = (byte) (acumulado >>> bits);
+			}
+		}
+		return decodificar(bytes);
+	}
+
+	/**
+	 * Devuelve la forma textual de la huella, en Base64 apto para URL.
+	 */
+	@Override
+	public String toString() {
+		byte[] bytes = codificar();
+		StringBuilder texto = new StringBuilder((bytes.length * 4 + 2) / 3);
+		int acumulado = 0;
+		int bits = 0;
+		for (byte b : bytes) {
+			acumulado = (acumulado << 8) | (b & 0xFF);
+			bits += 8;
+			while (bits >= 6) {
+				bits -= 6;
+				texto.append(ALFABETO.charAt((acumulado >>> bits) & 0x3F));
+			}
+		}
+		if (bits > 0)
+			texto.append(ALFABETO.charAt((acumulado << (6 - bits)) & 0x3F));
+		return texto.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof HuellaTablero))
+			return false;
+		HuellaTablero otra = (HuellaTablero) o;
+		return filas == otra.filas && columnas == otra.columnas
+				&& minas == otra.minas && semilla == otra.semilla
+				&& primeraCasilla == otra.primeraCasilla
+				&& primeraDestapada == otra.primeraDestapada
+				&& zonaSeguraAmplia == otra.zonaSeguraAmplia;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = filas;
+		hash = 31 * hash + columnas;
+		hash = 31 * hash + minas;
+		hash = 31 * hash + (int) (semilla ^ (semilla >>> 32));
+		hash = 31 * hash + primeraCasilla;
+		hash = 31 * hash + primeraDestapada;
+		return 2 * hash + (zonaSeguraAmplia ? 1 : 0);
+	}
+
+	/**
+	 * Escribe un entero no negativo en grupos de 7 bits, del menos al mas
+	 * significativo, marcando con el bit alto los que no son el ultimo.
+	 */
+	private static void escribirVariable(ByteArrayOutputStream salida,
+			int valor) {
+		while ((valor & ~0x7F) != 0) {
+			salida.write((valor & 0x7F) | 0x80);
+			valor >>>= 7;
+		}
+		salida.write(valor);
+	}
+
+	/**
+	 * Lee un entero escrito con {@link #escribirVariable}.
+	 */
+	private static int leerVariable(byte[] bytes, int[] posicion) {
+		int valor = 0;
+		for (int desplazamiento = 0; desplazamiento < 32; desplazamiento += 7) {
+			int b = leerByte(bytes, posicion);
+			valor |= (b & 0x7F) << desplazamiento;
+			if ((b & 0x80) == 0)
+				return valor;
+		}
+		throw new IllegalArgumentException("La huella no es valida");
+	}
+
+	/**
+	 * Lee el siguiente byte sin signo.
+	 */
+	private static int leerByte(byte[] bytes, int[] posicion) {
+		if (posicion[0] >= bytes.length)
+			throw new IllegalArgumentException("La huella no es valida");
+		return bytes[posicion[0]++] & 0xFF;
+	}
+
+}
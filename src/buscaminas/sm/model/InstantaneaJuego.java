@@ -0,0 +1,322 @@
+package buscaminas.sm.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Formato binario para guardar una partida en curso y restaurarla despues,
+ * por ejemplo si el sistema cierra la aplicacion o si otro servidor debe
+ * continuar la partida.
+ * </p>
+ * <p>
+ * La instantanea empieza con una cabecera con la firma, la version, las
+ * dimensiones y todos los contadores del almacen (minas, banderas, casillas
+ * destapadas, fase, semilla y primeras casillas). Despues se guardan las
+ * casillas en bloques de 64: un long con un bit por casilla para las minas,
+ * otro para las destapadas y otro para las banderas. Un tablero de un millon
+ * de casillas ocupa unos 375 KB. Los numeros de minas adyacentes no se
+ * guardan, sino que se calculan al restaurar a partir de las minas con
+ * {@link CalculoAdyacencias}, igual que al empezar la partida.
+ * </p>
+ * <p>
+ * Se lee y escribe directamente sobre canales de NIO, en tramos de un buffer
+ * reutilizado por cada hilo, sin crear objetos por casilla. Las casillas se
+ * copian del almacen por tramos y se convierten de 8 en 8, tratando cada
+ * grupo de 8 casillas como un long. Las partidas
+ * compartidas se deben guardar entre jugadas, ya que la instantanea no
+ * bloquea el tablero mientras se escribe.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public final class InstantaneaJuego {
+
+	/**
+	 * Firma que identifica las instantaneas ("BMIJ").
+	 */
+	private static final int FIRMA = 0x424D494A;
+
+	/**
+	 * Version del formato de la instantanea.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Tamaño en bytes de la cabecera: firma, version, filas, columnas y
+	 * contadores.
+	 */
+	private static final int TAMAÑO_CABECERA = 16 + 4 * AlmacenTablero.CONTADORES;
+
+	/**
+	 * Tamaño en bytes de un bloque de 64 casillas.
+	 */
+	private static final int TAMAÑO_BLOQUE = 3 * 8;
+
+	/**
+	 * Tamaño del buffer con que se leen y escriben los canales.
+	 */
+	private static final int TAMAÑO_BUFFER = 64 * 1024;
+
+	/**
+	 * Casillas que se copian de una vez entre el almacen y el vector auxiliar.
+	 * Es multiplo de 64 para que cada tramo tenga bloques completos.
+	 */
+	private static final int CASILLAS_TRAMO = 64 * 1024;
+
+	/**
+	 * Bit menos significativo de cada uno de los 8 bytes de un long.
+	 */
+	private static final long BITS_BAJOS = 0x0101010101010101L;
+
+	/**
+	 * Multiplicador que reune en el byte alto los bits de {@link #BITS_BAJOS}.
+	 */
+	private static final long REUNIR = 0x0102040810204080L;
+
+	/**
+	 * Para cada byte, un long con un byte a 0 o 1 por cada bit, de modo que
+	 * un byte de un bloque se convierte en 8 casillas de una vez.
+	 */
+	private static final long[] ESPARCIR = new long[256];
+
+	static {
+		for (int bits = 0; bits < 256; bits++) {
+			for (int bit = 0; bit < 8; bit++)
+				ESPARCIR[bits] |= (long) (bits >>> bit & 1) << (bit << 3);
+		}
+	}
+
+	/**
+	 * Buffers de cada hilo, reutilizados entre instantaneas.
+	 */
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * Buffer directo para el canal y vector auxiliar con un tramo de
+	 * casillas, que se lee de 8 en 8 casillas con una vista de longs.
+	 */
+	private static final class Buffers {
+		final ByteBuffer canal = ByteBuffer.allocateDirect(TAMAÑO_BUFFER);
+		final byte[] casillas = new byte[CASILLAS_TRAMO];
+		final ByteBuffer vista = ByteBuffer.wrap(casillas).order(
+				ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private InstantaneaJuego() {
+	}
+
+	/**
+	 * Calcula el tamaño de la instantanea de un tablero.
+	 *
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 * @return El tamaño en bytes
+	 */
+	public static long tamaño(int filas, int columnas) {
+		long bloques = ((long) filas * columnas + 63) / 64;
+		return TAMAÑO_CABECERA + bloques * TAMAÑO_BLOQUE;
+	}
+
+	/**
+	 * Escribe la instantanea de una partida.
+	 *
+	 * @param juego
+	 *            Partida a guardar
+	 * @param canal
+	 *            Canal donde se escribe
+	 * @throws IOException
+	 *             Si no se puede escribir en el canal
+	 */
+	public static void escribir(EstadoJuego juego, WritableByteChannel canal)
+			throws IOException {
+		AlmacenTablero almacen = juego.getAlmacen();
+		Buffers buffers = BUFFERS.get();
+		ByteBuffer buffer = buffers.canal;
+		byte[] tramo = buffers.casillas;
+		ByteBuffer vista = buffers.vista;
+		buffer.clear();
+		buffer.putInt(FIRMA);
+		buffer.putInt(VERSION);
+		buffer.putInt(almacen.getFilas());
+		buffer.putInt(almacen.getColumnas());
+		for (int contador = 0; contador < AlmacenTablero.CONTADORES; contador++)
+			buffer.putInt(almacen.leerContador(contador));
+
+		int casillas = almacen.getFilas() * almacen.getColumnas();
+		for (int base = 0; base < casillas; base += CASILLAS_TRAMO) {
+			int cantidad = Math.min(CASILLAS_TRAMO, casillas - base);
+			int bloques = (cantidad + 63) >>> 6;
+			almacen.leer(base, tramo, 0, cantidad);
+			// El final del ultimo bloque se rellena con casillas vacias
+			Arrays.fill(tramo, cantidad, bloques << 6, (byte) 0);
+			for (int bloque = 0; bloque < bloques; bloque++) {
+				long minas = 0;
+				long destapadas = 0;
+				long banderas = 0;
+				for (int ocho = 0; ocho < 8; ocho++) {
+					long estados = vista.getLong(bloque << 6 | ocho << 3);
+					int desplazamiento = ocho << 3;
+					// Solo el valor MINA tiene a 1 los cuatro bits bajos
+					minas |= reunir(estados & estados >>> 1 & estados >>> 2
+							& estados >>> 3) << desplazamiento;
+					destapadas |= reunir(estados >>> 4) << desplazamiento;
+					banderas |= reunir(estados >>> 5) << desplazamiento;
+				}
+				if (buffer.remaining() < TAMAÑO_BLOQUE)
+					vaciar(buffer, canal);
+				buffer.putLong(minas);
+				buffer.putLong(destapadas);
+				buffer.putLong(banderas);
+			}
+		}
+		vaciar(buffer, canal);
+	}
+
+	/**
+	 * Restaura una partida a partir de su instantanea, en un tablero en
+	 * memoria. La partida no tiene observadores; una vez añadidos, se les
+	 * puede notificar su estado con {@link EstadoJuego#notificarEstado()}.
+	 *
+	 * @param canal
+	 *            Canal del que se lee
+	 * @param compartida
+	 *            Si la partida se juega desde varios hilos, en cuyo caso se
+	 *            restaura como {@link EstadoJuegoConcurrente}
+	 * @return La partida restaurada
+	 * @throws IOException
+	 *             Si no se puede leer del canal o no contiene una instantanea
+	 *             valida
+	 */
+	public static EstadoJuego leer(ReadableByteChannel canal, boolean compartida)
+			throws IOException {
+		Buffers buffers = BUFFERS.get();
+		ByteBuffer buffer = buffers.canal;
+		byte[] tramo = buffers.casillas;
+		ByteBuffer vista = buffers.vista;
+		buffer.clear();
+		buffer.limit(TAMAÑO_CABECERA);
+		llenar(buffer, canal);
+		buffer.flip();
+		if (buffer.getInt() != FIRMA)
+			throw new IOException("El canal no contiene una instantanea");
+		if (buffer.getInt() != VERSION)
+			throw new IOException("Version de la instantanea no soportada");
+		int filas = buffer.getInt();
+		int columnas = buffer.getInt();
+		if (filas < 1 || columnas < 1
+				|| (long) filas * columnas > Integer.MAX_VALUE)
+			throw new IOException(
+					"Las dimensiones de la instantanea no son validas");
+		AlmacenTablero almacen = compartida ? new AlmacenTableroAtomico(
+				filas, columnas) : new AlmacenTableroEmpaquetado(filas,
+				columnas);
+		for (int contador = 0; contador < AlmacenTablero.CONTADORES; contador++)
+			almacen.escribirContador(contador, buffer.getInt());
+
+		// Casillas, contando minas, destapadas y banderas para comprobar los
+		// contadores
+		int casillas = filas * columnas;
+		int minas = 0;
+		int destapadas = 0;
+		int banderas = 0;
+		buffer.clear().flip();
+		for (int base = 0; base < casillas; base += CASILLAS_TRAMO) {
+			int cantidad = Math.min(CASILLAS_TRAMO, casillas - base);
+			int bloques = (cantidad + 63) >>> 6;
+			for (int bloque = 0; bloque < bloques; bloque++) {
+				if (buffer.remaining() < TAMAÑO_BLOQUE) {
+					// Leer solo hasta el final de la instantanea, contando los
+					// bytes del bloque actual que ya estan en el buffer
+					buffer.compact();
+					long restante = (long) (casillas - base - (bloque << 6) + 63)
+							/ 64 * TAMAÑO_BLOQUE;
+					buffer.limit((int) Math.min(buffer.capacity(), restante));
+					llenar(buffer, canal);
+					buffer.flip();
+				}
+				long bloqueMinas = buffer.getLong();
+				long bloqueDestapadas = buffer.getLong();
+				long bloqueBanderas = buffer.getLong();
+				int fin = cantidad - (bloque << 6);
+				if (fin < 64
+						&& ((bloqueMinas | bloqueDestapadas | bloqueBanderas) >>> fin) != 0)
+					throw new IOException("La instantanea no es valida");
+				minas += Long.bitCount(bloqueMinas);
+				destapadas += Long.bitCount(bloqueDestapadas & ~bloqueMinas);
+				banderas += Long.bitCount(bloqueBanderas);
+				for (int ocho = 0; ocho < 8; ocho++) {
+					int desplazamiento = ocho << 3;
+					vista.putLong(bloque << 6 | desplazamiento,
+							ESPARCIR[(int) (bloqueMinas >>> desplazamiento) & 0xFF]
+									* AlmacenTablero.MINA
+									| ESPARCIR[(int) (bloqueDestapadas >>> desplazamiento) & 0xFF] << 4
+									| ESPARCIR[(int) (bloqueBanderas >>> desplazamiento) & 0xFF] << 5);
+				}
+			}
+			almacen.escribir(base, tramo, 0, cantidad);
+		}
+		// Las minas no estan colocadas hasta la primera pulsacion, y al perder
+		// se destapa todo el tablero sin contar las casillas
+		int fase = almacen.leerContador(AlmacenTablero.CONTADOR_FASE);
+		int minasColocadas = almacen
+				.leerContador(AlmacenTablero.CONTADOR_PRIMERA_CASILLA) < 0 ? 0
+				: almacen.leerContador(AlmacenTablero.CONTADOR_MINAS);
+		if (fase < 0 || fase >= Fase.values().length
+				|| minas != minasColocadas
+				|| banderas != almacen
+						.leerContador(AlmacenTablero.CONTADOR_BANDERAS)
+				|| (fase != Fase.DERROTA.ordinal() && destapadas != almacen
+						.leerContador(AlmacenTablero.CONTADOR_DESTAPADAS)))
+			throw new IOException(
+					"Los contadores de la instantanea no son coherentes");
+		if (minas > 0)
+			new CalculoAdyacencias(almacen, almacen.getFilas(),
+					almacen.getColumnas()).calcular();
+
+		return compartida ? new EstadoJuegoConcurrente(
+				(AlmacenTableroAtomico) almacen) : new EstadoJuego(almacen);
+	}
+
+	/**
+	 * Reune en un byte el bit menos significativo de cada byte de un long.
+	 */
+	private static long reunir(long estados) {
+		return ((estados & BITS_BAJOS) * REUNIR) >>> 56;
+	}
+
+	/**
+	 * Escribe en el canal el contenido del buffer y lo deja vacio.
+	 */
+	private static void vaciar(ByteBuffer buffer, WritableByteChannel canal)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			canal.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Lee del canal hasta llenar el buffer hasta su limite.
+	 */
+	private static void llenar(ByteBuffer buffer, ReadableByteChannel canal)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (canal.read(buffer) < 0)
+				throw new IOException("La instantanea esta incompleta");
+		}
+	}
+
+}
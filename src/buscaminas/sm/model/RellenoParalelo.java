@@ -0,0 +1,440 @@
+package buscaminas.sm.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Destape en cascada repartido entre varios hilos para las regiones muy
+ * grandes. El tablero se divide en teselas cuadradas y cada una la recorre una
+ * tarea distinta, que solo destapa sus propias casillas: las adyacentes que
+ * caen en otra tesela se envian a la entrada de esa tesela, que vuelve a
+ * programarse si no lo estaba. El relleno termina cuando no queda ninguna
+ * tarea pendiente, y destapa exactamente las mismas casillas que el recorrido
+ * secuencial, aunque en otro orden.
+ * </p>
+ * <p>
+ * Cada tesela apunta las casillas que ha destapado en un mapa de bits, que se
+ * recorre al terminar desde el hilo de la jugada para notificarlas y
+ * guardarlas en el historial.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+class RellenoParalelo {
+
+	/**
+	 * Bits del lado de las teselas.
+	 */
+	private static final int BITS_TESELA = 8;
+
+	/**
+	 * Filas y columnas de cada tesela.
+	 */
+	static final int LADO_TESELA = 1 << BITS_TESELA;
+
+	/**
+	 * Casillas que se acumulan para otra tesela antes de enviarselas.
+	 */
+	private static final int TAMAÑO_LOTE = 256;
+
+	/**
+	 * Hilos que rellenan las teselas. Con uno solo no se usa el relleno
+	 * paralelo.
+	 */
+	private static final int HILOS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Hilos compartidos por todos los rellenos, que se crean la primera vez
+	 * que se necesitan.
+	 */
+	private static ExecutorService ejecutor;
+
+	/**
+	 * Cola de trabajo de cada hilo, con capacidad para una tesela entera.
+	 */
+	private static final ThreadLocal<int[]> colas = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[LADO_TESELA * LADO_TESELA];
+		}
+	};
+
+	/**
+	 * Casillas pendientes de enviar a las teselas vecinas de cada hilo, por
+	 * su posicion de 0 a 8 en el cuadrado de tres por tres teselas que rodea
+	 * a la actual. La ultima fila guarda cuantas hay para cada una.
+	 */
+	private static final ThreadLocal<int[][]> salidas = new ThreadLocal<int[][]>() {
+		@Override
+		protected int[][] initialValue() {
+			int[][] salidas = new int[10][];
+			for (int i = 0; i < 9; i++)
+				salidas[i] = new int[TAMAÑO_LOTE];
+			salidas[9] = new int[9];
+			return salidas;
+		}
+	};
+
+	private final AlmacenTablero almacen;
+	private final int filas;
+	private final int columnas;
+
+	/**
+	 * Columnas de teselas del tablero.
+	 */
+	private final int columnasTeselas;
+
+	private final Tesela[] teselas;
+
+	/**
+	 * Tareas programadas que aun no han terminado.
+	 */
+	private final AtomicInteger pendientes = new AtomicInteger();
+
+	/**
+	 * Primer error de las tareas, que se lanza desde el hilo de la jugada.
+	 */
+	private volatile Throwable error;
+
+	/**
+	 * Tesela y casilla por la que va el recorrido de las destapadas.
+	 */
+	private int teselaActual;
+	private int bitActual;
+
+	/**
+	 * Comprueba si merece la pena rellenar en paralelo un tablero: debe haber
+	 * varios hilos y el tablero debe ocupar mas de una tesela.
+	 *
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 * @return Si se puede usar el relleno paralelo
+	 */
+	static boolean isConveniente(int filas, int columnas) {
+		return HILOS > 1 && (filas > LADO_TESELA || columnas > LADO_TESELA);
+	}
+
+	/**
+	 * @param almacen
+	 *            Casillas del tablero
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 */
+	RellenoParalelo(AlmacenTablero almacen, int filas, int columnas) {
+		this.almacen = almacen;
+		this.filas = filas;
+		this.columnas = columnas;
+		this.columnasTeselas = (columnas + LADO_TESELA - 1) >>> BITS_TESELA;
+		int filasTeselas = (filas + LADO_TESELA - 1) >>> BITS_TESELA;
+		teselas = new Tesela[filasTeselas * columnasTeselas];
+		for (int t = 0; t < teselas.length; t++)
+			teselas[t] = new Tesela(t);
+	}
+
+	/**
+	 * Obtiene los hilos compartidos, creandolos si aun no existen.
+	 */
+	private static synchronized ExecutorService getEjecutor() {
+		if (ejecutor == null) {
+			ejecutor = Executors.newFixedThreadPool(HILOS, new ThreadFactory() {
+				private int creados;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread hilo = new Thread(r, "RellenoParalelo-" + creados++);
+					hilo.setDaemon(true);
+					return hilo;
+				}
+			});
+		}
+		return ejecutor;
+	}
+
+	/**
+	 * Rellena la region a partir de varias casillas ya destapadas, esperando
+	 * a que terminen todas las teselas.
+	 *
+	 * @param semillas
+	 *            Vector con las casillas de partida
+	 * @param desde
+	 *            Posicion de la primera casilla de partida
+	 * @param hasta
+	 *            Posicion siguiente a la ultima
+	 * @return El numero de casillas destapadas, sin contar las de partida
+	 */
+	int rellenar(int[] semillas, int desde, int hasta) {
+		// Repartir las semillas entre sus teselas, marcadas para expandirlas
+		// sin destaparlas
+		int[] cantidades = new int[teselas.length];
+		for (int k = desde; k < hasta; k++)
+			cantidades[getTesela(semillas[k])]++;
+		int[][] lotes = new int[teselas.length][];
+		for (int k = desde; k < hasta; k++) {
+			int t = getTesela(semillas[k]);
+			if (lotes[t] == null) {
+				lotes[t] = new int[cantidades[t]];
+				cantidades[t] = 0;
+			}
+			lotes[t][cantidades[t]++] = ~semillas[k];
+		}
+		// La jugada cuenta como una tarea mas hasta programar todas
+		pendientes.incrementAndGet();
+		for (int t = 0; t < teselas.length; t++) {
+			if (lotes[t] != null)
+				teselas[t].recibir(lotes[t]);
+		}
+		terminarTarea();
+		boolean interrumpido = false;
+		synchronized (this) {
+			while (pendientes.get() != 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Las tareas siguen escribiendo en el tablero, asi que
+					// hay que esperarlas igualmente
+					interrumpido = true;
+				}
+			}
+		}
+		if (interrumpido)
+			Thread.currentThread().interrupt();
+		if (error instanceof RuntimeException)
+			throw (RuntimeException) error;
+		if (error instanceof Error)
+			throw (Error) error;
+		int destapadas = 0;
+		for (Tesela tesela : teselas)
+			destapadas += tesela.cantidad;
+		return destapadas;
+	}
+
+	/**
+	 * Obtiene la siguiente casilla destapada por el relleno, recorriendo las
+	 * teselas en orden y cada una por filas.
+	 *
+	 * @return El indice de la casilla, o -1 si no quedan mas
+	 */
+	int siguiente() {
+		while (teselaActual < teselas.length) {
+			Tesela tesela = teselas[teselaActual];
+			long[] bits = tesela.destapadas;
+			if (bits != null) {
+				int palabra = bitActual >>> 6;
+				while (palabra < bits.length) {
+					long resto = bits[palabra] & (-1L << (bitActual & 63));
+					if (resto != 0) {
+						int bit = (palabra << 6) + Long.numberOfTrailingZeros(resto);
+						bitActual = bit + 1;
+						return (tesela.filaInicio + bit / tesela.ancho)
+								* columnas + tesela.columnaInicio + bit
+								% tesela.ancho;
+					}
+					bitActual = ++palabra << 6;
+				}
+			}
+			teselaActual++;
+			bitActual = 0;
+		}
+		return -1;
+	}
+
+	private int getTesela(int indice) {
+		return ((indice / columnas) >>> BITS_TESELA) * columnasTeselas
+				+ ((indice % columnas) >>> BITS_TESELA);
+	}
+
+	private void programar(Tesela tesela) {
+		pendientes.incrementAndGet();
+		getEjecutor().execute(tesela);
+	}
+
+	private void terminarTarea() {
+		if (pendientes.decrementAndGet() == 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Parte del tablero que recorre una sola tarea a la vez.
+	 */
+	private class Tesela implements Runnable {
+
+		private final int indice;
+		private final int filaInicio;
+		private final int filaFin;
+		private final int columnaInicio;
+		private final int columnaFin;
+		private final int ancho;
+
+		/**
+		 * Lotes de casillas recibidos de otras teselas o de la jugada. Las
+		 * casillas ya destapadas que solo hay que expandir se guardan
+		 * complementadas.
+		 */
+		private final ConcurrentLinkedQueue<int[]> entrada = new ConcurrentLinkedQueue<int[]>();
+
+		/**
+		 * Si hay una tarea de la tesela programada o en curso.
+		 */
+		private final AtomicBoolean programada = new AtomicBoolean();
+
+		/**
+		 * Casillas destapadas por el relleno, por filas dentro de la tesela.
+		 * Solo las escribe la tarea de la tesela.
+		 */
+		private long[] destapadas;
+
+		private int cantidad;
+
+		Tesela(int indice) {
+			this.indice = indice;
+			filaInicio = (indice / columnasTeselas) << BITS_TESELA;
+			filaFin = Math.min(filaInicio + LADO_TESELA, filas);
+			columnaInicio = (indice % columnasTeselas) << BITS_TESELA;
+			columnaFin = Math.min(columnaInicio + LADO_TESELA, columnas);
+			ancho = columnaFin - columnaInicio;
+		}
+
+		/**
+		 * Añade un lote a la entrada, programando la tesela si no lo estaba.
+		 */
+		void recibir(int[] lote) {
+			entrada.add(lote);
+			if (programada.compareAndSet(false, true))
+				programar(this);
+		}
+
+		public void run() {
+			try {
+				do {
+					procesar();
+					programada.set(false);
+					// Un lote recibido justo antes de desmarcarla no ha
+					// programado la tesela otra vez
+				} while (!entrada.isEmpty()
+						&& programada.compareAndSet(false, true));
+			} catch (Throwable e) {
+				if (error == null)
+					error = e;
+			} finally {
+				terminarTarea();
+			}
+		}
+
+		/**
+		 * Destapa y expande las casillas de la entrada hasta vaciarla.
+		 */
+		private void procesar() {
+			int[] cola = colas.get();
+			int[][] salidas = RellenoParalelo.salidas.get();
+			Arrays.fill(salidas[9], 0);
+			int fin = 0;
+			int cabeza = 0;
+			int[] lote;
+			while ((lote = entrada.poll()) != null) {
+				for (int casilla : lote) {
+					if (casilla < 0)
+						cola[fin++] = ~casilla;
+					else if (destapar(casilla))
+						cola[fin++] = casilla;
+				}
+				for (; cabeza < fin; cabeza++) {
+					int actual = cola[cabeza];
+					if ((almacen.leer(actual) & AlmacenTablero.VALOR) != 0)
+						continue;
+					int i = actual / columnas;
+					int j = actual % columnas;
+					int primeraFila = Math.max(i - 1, 0);
+					int ultimaFila = Math.min(i + 1, filas - 1);
+					int primeraColumna = Math.max(j - 1, 0);
+					int ultimaColumna = Math.min(j + 1, columnas - 1);
+					for (int fila = primeraFila; fila <= ultimaFila; fila++) {
+						int adyacente = fila * columnas + primeraColumna;
+						for (int columna = primeraColumna; columna <= ultimaColumna; columna++, adyacente++) {
+							if (fila >= filaInicio && fila < filaFin
+									&& columna >= columnaInicio
+									&& columna < columnaFin) {
+								if (destapar(adyacente))
+									cola[fin++] = adyacente;
+							} else if (isCandidata(adyacente)) {
+								enviar(salidas, fila, columna, adyacente);
+							}
+						}
+					}
+				}
+			}
+			for (int s = 0; s < 9; s++) {
+				if (salidas[9][s] > 0)
+					vaciar(salidas, s);
+			}
+		}
+
+		/**
+		 * Comprueba sin destaparla si una casilla de otra tesela se puede
+		 * destapar, para no enviar las que no hace falta.
+		 */
+		private boolean isCandidata(int indice) {
+			byte estado = almacen.leer(indice);
+			return (estado & AlmacenTablero.DESTAPADA) == 0
+					&& (estado & AlmacenTablero.VALOR) != AlmacenTablero.MINA;
+		}
+
+		/**
+		 * Destapa una casilla de la tesela si no es mina ni estaba destapada,
+		 * y la apunta en el mapa de bits.
+		 */
+		private boolean destapar(int casilla) {
+			byte estado;
+			do {
+				estado = almacen.leer(casilla);
+				if ((estado & AlmacenTablero.DESTAPADA) != 0
+						|| (estado & AlmacenTablero.VALOR) == AlmacenTablero.MINA)
+					return false;
+			} while (!almacen.compararYEscribir(casilla, estado,
+					(byte) (estado | AlmacenTablero.DESTAPADA)));
+			if (destapadas == null)
+				destapadas = new long[(ancho * (filaFin - filaInicio) + 63) >>> 6];
+			int bit = (casilla / columnas - filaInicio) * ancho
+					+ casilla % columnas - columnaInicio;
+			destapadas[bit >>> 6] |= 1L << bit;
+			cantidad++;
+			return true;
+		}
+
+		/**
+		 * Acumula una casilla para la tesela vecina que la contiene.
+		 */
+		private void enviar(int[][] salidas, int fila, int columna, int casilla) {
+			int filaVecina = fila < filaInicio ? 0 : fila < filaFin ? 1 : 2;
+			int columnaVecina = columna < columnaInicio ? 0
+					: columna < columnaFin ? 1 : 2;
+			int s = filaVecina * 3 + columnaVecina;
+			salidas[s][salidas[9][s]++] = casilla;
+			if (salidas[9][s] == TAMAÑO_LOTE)
+				vaciar(salidas, s);
+		}
+
+		/**
+		 * Envia a una tesela vecina las casillas acumuladas para ella.
+		 */
+		private void vaciar(int[][] salidas, int s) {
+			int[] lote = new int[salidas[9][s]];
+			System.arraycopy(salidas[s], 0, lote, 0, lote.length);
+			salidas[9][s] = 0;
+			teselas[indice + (s / 3 - 1) * columnasTeselas + s % 3 - 1]
+					.recibir(lote);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package buscaminas.sm.model;
+
+import java.util.Arrays;
+
+/**
+ * Tabla de dispersion de enteros a enteros con direccionamiento abierto,
+ * empleada para recordar las posiciones intercambiadas en un muestreo parcial
+ * de Fisher-Yates sin crear un objeto por entrada. Las posiciones que no se
+ * han intercambiado nunca contienen su propio valor.
+ * 
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+class TablaIntercambios {
+
+	/**
+	 * Marca de hueco libre. Las posiciones sorteadas nunca son negativas.
+	 */
+	private static final int LIBRE = -1;
+
+	/**
+	 * Claves de la tabla, o LIBRE si el hueco no esta ocupado.
+	 */
+	private int[] claves;
+
+	/**
+	 * Valores asociados a cada clave.
+	 */
+	private int[] valores;
+
+	/**
+	 * Mascara para reducir la dispersion de una clave al tamaño de la tabla.
+	 */
+	private int mascara;
+
+	/**
+	 * Crea una tabla con espacio para el numero de sorteos indicado, cada uno
+	 * de los cuales añade como maximo una entrada.
+	 * 
+	 * @param sorteos
+	 *            Numero de posiciones que se van a sortear
+	 */
+	TablaIntercambios(int sorteos) {
+		int capacidad = 16;
+		while (capacidad < 2L * sorteos && capacidad < (1 << 30))
+			capacidad <<= 1;
+		claves = new int[capacidad];
+		valores = new int[capacidad];
+		mascara = capacidad - 1;
+		Arrays.fill(claves, LIBRE);
+	}
+
+	/**
+	 * Obtiene el valor que ocupa una posicion.
+	 * 
+	 * @param posicion
+	 *            La posicion consultada
+	 * @return El valor guardado, o la propia posicion si no se ha cambiado
+	 */
+	int obtener(int posicion) {
+		int hueco = buscar(posicion);
+		return claves[hueco] == LIBRE ? posicion : valores[hueco];
+	}
+
+	/**
+	 * Cambia el valor que ocupa una posicion.
+	 * 
+	 * @param posicion
+	 *            La posicion modificada
+	 * @param valor
+	 *            El nuevo valor de la posicion
+	 */
+	void poner(int posicion, int valor) {
+		int hueco = buscar(posicion);
+		claves[hueco] = posicion;
+		valores[hueco] = valor;
+	}
+
+	/**
+	 * Busca el hueco de una clave, o el hueco libre donde deberia insertarse.
+	 */
+	private int buscar(int clave) {
+		int dispersion = clave * 0x9E3779B9;
+		int hueco = (dispersion ^ (dispersion >>> 16)) & mascara;
+		while (claves[hueco] != LIBRE && claves[hueco] != clave)
+			hueco = (hueco + 1) & mascara;
+		return hueco;
+	}
+}
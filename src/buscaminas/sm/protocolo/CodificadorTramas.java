@@ -0,0 +1,434 @@
+package buscaminas.sm.protocolo;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import buscaminas.sm.controller.EstadoObserverDeshacer;
+import buscaminas.sm.controller.EstadoObserverLotes;
+import buscaminas.sm.controller.JuegoController;
+import buscaminas.sm.model.AlmacenTablero;
+import buscaminas.sm.model.Fase;
+
+/**
+ * <p>
+ * Observador que codifica los cambios de una partida en tramas binarias
+ * compactas, para enviarlas a un cliente remoto que mantiene una copia del
+ * tablero en un {@link TableroEspejo}. En lugar de serializar cada
+ * notificacion por separado, los cambios de una jugada se acumulan en una
+ * sola trama, que se cierra con {@link #terminarTrama(JuegoController)}.
+ * </p>
+ * <p>
+ * Una trama empieza con su longitud y contiene una serie de secciones, cada
+ * una con un byte de tipo:
+ * </p>
+ * <ul>
+ * <li>{@link #PARTIDA}: filas, columnas y minas de una partida nueva. El
+ * cliente vacia su copia, con todas las casillas tapadas, la fase
+ * {@link Fase#INICIO} y tantas banderas restantes como minas.</li>
+ * <li>{@link #DESTAPADAS}: casillas destapadas, ordenadas y agrupadas en
+ * tramos consecutivos. Cada tramo indica su distancia al final del anterior
+ * y su longitud, y despues de los tramos van los valores de todas sus
+ * casillas, dos por byte.</li>
+ * <li>{@link #TAPADAS}: tramos de casillas que se vuelven a tapar al deshacer
+ * una jugada, con el mismo formato pero sin valores.</li>
+ * <li>{@link #BANDERA}: una casilla y si se ha colocado o quitado su
+ * bandera, en un unico entero con el indice desplazado un bit, que puede
+ * ocupar hasta 32 bits.</li>
+ * <li>{@link #BANDERAS_RESTANTES}: diferencia con las banderas restantes de
+ * la trama anterior, solo si han cambiado.</li>
+ * <li>{@link #FASE}: fase de la partida, solo si ha cambiado.</li>
+ * </ul>
+ * <p>
+ * Los enteros se escriben en grupos de 7 bits, como en
+ * {@link buscaminas.sm.controller.DiarioMovimientos}, y la diferencia de
+ * banderas en zigzag para que las negativas tambien ocupen poco. Destapar una
+ * casilla con numero ocupa 6 bytes, y las mayores cascadas de un tablero de
+ * dificultad {@link buscaminas.sm.model.Dificultad#NORMAL} unos 160.
+ * </p>
+ * <p>
+ * Las tramas se escriben en buffers directos de una {@link ReservaBuffers},
+ * que se pueden enviar por un canal sin copiarlos; quien envia la trama la
+ * devuelve despues a la reserva. El codificador no es seguro entre hilos: se
+ * debe usar desde el hilo que juega la partida, que es el que recibe las
+ * notificaciones.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ * @see DecodificadorTramas
+ */
+public class CodificadorTramas implements EstadoObserverLotes,
+		EstadoObserverDeshacer {
+
+	/**
+	 * Tipos de seccion de una trama.
+	 */
+	public static final int PARTIDA = 0;
+	public static final int DESTAPADAS = 1;
+	public static final int TAPADAS = 2;
+	public static final int BANDERA = 3;
+	public static final int BANDERAS_RESTANTES = 4;
+	public static final int FASE = 5;
+
+	/**
+	 * Bytes que puede ocupar como maximo un entero escrito en grupos de 7
+	 * bits, que se reservan al principio de la trama para su longitud.
+	 */
+	static final int MAXIMO_VARIABLE = 5;
+
+	/**
+	 * Casillas que se leen de una vez al sincronizar el tablero completo.
+	 */
+	private static final int CASILLAS_TRAMO = 4096;
+
+	/**
+	 * Vectores auxiliares para ordenar las casillas de cada seccion,
+	 * reutilizados por cada hilo.
+	 */
+	private static final ThreadLocal<Auxiliares> AUXILIARES = new ThreadLocal<Auxiliares>() {
+		@Override
+		protected Auxiliares initialValue() {
+			return new Auxiliares();
+		}
+	};
+
+	private static final class Auxiliares {
+		/**
+		 * Casillas destapadas, con el indice desplazado 4 bits y el valor en
+		 * los 4 bits bajos, de modo que al ordenarlas quedan en orden de
+		 * indice.
+		 */
+		long[] casillas = new long[64];
+
+		int[] indices = new int[64];
+
+		byte[] tramo = new byte[0];
+
+		long[] casillas(int cantidad) {
+			if (casillas.length < cantidad)
+				casillas = new long[Math.max(cantidad, 2 * casillas.length)];
+			return casillas;
+		}
+
+		int[] indices(int cantidad) {
+			if (indices.length < cantidad)
+				indices = new int[Math.max(cantidad, 2 * indices.length)];
+			return indices;
+		}
+	}
+
+	private final ReservaBuffers reserva;
+
+	/**
+	 * Trama que se esta escribiendo, o null si no ha habido cambios desde la
+	 * anterior.
+	 */
+	private ByteBuffer trama;
+
+	/**
+	 * Si la siguiente trama debe contener la partida completa, en cuyo caso
+	 * se descartan los cambios que se notifiquen hasta entonces.
+	 */
+	private boolean sincronizar = true;
+
+	/**
+	 * Columnas de la partida, para obtener el indice de las casillas que se
+	 * notifican por fila y columna.
+	 */
+	private int columnas;
+
+	/**
+	 * Fase y banderas restantes que conoce el cliente.
+	 */
+	private Fase ultimaFase;
+	private int ultimasBanderas;
+
+	/**
+	 * Crea un codificador cuya primera trama contiene la partida completa.
+	 *
+	 * @param reserva
+	 *            Reserva de la que se obtienen los buffers de las tramas
+	 */
+	public CodificadorTramas(ReservaBuffers reserva) {
+		this.reserva = reserva;
+	}
+
+	/**
+	 * Hace que la siguiente trama contenga la partida completa en lugar de
+	 * sus cambios. Se debe llamar cuando el controlador empieza una partida
+	 * nueva o restaura otra, ya que los observadores no reciben ningun aviso.
+	 */
+	public void sincronizar() {
+		sincronizar = true;
+	}
+
+	/**
+	 * Cierra la trama con los cambios notificados desde la anterior, a los
+	 * que se añaden la fase y las banderas restantes si han cambiado.
+	 *
+	 * @param controlador
+	 *            Controlador de la partida observada
+	 * @return Un buffer directo con la trama entre su posicion y su limite,
+	 *         que se debe devolver a la reserva cuando ya se haya enviado, o
+	 *         null si no ha habido cambios
+	 */
+	public ByteBuffer terminarTrama(JuegoController controlador) {
+		if (sincronizar)
+			escribirPartida(controlador);
+		Fase fase = controlador.getFase();
+		if (fase != ultimaFase) {
+			asegurar(2);
+			trama.put((byte) FASE);
+			trama.put((byte) fase.ordinal());
+			ultimaFase = fase;
+		}
+		int banderas = controlador.getBanderasRestantes();
+		if (banderas != ultimasBanderas) {
+			asegurar(1 + MAXIMO_VARIABLE);
+			trama.put((byte) BANDERAS_RESTANTES);
+			int diferencia = banderas - ultimasBanderas;
+			escribirVariable(trama, (diferencia << 1) ^ (diferencia >> 31));
+			ultimasBanderas = banderas;
+		}
+		if (trama == null)
+			return null;
+
+		// Escribir la longitud justo delante de las secciones
+		int fin = trama.position();
+		int longitud = fin - MAXIMO_VARIABLE;
+		int inicio = MAXIMO_VARIABLE - tamañoVariable(longitud);
+		trama.position(inicio);
+		escribirVariable(trama, longitud);
+		trama.limit(fin);
+		trama.position(inicio);
+		ByteBuffer terminada = trama;
+		trama = null;
+		return terminada;
+	}
+
+	/**
+	 * Descarta los cambios acumulados y escribe la partida completa: sus
+	 * dimensiones y todas sus casillas destapadas y con bandera.
+	 */
+	private void escribirPartida(JuegoController controlador) {
+		if (trama != null)
+			trama.position(MAXIMO_VARIABLE);
+		int filas = controlador.getFilas();
+		columnas = controlador.getColumnas();
+		int minas = controlador.getMinas();
+		asegurar(1 + 3 * MAXIMO_VARIABLE);
+		trama.put((byte) PARTIDA);
+		escribirVariable(trama, filas);
+		escribirVariable(trama, columnas);
+		escribirVariable(trama, minas);
+		ultimaFase = Fase.INICIO;
+		ultimasBanderas = minas;
+		sincronizar = false;
+
+		Auxiliares auxiliares = AUXILIARES.get();
+		int total = filas * columnas;
+		int tamañoTramo = Math.min(total, CASILLAS_TRAMO);
+		if (auxiliares.tramo.length < tamañoTramo)
+			auxiliares.tramo = new byte[tamañoTramo];
+		byte[] tramo = auxiliares.tramo;
+		long[] casillas = auxiliares.casillas(tamañoTramo);
+		for (int desde = 0; desde < total; desde += tamañoTramo) {
+			int cantidad = Math.min(tamañoTramo, total - desde);
+			controlador.leerCasillas(desde, tramo, 0, cantidad);
+			int destapadas = 0;
+			for (int i = 0; i < cantidad; i++) {
+				byte estado = tramo[i];
+				if ((estado & AlmacenTablero.DESTAPADA) != 0)
+					casillas[destapadas++] = ((long) (desde + i) << 4)
+							| (estado & AlmacenTablero.VALOR);
+				if ((estado & AlmacenTablero.BANDERA) != 0)
+					escribirBandera(desde + i, true);
+			}
+			// Ya estan en orden
+			escribirDestapadas(casillas, destapadas);
+		}
+	}
+
+	/**
+	 * Escribe una seccion con casillas destapadas ordenadas por indice, sin
+	 * repetir ninguna.
+	 */
+	private void escribirDestapadas(long[] casillas, int cantidad) {
+		if (cantidad == 0)
+			return;
+		int tramos = 1;
+		for (int i = 1; i < cantidad; i++)
+			if (casillas[i] >>> 4 != (casillas[i - 1] >>> 4) + 1)
+				tramos++;
+		asegurar(1 + MAXIMO_VARIABLE + 2 * MAXIMO_VARIABLE * tramos
+				+ (cantidad + 1) / 2);
+		trama.put((byte) DESTAPADAS);
+		escribirVariable(trama, tramos);
+		long fin = 0;
+		int inicio = 0;
+		for (int i = 1; i <= cantidad; i++) {
+			if (i < cantidad
+					&& casillas[i] >>> 4 == (casillas[i - 1] >>> 4) + 1)
+				continue;
+			long primera = casillas[inicio] >>> 4;
+			escribirVariable(trama, (int) (primera - fin));
+			escribirVariable(trama, i - inicio - 1);
+			fin = primera + i - inicio;
+			inicio = i;
+		}
+		for (int i = 0; i < cantidad; i += 2) {
+			int valores = (int) (casillas[i] & 0x0F);
+			if (i + 1 < cantidad)
+				valores |= (int) (casillas[i + 1] & 0x0F) << 4;
+			trama.put((byte) valores);
+		}
+	}
+
+	/**
+	 * Escribe una seccion con casillas tapadas ordenadas por indice, sin
+	 * repetir ninguna.
+	 */
+	private void escribirTapadas(int[] indices, int cantidad) {
+		if (cantidad == 0)
+			return;
+		int tramos = 1;
+		for (int i = 1; i < cantidad; i++)
+			if (indices[i] != indices[i - 1] + 1)
+				tramos++;
+		asegurar(1 + MAXIMO_VARIABLE + 2 * MAXIMO_VARIABLE * tramos);
+		trama.put((byte) TAPADAS);
+		escribirVariable(trama, tramos);
+		int fin = 0;
+		int inicio = 0;
+		for (int i = 1; i <= cantidad; i++) {
+			if (i < cantidad && indices[i] == indices[i - 1] + 1)
+				continue;
+			escribirVariable(trama, indices[inicio] - fin);
+			escribirVariable(trama, i - inicio - 1);
+			fin = indices[inicio] + i - inicio;
+			inicio = i;
+		}
+	}
+
+	private void escribirBandera(int indice, boolean establecida) {
+		asegurar(1 + MAXIMO_VARIABLE);
+		trama.put((byte) BANDERA);
+		// Se desplaza como long: con mas de 2^30 casillas el indice ya no
+		// cabe en un int con el bit de la bandera
+		escribirVariable(trama, (long) indice << 1 | (establecida ? 1 : 0));
+	}
+
+	/**
+	 * Empieza la trama si aun no se habia empezado y se asegura de que caben
+	 * los bytes indicados, cambiando a un buffer mayor si hace falta.
+	 */
+	private void asegurar(int bytes) {
+		if (trama == null) {
+			trama = reserva.obtener();
+			trama.position(MAXIMO_VARIABLE);
+		}
+		if (trama.remaining() >= bytes)
+			return;
+		ByteBuffer mayor = ByteBuffer.allocateDirect(Math.max(
+				2 * trama.capacity(), trama.position() + bytes));
+		trama.flip();
+		mayor.put(trama);
+		reserva.devolver(trama);
+		trama = mayor;
+	}
+
+	/**
+	 * Escribe un entero no negativo en grupos de 7 bits, del menos al mas
+	 * significativo, marcando con el bit alto los que no son el ultimo.
+	 */
+	private static void escribirVariable(ByteBuffer buffer, int valor) {
+		while ((valor & ~0x7F) != 0) {
+			buffer.put((byte) ((valor & 0x7F) | 0x80));
+			valor >>>= 7;
+		}
+		buffer.put((byte) valor);
+	}
+
+	/**
+	 * Escribe un long no negativo en grupos de 7 bits, como
+	 * {@link #escribirVariable(ByteBuffer, int)}.
+	 */
+	private static void escribirVariable(ByteBuffer buffer, long valor) {
+		while ((valor & ~0x7FL) != 0) {
+			buffer.put((byte) ((valor & 0x7F) | 0x80));
+			valor >>>= 7;
+		}
+		buffer.put((byte) valor);
+	}
+
+	/**
+	 * Bytes que ocupa un entero no negativo escrito en grupos de 7 bits.
+	 */
+	private static int tamañoVariable(int valor) {
+		int tamaño = 1;
+		while ((valor & ~0x7F) != 0) {
+			valor >>>= 7;
+			tamaño++;
+		}
+		return tamaño;
+	}
+
+	// ////////////////////////////////////////////////////////////////////////
+	// ////////////////////// Metodos de los observadores //////////////////////
+	// ////////////////////////////////////////////////////////////////////////
+
+	public void casillasDestapadas(int[] indices, byte[] valores,
+			int cantidad) {
+		if (sincronizar)
+			return;
+		long[] casillas = AUXILIARES.get().casillas(cantidad);
+		for (int i = 0; i < cantidad; i++)
+			casillas[i] = ((long) indices[i] << 4) | (valores[i] & 0x0F);
+		Arrays.sort(casillas, 0, cantidad);
+		int distintas = 0;
+		for (int i = 0; i < cantidad; i++)
+			if (distintas == 0
+					|| casillas[i] >>> 4 != casillas[distintas - 1] >>> 4)
+				casillas[distintas++] = casillas[i];
+		escribirDestapadas(casillas, distintas);
+	}
+
+	public void casillaDestapada(int x, int y, int valor) {
+		if (sincronizar)
+			return;
+		long[] casillas = AUXILIARES.get().casillas(1);
+		casillas[0] = ((long) (x * columnas + y) << 4) | (valor & 0x0F);
+		escribirDestapadas(casillas, 1);
+	}
+
+	public void casillasTapadas(int[] indices, int cantidad) {
+		if (sincronizar)
+			return;
+		int[] ordenados = AUXILIARES.get().indices(cantidad);
+		System.arraycopy(indices, 0, ordenados, 0, cantidad);
+		Arrays.sort(ordenados, 0, cantidad);
+		int distintas = 0;
+		for (int i = 0; i < cantidad; i++)
+			if (distintas == 0 || ordenados[i] != ordenados[distintas - 1])
+				ordenados[distintas++] = ordenados[i];
+		escribirTapadas(ordenados, distintas);
+	}
+
+	public void banderaEstablecida(int x, int y, boolean establecida) {
+		if (!sincronizar)
+			escribirBandera(x * columnas + y, establecida);
+	}
+
+	public void banderasRestantes(int banderasRestantes) {
+		// Se envian al terminar la trama, solo si han cambiado
+	}
+
+	public void finPartida(Fase faseFinal) {
+		// Se envia al terminar la trama
+	}
+
+	public void partidaReanudada() {
+		// Se envia la fase al terminar la trama
+	}
+
+}
@@ -0,0 +1,210 @@
+package buscaminas.sm.protocolo;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import buscaminas.sm.model.Fase;
+
+/**
+ * Aplica a un {@link TableroEspejo} las tramas escritas por
+ * {@link CodificadorTramas}, en el mismo orden en que se escribieron. Las
+ * tramas se leen directamente del buffer en que se han recibido, sin copiarlas
+ * ni crear objetos.
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public final class DecodificadorTramas {
+
+	/**
+	 * Fases por su ordinal.
+	 */
+	private static final Fase[] FASES = Fase.values();
+
+	private DecodificadorTramas() {
+	}
+
+	/**
+	 * Comprueba si un buffer contiene una trama completa a partir de su
+	 * posicion, sin moverla.
+	 *
+	 * @param datos
+	 *            Datos recibidos
+	 * @return Si la trama esta completa
+	 */
+	public static boolean completa(ByteBuffer datos) {
+		int posicion = datos.position();
+		try {
+			long longitud = leerVariable(datos);
+			return longitud >= 0 && longitud <= datos.remaining();
+		} finally {
+			datos.position(posicion);
+		}
+	}
+
+	/**
+	 * Aplica la trama que empieza en la posicion del buffer, que queda al
+	 * final de la trama.
+	 *
+	 * @param datos
+	 *            Buffer con la trama completa
+	 * @param espejo
+	 *            Copia del tablero que se actualiza
+	 * @throws IOException
+	 *             Si la trama no es valida o esta incompleta. La copia puede
+	 *             quedar con parte de los cambios aplicados
+	 */
+	public static void aplicar(ByteBuffer datos, TableroEspejo espejo)
+			throws IOException {
+		long longitud = leerVariable(datos);
+		if (longitud < 0 || longitud > datos.remaining())
+			throw new IOException("La trama esta incompleta");
+		int limite = datos.limit();
+		datos.limit(datos.position() + (int) longitud);
+		try {
+			while (datos.hasRemaining())
+				aplicarSeccion(datos, espejo);
+		} catch (IndexOutOfBoundsException e) {
+			throw tramaNoValida(e);
+		} catch (BufferUnderflowException e) {
+			throw tramaNoValida(e);
+		} finally {
+			datos.limit(limite);
+		}
+	}
+
+	private static void aplicarSeccion(ByteBuffer datos, TableroEspejo espejo)
+			throws IOException {
+		int tipo = datos.get();
+		switch (tipo) {
+		case CodificadorTramas.PARTIDA: {
+			int filas = leerEntero(datos);
+			int columnas = leerEntero(datos);
+			int minas = leerEntero(datos);
+			if (filas < 1 || columnas < 1
+					|| (long) filas * columnas > Integer.MAX_VALUE
+					|| minas >= (long) filas * columnas)
+				throw new IOException("La trama no es valida");
+			espejo.reiniciar(filas, columnas, minas);
+			break;
+		}
+		case CodificadorTramas.DESTAPADAS:
+			aplicarTramos(datos, espejo, true);
+			break;
+		case CodificadorTramas.TAPADAS:
+			aplicarTramos(datos, espejo, false);
+			break;
+		case CodificadorTramas.BANDERA: {
+			long valor = leerVariable(datos);
+			espejo.establecerBandera(comprobar(espejo, valor >> 1),
+					(valor & 1) != 0);
+			break;
+		}
+		case CodificadorTramas.BANDERAS_RESTANTES: {
+			int valor = leerEntero(datos);
+			espejo.setBanderasRestantes(espejo.getBanderasRestantes()
+					+ ((valor >>> 1) ^ -(valor & 1)));
+			break;
+		}
+		case CodificadorTramas.FASE: {
+			int fase = datos.get();
+			if (fase < 0 || fase >= FASES.length)
+				throw new IOException("La trama no es valida");
+			espejo.setFase(FASES[fase]);
+			break;
+		}
+		default:
+			throw new IOException("La trama no es valida");
+		}
+	}
+
+	/**
+	 * Aplica una seccion de tramos de casillas destapadas o tapadas.
+	 */
+	private static void aplicarTramos(ByteBuffer datos, TableroEspejo espejo,
+			boolean destapadas) throws IOException {
+		int tramos = leerEntero(datos);
+		int inicioTramos = datos.position();
+		// Primero se recorren los tramos para llegar a los valores
+		for (int t = 0; t < tramos; t++) {
+			leerEntero(datos);
+			leerEntero(datos);
+		}
+		int posicionValores = datos.position();
+		int casilla = 0;
+		datos.position(inicioTramos);
+		long total = 0;
+		for (int t = 0; t < tramos; t++) {
+			long inicio = (long) casilla + leerEntero(datos);
+			long longitud = (long) leerEntero(datos) + 1;
+			comprobar(espejo, inicio + longitud - 1);
+			int tramosLeidos = datos.position();
+			for (int i = 0; i < longitud; i++) {
+				if (destapadas) {
+					long n = total + i;
+					int valores = datos.get(posicionValores + (int) (n >>> 1));
+					espejo.destapar((int) inicio + i, (n & 1) == 0 ? valores
+							& 0x0F : (valores >>> 4) & 0x0F);
+				} else {
+					espejo.tapar((int) inicio + i);
+				}
+			}
+			datos.position(tramosLeidos);
+			total += longitud;
+			casilla = (int) (inicio + longitud);
+		}
+		if (destapadas)
+			datos.position(posicionValores + (int) ((total + 1) >>> 1));
+	}
+
+	/**
+	 * Crea el error de una trama no valida con su causa, que el constructor
+	 * de IOException no admite hasta Java 6.
+	 */
+	private static IOException tramaNoValida(Throwable causa) {
+		IOException error = new IOException("La trama no es valida");
+		error.initCause(causa);
+		return error;
+	}
+
+	/**
+	 * Comprueba que una casilla esta dentro del tablero de la copia.
+	 */
+	private static int comprobar(TableroEspejo espejo, long indice)
+			throws IOException {
+		if (indice < 0
+				|| indice >= (long) espejo.getFilas() * espejo.getColumnas())
+			throw new IOException("La trama no es valida");
+		return (int) indice;
+	}
+
+	/**
+	 * Lee un entero de la trama, que debe estar completo.
+	 */
+	private static int leerEntero(ByteBuffer datos) throws IOException {
+		long valor = leerVariable(datos);
+		if (valor < 0 || valor > 0xFFFFFFFFL)
+			throw new IOException("La trama no es valida");
+		return (int) valor;
+	}
+
+	/**
+	 * Lee un entero no negativo escrito en grupos de 7 bits.
+	 *
+	 * @return El entero, o -1 si no esta completo
+	 */
+	private static long leerVariable(ByteBuffer datos) {
+		long valor = 0;
+		for (int desplazamiento = 0; desplazamiento < 35; desplazamiento += 7) {
+			if (!datos.hasRemaining())
+				return -1;
+			byte b = datos.get();
+			valor |= (long) (b & 0x7F) << desplazamiento;
+			if (b >= 0)
+				return valor;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,92 @@
+package buscaminas.sm.protocolo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Reserva de buffers directos del mismo tamaño en que se escriben las tramas
+ * de cambios. Los buffers directos se pueden escribir en un canal sin copiarlos
+ * antes a memoria del sistema, pero son caros de crear, asi que se reutilizan:
+ * quien envia la trama la devuelve a la reserva cuando ya la ha escrito.
+ * </p>
+ * <p>
+ * Se puede usar desde varios hilos a la vez. Los buffers de otro tamaño, como
+ * los que se crean para las tramas que no caben en uno normal, no se
+ * guardan.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class ReservaBuffers {
+
+	private final ConcurrentLinkedQueue<ByteBuffer> libres = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Buffers que hay en {@link #libres}, que la cola no cuenta en tiempo
+	 * constante.
+	 */
+	private final AtomicInteger numeroLibres = new AtomicInteger();
+
+	private final int capacidad;
+
+	private final int maximo;
+
+	/**
+	 * @param capacidad
+	 *            Bytes de cada buffer
+	 * @param maximo
+	 *            Buffers libres que se guardan como maximo
+	 * @throws IllegalArgumentException
+	 *             Si la capacidad no es positiva o el maximo es negativo
+	 */
+	public ReservaBuffers(int capacidad, int maximo) {
+		if (capacidad < 1 || maximo < 0)
+			throw new IllegalArgumentException(
+					"La capacidad de los buffers debe ser positiva");
+		this.capacidad = capacidad;
+		this.maximo = maximo;
+	}
+
+	/**
+	 * @return Bytes de cada buffer
+	 */
+	public int getCapacidad() {
+		return capacidad;
+	}
+
+	/**
+	 * Obtiene un buffer libre, o crea uno si no queda ninguno.
+	 *
+	 * @return Un buffer directo vacio de {@link #getCapacidad()} bytes
+	 */
+	public ByteBuffer obtener() {
+		ByteBuffer buffer = libres.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(capacidad);
+		numeroLibres.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Devuelve un buffer que ya no se va a usar. Si es de otro tamaño o ya
+	 * hay bastantes libres, se descarta.
+	 *
+	 * @param buffer
+	 *            Buffer obtenido de la reserva, o creado para una trama
+	 *            grande
+	 */
+	public void devolver(ByteBuffer buffer) {
+		if (buffer.capacity() != capacidad || !buffer.isDirect())
+			return;
+		if (numeroLibres.incrementAndGet() > maximo) {
+			numeroLibres.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		libres.offer(buffer);
+	}
+
+}
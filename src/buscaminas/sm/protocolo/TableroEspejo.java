@@ -0,0 +1,147 @@
+package buscaminas.sm.protocolo;
+
+import java.util.Arrays;
+
+import buscaminas.sm.model.AlmacenTablero;
+import buscaminas.sm.model.Fase;
+
+/**
+ * <p>
+ * Copia en el cliente del tablero de una partida remota, que se mantiene al
+ * dia aplicando las tramas de {@link CodificadorTramas} con
+ * {@link DecodificadorTramas}. Guarda las casillas con el mismo formato de
+ * un byte que {@link AlmacenTablero}, pero solo conoce el valor de las
+ * casillas destapadas: las tapadas tienen valor 0 aunque tengan mina.
+ * </p>
+ * <p>
+ * No es segura entre hilos; se debe leer desde el mismo hilo que le aplica
+ * las tramas.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class TableroEspejo {
+
+	private int filas;
+	private int columnas;
+	private int minas;
+	private byte[] casillas = new byte[0];
+	private Fase fase = Fase.INICIO;
+	private int banderasRestantes;
+	private int destapadas;
+
+	/**
+	 * Empieza una partida nueva, con todas las casillas tapadas.
+	 */
+	void reiniciar(int filas, int columnas, int minas) {
+		this.filas = filas;
+		this.columnas = columnas;
+		this.minas = minas;
+		int total = filas * columnas;
+		if (casillas.length == total)
+			Arrays.fill(casillas, (byte) 0);
+		else
+			casillas = new byte[total];
+		fase = Fase.INICIO;
+		banderasRestantes = minas;
+		destapadas = 0;
+	}
+
+	void destapar(int indice, int valor) {
+		byte estado = casillas[indice];
+		if ((estado & AlmacenTablero.DESTAPADA) == 0)
+			destapadas++;
+		casillas[indice] = (byte) ((estado & AlmacenTablero.BANDERA)
+				| AlmacenTablero.DESTAPADA | valor);
+	}
+
+	void tapar(int indice) {
+		byte estado = casillas[indice];
+		if ((estado & AlmacenTablero.DESTAPADA) != 0)
+			destapadas--;
+		casillas[indice] = (byte) (estado & AlmacenTablero.BANDERA);
+	}
+
+	void establecerBandera(int indice, boolean establecida) {
+		if (establecida)
+			casillas[indice] |= AlmacenTablero.BANDERA;
+		else
+			casillas[indice] &= ~AlmacenTablero.BANDERA;
+	}
+
+	void setFase(Fase fase) {
+		this.fase = fase;
+	}
+
+	void setBanderasRestantes(int banderasRestantes) {
+		this.banderasRestantes = banderasRestantes;
+	}
+
+	public int getFilas() {
+		return filas;
+	}
+
+	public int getColumnas() {
+		return columnas;
+	}
+
+	public int getMinas() {
+		return minas;
+	}
+
+	public Fase getFase() {
+		return fase;
+	}
+
+	public int getBanderasRestantes() {
+		return banderasRestantes;
+	}
+
+	/**
+	 * @return Casillas destapadas en la copia
+	 */
+	public int getDestapadas() {
+		return destapadas;
+	}
+
+	/**
+	 * Obtiene el estado de una casilla, con el formato de
+	 * {@link AlmacenTablero}.
+	 *
+	 * @param fila
+	 *            Fila de la casilla
+	 * @param columna
+	 *            Columna de la casilla
+	 * @return El estado de la casilla
+	 * @throws IndexOutOfBoundsException
+	 *             Si la casilla no esta dentro del tablero
+	 */
+	public byte getCasilla(int fila, int columna) {
+		if (fila < 0 || fila >= filas || columna < 0 || columna >= columnas)
+			throw new IndexOutOfBoundsException("La casilla no existe");
+		return casillas[fila * columnas + columna];
+	}
+
+	/**
+	 * Copia el estado de varias casillas consecutivas, con el formato de
+	 * {@link AlmacenTablero}.
+	 *
+	 * @param desde
+	 *            Indice de la primera casilla, como fila * columnas + columna
+	 * @param destino
+	 *            Vector donde se copian
+	 * @param desplazamiento
+	 *            Posicion del vector donde se copia la primera
+	 * @param cantidad
+	 *            Numero de casillas
+	 * @throws IndexOutOfBoundsException
+	 *             Si el tramo no esta dentro del tablero o no cabe en el
+	 *             vector
+	 */
+	public void leerCasillas(int desde, byte[] destino, int desplazamiento,
+			int cantidad) {
+		System.arraycopy(casillas, desde, destino, desplazamiento, cantidad);
+	}
+
+}
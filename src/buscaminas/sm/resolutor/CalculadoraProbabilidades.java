@@ -0,0 +1,427 @@
+package buscaminas.sm.resolutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import buscaminas.sm.model.EstadoJuego;
+
+/**
+ * <p>
+ * Calcula la probabilidad exacta de que cada casilla tapada de una partida
+ * tenga mina, considerando igual de probables todas las colocaciones de minas
+ * compatibles con los numeros destapados y con el total de minas.
+ * </p>
+ * <p>
+ * Parte de las deducciones de un {@link Resolutor} y divide la frontera (las
+ * casillas tapadas sin deducir junto a algun numero) en grupos
+ * independientes, que no comparten ningun numero. Cada grupo se cuenta por
+ * separado con {@link ComponenteFrontera}, y los grupos se combinan
+ * ponderando cada reparto de minas por las formas de colocar las restantes en
+ * las casillas del interior, que no tocan ningun numero (un coeficiente
+ * binomial, calculado con logaritmos).
+ * </p>
+ * <p>
+ * Los grupos se guardan entre calculos segun sus numeros y las minas que les
+ * faltan, de modo que tras una jugada solo se vuelven a contar los grupos que
+ * ha cambiado. Solo admite un hilo.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class CalculadoraProbabilidades {
+
+	/**
+	 * Resolutor con las deducciones de la partida.
+	 */
+	private final Resolutor resolutor;
+
+	private final int filas;
+	private final int columnas;
+
+	/**
+	 * Grupos de la frontera contados en el ultimo calculo, por sus numeros.
+	 */
+	private Map<Clave, ComponenteFrontera> grupos = new HashMap<Clave, ComponenteFrontera>();
+
+	/**
+	 * Numeros de un grupo de la frontera con lo que falta a cada uno, que
+	 * determinan por completo sus colocaciones.
+	 */
+	private static final class Clave {
+		final long[] numeros;
+		final int hash;
+
+		Clave(long[] numeros) {
+			this.numeros = numeros;
+			this.hash = Arrays.hashCode(numeros);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Clave
+					&& Arrays.equals(numeros, ((Clave) o).numeros);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Crea una calculadora sobre las deducciones de un resolutor.
+	 *
+	 * @param resolutor
+	 *            Resolutor que observa la partida
+	 */
+	public CalculadoraProbabilidades(Resolutor resolutor) {
+		this.resolutor = resolutor;
+		this.filas = resolutor.getJuego().getFilas();
+		this.columnas = resolutor.getJuego().getColumnas();
+	}
+
+	/**
+	 * Calcula la probabilidad de mina de todas las casillas.
+	 *
+	 * @return Para cada casilla (fila * columnas + columna), la probabilidad
+	 *         de que tenga mina, o -1 si esta destapada
+	 */
+	public double[] calcular() {
+		resolutor.resolver();
+		int casillas = filas * columnas;
+		double[] probabilidades = new double[casillas];
+
+		// Numeros con casillas sin deducir, y grupos de la frontera unidos
+		// por ellos
+		int[] padres = new int[casillas];
+		Arrays.fill(padres, -1);
+		int[] numeros = new int[16];
+		int totalNumeros = 0;
+		for (int casilla = 0; casilla < casillas; casilla++) {
+			int mascara = resolutor.getMascara(casilla);
+			if (resolutor.getEstado(casilla) != Resolutor.DESTAPADA
+					|| mascara == 0)
+				continue;
+			if (totalNumeros == numeros.length) {
+				int[] ampliados = new int[totalNumeros * 2];
+				System.arraycopy(numeros, 0, ampliados, 0, totalNumeros);
+				numeros = ampliados;
+			}
+			numeros[totalNumeros++] = casilla;
+			int primera = -1;
+			for (int bit = 0; bit < 9; bit++) {
+				if ((mascara & (1 << bit)) == 0)
+					continue;
+				int adyacente = adyacente(casilla, bit);
+				if (padres[adyacente] < 0)
+					padres[adyacente] = adyacente;
+				if (primera < 0)
+					primera = adyacente;
+				else
+					unir(padres, primera, adyacente);
+			}
+		}
+
+		int minasConocidas = 0;
+		int interiores = 0;
+		for (int casilla = 0; casilla < casillas; casilla++) {
+			switch (resolutor.getEstado(casilla)) {
+			case Resolutor.DESTAPADA:
+				probabilidades[casilla] = -1;
+				break;
+			case Resolutor.MINA:
+				probabilidades[casilla] = 1;
+				minasConocidas++;
+				break;
+			case Resolutor.TAPADA:
+				if (padres[casilla] < 0)
+					interiores++;
+				break;
+			default:
+				// Las seguras quedan con probabilidad 0
+			}
+		}
+
+		// Agrupar los numeros por el grupo de su primera casilla, en orden
+		long[] orden = new long[totalNumeros];
+		for (int k = 0; k < totalNumeros; k++) {
+			int raiz = raiz(padres, adyacente(numeros[k], Integer
+					.numberOfTrailingZeros(resolutor.getMascara(numeros[k]))));
+			orden[k] = ((long) raiz << 32) | k;
+		}
+		Arrays.sort(orden);
+		List<ComponenteFrontera> componentes = new ArrayList<ComponenteFrontera>();
+		Map<Clave, ComponenteFrontera> usados = new HashMap<Clave, ComponenteFrontera>();
+		for (int inicio = 0; inicio < totalNumeros;) {
+			int fin = inicio;
+			while (fin < totalNumeros
+					&& (orden[fin] >>> 32) == (orden[inicio] >>> 32))
+				fin++;
+			int[] grupo = new int[fin - inicio];
+			long[] clave = new long[grupo.length];
+			for (int k = 0; k < grupo.length; k++) {
+				grupo[k] = numeros[(int) orden[inicio + k]];
+				clave[k] = ((long) grupo[k] << 13)
+						| (resolutor.getFaltan(grupo[k]) << 9)
+						| resolutor.getMascara(grupo[k]);
+			}
+			Clave c = new Clave(clave);
+			ComponenteFrontera componente = grupos.get(c);
+			if (componente == null)
+				componente = contar(grupo);
+			usados.put(c, componente);
+			componentes.add(componente);
+			inicio = fin;
+		}
+		grupos = usados;
+
+		double interior = combinar(componentes, resolutor.getJuego()
+				.getMinasTotales() - minasConocidas, interiores, probabilidades);
+		if (interiores > 0) {
+			for (int casilla = 0; casilla < casillas; casilla++) {
+				if (padres[casilla] < 0
+						&& resolutor.getEstado(casilla) == Resolutor.TAPADA)
+					probabilidades[casilla] = interior;
+			}
+		}
+		return probabilidades;
+	}
+
+	/**
+	 * Obtiene la casilla tapada con menor probabilidad de mina, que es la
+	 * mejor jugada cuando no se puede deducir ninguna segura.
+	 *
+	 * @return El indice de la casilla, o -1 si no queda ninguna tapada
+	 */
+	public int casillaMasSegura() {
+		double[] probabilidades = calcular();
+		int mejor = -1;
+		for (int casilla = 0; casilla < probabilidades.length; casilla++) {
+			if (probabilidades[casilla] >= 0
+					&& (mejor < 0 || probabilidades[casilla] < probabilidades[mejor]))
+				mejor = casilla;
+		}
+		return mejor;
+	}
+
+	/**
+	 * Prepara y cuenta un grupo de la frontera. Las casillas se recorren en
+	 * anchura a traves de los numeros, de modo que las de un mismo numero
+	 * quedan cerca y hay pocos numeros abiertos a la vez.
+	 */
+	private ComponenteFrontera contar(int[] grupo) {
+		Map<Integer, Integer> posiciones = new HashMap<Integer, Integer>();
+		List<List<Integer>> numerosDeCasilla = new ArrayList<List<Integer>>();
+		List<Integer> casillas = new ArrayList<Integer>();
+		for (int k = 0; k < grupo.length; k++) {
+			int mascara = resolutor.getMascara(grupo[k]);
+			for (int bit = 0; bit < 9; bit++) {
+				if ((mascara & (1 << bit)) == 0)
+					continue;
+				Integer casilla = adyacente(grupo[k], bit);
+				Integer local = posiciones.get(casilla);
+				if (local == null) {
+					local = casillas.size();
+					posiciones.put(casilla, local);
+					casillas.add(casilla);
+					numerosDeCasilla.add(new ArrayList<Integer>(4));
+				}
+				numerosDeCasilla.get(local).add(k);
+			}
+		}
+
+		// Recorrido en anchura desde la primera casilla
+		int total = casillas.size();
+		int[] orden = new int[total];
+		int[] posicionEnOrden = new int[total];
+		Arrays.fill(posicionEnOrden, -1);
+		boolean[] numeroVisto = new boolean[grupo.length];
+		orden[0] = 0;
+		posicionEnOrden[0] = 0;
+		int fin = 1;
+		for (int cabeza = 0; cabeza < fin; cabeza++) {
+			for (int k : numerosDeCasilla.get(orden[cabeza])) {
+				if (numeroVisto[k])
+					continue;
+				numeroVisto[k] = true;
+				int mascara = resolutor.getMascara(grupo[k]);
+				for (int bit = 0; bit < 9; bit++) {
+					if ((mascara & (1 << bit)) == 0)
+						continue;
+					int local = posiciones.get(adyacente(grupo[k], bit));
+					if (posicionEnOrden[local] < 0) {
+						posicionEnOrden[local] = fin;
+						orden[fin++] = local;
+					}
+				}
+			}
+		}
+
+		int[] recorrido = new int[total];
+		for (int p = 0; p < total; p++)
+			recorrido[p] = casillas.get(orden[p]);
+		int[][] restricciones = new int[grupo.length][];
+		int[] faltan = new int[grupo.length];
+		for (int k = 0; k < grupo.length; k++) {
+			int mascara = resolutor.getMascara(grupo[k]);
+			restricciones[k] = new int[Integer.bitCount(mascara)];
+			int c = 0;
+			for (int bit = 0; bit < 9; bit++) {
+				if ((mascara & (1 << bit)) != 0)
+					restricciones[k][c++] = posicionEnOrden[posiciones
+							.get(adyacente(grupo[k], bit))];
+			}
+			faltan[k] = resolutor.getFaltan(grupo[k]);
+		}
+		return new ComponenteFrontera(recorrido, restricciones, faltan);
+	}
+
+	/**
+	 * Combina los grupos de la frontera y el interior para obtener la
+	 * probabilidad de cada casilla sin deducir.
+	 *
+	 * @param componentes
+	 *            Grupos de la frontera
+	 * @param minas
+	 *            Minas que quedan por colocar en la frontera y el interior
+	 * @param interiores
+	 *            Casillas tapadas sin deducir que no tocan ningun numero
+	 * @param probabilidades
+	 *            Probabilidades de todas las casillas, que se completan con
+	 *            las de la frontera
+	 * @return La probabilidad de cada casilla del interior
+	 */
+	private double combinar(List<ComponenteFrontera> componentes, int minas,
+			int interiores, double[] probabilidades) {
+		int m = componentes.size();
+		// Repartos de minas entre los grupos anteriores y posteriores a cada
+		// uno, normalizados
+		double[][] anteriores = new double[m + 1][];
+		double[][] posteriores = new double[m + 1][];
+		anteriores[0] = new double[] { 1 };
+		posteriores[m] = new double[] { 1 };
+		for (int j = 0; j < m; j++)
+			anteriores[j + 1] = convolucion(anteriores[j],
+					componentes.get(j).colocaciones);
+		for (int j = m - 1; j >= 0; j--)
+			posteriores[j] = convolucion(componentes.get(j).colocaciones,
+					posteriores[j + 1]);
+
+		// Formas de colocar en el interior las minas que no estan en la
+		// frontera, segun cuantas haya en ella
+		int maximoFrontera = anteriores[m].length - 1;
+		double[] interior = pesosInterior(minas, interiores, maximoFrontera);
+
+		for (int j = 0; j < m; j++) {
+			ComponenteFrontera componente = componentes.get(j);
+			double[] otros = convolucion(anteriores[j], posteriores[j + 1]);
+			double[] peso = new double[componente.colocaciones.length];
+			for (int k = 0; k < peso.length; k++) {
+				for (int s = 0; s < otros.length; s++)
+					peso[k] += otros[s] * interior[k + s];
+			}
+			double total = producto(componente.colocaciones, peso);
+			for (int p = 0; p < componente.casillas.length; p++) {
+				probabilidades[componente.casillas[p]] = producto(
+						componente.minas[p], peso)
+						/ total
+						* Math.exp(componente.escalaMinas[p]
+								- componente.escala);
+			}
+		}
+
+		if (interiores == 0)
+			return 0;
+		double total = 0;
+		double conMina = 0;
+		double[] frontera = anteriores[m];
+		for (int s = 0; s < frontera.length; s++) {
+			double peso = frontera[s] * interior[s];
+			total += peso;
+			conMina += peso * (minas - s) / interiores;
+		}
+		return conMina / total;
+	}
+
+	/**
+	 * Calcula, para cada numero de minas en la frontera, las formas de
+	 * colocar las restantes en el interior, proporcionales al coeficiente
+	 * binomial y normalizadas para que la mayor valga 1.
+	 */
+	private static double[] pesosInterior(int minas, int interiores,
+			int maximoFrontera) {
+		double[] logaritmos = new double[maximoFrontera + 1];
+		double maximo = Double.NEGATIVE_INFINITY;
+		// log C(interiores, t) relativo al menor t valido, con t = minas - s
+		int menor = Math.max(0, minas - maximoFrontera);
+		double actual = 0;
+		for (int t = menor; t <= Math.min(minas, interiores); t++) {
+			if (t > menor)
+				actual += Math.log(interiores - t + 1) - Math.log(t);
+			logaritmos[minas - t] = actual;
+			maximo = Math.max(maximo, actual);
+		}
+		double[] pesos = new double[maximoFrontera + 1];
+		for (int s = 0; s <= maximoFrontera; s++) {
+			int t = minas - s;
+			if (t >= menor && t <= Math.min(minas, interiores))
+				pesos[s] = Math.exp(logaritmos[s] - maximo);
+		}
+		return pesos;
+	}
+
+	/**
+	 * Convoluciona dos repartos de minas y normaliza el resultado.
+	 */
+	private static double[] convolucion(double[] a, double[] b) {
+		double[] resultado = new double[a.length + b.length - 1];
+		double maximo = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == 0)
+				continue;
+			for (int k = 0; k < b.length; k++)
+				resultado[i + k] += a[i] * b[k];
+		}
+		for (double valor : resultado)
+			maximo = Math.max(maximo, valor);
+		if (maximo > 0) {
+			for (int k = 0; k < resultado.length; k++)
+				resultado[k] /= maximo;
+		}
+		return resultado;
+	}
+
+	private static double producto(double[] a, double[] b) {
+		double suma = 0;
+		for (int k = 0; k < a.length; k++)
+			suma += a[k] * b[k];
+		return suma;
+	}
+
+	/**
+	 * Obtiene la casilla que ocupa un bit de la mascara de 3x3 de otra.
+	 */
+	private int adyacente(int casilla, int bit) {
+		return casilla + (bit / 3 - 1) * columnas + bit % 3 - 1;
+	}
+
+	private static int raiz(int[] padres, int casilla) {
+		while (padres[casilla] != casilla) {
+			padres[casilla] = padres[padres[casilla]];
+			casilla = padres[casilla];
+		}
+		return casilla;
+	}
+
+	private static void unir(int[] padres, int a, int b) {
+		int raizA = raiz(padres, a);
+		int raizB = raiz(padres, b);
+		if (raizA != raizB)
+			padres[raizB] = raizA;
+	}
+
+}
@@ -0,0 +1,56 @@
+package buscaminas.sm.resolutor;
+
+/**
+ * Cola circular de indices de casillas que se amplia segun se necesita, sin
+ * crear un objeto por elemento.
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+class ColaIndices {
+
+	/**
+	 * Elementos de la cola; su tamaño es siempre una potencia de dos.
+	 */
+	private int[] elementos = new int[64];
+
+	/**
+	 * Posicion del primer elemento.
+	 */
+	private int cabeza;
+
+	/**
+	 * Numero de elementos en la cola.
+	 */
+	private int total;
+
+	boolean isVacia() {
+		return total == 0;
+	}
+
+	void poner(int indice) {
+		if (total == elementos.length) {
+			int[] nuevos = new int[elementos.length * 2];
+			int primeros = elementos.length - cabeza;
+			System.arraycopy(elementos, cabeza, nuevos, 0, primeros);
+			System.arraycopy(elementos, 0, nuevos, primeros, cabeza);
+			elementos = nuevos;
+			cabeza = 0;
+		}
+		elementos[(cabeza + total) & (elementos.length - 1)] = indice;
+		total++;
+	}
+
+	void vaciar() {
+		cabeza = 0;
+		total = 0;
+	}
+
+	int sacar() {
+		int indice = elementos[cabeza];
+		cabeza = (cabeza + 1) & (elementos.length - 1);
+		total--;
+		return indice;
+	}
+
+}
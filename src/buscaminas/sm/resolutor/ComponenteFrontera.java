@@ -0,0 +1,290 @@
+package buscaminas.sm.resolutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Grupo de casillas tapadas de la frontera unidas por numeros comunes, cuyas
+ * colocaciones de minas no dependen de las de otros grupos. Al crearse cuenta,
+ * para cada numero de minas del grupo, cuantas colocaciones cumplen todos sus
+ * numeros y en cuantas de ellas tiene mina cada casilla.
+ * </p>
+ * <p>
+ * Las casillas se recorren en orden y cada colocacion parcial se resume en lo
+ * que aun le falta a cada numero que tiene casillas ya decididas y casillas
+ * por decidir. Las colocaciones parciales con el mismo resumen tienen las
+ * mismas continuaciones, por lo que se cuentan juntas (enumeracion con
+ * memorizacion), y las que ya no pueden cumplir algun numero se descartan. Un
+ * recorrido hacia delante y otro hacia atras dan las cuentas de cada casilla
+ * sin enumerar las colocaciones una a una.
+ * </p>
+ * <p>
+ * Las cuentas pueden superar el rango de un double, por lo que cada capa se
+ * normaliza y se guarda aparte el logaritmo de su escala.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+class ComponenteFrontera {
+
+	/**
+	 * Casillas del grupo, en el orden en que se recorren.
+	 */
+	final int[] casillas;
+
+	/**
+	 * Colocaciones validas por numero de minas del grupo, multiplicadas por
+	 * e^-escala.
+	 */
+	final double[] colocaciones;
+
+	/**
+	 * Logaritmo de la escala de las colocaciones.
+	 */
+	final double escala;
+
+	/**
+	 * Colocaciones validas con mina en cada casilla, por numero de minas del
+	 * grupo, multiplicadas por e^-escalaMinas[casilla].
+	 */
+	final double[][] minas;
+
+	/**
+	 * Logaritmo de la escala de las colocaciones con mina de cada casilla.
+	 */
+	final double[] escalaMinas;
+
+	/**
+	 * Resumen de una colocacion parcial: lo que falta a cada numero abierto,
+	 * cuatro bits por numero.
+	 */
+	private static final class Resumen {
+		final long[] faltan;
+		final int hash;
+
+		Resumen(long[] faltan) {
+			this.faltan = faltan;
+			this.hash = Arrays.hashCode(faltan);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Resumen
+					&& Arrays.equals(faltan, ((Resumen) o).faltan);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Cuenta las colocaciones de un grupo.
+	 *
+	 * @param casillas
+	 *            Casillas del grupo, en el orden en que se recorren
+	 * @param numeros
+	 *            Para cada numero, las posiciones en {@code casillas} de sus
+	 *            casillas tapadas
+	 * @param faltan
+	 *            Minas que le faltan a cada numero
+	 */
+	ComponenteFrontera(int[] casillas, int[][] numeros, int[] faltan) {
+		this.casillas = casillas;
+		int n = casillas.length;
+		int r = numeros.length;
+
+		// Primera y ultima casilla de cada numero, y numeros de cada casilla
+		// con cuantas casillas suyas quedan despues
+		int[] primera = new int[r];
+		int[] ultima = new int[r];
+		int[] porCasilla = new int[n];
+		for (int k = 0; k < r; k++) {
+			primera[k] = Integer.MAX_VALUE;
+			for (int posicion : numeros[k]) {
+				primera[k] = Math.min(primera[k], posicion);
+				ultima[k] = Math.max(ultima[k], posicion);
+				porCasilla[posicion]++;
+			}
+		}
+		int[][] contienen = new int[n][];
+		int[][] restantes = new int[n][];
+		for (int p = 0; p < n; p++) {
+			contienen[p] = new int[porCasilla[p]];
+			restantes[p] = new int[porCasilla[p]];
+			porCasilla[p] = 0;
+		}
+		for (int k = 0; k < r; k++) {
+			for (int posicion : numeros[k]) {
+				int despues = 0;
+				for (int otra : numeros[k]) {
+					if (otra > posicion)
+						despues++;
+				}
+				contienen[posicion][porCasilla[posicion]] = k;
+				restantes[posicion][porCasilla[posicion]++] = despues;
+			}
+		}
+		// Numeros abiertos tras decidir p casillas
+		int[][] abiertos = new int[n + 1][];
+		for (int p = 0; p <= n; p++) {
+			int total = 0;
+			for (int k = 0; k < r; k++) {
+				if (primera[k] < p && ultima[k] >= p)
+					total++;
+			}
+			abiertos[p] = new int[total];
+			total = 0;
+			for (int k = 0; k < r; k++) {
+				if (primera[k] < p && ultima[k] >= p)
+					abiertos[p][total++] = k;
+			}
+		}
+
+		// Recorrido hacia delante: resumenes de cada capa, cuentas por
+		// numero de minas y capa siguiente segun la casilla tenga mina o no
+		List<List<Resumen>> capas = new ArrayList<List<Resumen>>(n + 1);
+		double[][][] adelante = new double[n + 1][][];
+		int[][][] siguiente = new int[n][][];
+		double[] escalaAdelante = new double[n + 1];
+		List<Resumen> inicial = new ArrayList<Resumen>(1);
+		inicial.add(new Resumen(new long[0]));
+		capas.add(inicial);
+		adelante[0] = new double[][] { { 1 } };
+		int[] actual = new int[r];
+		int[] nuevo = new int[r];
+		for (int p = 0; p < n; p++) {
+			List<Resumen> capa = capas.get(p);
+			Map<Resumen, Integer> indices = new HashMap<Resumen, Integer>();
+			List<Resumen> capaSiguiente = new ArrayList<Resumen>();
+			List<double[]> cuentas = new ArrayList<double[]>();
+			siguiente[p] = new int[capa.size()][2];
+			for (int s = 0; s < capa.size(); s++) {
+				leer(capa.get(s), abiertos[p], actual);
+				for (int mina = 0; mina <= 1; mina++) {
+					siguiente[p][s][mina] = -1;
+					System.arraycopy(actual, 0, nuevo, 0, r);
+					boolean valida = true;
+					for (int c = 0; c < contienen[p].length && valida; c++) {
+						int k = contienen[p][c];
+						int resto = (primera[k] == p ? faltan[k] : actual[k])
+								- mina;
+						valida = resto >= 0 && resto <= restantes[p][c];
+						nuevo[k] = resto;
+					}
+					if (!valida)
+						continue;
+					Resumen resumen = escribir(abiertos[p + 1], nuevo);
+					Integer indice = indices.get(resumen);
+					if (indice == null) {
+						indice = capaSiguiente.size();
+						indices.put(resumen, indice);
+						capaSiguiente.add(resumen);
+						cuentas.add(new double[p + 2]);
+					}
+					siguiente[p][s][mina] = indice;
+					double[] origen = adelante[p][s];
+					double[] destino = cuentas.get(indice);
+					for (int a = 0; a < origen.length; a++)
+						destino[a + mina] += origen[a];
+				}
+			}
+			capas.add(capaSiguiente);
+			adelante[p + 1] = cuentas.toArray(new double[cuentas.size()][]);
+			escalaAdelante[p + 1] = escalaAdelante[p]
+					+ normalizar(adelante[p + 1]);
+		}
+
+		// Recorrido hacia atras: continuaciones validas de cada resumen
+		double[][][] atras = new double[n + 1][][];
+		double[] escalaAtras = new double[n + 1];
+		atras[n] = new double[capas.get(n).size()][];
+		for (int s = 0; s < atras[n].length; s++)
+			atras[n][s] = new double[] { 1 };
+		for (int p = n - 1; p >= 0; p--) {
+			atras[p] = new double[capas.get(p).size()][];
+			for (int s = 0; s < atras[p].length; s++) {
+				double[] cuenta = new double[n - p + 1];
+				for (int mina = 0; mina <= 1; mina++) {
+					int destino = siguiente[p][s][mina];
+					if (destino < 0)
+						continue;
+					double[] continuacion = atras[p + 1][destino];
+					for (int b = 0; b < continuacion.length; b++)
+						cuenta[b + mina] += continuacion[b];
+				}
+				atras[p][s] = cuenta;
+			}
+			escalaAtras[p] = escalaAtras[p + 1] + normalizar(atras[p]);
+		}
+
+		// Colocaciones totales y con mina en cada casilla
+		colocaciones = new double[n + 1];
+		if (adelante[n].length > 0)
+			System.arraycopy(adelante[n][0], 0, colocaciones, 0, n + 1);
+		escala = escalaAdelante[n];
+		minas = new double[n][n + 1];
+		escalaMinas = new double[n];
+		for (int p = 0; p < n; p++) {
+			for (int s = 0; s < adelante[p].length; s++) {
+				int destino = siguiente[p][s][1];
+				if (destino < 0)
+					continue;
+				double[] antes = adelante[p][s];
+				double[] despues = atras[p + 1][destino];
+				for (int a = 0; a < antes.length; a++) {
+					if (antes[a] == 0)
+						continue;
+					for (int b = 0; b < despues.length; b++)
+						minas[p][a + b + 1] += antes[a] * despues[b];
+				}
+			}
+			escalaMinas[p] = escalaAdelante[p] + escalaAtras[p + 1];
+		}
+	}
+
+	/**
+	 * Extrae lo que falta a cada numero abierto de un resumen.
+	 */
+	private static void leer(Resumen resumen, int[] abiertos, int[] faltan) {
+		for (int c = 0; c < abiertos.length; c++)
+			faltan[abiertos[c]] = (int) (resumen.faltan[c >> 4] >>> ((c & 15) << 2)) & 0xF;
+	}
+
+	/**
+	 * Resume lo que falta a cada numero abierto.
+	 */
+	private static Resumen escribir(int[] abiertos, int[] faltan) {
+		long[] resumen = new long[(abiertos.length + 15) >> 4];
+		for (int c = 0; c < abiertos.length; c++)
+			resumen[c >> 4] |= (long) faltan[abiertos[c]] << ((c & 15) << 2);
+		return new Resumen(resumen);
+	}
+
+	/**
+	 * Divide todas las cuentas de una capa por la mayor.
+	 *
+	 * @return El logaritmo del divisor
+	 */
+	private static double normalizar(double[][] capa) {
+		double maximo = 0;
+		for (double[] cuenta : capa) {
+			for (double valor : cuenta)
+				maximo = Math.max(maximo, valor);
+		}
+		if (maximo == 0 || maximo == 1)
+			return 0;
+		for (double[] cuenta : capa) {
+			for (int k = 0; k < cuenta.length; k++)
+				cuenta[k] /= maximo;
+		}
+		return Math.log(maximo);
+	}
+
+}
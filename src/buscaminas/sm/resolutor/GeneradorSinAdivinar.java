@@ -0,0 +1,259 @@
+package buscaminas.sm.resolutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import buscaminas.sm.model.AlmacenTableroEmpaquetado;
+import buscaminas.sm.model.Dificultad;
+import buscaminas.sm.model.EstadoJuego;
+import buscaminas.sm.model.Fase;
+import buscaminas.sm.model.HuellaTablero;
+
+/**
+ * <p>
+ * Genera tableros que se pueden resolver sin adivinar desde la primera
+ * casilla pulsada. Cada candidato es una semilla: se colocan las minas como
+ * en cualquier partida, dejando libres la primera casilla y sus adyacentes, y
+ * se juega con un {@link Resolutor} hasta ganar o quedarse sin casillas
+ * seguras. Los candidatos que no se resuelven se descartan y se prueba con
+ * otra semilla.
+ * </p>
+ * <p>
+ * Los tableros se devuelven como {@link HuellaTablero}, que incluye la
+ * primera casilla, por lo que se regeneran exactamente igual en cualquier
+ * dispositivo. Los candidatos se evaluan en paralelo en un grupo fijo de
+ * hilos, con un tiempo maximo por peticion.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class GeneradorSinAdivinar {
+
+	/**
+	 * Hilos que evaluan candidatos.
+	 */
+	private final ExecutorService ejecutor;
+
+	private final int hilos;
+
+	/**
+	 * Generador de las semillas con que cada tarea empieza su busqueda.
+	 */
+	private final Random semillas = new Random();
+
+	/**
+	 * Crea un generador con tantos hilos como procesadores.
+	 */
+	public GeneradorSinAdivinar() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Crea un generador con el numero de hilos indicado.
+	 *
+	 * @param hilos
+	 *            Hilos que evaluan candidatos en paralelo
+	 */
+	public GeneradorSinAdivinar(int hilos) {
+		if (hilos < 1)
+			throw new IllegalArgumentException(
+					"Debe haber al menos un hilo");
+		this.hilos = hilos;
+		this.ejecutor = Executors.newFixedThreadPool(hilos,
+				new ThreadFactory() {
+					private final AtomicInteger creados = new AtomicInteger();
+
+					public Thread newThread(Runnable tarea) {
+						Thread hilo = new Thread(tarea,
+								"GeneradorSinAdivinar-"
+										+ creados.incrementAndGet());
+						hilo.setDaemon(true);
+						return hilo;
+					}
+				});
+	}
+
+	/**
+	 * Genera un tablero sin adivinar de una dificultad, empezando por la
+	 * casilla central.
+	 *
+	 * @param dificultad
+	 *            Dificultad del tablero
+	 * @param milisegundos
+	 *            Tiempo maximo de la busqueda
+	 * @return La huella del tablero, o null si no se ha encontrado a tiempo
+	 */
+	public HuellaTablero generar(Dificultad dificultad, long milisegundos) {
+		List<HuellaTablero> tableros = generar(dificultad.getFilas(),
+				dificultad.getColumnas(), dificultad.getMinas(),
+				dificultad.getFilas() / 2, dificultad.getColumnas() / 2, 1,
+				milisegundos);
+		return tableros.isEmpty() ? null : tableros.get(0);
+	}
+
+	/**
+	 * Genera varios tableros sin adivinar con las mismas dimensiones y la
+	 * misma primera casilla.
+	 *
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 * @param minas
+	 *            Numero de minas del tablero
+	 * @param fila
+	 *            Fila de la primera casilla pulsada
+	 * @param columna
+	 *            Columna de la primera casilla pulsada
+	 * @param cantidad
+	 *            Numero de tableros que se quieren
+	 * @param milisegundos
+	 *            Tiempo maximo de la busqueda
+	 * @return Las huellas de los tableros encontrados a tiempo, como mucho
+	 *         {@code cantidad}
+	 * @throws IllegalArgumentException
+	 *             Si los datos no corresponden a un tablero valido
+	 */
+	public List<HuellaTablero> generar(final int filas, final int columnas,
+			final int minas, final int fila, final int columna,
+			int cantidad, long milisegundos) {
+		if (fila < 0 || fila >= filas || columna < 0 || columna >= columnas)
+			throw new IllegalArgumentException("La casilla no existe");
+		// La huella valida las dimensiones y el numero de minas
+		new HuellaTablero(filas, columnas, minas, 0, -1, true);
+		final long limite = System.nanoTime() + milisegundos * 1000000;
+		final AtomicInteger pendientes = new AtomicInteger(cantidad);
+		final ConcurrentLinkedQueue<HuellaTablero> encontrados = new ConcurrentLinkedQueue<HuellaTablero>();
+		// Se abre cuando hay bastantes tableros, cuando todas las tareas han
+		// terminado o cuando alguna falla
+		final CountDownLatch terminada = new CountDownLatch(1);
+		final AtomicInteger activas = new AtomicInteger(hilos);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		for (int h = 0; h < hilos; h++) {
+			final long inicial;
+			synchronized (semillas) {
+				inicial = semillas.nextLong();
+			}
+			ejecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						Random aleatorio = new Random(inicial);
+						while (pendientes.get() > 0) {
+							HuellaTablero huella = buscar(filas, columnas,
+									minas, fila, columna, aleatorio, limite,
+									pendientes);
+							if (huella == null)
+								break;
+							int restantes = pendientes.getAndDecrement();
+							if (restantes > 0)
+								encontrados.add(huella);
+							if (restantes == 1)
+								terminada.countDown();
+						}
+					} catch (Throwable e) {
+						error.compareAndSet(null, e);
+						pendientes.set(0);
+						terminada.countDown();
+					} finally {
+						if (activas.decrementAndGet() == 0)
+							terminada.countDown();
+					}
+				}
+			});
+		}
+		try {
+			terminada.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// Las tareas que siguen buscando lo dejan tras el candidato actual,
+		// y sus tableros ya no se guardan
+		pendientes.set(0);
+		if (error.get() != null)
+			throw new IllegalStateException(error.get());
+		return new ArrayList<HuellaTablero>(encontrados);
+	}
+
+	/**
+	 * Prueba semillas en el hilo actual hasta encontrar un tablero sin
+	 * adivinar.
+	 *
+	 * @param filas
+	 *            Filas del tablero
+	 * @param columnas
+	 *            Columnas del tablero
+	 * @param minas
+	 *            Numero de minas del tablero
+	 * @param fila
+	 *            Fila de la primera casilla pulsada
+	 * @param columna
+	 *            Columna de la primera casilla pulsada
+	 * @param aleatorio
+	 *            Generador de las semillas candidatas
+	 * @param limite
+	 *            Instante, segun {@link System#nanoTime()}, en que se abandona
+	 *            la busqueda
+	 * @return La huella del tablero, o null si no se ha encontrado a tiempo
+	 */
+	public static HuellaTablero buscar(int filas, int columnas, int minas,
+			int fila, int columna, Random aleatorio, long limite) {
+		return buscar(filas, columnas, minas, fila, columna, aleatorio,
+				limite, null);
+	}
+
+	/**
+	 * Prueba semillas hasta encontrar un tablero sin adivinar o hasta que ya
+	 * no se necesiten mas tableros.
+	 *
+	 * @param pendientes
+	 *            Tableros que aun se necesitan, que se comprueba antes de
+	 *            cada candidato, o null si no se abandona por ellos
+	 * @see #buscar(int, int, int, int, int, Random, long)
+	 */
+	private static HuellaTablero buscar(int filas, int columnas, int minas,
+			int fila, int columna, Random aleatorio, long limite,
+			AtomicInteger pendientes) {
+		do {
+			if (pendientes != null && pendientes.get() <= 0)
+				return null;
+			long semilla = aleatorio.nextLong();
+			if (resoluble(filas, columnas, minas, semilla, fila, columna))
+				return new HuellaTablero(filas, columnas, minas, semilla, fila
+						* columnas + columna, true);
+		} while (System.nanoTime() - limite < 0
+				&& !Thread.currentThread().isInterrupted());
+		return null;
+	}
+
+	/**
+	 * Comprueba si el tablero de una semilla se resuelve sin adivinar.
+	 */
+	private static boolean resoluble(int filas, int columnas, int minas,
+			long semilla, int fila, int columna) {
+		EstadoJuego juego = new EstadoJuego(new AlmacenTableroEmpaquetado(
+				filas, columnas), minas, semilla);
+		juego.setZonaSeguraAmplia(true);
+		juego.destaparCasilla(fila, columna);
+		new Resolutor(juego).destaparSeguras();
+		return juego.getFase() == Fase.VICTORIA;
+	}
+
+	/**
+	 * Detiene los hilos del generador. Las busquedas en curso terminan sin
+	 * resultado.
+	 */
+	public void cerrar() {
+		ejecutor.shutdownNow();
+	}
+
+}
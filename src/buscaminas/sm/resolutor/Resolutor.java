@@ -0,0 +1,511 @@
+package buscaminas.sm.resolutor;
+
+import java.util.Arrays;
+
+import buscaminas.sm.controller.EstadoObserverDeshacer;
+import buscaminas.sm.controller.EstadoObserverLotes;
+import buscaminas.sm.model.AlmacenTablero;
+import buscaminas.sm.model.EstadoJuego;
+import buscaminas.sm.model.Fase;
+
+/**
+ * <p>
+ * Deduce que casillas tapadas de una partida son seguras y cuales son minas a
+ * partir de los numeros de las casillas destapadas, aplicando dos reglas:
+ * </p>
+ * <ul>
+ * <li>Regla de una casilla: si a un numero le faltan tantas minas como
+ * casillas tapadas sin deducir tiene alrededor, todas son minas; si no le
+ * falta ninguna, todas son seguras.</li>
+ * <li>Regla del subconjunto: si las casillas tapadas de un numero estan todas
+ * alrededor de otro numero cercano, las restantes del segundo contienen la
+ * diferencia de minas, y se deducen si esa diferencia es cero o igual a su
+ * cantidad.</li>
+ * </ul>
+ * <p>
+ * El resolutor observa la partida y solo vuelve a evaluar los numeros
+ * afectados por cada casilla destapada o deducida, que se guardan en una cola
+ * de trabajo, sin recorrer el tablero. Cada numero guarda como mascara de 9
+ * bits sus casillas tapadas sin deducir y cuantas minas le faltan, y ambas se
+ * actualizan al cambiar una casilla vecina, por lo que comparar dos numeros
+ * cercanos se reduce a operaciones de bits. Las deducciones se calculan al
+ * consultarlas. Las banderas del jugador no se usan, ya que pueden estar
+ * equivocadas.
+ * </p>
+ * <p>
+ * Al deshacer un destape las deducciones pueden depender de numeros que
+ * vuelven a estar tapados, asi que se descartan todas y, en la siguiente
+ * consulta, se calculan de nuevo a partir de las casillas destapadas del
+ * tablero, como al crear el resolutor.
+ * </p>
+ * <p>
+ * Solo admite un hilo. Observa una sola partida, por lo que si el controlador
+ * genera una nueva se debe crear otro resolutor.
+ * </p>
+ *
+ * @author Amanda Calatrava Arroyo
+ * @author Cristina Yenyxe Gonzalez Garcia
+ */
+public class Resolutor implements EstadoObserverLotes,
+		EstadoObserverDeshacer {
+
+	/**
+	 * Casilla tapada de la que aun no se sabe nada.
+	 */
+	static final byte TAPADA = 0;
+
+	/**
+	 * Casilla tapada que se ha deducido que no tiene mina.
+	 */
+	static final byte SEGURA = 1;
+
+	/**
+	 * Casilla tapada que se ha deducido que tiene mina.
+	 */
+	static final byte MINA = 2;
+
+	/**
+	 * Casilla destapada.
+	 */
+	static final byte DESTAPADA = 3;
+
+	/**
+	 * Partida observada.
+	 */
+	private final EstadoJuego juego;
+
+	private final int filas;
+	private final int columnas;
+
+	/**
+	 * Estado deducido de cada casilla: TAPADA, SEGURA, MINA o DESTAPADA.
+	 */
+	private final byte[] estados;
+
+	/**
+	 * Casillas tapadas sin deducir alrededor de cada casilla, como mascara de
+	 * 9 bits de su entorno de 3x3 en orden de filas.
+	 */
+	private final short[] mascaras;
+
+	/**
+	 * Minas que le faltan a cada casilla destapada descontando las deducidas.
+	 */
+	private final byte[] faltan;
+
+	/**
+	 * Casillas destapadas cuyo numero se debe volver a evaluar.
+	 */
+	private final ColaIndices pendientes;
+
+	/**
+	 * Si cada casilla esta ya en la cola de pendientes.
+	 */
+	private final boolean[] enCola;
+
+	/**
+	 * Casillas deducidas seguras, que se descartan al destaparse.
+	 */
+	private int[] seguras = new int[16];
+
+	/**
+	 * Numero de casillas en la pila de seguras.
+	 */
+	private int totalSeguras;
+
+	/**
+	 * Numero de minas deducidas.
+	 */
+	private int minasDeducidas;
+
+	/**
+	 * Si se ha tapado alguna casilla desde que se calcularon las deducciones,
+	 * que entonces se vuelven a calcular desde el tablero al consultarlas.
+	 */
+	private boolean desactualizado;
+
+	/**
+	 * Ancho del marco de 7x7 casillas centrado en el numero evaluado, que
+	 * contiene los entornos de todos los numeros con los que comparte alguna
+	 * casilla.
+	 */
+	private static final int MARCO = 7;
+
+	/**
+	 * Cada mascara de 3x3 extendida al marco de 7x7, con su esquina en el
+	 * origen. Desplazandola se coloca el entorno de cualquier numero cercano.
+	 */
+	private static final long[] EXTENDIDAS = new long[512];
+
+	static {
+		for (int mascara = 0; mascara < EXTENDIDAS.length; mascara++) {
+			for (int bit = 0; bit < 9; bit++) {
+				if ((mascara & (1 << bit)) != 0)
+					EXTENDIDAS[mascara] |= 1L << (bit / 3 * MARCO + bit % 3);
+			}
+		}
+	}
+
+	/**
+	 * Crea un resolutor para una partida, recorriendo una sola vez las
+	 * casillas que ya estuviesen destapadas, y lo registra como observador.
+	 *
+	 * @param juego
+	 *            Partida a resolver
+	 */
+	public Resolutor(EstadoJuego juego) {
+		this.juego = juego;
+		this.filas = juego.getFilas();
+		this.columnas = juego.getColumnas();
+		int casillas = filas * columnas;
+		this.estados = new byte[casillas];
+		this.mascaras = new short[casillas];
+		this.faltan = new byte[casillas];
+		this.enCola = new boolean[casillas];
+		this.pendientes = new ColaIndices();
+		reconstruir();
+		juego.addEstadoObserver(this);
+	}
+
+	/**
+	 * Descarta todas las deducciones y vuelve a partir de las casillas
+	 * destapadas del tablero, recorriendolo una sola vez.
+	 */
+	private void reconstruir() {
+		Arrays.fill(estados, TAPADA);
+		Arrays.fill(faltan, (byte) 0);
+		Arrays.fill(enCola, false);
+		pendientes.vaciar();
+		totalSeguras = 0;
+		minasDeducidas = 0;
+		for (int i = 0; i < filas; i++) {
+			for (int j = 0; j < columnas; j++)
+				mascaras[i * columnas + j] = (short) entorno(i, j);
+		}
+		if (juego.getFase() == Fase.INICIO)
+			return;
+		byte[] fila = new byte[columnas];
+		for (int i = 0; i < filas; i++) {
+			juego.leerCasillas(i * columnas, fila, 0, columnas);
+			for (int j = 0; j < columnas; j++) {
+				if ((fila[j] & AlmacenTablero.DESTAPADA) == 0)
+					continue;
+				int valor = fila[j] & AlmacenTablero.VALOR;
+				casillaDestapada(i, j, valor == AlmacenTablero.MINA ? -1
+						: valor);
+			}
+		}
+	}
+
+	/**
+	 * Obtiene una casilla segura que aun no se haya destapado.
+	 *
+	 * @return El indice de la casilla (fila * columnas + columna), o -1 si no
+	 *         se puede deducir ninguna
+	 */
+	public int siguienteSegura() {
+		resolver();
+		while (totalSeguras > 0) {
+			int casilla = seguras[totalSeguras - 1];
+			if (estados[casilla] == SEGURA)
+				return casilla;
+			totalSeguras--;
+		}
+		return -1;
+	}
+
+	/**
+	 * Destapa en la partida todas las casillas que se pueden deducir seguras,
+	 * incluidas las que se deducen a partir de las que se van destapando.
+	 *
+	 * @return El numero de casillas destapadas directamente (sin contar las
+	 *         que se abren en cascada)
+	 */
+	public int destaparSeguras() {
+		int jugadas = 0;
+		int casilla;
+		while (juego.getFase() == Fase.JUGANDO
+				&& (casilla = siguienteSegura()) >= 0) {
+			juego.destaparCasilla(casilla / columnas, casilla % columnas);
+			jugadas++;
+		}
+		return jugadas;
+	}
+
+	/**
+	 * @return Las casillas tapadas que se han deducido seguras
+	 */
+	public int[] getSeguras() {
+		resolver();
+		return buscar(SEGURA);
+	}
+
+	/**
+	 * @return Las casillas que se han deducido minas
+	 */
+	public int[] getMinas() {
+		resolver();
+		return buscar(MINA);
+	}
+
+	/**
+	 * @return El numero de minas deducidas
+	 */
+	public int getMinasDeducidas() {
+		resolver();
+		return minasDeducidas;
+	}
+
+	public boolean isSegura(int x, int y) {
+		resolver();
+		return estados[x * columnas + y] == SEGURA;
+	}
+
+	public boolean isMina(int x, int y) {
+		resolver();
+		return estados[x * columnas + y] == MINA;
+	}
+
+	EstadoJuego getJuego() {
+		return juego;
+	}
+
+	/**
+	 * @return El estado deducido de una casilla: TAPADA, SEGURA, MINA o
+	 *         DESTAPADA
+	 */
+	byte getEstado(int casilla) {
+		return estados[casilla];
+	}
+
+	/**
+	 * @return La mascara de las casillas tapadas sin deducir alrededor de una
+	 *         casilla
+	 */
+	int getMascara(int casilla) {
+		return mascaras[casilla];
+	}
+
+	/**
+	 * @return Las minas que le faltan a una casilla destapada
+	 */
+	int getFaltan(int casilla) {
+		return faltan[casilla];
+	}
+
+	/**
+	 * Evalua los numeros pendientes hasta que no se pueda deducir nada mas.
+	 */
+	void resolver() {
+		if (desactualizado) {
+			desactualizado = false;
+			reconstruir();
+		}
+		while (!pendientes.isVacia()) {
+			int casilla = pendientes.sacar();
+			enCola[casilla] = false;
+			evaluar(casilla);
+		}
+	}
+
+	/**
+	 * Aplica las reglas de una casilla y del subconjunto a un numero.
+	 */
+	private void evaluar(int casilla) {
+		int mascara = mascaras[casilla];
+		if (mascara == 0)
+			return;
+		int total = Integer.bitCount(mascara);
+		int i = casilla / columnas;
+		int j = casilla % columnas;
+		long propias = EXTENDIDAS[mascara] << (2 * MARCO + 2);
+		if (faltan[casilla] == 0) {
+			deducir(propias, i, j, SEGURA);
+			return;
+		}
+		if (faltan[casilla] == total) {
+			deducir(propias, i, j, MINA);
+			return;
+		}
+		// Comparar con los numeros que comparten alguna casilla tapada, que
+		// estan como mucho a dos filas y dos columnas
+		for (int fila = Math.max(i - 2, 0); fila <= Math.min(i + 2, filas - 1); fila++) {
+			for (int columna = Math.max(j - 2, 0); columna <= Math.min(j + 2,
+					columnas - 1); columna++) {
+				int vecino = fila * columnas + columna;
+				if (vecino == casilla || estados[vecino] != DESTAPADA
+						|| mascaras[vecino] == 0)
+					continue;
+				long ajenas = EXTENDIDAS[mascaras[vecino]] << ((fila - i + 2)
+						* MARCO + columna - j + 2);
+				if ((propias & ~ajenas) == 0 && propias != ajenas) {
+					deducirDiferencia(ajenas & ~propias, faltan[vecino]
+							- faltan[casilla], i, j);
+				} else if ((ajenas & ~propias) == 0 && propias != ajenas) {
+					deducirDiferencia(propias & ~ajenas, faltan[casilla]
+							- faltan[vecino], i, j);
+				}
+				// Si ha cambiado el propio numero ya esta otra vez en la cola
+				if (mascaras[casilla] != mascara)
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Deduce las casillas de la diferencia entre dos entornos, sabiendo
+	 * cuantas minas contiene.
+	 */
+	private void deducirDiferencia(long diferencia, int minas, int i, int j) {
+		if (minas == 0)
+			deducir(diferencia, i, j, SEGURA);
+		else if (minas == Long.bitCount(diferencia))
+			deducir(diferencia, i, j, MINA);
+	}
+
+	/**
+	 * Marca como seguras o minas todas las casillas de un marco de 7x7
+	 * centrado en la casilla indicada.
+	 */
+	private void deducir(long marco, int i, int j, byte estado) {
+		while (marco != 0) {
+			int bit = Long.numberOfTrailingZeros(marco);
+			marco &= marco - 1;
+			marcar((i + bit / MARCO - 3) * columnas + j + bit % MARCO - 3,
+					estado);
+		}
+	}
+
+	/**
+	 * Marca una casilla tapada como segura o mina.
+	 */
+	private void marcar(int casilla, byte estado) {
+		if (estados[casilla] != TAPADA)
+			return;
+		if (estado == SEGURA) {
+			if (totalSeguras == seguras.length) {
+				int[] nuevas = new int[seguras.length * 2];
+				System.arraycopy(seguras, 0, nuevas, 0, totalSeguras);
+				seguras = nuevas;
+			}
+			seguras[totalSeguras++] = casilla;
+		} else {
+			minasDeducidas++;
+		}
+		cambiarEstado(casilla, estado);
+	}
+
+	/**
+	 * Cambia el estado de una casilla tapada sin deducir, la quita de las
+	 * mascaras de las casillas que la rodean, descuenta la mina si lo es y
+	 * pone en la cola los numeros afectados.
+	 */
+	private void cambiarEstado(int casilla, byte estado) {
+		estados[casilla] = estado;
+		int i = casilla / columnas;
+		int j = casilla % columnas;
+		for (int fila = Math.max(i - 1, 0); fila <= Math.min(i + 1, filas - 1); fila++) {
+			for (int columna = Math.max(j - 1, 0); columna <= Math.min(j + 1,
+					columnas - 1); columna++) {
+				int vecino = fila * columnas + columna;
+				// Posicion de la casilla en el entorno del vecino
+				mascaras[vecino] &= ~(1 << ((i - fila + 1) * 3 + j - columna + 1));
+				if (estado == MINA)
+					faltan[vecino]--;
+				encolar(vecino);
+			}
+		}
+	}
+
+	/**
+	 * Calcula la mascara de las casillas que existen alrededor de una.
+	 */
+	private int entorno(int i, int j) {
+		int mascara = 0;
+		for (int fila = i - 1; fila <= i + 1; fila++) {
+			for (int columna = j - 1; columna <= j + 1; columna++) {
+				if (fila >= 0 && fila < filas && columna >= 0
+						&& columna < columnas)
+					mascara |= 1 << ((fila - i + 1) * 3 + columna - j + 1);
+			}
+		}
+		return mascara;
+	}
+
+	/**
+	 * Pone en la cola una casilla destapada con numero si no estaba ya.
+	 */
+	private void encolar(int casilla) {
+		if (estados[casilla] == DESTAPADA && !enCola[casilla]) {
+			enCola[casilla] = true;
+			pendientes.poner(casilla);
+		}
+	}
+
+	/**
+	 * Recorre el tablero buscando las casillas con un estado deducido.
+	 */
+	private int[] buscar(byte estado) {
+		int total = 0;
+		for (byte e : estados) {
+			if (e == estado)
+				total++;
+		}
+		int[] resultado = new int[total];
+		total = 0;
+		for (int k = 0; k < estados.length; k++) {
+			if (estados[k] == estado)
+				resultado[total++] = k;
+		}
+		return resultado;
+	}
+
+	public void casillaDestapada(int x, int y, int valor) {
+		int casilla = x * columnas + y;
+		// Si hay que reconstruir, la casilla se leera entonces del tablero
+		if (desactualizado || estados[casilla] == DESTAPADA)
+			return;
+		if (valor < 0) {
+			// Una mina destapada solo aporta que es una mina
+			if (estados[casilla] == TAPADA)
+				cambiarEstado(casilla, MINA);
+			return;
+		}
+		// Las minas ya deducidas alrededor se descuentan de su numero
+		int minas = 0;
+		for (int fila = Math.max(x - 1, 0); fila <= Math.min(x + 1, filas - 1); fila++) {
+			for (int columna = Math.max(y - 1, 0); columna <= Math.min(y + 1,
+					columnas - 1); columna++) {
+				if (estados[fila * columnas + columna] == MINA)
+					minas++;
+			}
+		}
+		faltan[casilla] = (byte) (valor - minas);
+		cambiarEstado(casilla, DESTAPADA);
+	}
+
+	public void casillasDestapadas(int[] indices, byte[] valores, int cantidad) {
+		for (int k = 0; k < cantidad; k++)
+			casillaDestapada(indices[k] / columnas, indices[k] % columnas,
+					valores[k]);
+	}
+
+	public void banderaEstablecida(int x, int y, boolean establecida) {
+		// Las banderas del jugador no se usan como informacion
+	}
+
+	public void banderasRestantes(int banderasRestantes) {
+	}
+
+	public void finPartida(Fase faseFinal) {
+	}
+
+	public void casillasTapadas(int[] indices, int cantidad) {
+		if (cantidad > 0)
+			desactualizado = true;
+	}
+
+	public void partidaReanudada() {
+	}
+
+}